@@ -17,9 +17,12 @@
 package com.android.emailcommon;
 
 import android.content.Context;
+import android.util.SparseArray;
 
 import com.android.emailcommon.provider.Account;
 
+import java.io.PrintWriter;
+
 /**
  * Constants for tagging threads for traffic stats, and associated utilities
  *
@@ -46,6 +49,9 @@ public class TrafficFlags {
     public static final int REASON_ATTACHMENT_PRECACHE = 2 << REASON_SHIFT;
     private static final String[] REASONS = new String[] {"sync", "attachment", "precache"};
 
+    /** Bytes in and out of mail connections since the process started, by their flags */
+    private static final SparseArray<long[]> sTransfers = new SparseArray<long[]>();
+
     /**
      * Get flags indicating sync of the passed-in account; note that, by default, these flags
      * indicate an email sync; to change the type of sync, simply "or" in DATA_CONTACTS or
@@ -94,4 +100,43 @@ public class TrafficFlags {
         }
         return sb.toString();
     }
+
+    /**
+     * Add the bytes moved by a connection to the totals for the flags it was tagged with.
+     *
+     * @param flags the thread stats tag the connection ran with
+     * @param bytesIn bytes read from the server
+     * @param bytesOut bytes written to the server
+     */
+    public static void recordTransfer(int flags, long bytesIn, long bytesOut) {
+        if (bytesIn == 0 && bytesOut == 0) {
+            return;
+        }
+        synchronized (sTransfers) {
+            long[] totals = sTransfers.get(flags);
+            if (totals == null) {
+                totals = new long[3];
+                sTransfers.put(flags, totals);
+            }
+            totals[0] += bytesIn;
+            totals[1] += bytesOut;
+            totals[2]++;
+        }
+    }
+
+    /**
+     * Print the totals recorded by {@link #recordTransfer}, e.g. for a dumpsys.
+     */
+    public static void dumpTransfers(PrintWriter pw) {
+        synchronized (sTransfers) {
+            if (sTransfers.size() == 0) {
+                pw.println("  None");
+            }
+            for (int i = 0; i < sTransfers.size(); i++) {
+                final long[] totals = sTransfers.valueAt(i);
+                pw.println("  " + toString(sTransfers.keyAt(i)) + ": " + totals[0] + " bytes in, " +
+                        totals[1] + " bytes out, " + totals[2] + " connections");
+            }
+        }
+    }
 }
@@ -19,8 +19,6 @@ package com.android.emailcommon.internet;
 import android.content.Context;
 import android.net.Uri;
 import android.text.TextUtils;
-import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.MessagingException;
@@ -30,17 +28,17 @@ import com.android.emailcommon.provider.EmailContent.Message;
 
 import com.android.mail.utils.LogUtils;
 
-import org.apache.commons.io.IOUtils;
-
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
@@ -50,14 +48,40 @@ import java.util.regex.Pattern;
 
 /**
  * Utility class to output RFC 822 messages from provider email messages
+ *
+ * A message is first prepared with {@link #prepare}: its headers, MIME structure and body text
+ * are encoded, once, to bytes (in UTF-8, with CRLF line endings throughout), leaving only the
+ * attachment contents to be read when it's written. So the prepared message can tell its exact
+ * length without being written, from the sizes of its attachments, and then be written as many
+ * times as needed. Attachments are base64 encoded a large block at a time, into reused buffers.
  */
 public class Rfc822Output {
     private static final String TAG = "Email";
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(UTF_8);
+    /** Bytes encoded on each line of base64, giving the 76 characters allowed by RFC 2045 */
+    private static final int BASE64_LINE_INPUT = 57;
+    /** The length of a line of base64, with its CRLF */
+    private static final int BASE64_LINE_OUTPUT = 78;
+    /** Lines of base64 encoded at a time when writing attachments */
+    private static final int BASE64_BLOCK_LINES = 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
-    private static final SimpleDateFormat DATE_FORMAT =
-        new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+    // SimpleDateFormat isn't thread safe, and messages are prepared on several threads at once
+    // (see OutboxSender), so each thread has its own.
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+                }
+            };
 
     /** A less-than-perfect pattern to pull out <body> content */
     private static final Pattern BODY_PATTERN = Pattern.compile(
@@ -69,6 +93,8 @@ public class Rfc822Output {
     private final static int INDEX_BODY_TEXT = 0;
     /** Index of the HTML version of the message body */
     private final static int INDEX_BODY_HTML = 1;
+    /** Longest line allowed in 7bit or 8bit data (RFC 5322 2.1.1), not counting the CRLF */
+    private static final int MAX_RAW_LINE_LENGTH = 998;
     /** Single digit [0-9] to ensure uniqueness of the MIME boundary */
     /*package*/ static byte sBoundaryDigit;
 
@@ -109,6 +135,18 @@ public class Rfc822Output {
         return messageBody;
     }
 
+    private final Context mContext;
+    /**
+     * The message: byte[]s holding everything that's known up front, and the Attachments whose
+     * contents go between them.
+     */
+    private final ArrayList<Object> mParts = new ArrayList<Object>();
+    private long mLength = -1;
+
+    private Rfc822Output(Context context) {
+        mContext = context;
+    }
+
     /**
      * Write the entire message to an output stream.  This method provides buffering, so it is
      * not necessary to pass in a buffered output stream here.
@@ -123,34 +161,55 @@ public class Rfc822Output {
     public static void writeTo(Context context, Message message, OutputStream out,
             boolean useSmartReply, boolean sendBcc, List<Attachment> attachments)
                     throws IOException, MessagingException {
+        writeTo(context, message, out, useSmartReply, sendBcc, attachments, false);
+    }
+
+    /**
+     * Write the entire message to an output stream, as {@link #writeTo(Context, Message,
+     * OutputStream, boolean, boolean, List)} does.
+     *
+     * @param allow8bit whether the transport accepts 8bit data (e.g. SMTP with 8BITMIME); if so,
+     * body text that fits in its line limits is sent as is rather than in base64
+     */
+    public static void writeTo(Context context, Message message, OutputStream out,
+            boolean useSmartReply, boolean sendBcc, List<Attachment> attachments,
+            boolean allow8bit) throws IOException, MessagingException {
         if (message == null) {
             // throw something?
             return;
         }
+        prepare(context, message, useSmartReply, sendBcc, attachments, allow8bit).writeTo(out);
+    }
 
-        OutputStream stream = new BufferedOutputStream(out, 1024);
-        Writer writer = new OutputStreamWriter(stream);
+    /**
+     * Prepare a message to be written; see {@link #writeTo(Context, Message, OutputStream,
+     * boolean, boolean, List, boolean)} for the arguments.
+     */
+    public static Rfc822Output prepare(Context context, Message message, boolean useSmartReply,
+            boolean sendBcc, List<Attachment> attachments, boolean allow8bit) {
+        final Rfc822Output output = new Rfc822Output(context);
+        final StringBuilder sb = new StringBuilder();
 
         // Write the fixed headers.  Ordering is arbitrary (the legacy code iterated through a
         // hashmap here).
 
-        String date = DATE_FORMAT.format(new Date(message.mTimeStamp));
-        writeHeader(writer, "Date", date);
+        String date = DATE_FORMAT.get().format(new Date(message.mTimeStamp));
+        appendHeader(sb, "Date", date);
 
-        writeEncodedHeader(writer, "Subject", message.mSubject);
+        appendEncodedHeader(sb, "Subject", message.mSubject);
 
-        writeHeader(writer, "Message-ID", message.mMessageId);
+        appendHeader(sb, "Message-ID", message.mMessageId);
 
-        writeAddressHeader(writer, "From", message.mFrom);
-        writeAddressHeader(writer, "To", message.mTo);
-        writeAddressHeader(writer, "Cc", message.mCc);
+        appendAddressHeader(sb, "From", message.mFrom);
+        appendAddressHeader(sb, "To", message.mTo);
+        appendAddressHeader(sb, "Cc", message.mCc);
         // Address fields.  Note that we skip bcc unless the sendBcc argument is true
         // SMTP should NOT send bcc headers, but EAS must send it!
         if (sendBcc) {
-            writeAddressHeader(writer, "Bcc", message.mBcc);
+            appendAddressHeader(sb, "Bcc", message.mBcc);
         }
-        writeAddressHeader(writer, "Reply-To", message.mReplyTo);
-        writeHeader(writer, "MIME-Version", "1.0");
+        appendAddressHeader(sb, "Reply-To", message.mReplyTo);
+        appendHeader(sb, "MIME-Version", "1.0");
 
         // Analyze message and determine if we have multiparts
         Body body = Body.restoreBodyWithMessageId(context, message.mId);
@@ -168,7 +227,7 @@ public class Rfc822Output {
 
         // Simplified case for no multipart - just emit text and be done.
         if (!multipart) {
-            writeTextWithHeaders(writer, stream, bodyText);
+            output.appendTextWithHeaders(sb, bodyText, allow8bit);
         } else {
             // continue with multipart headers, then into multipart body
             multipartBoundary = getNextBoundary();
@@ -183,188 +242,417 @@ public class Rfc822Output {
                 }
             }
 
-            writeHeader(writer, "Content-Type",
+            appendHeader(sb, "Content-Type",
                     "multipart/" + multipartType + "; boundary=\"" + multipartBoundary + "\"");
             // Finish headers and prepare for body section(s)
-            writer.write("\r\n");
+            sb.append("\r\n");
 
             // first multipart element is the body
             if (bodyText[INDEX_BODY_TEXT] != null || bodyText[INDEX_BODY_HTML] != null) {
-                writeBoundary(writer, multipartBoundary, false);
-                writeTextWithHeaders(writer, stream, bodyText);
+                appendBoundary(sb, multipartBoundary, false);
+                output.appendTextWithHeaders(sb, bodyText, allow8bit);
             }
 
             // Write out the attachments until we run out
             for (Attachment att: attachments) {
-                writeBoundary(writer, multipartBoundary, false);
-                writeOneAttachment(context, writer, stream, att);
-                writer.write("\r\n");
+                appendBoundary(sb, multipartBoundary, false);
+                appendAttachmentHeaders(sb, att);
+                output.addText(sb);
+                output.mParts.add(att);
+                sb.append("\r\n");
             }
 
             // end of multipart section
-            writeBoundary(writer, multipartBoundary, true);
+            appendBoundary(sb, multipartBoundary, true);
         }
+        output.addText(sb);
+        return output;
+    }
 
-        writer.flush();
-        out.flush();
+    /**
+     * Returns the exact number of bytes {@link #writeTo(OutputStream)} will write, provided the
+     * attachments don't change in the meantime. Only the attachments' sizes are looked up; their
+     * contents are read only if their size can't be had otherwise.
+     */
+    public long getLength() throws MessagingException {
+        if (mLength < 0) {
+            long length = 0;
+            for (Object part : mParts) {
+                if (part instanceof byte[]) {
+                    length += ((byte[]) part).length;
+                } else {
+                    final long contentLength = getContentLength((Attachment) part);
+                    // A missing attachment is written as nothing at all
+                    if (contentLength >= 0) {
+                        length += getBase64Length(contentLength) + CRLF.length;
+                    }
+                }
+            }
+            mLength = length;
+        }
+        return mLength;
     }
 
     /**
-     * Write a single attachment and its payload
+     * Write the prepared message.  This method provides buffering, so it is not necessary to
+     * pass in a buffered output stream here.
      */
-    private static void writeOneAttachment(Context context, Writer writer, OutputStream out,
-            Attachment attachment) throws IOException, MessagingException {
-        writeHeader(writer, "Content-Type",
-                attachment.mMimeType + ";\n name=\"" + attachment.mFileName + "\"");
-        writeHeader(writer, "Content-Transfer-Encoding", "base64");
-        // Most attachments (real files) will send Content-Disposition.  The suppression option
-        // is used when sending calendar invites.
-        if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
-            writeHeader(writer, "Content-Disposition",
-                    "attachment;"
-                    + "\n filename=\"" + attachment.mFileName + "\";"
-                    + "\n size=" + Long.toString(attachment.mSize));
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        final OutputStream stream = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        byte[] inBuffer = null;
+        byte[] outBuffer = null;
+        for (Object part : mParts) {
+            if (part instanceof byte[]) {
+                stream.write((byte[]) part);
+            } else {
+                if (inBuffer == null) {
+                    inBuffer = new byte[BASE64_LINE_INPUT * BASE64_BLOCK_LINES];
+                    outBuffer = new byte[BASE64_LINE_OUTPUT * BASE64_BLOCK_LINES];
+                }
+                writeAttachmentContents((Attachment) part, stream, inBuffer, outBuffer);
+            }
         }
-        if (attachment.mContentId != null) {
-            writeHeader(writer, "Content-ID", attachment.mContentId);
+        stream.flush();
+    }
+
+    /**
+     * Add the text built so far to the message, and clear the builder.
+     */
+    private void addText(StringBuilder sb) {
+        if (sb.length() > 0) {
+            mParts.add(toCanonicalBytes(sb.toString()));
+            sb.setLength(0);
         }
-        writer.append("\r\n");
+    }
+
+    /**
+     * Encode text in UTF-8 with CRLF line endings, whatever line endings it had.
+     */
+    private static byte[] toCanonicalBytes(String text) {
+        return text.replace("\r\n", "\n").replace('\r', '\n').replace("\n", "\r\n")
+                .getBytes(UTF_8);
+    }
 
-        // Set up input stream and write it out via base64
+    /**
+     * Open an attachment's contents: the bytes in the attachment itself, or the cached file if
+     * there's one, or the content uri.
+     */
+    private InputStream openAttachment(Attachment attachment) throws FileNotFoundException {
+        // Use content, if provided; otherwise, use the contentUri
+        if (attachment.mContentBytes != null) {
+            return new ByteArrayInputStream(attachment.mContentBytes);
+        }
+        // First try the cached file
+        final String cachedFile = attachment.getCachedFileUri();
+        if (!TextUtils.isEmpty(cachedFile)) {
+            final Uri cachedFileUri = Uri.parse(cachedFile);
+            try {
+                return mContext.getContentResolver().openInputStream(cachedFileUri);
+            } catch (FileNotFoundException e) {
+                // Couldn't open the cached file, fall back to the original content uri
+                LogUtils.d(TAG, "Rfc822Output#openAttachment(), failed to load" +
+                        "cached file, falling back to: %s", attachment.getContentUri());
+            }
+        }
+        // try to open the file
+        final Uri fileUri = Uri.parse(attachment.getContentUri());
+        return mContext.getContentResolver().openInputStream(fileUri);
+    }
+
+    /**
+     * @return the size of an attachment's contents, or -1 if there are none to be found
+     */
+    private long getContentLength(Attachment attachment) throws MessagingException {
+        if (attachment.mContentBytes != null) {
+            return attachment.mContentBytes.length;
+        }
         InputStream inStream = null;
         try {
-            // Use content, if provided; otherwise, use the contentUri
-            if (attachment.mContentBytes != null) {
-                inStream = new ByteArrayInputStream(attachment.mContentBytes);
-            } else {
-                // First try the cached file
-                final String cachedFile = attachment.getCachedFileUri();
-                if (!TextUtils.isEmpty(cachedFile)) {
-                    final Uri cachedFileUri = Uri.parse(cachedFile);
-                    try {
-                        inStream = context.getContentResolver().openInputStream(cachedFileUri);
-                    } catch (FileNotFoundException e) {
-                        // Couldn't open the cached file, fall back to the original content uri
-                        inStream = null;
-
-                        LogUtils.d(TAG, "Rfc822Output#writeOneAttachment(), failed to load" +
-                                "cached file, falling back to: %s", attachment.getContentUri());
+            inStream = openAttachment(attachment);
+            // Files (including those opened through a provider) know their size
+            if (inStream instanceof FileInputStream) {
+                try {
+                    final FileChannel channel = ((FileInputStream) inStream).getChannel();
+                    final long size = channel.size();
+                    if (size > 0) {
+                        return size - channel.position();
                     }
+                } catch (IOException e) {
+                    // Not a regular file, e.g. a pipe; count it instead
                 }
+            }
+            final byte[] buffer = new byte[BASE64_LINE_INPUT * BASE64_BLOCK_LINES];
+            long length = 0;
+            int count;
+            while ((count = inStream.read(buffer)) != -1) {
+                length += count;
+            }
+            return length;
+        } catch (FileNotFoundException fnfe) {
+            return -1;
+        } catch (IOException ioe) {
+            throw new MessagingException("Invalid attachment.", ioe);
+        } finally {
+            closeQuietly(inStream);
+        }
+    }
 
-                if (inStream == null) {
-                    // try to open the file
-                    final Uri fileUri = Uri.parse(attachment.getContentUri());
-                    inStream = context.getContentResolver().openInputStream(fileUri);
-                }
+    /**
+     * Write a single attachment's payload, in base64, followed by an empty line
+     */
+    private void writeAttachmentContents(Attachment attachment, OutputStream out, byte[] inBuffer,
+            byte[] outBuffer) throws MessagingException {
+        InputStream inStream = null;
+        try {
+            inStream = openAttachment(attachment);
+            int count;
+            while ((count = readFully(inStream, inBuffer)) > 0) {
+                out.write(outBuffer, 0, encodeBase64(inBuffer, count, outBuffer));
             }
-            // switch to output stream for base64 text output
-            writer.flush();
-            Base64OutputStream base64Out = new Base64OutputStream(
-                out, Base64.CRLF | Base64.NO_CLOSE);
-            // copy base64 data and close up
-            IOUtils.copy(inStream, base64Out);
-            base64Out.close();
 
             // The old Base64OutputStream wrote an extra CRLF after
             // the output.  It's not required by the base-64 spec; not
             // sure if it's required by RFC 822 or not.
-            out.write('\r');
-            out.write('\n');
-            out.flush();
+            out.write(CRLF);
         }
         catch (FileNotFoundException fnfe) {
             // Ignore this - empty file is OK
-            LogUtils.e(TAG, fnfe, "Rfc822Output#writeOneAttachment(), FileNotFoundException" +
+            LogUtils.e(TAG, fnfe, "Rfc822Output#writeAttachmentContents(), FileNotFoundException" +
                     "when sending attachment");
         }
         catch (IOException ioe) {
-            LogUtils.e(TAG, ioe, "Rfc822Output#writeOneAttachment(), IOException" +
+            LogUtils.e(TAG, ioe, "Rfc822Output#writeAttachmentContents(), IOException" +
                     "when sending attachment");
             throw new MessagingException("Invalid attachment.", ioe);
+        } finally {
+            closeQuietly(inStream);
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            final int count = in.read(buffer, length, buffer.length - length);
+            if (count == -1) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Returns the length of data in base64, as written by {@link #encodeBase64}.
+     */
+    /*package*/ static long getBase64Length(long length) {
+        final long lines = (length + BASE64_LINE_INPUT - 1) / BASE64_LINE_INPUT;
+        return (length + 2) / 3 * 4 + lines * CRLF.length;
+    }
+
+    /**
+     * Encode data in base64, in lines of 76 characters, each (including the last) ending in a
+     * CRLF; the same as android.util.Base64 with the CRLF flag.
+     *
+     * @param in the data; unless this is the end of it, a whole number of lines' worth
+     * @param length the number of bytes of data
+     * @param out the buffer to encode to, from its start
+     * @return the number of bytes written to out
+     */
+    /*package*/ static int encodeBase64(byte[] in, int length, byte[] out) {
+        int o = 0;
+        for (int lineStart = 0; lineStart < length; lineStart += BASE64_LINE_INPUT) {
+            final int lineEnd = Math.min(length, lineStart + BASE64_LINE_INPUT);
+            int i = lineStart;
+            for (; i + 3 <= lineEnd; i += 3) {
+                final int bits = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8)
+                        | (in[i + 2] & 0xff);
+                out[o++] = BASE64_ALPHABET[(bits >> 18) & 0x3f];
+                out[o++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+                out[o++] = BASE64_ALPHABET[(bits >> 6) & 0x3f];
+                out[o++] = BASE64_ALPHABET[bits & 0x3f];
+            }
+            final int remaining = lineEnd - i;
+            if (remaining > 0) {
+                final int bits = ((in[i] & 0xff) << 16)
+                        | (remaining == 2 ? (in[i + 1] & 0xff) << 8 : 0);
+                out[o++] = BASE64_ALPHABET[(bits >> 18) & 0x3f];
+                out[o++] = BASE64_ALPHABET[(bits >> 12) & 0x3f];
+                out[o++] = remaining == 2 ? BASE64_ALPHABET[(bits >> 6) & 0x3f] : (byte) '=';
+                out[o++] = '=';
+            }
+            out[o++] = '\r';
+            out[o++] = '\n';
+        }
+        return o;
+    }
+
+    /**
+     * Append the headers of a single attachment
+     */
+    private static void appendAttachmentHeaders(StringBuilder sb, Attachment attachment) {
+        appendHeader(sb, "Content-Type",
+                attachment.mMimeType + ";\n name=\"" + attachment.mFileName + "\"");
+        appendHeader(sb, "Content-Transfer-Encoding", "base64");
+        // Most attachments (real files) will send Content-Disposition.  The suppression option
+        // is used when sending calendar invites.
+        if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
+            appendHeader(sb, "Content-Disposition",
+                    "attachment;"
+                    + "\n filename=\"" + attachment.mFileName + "\";"
+                    + "\n size=" + Long.toString(attachment.mSize));
         }
+        if (attachment.mContentId != null) {
+            appendHeader(sb, "Content-ID", attachment.mContentId);
+        }
+        sb.append("\r\n");
     }
 
     /**
-     * Write a single header with no wrapping or encoding
+     * Append a single header with no wrapping or encoding
      *
-     * @param writer the output writer
+     * @param sb the header text
      * @param name the header name
      * @param value the header value
      */
-    private static void writeHeader(Writer writer, String name, String value) throws IOException {
+    private static void appendHeader(StringBuilder sb, String name, String value) {
         if (value != null && value.length() > 0) {
-            writer.append(name);
-            writer.append(": ");
-            writer.append(value);
-            writer.append("\r\n");
+            sb.append(name);
+            sb.append(": ");
+            sb.append(value);
+            sb.append("\r\n");
         }
     }
 
     /**
-     * Write a single header using appropriate folding & encoding
+     * Append a single header using appropriate folding & encoding
      *
-     * @param writer the output writer
+     * @param sb the header text
      * @param name the header name
      * @param value the header value
      */
-    private static void writeEncodedHeader(Writer writer, String name, String value)
-            throws IOException {
+    private static void appendEncodedHeader(StringBuilder sb, String name, String value) {
         if (value != null && value.length() > 0) {
-            writer.append(name);
-            writer.append(": ");
-            writer.append(MimeUtility.foldAndEncode2(value, name.length() + 2));
-            writer.append("\r\n");
+            sb.append(name);
+            sb.append(": ");
+            sb.append(MimeUtility.foldAndEncode2(value, name.length() + 2));
+            sb.append("\r\n");
         }
     }
 
     /**
      * Unpack, encode, and fold address(es) into a header
      *
-     * @param writer the output writer
+     * @param sb the header text
      * @param name the header name
      * @param value the header value (a packed list of addresses)
      */
-    private static void writeAddressHeader(Writer writer, String name, String value)
-            throws IOException {
+    private static void appendAddressHeader(StringBuilder sb, String name, String value) {
         if (value != null && value.length() > 0) {
-            writer.append(name);
-            writer.append(": ");
-            writer.append(MimeUtility.fold(Address.packedToHeader(value), name.length() + 2));
-            writer.append("\r\n");
+            sb.append(name);
+            sb.append(": ");
+            sb.append(MimeUtility.fold(Address.packedToHeader(value), name.length() + 2));
+            sb.append("\r\n");
         }
     }
 
     /**
-     * Write a multipart boundary
+     * Append a multipart boundary
      *
-     * @param writer the output writer
+     * @param sb the header text
      * @param boundary the boundary string
      * @param end false if inner boundary, true if final boundary
      */
-    private static void writeBoundary(Writer writer, String boundary, boolean end)
-            throws IOException {
-        writer.append("--");
-        writer.append(boundary);
+    private static void appendBoundary(StringBuilder sb, String boundary, boolean end) {
+        sb.append("--");
+        sb.append(boundary);
         if (end) {
-            writer.append("--");
+            sb.append("--");
         }
-        writer.append("\r\n");
+        sb.append("\r\n");
     }
 
     /**
-     * Write the body text.
+     * Returns the transfer encoding with which text can be sent without encoding it: "7bit" for
+     * US-ASCII, "8bit" otherwise, or null if it has lines too long for either, NULs, or bare CRs.
      *
-     * Note this always uses base64, even when not required.  Slightly less efficient for
-     * US-ASCII text, but handles all formats even when non-ascii chars are involved.  A small
-     * optimization might be to prescan the string for safety and send raw if possible.
+     * @param textBytes the UTF-8 encoded text
+     */
+    /*package*/ static String getRawTransferEncoding(byte[] textBytes) {
+        boolean eightBit = false;
+        int lineLength = 0;
+        for (int i = 0; i < textBytes.length; i++) {
+            final byte b = textBytes[i];
+            if (b == '\n') {
+                lineLength = 0;
+                continue;
+            }
+            if (b == 0 || (b == '\r' && (i + 1 == textBytes.length || textBytes[i + 1] != '\n'))) {
+                return null;
+            }
+            if (b != '\r' && ++lineLength > MAX_RAW_LINE_LENGTH) {
+                return null;
+            }
+            if (b < 0) {
+                eightBit = true;
+            }
+        }
+        return eightBit ? "8bit" : "7bit";
+    }
+
+    /**
+     * Convert bare LFs to CRLFs, and make sure the text ends with a line break, so that whatever
+     * follows (e.g. a boundary) starts on a line of its own.
+     */
+    private static byte[] toCrlfLines(byte[] text) {
+        int bareLfs = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n' && (i == 0 || text[i - 1] != '\r')) {
+                bareLfs++;
+            }
+        }
+        final boolean addLineBreak = text.length > 0 && text[text.length - 1] != '\n';
+        final byte[] lines = new byte[text.length + bareLfs + (addLineBreak ? 2 : 0)];
+        int o = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n' && (i == 0 || text[i - 1] != '\r')) {
+                lines[o++] = '\r';
+            }
+            lines[o++] = text[i];
+        }
+        if (addLineBreak) {
+            lines[o++] = '\r';
+            lines[o++] = '\n';
+        }
+        return lines;
+    }
+
+    /**
+     * Add the body text.
      *
-     * @param writer the output writer
-     * @param out the output stream inside the writer (used for byte[] access)
+     * Unless the transport accepts 8bit data, this always uses base64, even when not required.
+     * Slightly less efficient for US-ASCII text, but handles all formats even when non-ascii
+     * chars are involved.
+     *
+     * @param sb the header text so far
      * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param allow8bit whether the text may be sent without transfer encoding
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
-            throws IOException {
+    private void appendTextWithHeaders(StringBuilder sb, String[] bodyText, boolean allow8bit) {
         boolean html = false;
         String text = bodyText[INDEX_BODY_TEXT];
         if (text == null) {
@@ -372,16 +660,24 @@ public class Rfc822Output {
             html = true;
         }
         if (text == null) {
-            writer.write("\r\n");       // a truly empty message
+            sb.append("\r\n");       // a truly empty message
         } else {
             // first multipart element is the body
             String mimeType = "text/" + (html ? "html" : "plain");
-            writeHeader(writer, "Content-Type", mimeType + "; charset=utf-8");
-            writeHeader(writer, "Content-Transfer-Encoding", "base64");
-            writer.write("\r\n");
-            byte[] textBytes = text.getBytes("UTF-8");
-            writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            byte[] textBytes = text.getBytes(UTF_8);
+            String rawEncoding = allow8bit ? getRawTransferEncoding(textBytes) : null;
+            appendHeader(sb, "Content-Type", mimeType + "; charset=utf-8");
+            appendHeader(sb, "Content-Transfer-Encoding",
+                    rawEncoding != null ? rawEncoding : "base64");
+            sb.append("\r\n");
+            addText(sb);
+            if (rawEncoding != null) {
+                mParts.add(toCrlfLines(textBytes));
+            } else {
+                final byte[] encoded = new byte[(int) getBase64Length(textBytes.length)];
+                encodeBase64(textBytes, textBytes.length, encoded);
+                mParts.add(encoded);
+            }
         }
     }
 
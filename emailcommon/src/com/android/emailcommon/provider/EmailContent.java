@@ -28,6 +28,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.RemoteException;
 
@@ -39,6 +40,8 @@ import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -65,6 +68,7 @@ public abstract class EmailContent {
     public static final int NOTIFICATION_MAILBOX_ID_COLUMN = 0;
     public static final int NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN = 1;
     public static final int NOTIFICATION_MAILBOX_UNSEEN_COUNT_COLUMN = 2;
+    public static final int NOTIFICATION_MAILBOX_NEWEST_MESSAGE_ID_COLUMN = 3;
 
     // All classes share this
     public static final String RECORD_ID = "_id";
@@ -316,6 +320,18 @@ public abstract class EmailContent {
         public static final String INTRO_TEXT = "introText";
         // The start of quoted text within our text content
         public static final String QUOTED_TEXT_START_POS = "quotedTextStartPos";
+        // Large html content, compressed with COMPRESSION_CODEC (htmlContent is then null)
+        public static final String HTML_CONTENT_COMPRESSED = "htmlContentCompressed";
+        // Large plain text content, compressed with COMPRESSION_CODEC (textContent is then null)
+        public static final String TEXT_CONTENT_COMPRESSED = "textContentCompressed";
+        // The codec used for the compressed content columns, see Body.CODEC_*
+        public static final String COMPRESSION_CODEC = "compressionCodec";
+        // Path of the file holding oversized html content (htmlContent is then null)
+        public static final String HTML_CONTENT_FILE = "htmlContentFile";
+        // Path of the file holding oversized plain text content (textContent is then null)
+        public static final String TEXT_CONTENT_FILE = "textContentFile";
+        // Boolean, whether the html content has img tags; maintained by the provider
+        public static final String EMBEDS_EXTERNAL_RESOURCES = "embedsExternalResources";
     }
 
     public static final class Body extends EmailContent implements BodyColumns {
@@ -323,10 +339,19 @@ public abstract class EmailContent {
 
         public static final String SELECTION_BY_MESSAGE_KEY = MESSAGE_KEY + "=?";
 
+        /** Values for {@link BodyColumns#COMPRESSION_CODEC} */
+        public static final int CODEC_NONE = 0;
+        public static final int CODEC_DEFLATE = 1;
+
         public static Uri CONTENT_URI;
+        // Open these (with a message id appended) to read a file-backed body's content directly
+        public static Uri HTML_FILE_URI;
+        public static Uri TEXT_FILE_URI;
 
         public static void initBody() {
             CONTENT_URI = Uri.parse(EmailContent.CONTENT_URI + "/body");
+            HTML_FILE_URI = Uri.parse(EmailContent.CONTENT_URI + "/bodyHtmlFile");
+            TEXT_FILE_URI = Uri.parse(EmailContent.CONTENT_URI + "/bodyTextFile");
         }
 
         public static final int CONTENT_ID_COLUMN = 0;
@@ -374,6 +399,25 @@ public abstract class EmailContent {
         private static final String[] PROJECTION_SOURCE_KEY =
             new String[] { BodyColumns.SOURCE_MESSAGE_KEY };
 
+        // As COMMON_PROJECTION_TEXT/HTML, but also asking for the body file, if any
+        private static final String[] PROJECTION_TEXT_OR_FILE = new String[] {
+            RECORD_ID, BodyColumns.TEXT_CONTENT, BodyColumns.TEXT_CONTENT_FILE
+        };
+        private static final String[] PROJECTION_HTML_OR_FILE = new String[] {
+            RECORD_ID, BodyColumns.HTML_CONTENT, BodyColumns.HTML_CONTENT_FILE
+        };
+        private static final int PROJECTION_FILE_COLUMN = 2;
+
+        // As CONTENT_PROJECTION, but also asking for the body files, if any
+        private static final String[] PROJECTION_WITH_FILES = new String[] {
+            RECORD_ID, BodyColumns.MESSAGE_KEY, BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT,
+            BodyColumns.HTML_REPLY, BodyColumns.TEXT_REPLY, BodyColumns.SOURCE_MESSAGE_KEY,
+            BodyColumns.INTRO_TEXT, BodyColumns.QUOTED_TEXT_START_POS,
+            BodyColumns.HTML_CONTENT_FILE, BodyColumns.TEXT_CONTENT_FILE
+        };
+        private static final int PROJECTION_HTML_FILE_COLUMN = 9;
+        private static final int PROJECTION_TEXT_FILE_COLUMN = 10;
+
         public long mMessageKey;
         public String mHtmlContent;
         public String mTextContent;
@@ -404,22 +448,30 @@ public abstract class EmailContent {
             values.put(BodyColumns.MESSAGE_KEY, mMessageKey);
             values.put(BodyColumns.HTML_CONTENT, mHtmlContent);
             values.put(BodyColumns.TEXT_CONTENT, mTextContent);
-            values.put(BodyColumns.HTML_REPLY, mHtmlReply);
-            values.put(BodyColumns.TEXT_REPLY, mTextReply);
+            // The deprecated reply/intro columns are no longer written
             values.put(BodyColumns.SOURCE_MESSAGE_KEY, mSourceKey);
-            values.put(BodyColumns.INTRO_TEXT, mIntroText);
             return values;
         }
 
         /**
-         * Given a cursor, restore a Body from it
+         * Given a cursor on {@link #PROJECTION_WITH_FILES}, restore a Body from it, reading any
+         * file-backed content from its file
          * @param cursor a cursor which must NOT be null
          * @return the Body as restored from the cursor
          */
-        private static Body restoreBodyWithCursor(Cursor cursor) {
+        private static Body restoreBodyWithCursor(Context context, Cursor cursor) {
             try {
                 if (cursor.moveToFirst()) {
-                    return getContent(cursor, Body.class);
+                    final Body body = getContent(cursor, Body.class);
+                    if (!cursor.isNull(PROJECTION_HTML_FILE_COLUMN)) {
+                        body.mHtmlContent = restoreFileContent(context,
+                                ContentUris.withAppendedId(HTML_FILE_URI, body.mMessageKey));
+                    }
+                    if (!cursor.isNull(PROJECTION_TEXT_FILE_COLUMN)) {
+                        body.mTextContent = restoreFileContent(context,
+                                ContentUris.withAppendedId(TEXT_FILE_URI, body.mMessageKey));
+                    }
+                    return body;
                 } else {
                     return null;
                 }
@@ -430,18 +482,18 @@ public abstract class EmailContent {
 
         public static Body restoreBodyWithId(Context context, long id) {
             Uri u = ContentUris.withAppendedId(Body.CONTENT_URI, id);
-            Cursor c = context.getContentResolver().query(u, Body.CONTENT_PROJECTION,
+            Cursor c = context.getContentResolver().query(u, PROJECTION_WITH_FILES,
                     null, null, null);
             if (c == null) throw new ProviderUnavailableException();
-            return restoreBodyWithCursor(c);
+            return restoreBodyWithCursor(context, c);
         }
 
         public static Body restoreBodyWithMessageId(Context context, long messageId) {
             Cursor c = context.getContentResolver().query(Body.CONTENT_URI,
-                    Body.CONTENT_PROJECTION, Body.MESSAGE_KEY + "=?",
+                    PROJECTION_WITH_FILES, Body.MESSAGE_KEY + "=?",
                     new String[] {Long.toString(messageId)}, null);
             if (c == null) throw new ProviderUnavailableException();
-            return restoreBodyWithCursor(c);
+            return restoreBodyWithCursor(context, c);
         }
 
         /**
@@ -487,6 +539,15 @@ public abstract class EmailContent {
             if (c == null) throw new ProviderUnavailableException();
             try {
                 if (c.moveToFirst()) {
+                    if (projection.length > PROJECTION_FILE_COLUMN
+                            && !c.isNull(PROJECTION_FILE_COLUMN)) {
+                        // Oversized bodies live in a file; read it rather than pulling the
+                        // content through a cursor window
+                        final Uri fileUri = projection == PROJECTION_HTML_OR_FILE
+                                ? HTML_FILE_URI : TEXT_FILE_URI;
+                        return restoreFileContent(context,
+                                ContentUris.withAppendedId(fileUri, messageId));
+                    }
                     return c.getString(COMMON_PROJECTION_COLUMN_TEXT);
                 } else {
                     return null;
@@ -496,12 +557,36 @@ public abstract class EmailContent {
             }
         }
 
+        /**
+         * Read the content of a file-backed body through the provider's file descriptor, which
+         * is memory-mapped where possible.
+         * @return the content, or null if it can't be read
+         */
+        private static String restoreFileContent(Context context, Uri fileUri) {
+            try {
+                final ParcelFileDescriptor pfd =
+                        context.getContentResolver().openFileDescriptor(fileUri, "r");
+                if (pfd == null) {
+                    return null;
+                }
+                final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+                try {
+                    return Utility.readUtf8File(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LogUtils.w("Body", e, "Unable to read body file %s", fileUri);
+                return null;
+            }
+        }
+
         public static String restoreBodyTextWithMessageId(Context context, long messageId) {
-            return restoreTextWithMessageId(context, messageId, Body.COMMON_PROJECTION_TEXT);
+            return restoreTextWithMessageId(context, messageId, PROJECTION_TEXT_OR_FILE);
         }
 
         public static String restoreBodyHtmlWithMessageId(Context context, long messageId) {
-            return restoreTextWithMessageId(context, messageId, Body.COMMON_PROJECTION_HTML);
+            return restoreTextWithMessageId(context, messageId, PROJECTION_HTML_OR_FILE);
         }
 
         @Deprecated
@@ -600,6 +685,15 @@ public abstract class EmailContent {
         // can be addressed.
         public static final String MAIN_MAILBOX_KEY = "mainMailboxKey";
 
+        // The following are derived from other data and maintained by the provider; they are
+        // not part of the Message content projection.
+        // The sender addresses from the from list, newline separated
+        public static final String SENDER_KEYS = "senderKeys";
+        // The message's attachments in the form the UI expects (a JSON array), or null if none
+        public static final String ATTACHMENT_SUMMARY = "attachmentSummary";
+        // The type of the mailbox holding this message (see mailboxKey), maintained by triggers
+        // so that the combined views can select on it directly [INDEX with timeStamp]
+        public static final String MAILBOX_TYPE = "mailboxType";
     }
 
     public static final class Message extends EmailContent implements SyncColumns, MessageColumns {
@@ -1208,6 +1302,10 @@ public abstract class EmailContent {
         public static final String CONTENT_URI = "contentUri";
         // The cached location of the attachment
         public static final String CACHED_FILE = "cachedFile";
+        // The ledger of attachment storage: the bytes of the attachment stored in the account's
+        // attachment directory, and when it was stored (0 if it isn't stored there)
+        public static final String STORED_SIZE = "storedSize";
+        public static final String STORED_TIME = "storedTime";
         // A foreign key into the Message table (the message owning this attachment)
         public static final String MESSAGE_KEY = "messageKey";
         // The location of the attachment on the server side
@@ -1326,6 +1424,11 @@ public abstract class EmailContent {
         public static final int FLAG_DOWNLOAD_FORWARD = 1<<2;
         // Indicates that the attachment download failed in a non-recoverable manner
         public static final int FLAG_DOWNLOAD_FAILED = 1<<3;
+        // Indicates that the attachment was downloaded in the background, and so can be freed
+        // when the account's attachment storage is over quota
+        public static final int FLAG_DOWNLOAD_PREFETCHED = 1<<4;
+        // Indicates that a prefetched attachment was freed, and so shouldn't be prefetched again
+        public static final int FLAG_PREFETCH_EVICTED = 1<<5;
         // Allow "room" for some additional download-related flags here
         // Indicates that the attachment will be smart-forwarded
         public static final int FLAG_SMART_FORWARD = 1<<8;
@@ -41,6 +41,7 @@ import com.android.mail.utils.LogUtils;
 import org.apache.commons.io.IOUtils;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -62,6 +63,25 @@ public class AttachmentUtilities {
             AttachmentColumns.CACHED_FILE
     };
 
+    private static final String[] STORAGE_USED_PROJECTION = new String[] {
+            "sum(" + AttachmentColumns.STORED_SIZE + ")"
+    };
+    private static final String[] EVICTION_PROJECTION = new String[] {
+            AttachmentColumns.ID, AttachmentColumns.STORED_SIZE, AttachmentColumns.FLAGS,
+            AttachmentColumns.STORED_TIME
+    };
+    // The row as it was read for eviction, so that a row changed since isn't overwritten
+    private static final String EVICTION_UNCHANGED_SELECTION = AttachmentColumns.FLAGS + "=? AND "
+            + AttachmentColumns.STORED_TIME + "=?";
+    private static final String PARTIAL_DOWNLOAD_SUFFIX = ".partial";
+    // An account's stored attachments (see saveAttachment); this is a range of an index
+    private static final String STORED_SELECTION = AttachmentColumns.ACCOUNT_KEY + "=? AND "
+            + AttachmentColumns.STORED_TIME + ">0";
+    // Those of them which were prefetched, leaving out inline images, which the body refers to
+    private static final String EVICTABLE_SELECTION = STORED_SELECTION + " AND ("
+            + AttachmentColumns.FLAGS + "&" + Attachment.FLAG_DOWNLOAD_PREFETCHED + ")!=0 AND "
+            + AttachmentColumns.CONTENT_ID + " isnull";
+
     /**
      * The MIME type(s) of attachments we're willing to send via attachments.
      *
@@ -140,17 +160,30 @@ public class AttachmentUtilities {
     public static final int MAX_ATTACHMENT_UPLOAD_SIZE = (5 * 1024 * 1024);
 
     private static Uri sUri;
-    public static Uri getAttachmentUri(long accountId, long id) {
+    private static Uri.Builder buildAccountUri(long accountId) {
         if (sUri == null) {
             sUri = Uri.parse(Attachment.ATTACHMENT_PROVIDER_URI_PREFIX);
         }
-        return sUri.buildUpon()
-                .appendPath(Long.toString(accountId))
+        return sUri.buildUpon().appendPath(Long.toString(accountId));
+    }
+
+    public static Uri getAttachmentUri(long accountId, long id) {
+        return buildAccountUri(accountId)
                 .appendPath(Long.toString(id))
                 .appendPath(FORMAT_RAW)
                 .build();
     }
 
+    /**
+     * @return the uri which, deleted, drops the cached thumbnails of an attachment
+     */
+    public static Uri getThumbnailsUri(long accountId, long id) {
+        return buildAccountUri(accountId)
+                .appendPath(Long.toString(id))
+                .appendPath(FORMAT_THUMBNAIL)
+                .build();
+    }
+
     /**
      * Return the filename for a given attachment.  This should be used by any code that is
      * going to *write* attachments.
@@ -162,6 +195,16 @@ public class AttachmentUtilities {
         return new File(getAttachmentDirectory(context, accountId), Long.toString(attachmentId));
     }
 
+    /**
+     * Return the file in which an attachment is kept while it's downloaded, so that the download
+     * can be resumed if it's cut off; see {@link PartialDownload}.
+     */
+    public static File getPartialDownloadFilename(Context context, long accountId,
+            long attachmentId) {
+        return new File(getAttachmentDirectory(context, accountId),
+                attachmentId + PARTIAL_DOWNLOAD_SUFFIX);
+    }
+
     /**
      * Return the directory for a given attachment.  This should be used by any code that is
      * going to *write* attachments.
@@ -297,10 +340,124 @@ public class AttachmentUtilities {
                 // it just returns false, which we ignore, and proceed to the next file.
                 // This entire loop is best-effort only.
                 attachmentFile.delete();
+                getPartialDownloadFilename(context, accountId, attachmentId).delete();
+                context.getContentResolver().delete(
+                        getThumbnailsUri(accountId, attachmentId), null, null);
+            }
+        } finally {
+            c.close();
+        }
+        // Take the files out of the storage ledger
+        context.getContentResolver().update(Attachment.CONTENT_URI, getUnstoredValues(),
+                AttachmentColumns.MESSAGE_KEY + "=? AND " + AttachmentColumns.STORED_TIME + ">0",
+                new String[] { Long.toString(messageId) });
+    }
+
+    private static ContentValues getUnstoredValues() {
+        final ContentValues cv = new ContentValues(2);
+        cv.put(AttachmentColumns.STORED_SIZE, 0);
+        cv.put(AttachmentColumns.STORED_TIME, 0);
+        return cv;
+    }
+
+    /**
+     * Get the space taken by an account's attachment files. This comes from the ledger kept in
+     * the attachment table, so it doesn't need to look at the files themselves, plus the
+     * downloads under way or cut off (see {@link #getPartialDownloadFilename}), which aren't in
+     * the ledger until they're done.
+     *
+     * @param context
+     * @param accountId the account
+     * @return the total size of the account's stored attachments, in bytes
+     */
+    public static long getAccountStorageUsed(Context context, long accountId) {
+        return Utility.getFirstRowLong(context, Attachment.CONTENT_URI, STORAGE_USED_PROJECTION,
+                STORED_SELECTION, new String[] { Long.toString(accountId) }, null, 0, 0L)
+                + getPartialDownloadsSize(context, accountId);
+    }
+
+    private static long getPartialDownloadsSize(Context context, long accountId) {
+        final File[] files = getAttachmentDirectory(context, accountId).listFiles(
+                new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String filename) {
+                        return filename.endsWith(PARTIAL_DOWNLOAD_SUFFIX);
+                    }
+                });
+        long size = 0;
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Free space for an account by deleting the files of its prefetched attachments, least
+     * recently stored first. The attachments aren't deleted, only set back to not loaded; they
+     * can be downloaded again if they're asked for, but won't be prefetched again. An attachment
+     * whose row has changed since it was read (e.g. it's being downloaded on request) is left
+     * alone.
+     *
+     * @param context
+     * @param accountId the account
+     * @param bytesToFree the space wanted
+     * @return the space freed, which is less than wanted if there wasn't enough to free
+     */
+    public static long evictPrefetchedAttachments(Context context, long accountId,
+            long bytesToFree) {
+        final ContentResolver resolver = context.getContentResolver();
+        final Cursor c = resolver.query(Attachment.CONTENT_URI, EVICTION_PROJECTION,
+                EVICTABLE_SELECTION, new String[] { Long.toString(accountId) },
+                AttachmentColumns.STORED_TIME + " ASC");
+        if (c == null) {
+            return 0;
+        }
+        long freed = 0;
+        try {
+            while (freed < bytesToFree && c.moveToNext()) {
+                final long attachmentId = c.getLong(0);
+                final int flags = c.getInt(2);
+                final ContentValues cv = getUnstoredValues();
+                cv.putNull(AttachmentColumns.CONTENT_URI);
+                cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.NOT_SAVED);
+                cv.put(AttachmentColumns.UI_DOWNLOADED_SIZE, 0);
+                cv.put(AttachmentColumns.FLAGS, (flags & ~Attachment.FLAG_DOWNLOAD_PREFETCHED)
+                        | Attachment.FLAG_PREFETCH_EVICTED);
+                // Only if the flags and file are as we read them; the update is atomic, and
+                // the file goes only once the row no longer refers to it
+                final int updated = resolver.update(
+                        ContentUris.withAppendedId(Attachment.CONTENT_URI, attachmentId), cv,
+                        EVICTION_UNCHANGED_SELECTION,
+                        new String[] { Integer.toString(flags), Long.toString(c.getLong(3)) });
+                if (updated == 0) {
+                    continue;
+                }
+                getAttachmentFilename(context, accountId, attachmentId).delete();
+                freed += c.getLong(1);
             }
         } finally {
             c.close();
         }
+        LogUtils.d(Logging.LOG_TAG, "Freed %d bytes of prefetched attachments for account %d",
+                freed, accountId);
+        return freed;
+    }
+
+    /**
+     * Delete the cached files of the given attachments, for a caller that has already read them;
+     * see {@link #deleteAllCachedAttachmentFiles(Context, long, long)}.
+     * @param attachments the attachments
+     */
+    public static void deleteCachedAttachmentFiles(Attachment[] attachments) {
+        for (Attachment attachment : attachments) {
+            final String fileName = attachment.getCachedFileUri();
+            if (!TextUtils.isEmpty(fileName)) {
+                // Best-effort only, as in deleteAllCachedAttachmentFiles()
+                new File(fileName).delete();
+            }
+        }
     }
 
     /**
@@ -360,6 +517,8 @@ public class AttachmentUtilities {
      * @param accountId the account to scrub
      */
     public static void deleteAllAccountAttachmentFiles(Context context, long accountId) {
+        // Their thumbnails are cached apart from them
+        context.getContentResolver().delete(buildAccountUri(accountId).build(), null, null);
         File[] files = getAttachmentDirectory(context, accountId).listFiles();
         if (files == null) return;
         for (File file : files) {
@@ -368,6 +527,8 @@ public class AttachmentUtilities {
                 LogUtils.e(Logging.LOG_TAG, "Failed to delete attachment file " + file.getName());
             }
         }
+        context.getContentResolver().update(Attachment.CONTENT_URI, getUnstoredValues(),
+                STORED_SELECTION, new String[] { Long.toString(accountId) });
     }
 
     private static long copyFile(InputStream in, OutputStream out) throws IOException {
@@ -394,6 +555,9 @@ public class AttachmentUtilities {
                 Uri attUri = getAttachmentUri(accountId, attachmentId);
                 size = copyFile(in, resolver.openOutputStream(attUri));
                 contentUri = attUri.toString();
+                // Record the file in the storage ledger
+                cv.put(AttachmentColumns.STORED_SIZE, size);
+                cv.put(AttachmentColumns.STORED_TIME, System.currentTimeMillis());
             } else if (Utility.isExternalStorageMounted()) {
                 if (attachment.mFileName == null) {
                     // TODO: This will prevent a crash but does not surface the underlying problem
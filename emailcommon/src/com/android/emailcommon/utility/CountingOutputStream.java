@@ -37,4 +37,10 @@ public class CountingOutputStream extends OutputStream {
     public void write(int oneByte) throws IOException {
         mCount++;
     }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        // Count a whole buffer at once, rather than a byte at a time
+        mCount += count;
+    }
 }
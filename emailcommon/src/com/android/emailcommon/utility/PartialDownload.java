@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A download kept in a file as it arrives, so that if it's cut off it can be picked up again
+ * where it left off, rather than from the start.
+ *
+ * The raw (transfer encoded) data is decoded as it's appended, and the file holds the decoded
+ * data along with how much of the raw data that accounts for. Base64 can only be decoded in whole
+ * quanta of four characters, so the raw data is only accounted for up to the end of the last
+ * whole quantum; a quantum that's cut off is fetched again when the download resumes. Quoted
+ * printable isn't resumable, since its escapes can run across any boundary.
+ *
+ * The file is laid out as the raw offset and the decoded length (both longs), then the decoded
+ * data. The data is written before the lengths, so a file cut short by a crash is still good up
+ * to the lengths it records.
+ */
+public class PartialDownload {
+    /**
+     * Header naming the file in which to keep a part while it's fetched, for a store that can
+     * resume it (i.e. IMAP)
+     */
+    public static final String HEADER_PARTIAL_DOWNLOAD = "X-Android-Partial-Download";
+
+    private static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Values of base64 characters; -1 for those that are skipped, and -2 for padding */
+    private static final byte[] BASE64_VALUES = new byte[256];
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        BASE64_VALUES['='] = -2;
+    }
+
+    private final File mFile;
+    private final RandomAccessFile mData;
+    private final boolean mBase64;
+
+    /** Raw bytes accounted for by the decoded data in the file */
+    private long mRawOffset;
+    /** Length of the decoded data in the file */
+    private long mLength;
+    /** Raw bytes read, including any in an unfinished quantum */
+    private long mRawLength;
+    /** The unfinished quantum */
+    private final int[] mQuantum = new int[4];
+    private int mQuantumCount;
+    /** Whether the end of base64 data (padding) has been seen */
+    private boolean mEnded;
+    private byte[] mDecoded = new byte[BUFFER_SIZE];
+
+    private PartialDownload(File file, boolean base64) throws IOException {
+        mFile = file;
+        mBase64 = base64;
+        mData = new RandomAccessFile(file, "rw");
+        if (mData.length() >= HEADER_SIZE) {
+            mRawOffset = mData.readLong();
+            mLength = mData.readLong();
+            if (mRawOffset < 0 || mLength < 0 || HEADER_SIZE + mLength > mData.length()) {
+                mRawOffset = mLength = 0;
+            }
+        }
+        // Drop anything written after the lengths were last brought up to date
+        mData.setLength(HEADER_SIZE + mLength);
+        mRawLength = mRawOffset;
+        writeLengths();
+    }
+
+    /**
+     * @return whether a part with the content transfer encoding can be resumed
+     */
+    public static boolean isResumable(String contentTransferEncoding) {
+        return contentTransferEncoding == null
+                || "base64".equalsIgnoreCase(contentTransferEncoding)
+                || "7bit".equalsIgnoreCase(contentTransferEncoding)
+                || "8bit".equalsIgnoreCase(contentTransferEncoding)
+                || "binary".equalsIgnoreCase(contentTransferEncoding);
+    }
+
+    /**
+     * Open a download, picking up from what's in the file if there's anything.
+     *
+     * @param contentTransferEncoding the encoding, which must be {@link #isResumable}
+     */
+    public static PartialDownload open(File file, String contentTransferEncoding)
+            throws IOException {
+        return new PartialDownload(file, "base64".equalsIgnoreCase(contentTransferEncoding));
+    }
+
+    /**
+     * @return the offset in the raw data from which to fetch more
+     */
+    public long getRawLength() {
+        return mRawLength;
+    }
+
+    /**
+     * @return the length of the data decoded so far
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Decode raw data onto the end of the download.
+     *
+     * @return the number of raw bytes read
+     */
+    public long append(InputStream in) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long count = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            append(buffer, 0, n);
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * Decode raw data onto the end of the download.
+     */
+    public void append(byte[] raw, int offset, int count) throws IOException {
+        if (!mBase64) {
+            write(raw, offset, count);
+            mRawLength += count;
+            commit(mRawLength);
+            return;
+        }
+        if (mDecoded.length < count) {
+            mDecoded = new byte[count];
+        }
+        int decoded = 0;
+        long committed = mRawOffset;
+        for (int i = offset; i < offset + count; i++) {
+            mRawLength++;
+            final int value = BASE64_VALUES[raw[i] & 0xff];
+            if (mEnded || value == -1) {
+                // Line breaks and the like; between quanta, they can be passed over for good
+                if (mQuantumCount == 0) {
+                    committed = mRawLength;
+                }
+                continue;
+            }
+            mQuantum[mQuantumCount++] = value;
+            if (mQuantumCount == 4) {
+                decoded += decodeQuantum(decoded);
+                committed = mRawLength;
+            }
+        }
+        write(mDecoded, 0, decoded);
+        commit(committed);
+    }
+
+    /**
+     * Decode the quantum into the decoded buffer.
+     *
+     * @return the number of bytes decoded
+     */
+    private int decodeQuantum(int offset) {
+        int count = 0;
+        int bits = 0;
+        for (int i = 0; i < mQuantumCount; i++) {
+            if (mQuantum[i] == -2) {
+                // Padding ends the data
+                mEnded = true;
+                break;
+            }
+            bits |= mQuantum[i] << (18 - 6 * i);
+            count++;
+        }
+        mQuantumCount = 0;
+        // Two characters make a byte, three make two, and four make three
+        final int bytes = Math.max(0, count - 1);
+        for (int i = 0; i < bytes; i++) {
+            mDecoded[offset + i] = (byte) (bits >> (16 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Finish the download once all the raw data has been appended; a quantum cut short at the end
+     * (i.e. without padding) is decoded as far as it goes.
+     */
+    public void finish() throws IOException {
+        if (mQuantumCount > 0) {
+            final int decoded = decodeQuantum(0);
+            write(mDecoded, 0, decoded);
+            commit(mRawLength);
+        }
+    }
+
+    private void write(byte[] data, int offset, int count) throws IOException {
+        if (count > 0) {
+            mData.seek(HEADER_SIZE + mLength);
+            mData.write(data, offset, count);
+            mLength += count;
+        }
+    }
+
+    private void commit(long rawOffset) throws IOException {
+        mRawOffset = rawOffset;
+        writeLengths();
+    }
+
+    private void writeLengths() throws IOException {
+        mData.seek(0);
+        mData.writeLong(mRawOffset);
+        mData.writeLong(mLength);
+    }
+
+    /**
+     * @return a stream of the decoded data
+     */
+    public InputStream getInputStream() throws IOException {
+        final InputStream in = new FileInputStream(mFile);
+        long skip = HEADER_SIZE;
+        while (skip > 0) {
+            skip -= in.skip(skip);
+        }
+        return in;
+    }
+
+    public void close() {
+        try {
+            mData.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
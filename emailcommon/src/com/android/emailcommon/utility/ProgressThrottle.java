@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Passes on the progress of a download only as often as it's worth showing: at most once per
+ * interval, and only once it has moved on by a whole step of the total. Progress that's held
+ * back isn't lost; the latest value is passed on by the next report, or by {@link #finish}.
+ *
+ * Reports usually end up as a provider write and a UI notification, so a download reporting each
+ * buffer it reads would otherwise make thousands of them.
+ */
+public abstract class ProgressThrottle {
+    /** Shortest time between reports */
+    public static final long DEFAULT_MIN_INTERVAL_MS = 500;
+    /** Smallest change, in percent of the total, worth reporting */
+    public static final int DEFAULT_MIN_PERCENT_STEP = 1;
+
+    private final long mTotal;
+    private final long mMinIntervalMs;
+    private final int mMinPercentStep;
+
+    private long mLastReportTime;
+    private long mLastReported = -1;
+    private long mPending = -1;
+
+    /**
+     * @param total the value progress goes up to (e.g. a size in bytes, or 100 for a percentage),
+     * or 0 if it isn't known, in which case reports are limited only by time
+     */
+    public ProgressThrottle(long total) {
+        this(total, DEFAULT_MIN_INTERVAL_MS, DEFAULT_MIN_PERCENT_STEP);
+    }
+
+    public ProgressThrottle(long total, long minIntervalMs, int minPercentStep) {
+        mTotal = total;
+        mMinIntervalMs = minIntervalMs;
+        mMinPercentStep = minPercentStep;
+    }
+
+    /**
+     * Pass on the progress.
+     *
+     * @param value the progress so far, in the same units as the total
+     */
+    protected abstract void report(long value);
+
+    /**
+     * Note the progress, which is reported if it's been long enough, and it's moved on enough,
+     * since the last report. The first value is always reported.
+     */
+    public void update(long value) {
+        mPending = value;
+        if (mLastReported >= 0) {
+            if (value == mLastReported || now() - mLastReportTime < mMinIntervalMs) {
+                return;
+            }
+            if (mTotal > 0 && getPercent(value) - getPercent(mLastReported) < mMinPercentStep) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Report the latest progress, if it hasn't been; call this when the download is done.
+     */
+    public void finish() {
+        if (mPending >= 0 && mPending != mLastReported) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        mLastReported = mPending;
+        mLastReportTime = now();
+        report(mPending);
+    }
+
+    private long getPercent(long value) {
+        return value * 100 / mTotal;
+    }
+
+    @VisibleForTesting
+    protected long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -21,6 +21,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.Build;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.security.KeyChainException;
 
@@ -31,6 +34,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.security.Principal;
@@ -43,6 +47,8 @@ import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509ExtendedKeyManager;
 import javax.net.ssl.X509TrustManager;
@@ -50,6 +56,15 @@ import javax.net.ssl.X509TrustManager;
 public class SSLUtils {
     // All secure factories are the same; all insecure factories are associated with HostAuth's
     private static SSLCertificateSocketFactory sSecureFactory;
+    /**
+     * Sessions from earlier handshakes, by host and port, shared by the secure factory's
+     * connections (and kept on disk, so that they outlive the process). A connection which can
+     * resume one of these skips the key exchange and certificate checks of a full handshake,
+     * so only sessions the platform's own trust managers validated go in it; insecure
+     * factories, whose trust depends on the HostAuth, don't use a cache.
+     */
+    private static SSLSessionCache sSessionCache;
+    private static final HandshakeStats sHandshakeStats = new HandshakeStats();
 
     private static final boolean LOG_ENABLED = false;
     private static final String TAG = "Email.Ssl";
@@ -151,13 +166,104 @@ public class SSLUtils {
             return insecureFactory;
         } else {
             if (sSecureFactory == null) {
+                sSessionCache = new SSLSessionCache(context.getApplicationContext());
                 sSecureFactory = (SSLCertificateSocketFactory)
-                        SSLCertificateSocketFactory.getDefault(0, null);
+                        SSLCertificateSocketFactory.getDefault(0, sSessionCache);
             }
             return sSecureFactory;
         }
     }
 
+    /**
+     * Set up a socket from one of our factories so that it can resume a session with the host:
+     * the host name is what the session cache is keyed by (it's also sent for SNI), and session
+     * tickets let a server resume a session without keeping its state.
+     */
+    public static void enableSessionResumption(SSLCertificateSocketFactory factory, Socket socket,
+            String host) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return;
+        }
+        try {
+            factory.setHostname(socket, host);
+            factory.setUseSessionTickets(socket, true);
+        } catch (IllegalArgumentException e) {
+            // Not a socket the platform's provider made; it'll just do a full handshake
+            LogUtils.w(TAG, "Unable to enable session resumption: %s", e.toString());
+        }
+    }
+
+    /**
+     * Handshake on a socket now, rather than on its first read or write, timing the handshake
+     * and noting whether it resumed an earlier session.
+     *
+     * @return the session
+     */
+    public static SSLSession startHandshake(SSLSocket socket) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final long startElapsed = SystemClock.elapsedRealtime();
+        socket.startHandshake();
+        final SSLSession session = socket.getSession();
+        sHandshakeStats.record(SystemClock.elapsedRealtime() - startElapsed,
+                HandshakeStats.isResumed(session.getCreationTime(), startTime));
+        return session;
+    }
+
+    public static HandshakeStats getHandshakeStats() {
+        return sHandshakeStats;
+    }
+
+    /**
+     * Counts of handshakes and how long they took, split by whether they resumed a session.
+     */
+    public static class HandshakeStats {
+        private int mFullCount;
+        private long mFullMillis;
+        private int mResumedCount;
+        private long mResumedMillis;
+
+        /**
+         * A session made before the handshake started must have been resumed from the cache.
+         */
+        @VisibleForTesting
+        static boolean isResumed(long sessionCreationTime, long handshakeStartTime) {
+            return sessionCreationTime < handshakeStartTime;
+        }
+
+        public synchronized void record(long millis, boolean resumed) {
+            if (resumed) {
+                mResumedCount++;
+                mResumedMillis += millis;
+            } else {
+                mFullCount++;
+                mFullMillis += millis;
+            }
+            if (LOG_ENABLED) {
+                LogUtils.d(TAG, "Handshake took %dms, %s", millis, resumed ? "resumed" : "full");
+            }
+        }
+
+        public synchronized int getHandshakeCount() {
+            return mFullCount + mResumedCount;
+        }
+
+        /**
+         * @return the percentage of handshakes which resumed a session
+         */
+        public synchronized int getResumptionRate() {
+            final int count = mFullCount + mResumedCount;
+            return count == 0 ? 0 : mResumedCount * 100 / count;
+        }
+
+        public synchronized void dump(PrintWriter pw) {
+            pw.println("  Full: " + mFullCount + ", average " +
+                    (mFullCount == 0 ? 0 : mFullMillis / mFullCount) + "ms");
+            pw.println("  Resumed: " + mResumedCount + ", average " +
+                    (mResumedCount == 0 ? 0 : mResumedMillis / mResumedCount) + "ms");
+            pw.println("  Resumption rate: " + getResumptionRate() + "%");
+        }
+    }
+
     /**
      * Returns a {@link org.apache.http.conn.ssl.SSLSocketFactory SSLSocketFactory} for use with the
      * Apache HTTP stack.
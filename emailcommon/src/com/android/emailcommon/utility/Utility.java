@@ -57,6 +57,7 @@ import com.android.mail.utils.LogUtils;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,6 +69,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -398,6 +400,32 @@ public class Utility {
         return decode(UTF_8, b);
     }
 
+    /**
+     * Reads the whole of a UTF-8 encoded file. The file is memory-mapped when possible, so that
+     * its contents are decoded straight from the page cache rather than copied into a byte array.
+     * The stream is not closed.
+     */
+    public static String readUtf8File(FileInputStream in) throws IOException {
+        final FileChannel channel = in.getChannel();
+        final long size = channel.size() - channel.position();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + size);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), size);
+        } catch (IOException e) {
+            // Not every descriptor can be mapped (e.g. pipes); read it instead
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading
+            }
+            buffer.flip();
+        }
+        final CharBuffer cb = UTF_8.decode(buffer);
+        return new String(cb.array(), 0, cb.length());
+    }
+
     /** Converts a String to ASCII bytes */
     public static byte[] toAscii(String s) {
         return encode(ASCII, s);
@@ -793,6 +821,20 @@ public class Utility {
         Message msg = Message.restoreMessageWithId(context, messageId);
         if (msg == null) return false;
         Attachment[] atts = Attachment.restoreAttachmentsWithMessageId(context, messageId);
+        return hasUnloadedAttachments(context, msg, atts);
+    }
+
+    /**
+     * Check whether a message has unloaded attachments, as
+     * {@link #hasUnloadedAttachments(Context, long)} does, for a caller that has already read
+     * the message and its attachments.
+     * @param context the caller's context
+     * @param msg the message
+     * @param atts the message's attachments
+     * @return whether or not the message has unloaded attachments
+     */
+    public static boolean hasUnloadedAttachments(Context context, Message msg,
+            Attachment[] atts) {
         for (Attachment att: atts) {
             if (!attachmentExists(context, att)) {
                 // If the attachment doesn't exist and isn't marked for download, we're in trouble
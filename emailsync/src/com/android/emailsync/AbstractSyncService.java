@@ -59,6 +59,9 @@ public abstract class AbstractSyncService implements Runnable {
     public volatile int mSyncReason = 0;
     protected volatile boolean mStop = false;
     public volatile Thread mThread;
+    // Whether the service has finished running, whether in a thread of its own or in one of
+    // SyncManager's pool (whose thread goes on to run other services)
+    private volatile boolean mFinished = false;
     protected final Object mSynchronizer = new Object();
     // Whether or not the sync service is valid (usable)
     public boolean mIsValid = true;
@@ -183,6 +186,28 @@ public abstract class AbstractSyncService implements Runnable {
         return mStop;
     }
 
+    /**
+     * @return whether the service has finished running; until then, it's running or waiting to
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /*package*/ synchronized void setFinished() {
+        mFinished = true;
+    }
+
+    /**
+     * Interrupt the service's thread, unless the service has already finished (in which case the
+     * thread may be running another service)
+     */
+    public synchronized void interrupt() {
+        Thread thread = mThread;
+        if (thread != null && !mFinished) {
+            thread.interrupt();
+        }
+    }
+
     public Object getSynchronizer() {
         return mSynchronizer;
     }
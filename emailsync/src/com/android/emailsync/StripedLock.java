@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks for things identified by id (e.g. mailboxes), spread over a fixed number of stripes, so
+ * that work on one doesn't wait for work on another (unless they happen to share a stripe).
+ * The locks are reentrant, and note how long they're waited for and held, for dumps.
+ */
+/*package*/ class StripedLock {
+    private static class Stripe extends ReentrantLock {
+        // When the lock was taken (but not retaken by the same thread); guarded by the lock
+        long mLockedAt;
+    }
+
+    private final Stripe[] mStripes;
+
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mWaitMillis = new AtomicLong();
+    private final AtomicLong mMaxWaitMillis = new AtomicLong();
+    private final AtomicLong mHoldMillis = new AtomicLong();
+    private final AtomicLong mMaxHoldMillis = new AtomicLong();
+
+    public StripedLock(int stripes) {
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe getStripe(long id) {
+        return mStripes[(int) ((id & Long.MAX_VALUE) % mStripes.length)];
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Try again
+        }
+    }
+
+    /**
+     * Lock for the id; every call must be matched by a call to {@link #unlock} in a finally block.
+     */
+    public void lock(long id) {
+        final Stripe stripe = getStripe(id);
+        final long start = SystemClock.elapsedRealtime();
+        stripe.lock();
+        if (stripe.getHoldCount() == 1) {
+            final long now = SystemClock.elapsedRealtime();
+            stripe.mLockedAt = now;
+            mCount.incrementAndGet();
+            mWaitMillis.addAndGet(now - start);
+            updateMax(mMaxWaitMillis, now - start);
+        }
+    }
+
+    public void unlock(long id) {
+        final Stripe stripe = getStripe(id);
+        if (stripe.getHoldCount() == 1) {
+            final long held = SystemClock.elapsedRealtime() - stripe.mLockedAt;
+            mHoldMillis.addAndGet(held);
+            updateMax(mMaxHoldMillis, held);
+        }
+        stripe.unlock();
+    }
+
+    public void dump(PrintWriter pw, String name) {
+        final long count = mCount.get();
+        pw.print("  " + name + ": " + count + " taken");
+        if (count > 0) {
+            pw.print(", wait avg " + (mWaitMillis.get() / count) + "ms max " +
+                    mMaxWaitMillis.get() + "ms, hold avg " + (mHoldMillis.get() / count) +
+                    "ms max " + mMaxHoldMillis.get() + "ms");
+        }
+        pw.println();
+    }
+}
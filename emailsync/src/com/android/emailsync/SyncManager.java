@@ -74,9 +74,15 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The SyncServiceManager handles the lifecycle of various sync adapters used by services that
@@ -99,7 +105,13 @@ public abstract class SyncManager extends Service implements Runnable {
     private static final int ONE_DAY_MINUTES = 1440;
 
     private static final int SYNC_SERVICE_HEARTBEAT_TIME = 15*MINUTES;
+    // The most services that run at once, other than those that push (which wait on the server)
+    private static final int MAX_SYNC_THREADS = 4;
+    // How long an idle thread in the pool of sync threads lasts
+    private static final int SYNC_THREAD_KEEP_ALIVE_SECONDS = 60;
     private static final int CONNECTIVITY_WAIT_TIME = 10*MINUTES;
+    // The operation ending a Mailbox.NOTIFIER_URI notification (before the id) for an update
+    private static final String NOTIFICATION_OP_UPDATE = "update";
 
     // Sync hold constants for services with transient errors
     private static final int HOLD_DELAY_MAXIMUM = 4*MINUTES;
@@ -165,15 +177,19 @@ public abstract class SyncManager extends Service implements Runnable {
 
     private static final int MAX_CLIENT_CONNECTION_MANAGER_SHUTDOWNS = 1;
 
-    // We synchronize on this for all actions affecting the service and error maps
+    // We synchronize on this for starting up and shutting down, and for actions affecting all
+    // of the services at once
     private static final Object sSyncLock = new Object();
+    // Starting, stopping, and finishing the service for a mailbox take the mailbox's lock, so that
+    // they neither race each other nor wait for work on other mailboxes
+    /*package*/ static final StripedLock sMailboxLocks = new StripedLock(16);
     // All threads can use this lock to wait for connectivity
     public static final Object sConnectivityLock = new Object();
     public static boolean sConnectivityHold = false;
 
     // Keeps track of running services (by mailbox id)
-    public final HashMap<Long, AbstractSyncService> mServiceMap =
-        new HashMap<Long, AbstractSyncService>();
+    public final ConcurrentHashMap<Long, AbstractSyncService> mServiceMap =
+        new ConcurrentHashMap<Long, AbstractSyncService>();
     // Keeps track of services whose last sync ended with an error (by mailbox id)
     /*package*/ public ConcurrentHashMap<Long, SyncError> mSyncErrorMap =
         new ConcurrentHashMap<Long, SyncError>();
@@ -220,6 +236,16 @@ public abstract class SyncManager extends Service implements Runnable {
     private String mNextWaitReason;
     // Whether we have an unsatisfied "kick" pending
     private boolean mKicked = false;
+    // When each mailbox next needs checking; between scans, only those that are due are checked
+    private final SyncSchedule mSchedule = new SyncSchedule();
+    // Whether accounts (or many mailboxes) may have changed, so all mailboxes need to be scanned
+    // again; a single mailbox's change just puts it in the schedule
+    private volatile boolean mRescan = true;
+    // When all mailboxes were last scanned
+    private long mLastScanTime;
+    // The threads in which services that don't push run; services beyond what it has threads
+    // for wait their turn, so the number of threads doesn't grow with the number of mailboxes
+    private final ThreadPoolExecutor mSyncExecutor = createSyncExecutor();
 
     // Receiver of connectivity broadcasts
     private ConnectivityReceiver mConnectivityReceiver = null;
@@ -699,6 +725,12 @@ public abstract class SyncManager extends Service implements Runnable {
         }
     }
 
+    /**
+     * Observes Mailbox.NOTIFIER_URI, whose notifications end in the operation and (for a single
+     * mailbox) its id, as EmailProvider sends them. An updated mailbox is checked on its own at
+     * the next wakeup; anything else (inserts, deletes, updates of many mailboxes) needs all of
+     * them scanned again.
+     */
     private class MailboxObserver extends ContentObserver {
         public MailboxObserver(Handler handler) {
             super(handler);
@@ -706,10 +738,42 @@ public abstract class SyncManager extends Service implements Runnable {
 
         @Override
         public void onChange(boolean selfChange) {
-            // See if there's anything to do...
-            if (!selfChange) {
-                kick("mailbox changed");
+            // Only called this way before JB, where the uri isn't given
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (selfChange) {
+                return;
             }
+            final long mailboxId = getUpdatedMailboxId(uri);
+            if (mailboxId > 0) {
+                mSchedule.set(mailboxId, System.currentTimeMillis(), "Mailbox changed");
+                wake("mailbox changed");
+            } else {
+                kick("mailboxes changed");
+            }
+        }
+    }
+
+    /**
+     * @param uri a notification of a change to Mailbox.NOTIFIER_URI, or null if it wasn't given
+     * @return the id of the mailbox updated, or -1 if it isn't a single mailbox's update
+     */
+    /*package*/ static long getUpdatedMailboxId(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        final List<String> segments = uri.getPathSegments();
+        final int size = segments.size();
+        if (size < 2 || !NOTIFICATION_OP_UPDATE.equals(segments.get(size - 2))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(size - 1));
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
@@ -935,35 +999,30 @@ public abstract class SyncManager extends Service implements Runnable {
     }
 
     public void stopAccountSyncs(long acctId, boolean includeAccountMailbox) {
-        synchronized (sSyncLock) {
-            List<Long> deletedBoxes = new ArrayList<Long>();
-            for (Long mid : mServiceMap.keySet()) {
-                Mailbox box = Mailbox.restoreMailboxWithId(this, mid);
-                if (box != null) {
-                    if (box.mAccountKey == acctId) {
+        for (Long mid : mServiceMap.keySet()) {
+            Mailbox box = Mailbox.restoreMailboxWithId(this, mid);
+            if (box != null) {
+                if (box.mAccountKey == acctId) {
+                    sMailboxLocks.lock(mid);
+                    try {
+                        AbstractSyncService svc = mServiceMap.get(mid);
                         if (!includeAccountMailbox &&
                                 box.mType == Mailbox.TYPE_EAS_ACCOUNT_MAILBOX) {
-                            AbstractSyncService svc = mServiceMap.get(mid);
                             if (svc != null) {
                                 svc.stop();
                             }
                             continue;
                         }
-                        AbstractSyncService svc = mServiceMap.get(mid);
                         if (svc != null) {
                             svc.stop();
-                            Thread t = svc.mThread;
-                            if (t != null) {
-                                t.interrupt();
-                            }
+                            svc.interrupt();
                         }
-                        deletedBoxes.add(mid);
+                        releaseMailbox(mid);
+                    } finally {
+                        sMailboxLocks.unlock(mid);
                     }
                 }
             }
-            for (Long mid : deletedBoxes) {
-                releaseMailbox(mid);
-            }
         }
     }
 
@@ -1126,7 +1185,7 @@ public abstract class SyncManager extends Service implements Runnable {
         checkSyncManagerRunning();
         if (id < 0) {
             log("SyncServiceManager alert");
-            kick("ping SyncServiceManager");
+            wake("ping SyncServiceManager");
         } else if (ssm == null) {
             context.startService(new Intent(context, SyncManager.class));
         } else {
@@ -1166,9 +1225,7 @@ public abstract class SyncManager extends Service implements Runnable {
                                // In this case, we release the mailbox so that we can start another
                                // thread to do the work
                                log("Alarm failed; releasing mailbox");
-                               synchronized(sSyncLock) {
-                                   ssm.releaseMailbox(id);
-                               }
+                               ssm.releaseMailbox(id, service);
                                // Shutdown the connection manager; this should close all of our
                                // sockets and generate IOExceptions all around.
                                SyncManager.shutdownConnectionManager();
@@ -1204,22 +1261,79 @@ public abstract class SyncManager extends Service implements Runnable {
         }
     }
 
+    private static ThreadPoolExecutor createSyncExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SYNC_THREADS,
+                MAX_SYNC_THREADS, SYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "SyncManager sync #" + mCount.incrementAndGet());
+                    }
+                });
+        // Idle threads go away, rather than being kept for services that may not come
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
-     * Starts a service thread and enters it into the service map
+     * Runs a service, noting when it's finished; a service that was stopped before its turn came
+     * isn't run at all.
+     */
+    private static class ServiceRunner implements Runnable {
+        private final AbstractSyncService mService;
+        private final String mName;
+
+        ServiceRunner(AbstractSyncService service, String name) {
+            mService = service;
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            final Thread thread = Thread.currentThread();
+            final String threadName = thread.getName();
+            thread.setName(mName);
+            mService.mThread = thread;
+            try {
+                if (!mService.isStopped()) {
+                    mService.run();
+                }
+            } finally {
+                mService.setFinished();
+                thread.setName(threadName);
+            }
+        }
+    }
+
+    /**
+     * Starts a service and enters it into the service map
      * This is the point of instantiation of all sync threads
+     * A mailbox that's pushed waits on the server for as long as it's pushed, so it gets a thread
+     * of its own; any other runs in the pool of sync threads, waiting if they're all busy
      * @param service the service to start
      * @param m the Mailbox on which the service will operate
      */
-    private void startServiceThread(AbstractSyncService service) {
+    /*package*/ void startServiceThread(AbstractSyncService service) {
         final Mailbox mailbox = service.mMailbox;
-        synchronized (sSyncLock) {
+        sMailboxLocks.lock(mailbox.mId);
+        try {
             String mailboxName = mailbox.mDisplayName;
             String accountName = service.mAccount.mDisplayName;
-            Thread thread = new Thread(service, mailboxName + "[" + accountName + "]");
-            log("Starting thread for " + mailboxName + " in account " + accountName);
-            thread.start();
+            String name = mailboxName + "[" + accountName + "]";
+            Runnable runner = new ServiceRunner(service, name);
+            if (mailbox.mSyncInterval == Mailbox.CHECK_INTERVAL_PUSH) {
+                log("Starting thread for " + mailboxName + " in account " + accountName);
+                new Thread(runner, name).start();
+            } else {
+                log("Starting sync for " + mailboxName + " in account " + accountName);
+                mSyncExecutor.execute(runner);
+            }
             mServiceMap.put(mailbox.mId, service);
             runAwake(mailbox.mId);
+        } finally {
+            sMailboxLocks.unlock(mailbox.mId);
         }
         onStartService(mailbox);
     }
@@ -1230,25 +1344,36 @@ public abstract class SyncManager extends Service implements Runnable {
         if (sConnectivityHold || (m == null) || sStop) {
             return;
         }
-        synchronized (sSyncLock) {
-            Account acct = Account.restoreAccountWithId(this, m.mAccountKey);
-            if (acct != null) {
-                // Always make sure there's not a running instance of this service
-                AbstractSyncService service = mServiceMap.get(m.mId);
-                if (service == null) {
-                    service = getServiceForMailbox(this, m);
-                    if (!service.mIsValid) return;
-                    service.mSyncReason = reason;
-                    if (req != null) {
-                        service.addRequest(req);
-                    }
-                    startServiceThread(service);
-                    if (reason >= SYNC_CALLBACK_START) {
-                        syncStatus = EmailContent.SYNC_STATUS_USER;
-                    }
-                    setMailboxSyncStatus(m.mId, syncStatus);
-                }
+        // Always make sure there's not a running instance of this service
+        if (mServiceMap.containsKey(m.mId)) {
+            return;
+        }
+        // Look the account up before taking the lock, so others needn't wait for the provider
+        Account acct = Account.restoreAccountWithId(this, m.mAccountKey);
+        if (acct == null) {
+            return;
+        }
+        sMailboxLocks.lock(m.mId);
+        try {
+            // Someone else may have started one in the meantime; check before building ours, so
+            // that the request isn't added to a service that's never started
+            if (mServiceMap.containsKey(m.mId)) {
+                return;
+            }
+            AbstractSyncService service = getServiceForMailbox(this, m);
+            if (!service.mIsValid) return;
+            service.mSyncReason = reason;
+            if (req != null) {
+                service.addRequest(req);
+            }
+            startServiceThread(service);
+            if (reason >= SYNC_CALLBACK_START) {
+                syncStatus = EmailContent.SYNC_STATUS_USER;
             }
+            // Still under the lock, so that done() can't clear the status before it's been set
+            setMailboxSyncStatus(m.mId, syncStatus);
+        } finally {
+            sMailboxLocks.unlock(m.mId);
         }
     }
 
@@ -1275,15 +1400,19 @@ public abstract class SyncManager extends Service implements Runnable {
 
             // Shut down all of those running services
             for (Long mailboxId : toStop) {
-                AbstractSyncService svc = mServiceMap.get(mailboxId);
-                if (svc != null) {
-                    log("Stopping " + svc.mAccount.mDisplayName + '/' + svc.mMailbox.mDisplayName);
-                    svc.stop();
-                    if (svc.mThread != null) {
-                        svc.mThread.interrupt();
+                sMailboxLocks.lock(mailboxId);
+                try {
+                    AbstractSyncService svc = mServiceMap.get(mailboxId);
+                    if (svc != null) {
+                        log("Stopping " + svc.mAccount.mDisplayName + '/' +
+                                svc.mMailbox.mDisplayName);
+                        svc.stop();
+                        svc.interrupt();
                     }
+                    releaseWakeLock(mailboxId);
+                } finally {
+                    sMailboxLocks.unlock(mailboxId);
                 }
-                releaseWakeLock(mailboxId);
             }
         }
     }
@@ -1513,7 +1642,7 @@ public abstract class SyncManager extends Service implements Runnable {
                 mAccountObserver = getAccountObserver(mHandler);
                 mResolver.registerContentObserver(Account.NOTIFIER_URI, true, mAccountObserver);
                 mMailboxObserver = new MailboxObserver(mHandler);
-                mResolver.registerContentObserver(Mailbox.CONTENT_URI, false, mMailboxObserver);
+                mResolver.registerContentObserver(Mailbox.NOTIFIER_URI, true, mMailboxObserver);
                 mSyncedMessageObserver = new SyncedMessageObserver(mHandler);
                 mResolver.registerContentObserver(Message.SYNCED_CONTENT_URI, true,
                         mSyncedMessageObserver);
@@ -1630,7 +1759,8 @@ public abstract class SyncManager extends Service implements Runnable {
 
     /**
      * Release a mailbox from the service map and release its wake lock.
-     * NOTE: This method MUST be called while holding sSyncLock!
+     * NOTE: This method should be called while holding the mailbox's lock, if the mailbox's
+     * service mustn't be started or released by someone else in the meantime
      *
      * @param mailboxId the id of the mailbox to be released
      */
@@ -1639,6 +1769,24 @@ public abstract class SyncManager extends Service implements Runnable {
         releaseWakeLock(mailboxId);
     }
 
+    /**
+     * Release a mailbox from the service map and release its wake lock, as long as its service is
+     * still the one given (rather than one started since).
+     *
+     * @param mailboxId the id of the mailbox to be released
+     * @param service the service to be released
+     */
+    private void releaseMailbox(long mailboxId, AbstractSyncService service) {
+        sMailboxLocks.lock(mailboxId);
+        try {
+            if (mServiceMap.remove(mailboxId, service)) {
+                releaseWakeLock(mailboxId);
+            }
+        } finally {
+            sMailboxLocks.unlock(mailboxId);
+        }
+    }
+
     /**
      * Retrieve a running sync service for the passed-in mailbox id in a threadsafe manner
      *
@@ -1646,9 +1794,7 @@ public abstract class SyncManager extends Service implements Runnable {
      * @return the running service (a subclass of AbstractSyncService) or null if none
      */
     public AbstractSyncService getRunningService(long mailboxId) {
-        synchronized(sSyncLock) {
-            return mServiceMap.get(mailboxId);
-        }
+        return mServiceMap.get(mailboxId);
     }
 
     /**
@@ -1792,150 +1938,207 @@ public abstract class SyncManager extends Service implements Runnable {
         return true;
     }
 
-    private long checkMailboxes () {
-        // First, see if any running mailboxes have been deleted
-        ArrayList<Long> deletedMailboxes = new ArrayList<Long>();
-        synchronized (sSyncLock) {
-            for (long mailboxId: mServiceMap.keySet()) {
-                Mailbox m = Mailbox.restoreMailboxWithId(this, mailboxId);
-                if (m == null) {
-                    deletedMailboxes.add(mailboxId);
-                }
+    /**
+     * Stop or release the services of any mailboxes that have been deleted.
+     */
+    private void releaseDeletedMailboxes() {
+        final ArrayList<Long> running = new ArrayList<Long>(mServiceMap.keySet());
+        if (running.isEmpty()) {
+            return;
+        }
+        // Find which of the running mailboxes are still there, all in one query
+        final HashSet<Long> existing = new HashSet<Long>();
+        final Cursor c = mResolver.query(Mailbox.CONTENT_URI, EmailContent.ID_PROJECTION,
+                EmailContent.RECORD_ID + " in (" + joinIds(running) + ")", null, null);
+        if (c == null) throw new ProviderUnavailableException();
+        try {
+            while (c.moveToNext()) {
+                existing.add(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
             }
-            // If so, stop them or remove them from the map
-            for (Long mailboxId: deletedMailboxes) {
-                AbstractSyncService svc = mServiceMap.get(mailboxId);
-                if (svc == null || svc.mThread == null) {
-                    releaseMailbox(mailboxId);
-                    continue;
-                } else {
-                    boolean alive = svc.mThread.isAlive();
-                    log("Deleted mailbox: " + svc.mMailboxName);
-                    if (alive) {
-                        stopManualSync(mailboxId);
-                    } else {
-                        log("Removing from serviceMap");
-                        releaseMailbox(mailboxId);
-                    }
-                }
+        } finally {
+            c.close();
+        }
+        // If any are gone, stop them or remove them from the map
+        for (Long mailboxId: running) {
+            if (existing.contains(mailboxId)) {
+                continue;
+            }
+            AbstractSyncService svc = mServiceMap.get(mailboxId);
+            if (svc == null) {
+                continue;
+            } else if (svc.isFinished()) {
+                releaseMailbox(mailboxId, svc);
+            } else {
+                // Running, or waiting for a thread in which to run
+                log("Deleted mailbox: " + svc.mMailboxName);
+                stopManualSync(mailboxId);
             }
         }
+    }
 
-        long nextWait = SYNC_SERVICE_HEARTBEAT_TIME;
-        long now = System.currentTimeMillis();
+    private static String joinIds(Iterable<Long> ids) {
+        final StringBuilder sb = new StringBuilder();
+        for (Long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check the mailboxes that need it, starting syncs that are due, and scheduling each
+     * mailbox's next check. All of the syncable mailboxes are scanned after a change to the
+     * accounts, or to mailboxes that isn't an update of one of them (see {@link #kick}), and once
+     * a heartbeat in any case; otherwise only those due in the schedule are (including a mailbox
+     * that's been updated), so a wakeup costs as much as the mailboxes that need it.
+     *
+     * @return how long to wait until the next check
+     */
+    private long checkMailboxes () {
+        final long now = System.currentTimeMillis();
 
         // Start up threads that need it; use a query which finds eas mailboxes where the
         // the sync interval is not "never".  This is the set of mailboxes that we control
         if (mAccountObserver == null) {
             log("mAccountObserver null; service died??");
-            return nextWait;
+            return SYNC_SERVICE_HEARTBEAT_TIME;
         }
 
-        Cursor c = getContentResolver().query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
-                mAccountObserver.getSyncableMailboxWhere(), null, null);
-        if (c == null) throw new ProviderUnavailableException();
-        try {
-            while (c.moveToNext()) {
-                long mailboxId = c.getLong(Mailbox.CONTENT_ID_COLUMN);
-                AbstractSyncService service = getRunningService(mailboxId);
-                if (service == null) {
-                    // Get the cached account
-                    Account account = getAccountById(c.getInt(Mailbox.CONTENT_ACCOUNT_KEY_COLUMN));
-                    if (account == null) continue;
-
-                    // We handle a few types of mailboxes specially
-                    int mailboxType = c.getInt(Mailbox.CONTENT_TYPE_COLUMN);
-                    if (!isMailboxSyncable(account, mailboxType)) {
-                        continue;
-                    }
+        String selection = mAccountObserver.getSyncableMailboxWhere();
+        if (mRescan || now - mLastScanTime >= SYNC_SERVICE_HEARTBEAT_TIME) {
+            // Any changes from here on will need another scan
+            mRescan = false;
+            mLastScanTime = now;
+            // First, see if any running mailboxes have been deleted
+            releaseDeletedMailboxes();
+            mSchedule.clear();
+        } else {
+            final ArrayList<Long> due = mSchedule.takeDue(now);
+            if (due.isEmpty()) {
+                selection = null;
+            } else {
+                selection += " and " + EmailContent.RECORD_ID + " in (" + joinIds(due) + ")";
+            }
+        }
 
-                    // Check whether we're in a hold (temporary or permanent)
-                    SyncError syncError = mSyncErrorMap.get(mailboxId);
-                    if (syncError != null) {
-                        // Nothing we can do about fatal errors
-                        if (syncError.fatal) continue;
-                        if (now < syncError.holdEndTime) {
-                            // If release time is earlier than next wait time,
-                            // move next wait time up to the release time
-                            if (syncError.holdEndTime < now + nextWait) {
-                                nextWait = syncError.holdEndTime - now;
-                                mNextWaitReason = "Release hold";
-                            }
-                            continue;
-                        } else {
-                            // Keep the error around, but clear the end time
-                            syncError.holdEndTime = 0;
-                        }
-                    }
+        if (selection != null) {
+            Cursor c = getContentResolver().query(Mailbox.CONTENT_URI,
+                    Mailbox.CONTENT_PROJECTION, selection, null, null);
+            if (c == null) throw new ProviderUnavailableException();
+            try {
+                while (c.moveToNext()) {
+                    checkMailbox(c, now);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        long nextWait = mLastScanTime + SYNC_SERVICE_HEARTBEAT_TIME - now;
+        final long nextTime = mSchedule.getNextTime();
+        if (nextTime - now < nextWait) {
+            nextWait = nextTime - now;
+            mNextWaitReason = mSchedule.getNextReason();
+        }
+        return nextWait;
+    }
 
-                    // Otherwise, we use the sync interval
-                    long syncInterval = c.getInt(Mailbox.CONTENT_SYNC_INTERVAL_COLUMN);
-                    if (syncInterval == Mailbox.CHECK_INTERVAL_PUSH) {
-                        Mailbox m = EmailContent.getContent(c, Mailbox.class);
-                        requestSync(m, SYNC_PUSH, null);
-                    } else if (mailboxType == Mailbox.TYPE_OUTBOX) {
-                        if (hasSendableMessages(c)) {
-                            Mailbox m = EmailContent.getContent(c, Mailbox.class);
+    /**
+     * Check a mailbox, starting a sync if one is due, and scheduling its next check if it has one.
+     *
+     * @param c a cursor on the mailbox, with Mailbox.CONTENT_PROJECTION
+     */
+    private void checkMailbox(Cursor c, long now) {
+        long mailboxId = c.getLong(Mailbox.CONTENT_ID_COLUMN);
+        AbstractSyncService service = getRunningService(mailboxId);
+        if (service == null) {
+            // Get the cached account
+            Account account = getAccountById(c.getInt(Mailbox.CONTENT_ACCOUNT_KEY_COLUMN));
+            if (account == null) return;
+
+            // We handle a few types of mailboxes specially
+            int mailboxType = c.getInt(Mailbox.CONTENT_TYPE_COLUMN);
+            if (!isMailboxSyncable(account, mailboxType)) {
+                return;
+            }
+
+            // Check whether we're in a hold (temporary or permanent)
+            SyncError syncError = mSyncErrorMap.get(mailboxId);
+            if (syncError != null) {
+                // Nothing we can do about fatal errors
+                if (syncError.fatal) return;
+                if (now < syncError.holdEndTime) {
+                    // Check again when the hold is released
+                    mSchedule.set(mailboxId, syncError.holdEndTime, "Release hold");
+                    return;
+                } else {
+                    // Keep the error around, but clear the end time
+                    syncError.holdEndTime = 0;
+                }
+            }
+
+            // Otherwise, we use the sync interval
+            long syncInterval = c.getInt(Mailbox.CONTENT_SYNC_INTERVAL_COLUMN);
+            if (syncInterval == Mailbox.CHECK_INTERVAL_PUSH) {
+                Mailbox m = EmailContent.getContent(c, Mailbox.class);
+                requestSync(m, SYNC_PUSH, null);
+            } else if (mailboxType == Mailbox.TYPE_OUTBOX) {
+                if (hasSendableMessages(c)) {
+                    Mailbox m = EmailContent.getContent(c, Mailbox.class);
+                    sMailboxLocks.lock(mailboxId);
+                    try {
+                        // A service may have been started since we looked, above
+                        if (!mServiceMap.containsKey(mailboxId)) {
                             startServiceThread(getServiceForMailbox(this, m));
                         }
-                    } else if (syncInterval > 0 && syncInterval <= ONE_DAY_MINUTES) {
-                        // TODO: Migrating to use system SyncManager, so this should be dead code.
-                        long lastSync = c.getLong(Mailbox.CONTENT_SYNC_TIME_COLUMN);
-                        long sinceLastSync = now - lastSync;
-                        long toNextSync = syncInterval*MINUTES - sinceLastSync;
-                        String name = c.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN);
-                        if (toNextSync <= 0) {
-                            Mailbox m = EmailContent.getContent(c, Mailbox.class);
-                            requestSync(m, SYNC_SCHEDULED, null);
-                        } else if (toNextSync < nextWait) {
-                            nextWait = toNextSync;
-                            if (sUserLog) {
-                                log("Next sync for " + name + " in " + nextWait/1000 + "s");
-                            }
-                            mNextWaitReason = "Scheduled sync, " + name;
-                        } else if (sUserLog) {
-                            log("Next sync for " + name + " in " + toNextSync/1000 + "s");
-                        }
+                    } finally {
+                        sMailboxLocks.unlock(mailboxId);
                     }
+                }
+            } else if (syncInterval > 0 && syncInterval <= ONE_DAY_MINUTES) {
+                // TODO: Migrating to use system SyncManager, so this should be dead code.
+                long lastSync = c.getLong(Mailbox.CONTENT_SYNC_TIME_COLUMN);
+                long sinceLastSync = now - lastSync;
+                long toNextSync = syncInterval*MINUTES - sinceLastSync;
+                String name = c.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN);
+                if (toNextSync <= 0) {
+                    Mailbox m = EmailContent.getContent(c, Mailbox.class);
+                    requestSync(m, SYNC_SCHEDULED, null);
                 } else {
-                    Thread thread = service.mThread;
-                    // Look for threads that have died and remove them from the map
-                    if (thread != null && !thread.isAlive()) {
-                        if (sUserLog) {
-                            log("Dead thread, mailbox released: " +
-                                    c.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN));
-                        }
-                        synchronized (sSyncLock) {
-                            releaseMailbox(mailboxId);
-                        }
-                        // Restart this if necessary
-                        if (nextWait > 3*SECONDS) {
-                            nextWait = 3*SECONDS;
-                            mNextWaitReason = "Clean up dead thread(s)";
-                        }
+                    if (sUserLog) {
+                        log("Next sync for " + name + " in " + toNextSync/1000 + "s");
+                    }
+                    mSchedule.set(mailboxId, now + toNextSync, "Scheduled sync, " + name);
+                }
+            }
+        } else {
+            // Look for services that have finished without saying so and remove them from the map
+            if (service.isFinished()) {
+                if (sUserLog) {
+                    log("Dead thread, mailbox released: " +
+                            c.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN));
+                }
+                releaseMailbox(mailboxId, service);
+                // Restart this if necessary
+                mSchedule.set(mailboxId, now + 3*SECONDS, "Clean up dead thread(s)");
+            } else {
+                long requestTime = service.mRequestTime;
+                if (requestTime > 0) {
+                    long timeToRequest = requestTime - now;
+                    if (timeToRequest <= 0) {
+                        service.mRequestTime = 0;
+                        service.alarm();
+                    } else if (timeToRequest < 11*MINUTES) {
+                        mSchedule.set(mailboxId, now + (timeToRequest < 250 ? 250 : timeToRequest),
+                                "Sync data change");
                     } else {
-                        long requestTime = service.mRequestTime;
-                        if (requestTime > 0) {
-                            long timeToRequest = requestTime - now;
-                            if (timeToRequest <= 0) {
-                                service.mRequestTime = 0;
-                                service.alarm();
-                            } else if (requestTime > 0 && timeToRequest < nextWait) {
-                                if (timeToRequest < 11*MINUTES) {
-                                    nextWait = timeToRequest < 250 ? 250 : timeToRequest;
-                                    mNextWaitReason = "Sync data change";
-                                } else {
-                                    log("Illegal timeToRequest: " + timeToRequest);
-                                }
-                            }
-                        }
+                        log("Illegal timeToRequest: " + timeToRequest);
                     }
                 }
             }
-        } finally {
-            c.close();
         }
-        return nextWait;
     }
 
     static public void serviceRequest(long mailboxId, int reason) {
@@ -1963,7 +2166,8 @@ public abstract class SyncManager extends Service implements Runnable {
             AbstractSyncService service = ssm.getRunningService(mailboxId);
             if (service != null) {
                 service.mRequestTime = System.currentTimeMillis() + ms;
-                kick("service request");
+                ssm.mSchedule.set(mailboxId, service.mRequestTime, "Sync data change");
+                wake("service request");
             } else {
                 startManualSync(mailboxId, reason, null);
             }
@@ -1982,7 +2186,8 @@ public abstract class SyncManager extends Service implements Runnable {
             if (m != null) {
                 service.mAccount = Account.restoreAccountWithId(ssm, m.mAccountKey);
                 service.mMailbox = m;
-                kick("service request immediate");
+                ssm.mSchedule.set(mailboxId, service.mRequestTime, "Sync data change");
+                wake("service request immediate");
             }
         }
     }
@@ -2020,7 +2225,7 @@ public abstract class SyncManager extends Service implements Runnable {
         AbstractSyncService service = ssm.getRunningService(mailboxId);
         if (service == null) {
             startManualSync(mailboxId, SYNC_SERVICE_PART_REQUEST, req);
-            kick("part request");
+            wake("part request");
         } else {
             service.addRequest(req);
         }
@@ -2055,24 +2260,23 @@ public abstract class SyncManager extends Service implements Runnable {
     static public void startManualSync(long mailboxId, int reason, Request req) {
         SyncManager ssm = INSTANCE;
         if (ssm == null) return;
-        synchronized (sSyncLock) {
-            AbstractSyncService svc = ssm.mServiceMap.get(mailboxId);
-            if (svc == null) {
-                if (ssm.mSyncErrorMap.containsKey(mailboxId) && reason == SyncManager.SYNC_UPSYNC) {
-                    return;
-                } else if (reason != SyncManager.SYNC_UPSYNC) {
-                    ssm.mSyncErrorMap.remove(mailboxId);
-                }
-                Mailbox m = Mailbox.restoreMailboxWithId(ssm, mailboxId);
-                if (m != null) {
-                    log("Starting sync for " + m.mDisplayName);
-                    ssm.requestSync(m, reason, req);
-                }
-            } else {
-                // If this is a ui request, set the sync reason for the service
-                if (reason >= SYNC_CALLBACK_START) {
-                    svc.mSyncReason = reason;
-                }
+        AbstractSyncService svc = ssm.mServiceMap.get(mailboxId);
+        if (svc == null) {
+            if (ssm.mSyncErrorMap.containsKey(mailboxId) && reason == SyncManager.SYNC_UPSYNC) {
+                return;
+            } else if (reason != SyncManager.SYNC_UPSYNC) {
+                ssm.mSyncErrorMap.remove(mailboxId);
+            }
+            // requestSync takes the mailbox's lock, and makes sure there's still no service
+            Mailbox m = Mailbox.restoreMailboxWithId(ssm, mailboxId);
+            if (m != null) {
+                log("Starting sync for " + m.mDisplayName);
+                ssm.requestSync(m, reason, req);
+            }
+        } else {
+            // If this is a ui request, set the sync reason for the service
+            if (reason >= SYNC_CALLBACK_START) {
+                svc.mSyncReason = reason;
             }
         }
     }
@@ -2081,21 +2285,36 @@ public abstract class SyncManager extends Service implements Runnable {
     static public void stopManualSync(long mailboxId) {
         SyncManager ssm = INSTANCE;
         if (ssm == null) return;
-        synchronized (sSyncLock) {
+        sMailboxLocks.lock(mailboxId);
+        try {
             AbstractSyncService svc = ssm.mServiceMap.get(mailboxId);
             if (svc != null) {
                 log("Stopping sync for " + svc.mMailboxName);
                 svc.stop();
-                svc.mThread.interrupt();
+                svc.interrupt();
                 ssm.releaseWakeLock(mailboxId);
             }
+        } finally {
+            sMailboxLocks.unlock(mailboxId);
         }
     }
 
     /**
-     * Wake up SyncServiceManager to check for mailboxes needing service
+     * Wake up SyncServiceManager to check for mailboxes needing service; all of the mailboxes
+     * are scanned, since something about them (or their accounts) may have changed
      */
     static public void kick(String reason) {
+        final SyncManager ssm = INSTANCE;
+        if (ssm != null) {
+            ssm.mRescan = true;
+        }
+        wake(reason);
+    }
+
+    /**
+     * Wake up SyncServiceManager to check the mailboxes that are due in its schedule
+     */
+    static private void wake(String reason) {
        SyncManager ssm = INSTANCE;
        if (ssm != null) {
             synchronized (ssm) {
@@ -2138,80 +2357,86 @@ public abstract class SyncManager extends Service implements Runnable {
     static public void done(AbstractSyncService svc) {
         SyncManager ssm = INSTANCE;
         if (ssm == null) return;
-        synchronized(sSyncLock) {
-            long mailboxId = svc.mMailboxId;
+        long mailboxId = svc.mMailboxId;
+        sMailboxLocks.lock(mailboxId);
+        try {
             // If we're no longer the syncing thread for the mailbox, just return
             if (!ssm.isRunningInServiceThread(mailboxId)) {
                 return;
             }
             ssm.releaseMailbox(mailboxId);
+            // Under the lock, so that it can't overwrite the status of a sync started after this
             ssm.setMailboxSyncStatus(mailboxId, EmailContent.SYNC_STATUS_NONE);
+        } finally {
+            sMailboxLocks.unlock(mailboxId);
+        }
 
-            ConcurrentHashMap<Long, SyncError> errorMap = ssm.mSyncErrorMap;
-            SyncError syncError = errorMap.get(mailboxId);
+        ConcurrentHashMap<Long, SyncError> errorMap = ssm.mSyncErrorMap;
+        SyncError syncError = errorMap.get(mailboxId);
 
-            int exitStatus = svc.mExitStatus;
-            Mailbox m = Mailbox.restoreMailboxWithId(ssm, mailboxId);
-            if (m == null) return;
-
-            if (exitStatus != AbstractSyncService.EXIT_LOGIN_FAILURE) {
-                long accountId = m.mAccountKey;
-                Account account = Account.restoreAccountWithId(ssm, accountId);
-                if (account == null) return;
-                if (ssm.releaseSyncHolds(ssm,
-                        AbstractSyncService.EXIT_LOGIN_FAILURE, account)) {
-                    new AccountServiceProxy(ssm).notifyLoginSucceeded(accountId);
-                }
+        int exitStatus = svc.mExitStatus;
+        Mailbox m = Mailbox.restoreMailboxWithId(ssm, mailboxId);
+        if (m == null) return;
+
+        if (exitStatus != AbstractSyncService.EXIT_LOGIN_FAILURE) {
+            long accountId = m.mAccountKey;
+            Account account = Account.restoreAccountWithId(ssm, accountId);
+            if (account == null) return;
+            if (ssm.releaseSyncHolds(ssm,
+                    AbstractSyncService.EXIT_LOGIN_FAILURE, account)) {
+                new AccountServiceProxy(ssm).notifyLoginSucceeded(accountId);
             }
+        }
 
-            int lastResult = EmailContent.LAST_SYNC_RESULT_SUCCESS;
-            // For error states, whether the error is fatal (won't automatically be retried)
-            boolean errorIsFatal = true;
-            try {
-                switch (exitStatus) {
-                    case AbstractSyncService.EXIT_DONE:
-                        if (svc.hasPendingRequests()) {
-                            // TODO Handle this case
-                        }
-                        errorMap.remove(mailboxId);
-                        // If we've had a successful sync, clear the shutdown count
-                        synchronized (SyncManager.class) {
-                            sClientConnectionManagerShutdownCount = 0;
-                        }
-                        // Leave now; other statuses are errors
+        int lastResult = EmailContent.LAST_SYNC_RESULT_SUCCESS;
+        // For error states, whether the error is fatal (won't automatically be retried)
+        boolean errorIsFatal = true;
+        try {
+            switch (exitStatus) {
+                case AbstractSyncService.EXIT_DONE:
+                    if (svc.hasPendingRequests()) {
+                        // TODO Handle this case
+                    }
+                    errorMap.remove(mailboxId);
+                    // If we've had a successful sync, clear the shutdown count
+                    synchronized (SyncManager.class) {
+                        sClientConnectionManagerShutdownCount = 0;
+                    }
+                    // Leave now; other statuses are errors
+                    return;
+                // I/O errors get retried at increasing intervals
+                case AbstractSyncService.EXIT_IO_ERROR:
+                    if (syncError != null) {
+                        syncError.escalate();
+                        log(m.mDisplayName + " held for " + (syncError.holdDelay/ 1000) + "s");
                         return;
-                    // I/O errors get retried at increasing intervals
-                    case AbstractSyncService.EXIT_IO_ERROR:
-                        if (syncError != null) {
-                            syncError.escalate();
-                            log(m.mDisplayName + " held for " + (syncError.holdDelay/ 1000) + "s");
-                            return;
-                        } else {
-                            log(m.mDisplayName + " added to syncErrorMap, hold for 15s");
-                        }
-                        lastResult = EmailContent.LAST_SYNC_RESULT_CONNECTION_ERROR;
-                        errorIsFatal = false;
-                        break;
-                    // These errors are not retried automatically
-                    case AbstractSyncService.EXIT_LOGIN_FAILURE:
-                        new AccountServiceProxy(ssm).notifyLoginFailed(m.mAccountKey, svc.mExitReason);
-                        lastResult = EmailContent.LAST_SYNC_RESULT_AUTH_ERROR;
-                        break;
-                    case AbstractSyncService.EXIT_SECURITY_FAILURE:
-                    case AbstractSyncService.EXIT_ACCESS_DENIED:
-                        lastResult = EmailContent.LAST_SYNC_RESULT_SECURITY_ERROR;
-                        break;
-                    case AbstractSyncService.EXIT_EXCEPTION:
-                        lastResult = EmailContent.LAST_SYNC_RESULT_INTERNAL_ERROR;
-                        break;
-                }
-                // Add this box to the error map
-                errorMap.put(mailboxId, ssm.new SyncError(exitStatus, errorIsFatal));
-            } finally {
-                // Always set the last result
-                ssm.setMailboxLastSyncResult(mailboxId, lastResult);
-                kick("sync completed");
+                    } else {
+                        log(m.mDisplayName + " added to syncErrorMap, hold for 15s");
+                    }
+                    lastResult = EmailContent.LAST_SYNC_RESULT_CONNECTION_ERROR;
+                    errorIsFatal = false;
+                    break;
+                // These errors are not retried automatically
+                case AbstractSyncService.EXIT_LOGIN_FAILURE:
+                    new AccountServiceProxy(ssm).notifyLoginFailed(m.mAccountKey, svc.mExitReason);
+                    lastResult = EmailContent.LAST_SYNC_RESULT_AUTH_ERROR;
+                    break;
+                case AbstractSyncService.EXIT_SECURITY_FAILURE:
+                case AbstractSyncService.EXIT_ACCESS_DENIED:
+                    lastResult = EmailContent.LAST_SYNC_RESULT_SECURITY_ERROR;
+                    break;
+                case AbstractSyncService.EXIT_EXCEPTION:
+                    lastResult = EmailContent.LAST_SYNC_RESULT_INTERNAL_ERROR;
+                    break;
             }
+            // Add this box to the error map
+            errorMap.put(mailboxId, ssm.new SyncError(exitStatus, errorIsFatal));
+        } finally {
+            // Always set the last result
+            ssm.setMailboxLastSyncResult(mailboxId, lastResult);
+            // Check the mailbox again (e.g. to restart push, or to hold after an error)
+            ssm.mSchedule.set(mailboxId, System.currentTimeMillis(), "Sync completed");
+            wake("sync completed");
         }
     }
 
@@ -2276,6 +2501,10 @@ public abstract class SyncManager extends Service implements Runnable {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         long uptime = System.currentTimeMillis() - mServiceStartTime;
         pw.println("SyncManager: " + TAG + " up for " + (uptime / 1000 / 60) + " m");
+        pw.println("  Sync threads: " + mSyncExecutor.getPoolSize() + " (" +
+                mSyncExecutor.getActiveCount() + " busy), " + mSyncExecutor.getQueue().size() +
+                " waiting");
+        sMailboxLocks.dump(pw, "Mailbox locks");
         if (mWakeLock != null) {
             pw.println("  Holding WakeLock");
             writeWakeLockTimes(pw, mWakeLocks, false);
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * When each mailbox next needs SyncManager's attention (a scheduled sync, the end of a hold, a
+ * requested sync), in order of time, so that SyncManager can wake for just the mailboxes that are
+ * due rather than going through all of them.
+ *
+ * A mailbox has at most one time; setting another replaces it. Replaced times are left in the
+ * queue, marked as such, and passed over when they come up.
+ */
+/*package*/ class SyncSchedule {
+    private static class Entry implements Comparable<Entry> {
+        final long mailboxId;
+        final long time;
+        final String reason;
+        boolean replaced;
+
+        Entry(long mailboxId, long time, String reason) {
+            this.mailboxId = mailboxId;
+            this.time = time;
+            this.reason = reason;
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            return (time < another.time) ? -1 : ((time == another.time) ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<Entry>();
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+
+    /**
+     * Set when a mailbox next needs attention.
+     *
+     * @param time the time, as System.currentTimeMillis()
+     * @param reason why, for logging
+     */
+    public synchronized void set(long mailboxId, long time, String reason) {
+        final Entry entry = new Entry(mailboxId, time, reason);
+        final Entry old = mEntries.put(mailboxId, entry);
+        if (old != null) {
+            old.replaced = true;
+        }
+        mQueue.add(entry);
+    }
+
+    public synchronized void remove(long mailboxId) {
+        final Entry old = mEntries.remove(mailboxId);
+        if (old != null) {
+            old.replaced = true;
+        }
+    }
+
+    public synchronized void clear() {
+        mQueue.clear();
+        mEntries.clear();
+    }
+
+    private void skipReplaced() {
+        while (!mQueue.isEmpty() && mQueue.peek().replaced) {
+            mQueue.poll();
+        }
+    }
+
+    /**
+     * Take the mailboxes that are due out of the schedule.
+     *
+     * @return the ids of the mailboxes due by the time
+     */
+    public synchronized ArrayList<Long> takeDue(long now) {
+        final ArrayList<Long> due = new ArrayList<Long>();
+        skipReplaced();
+        while (!mQueue.isEmpty() && mQueue.peek().time <= now) {
+            final Entry entry = mQueue.poll();
+            mEntries.remove(entry.mailboxId);
+            due.add(entry.mailboxId);
+            skipReplaced();
+        }
+        return due;
+    }
+
+    /**
+     * @return the time the next mailbox is due, or Long.MAX_VALUE if there are none
+     */
+    public synchronized long getNextTime() {
+        skipReplaced();
+        return mQueue.isEmpty() ? Long.MAX_VALUE : mQueue.peek().time;
+    }
+
+    /**
+     * @return why the next mailbox is due, or null if there are none
+     */
+    public synchronized String getNextReason() {
+        skipReplaced();
+        return mQueue.isEmpty() ? null : mQueue.peek().reason;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
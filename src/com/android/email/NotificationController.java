@@ -54,6 +54,7 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.NotificationUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -217,13 +218,22 @@ public class NotificationController {
      */
 
     private static final int NOTIFICATION_DELAYED_MESSAGE = 0;
+    // How long a burst of changes must stop for before we update notifications; this grows (up
+    // to the longest delay) as changes keep coming, e.g. during a sync
+    private static final long NOTIFICATION_MIN_DELAY = DateUtils.SECOND_IN_MILLIS;
+    // The longest we hold off updating notifications
     private static final long NOTIFICATION_DELAY = 15 * DateUtils.SECOND_IN_MILLIS;
-    // True if we're coalescing notification updates
-    private static boolean sNotificationDelayedMessagePending;
+    // Decides whether to update notifications at once, or when the current burst is over
+    private static final RefreshDebouncer sRefreshDebouncer =
+            new RefreshDebouncer(Clock.INSTANCE, NOTIFICATION_MIN_DELAY, NOTIFICATION_DELAY);
     // True if accounts have changed and we need to refresh everything
     private static boolean sRefreshAllNeeded;
     // Set of accounts we need to regenerate notifications for
     private static final HashSet<Long> sRefreshAccountSet = new HashSet<Long>();
+    // What we last notified for each mailbox, by account, so that a mailbox which hasn't changed
+    // needn't be notified again; a mailbox with no messages left has no entry
+    private static final HashMap<Long, HashMap<Long, NotifiedMailbox>> sNotifiedCounts =
+            new HashMap<Long, HashMap<Long, NotifiedMailbox>>();
     // These should all be accessed on-thread, but just in case...
     private static final Object sNotificationDelayedMessageLock = new Object();
 
@@ -240,7 +250,7 @@ public class NotificationController {
                              */
                             LogUtils.d(LOG_TAG, "Delayed notification processing");
                             synchronized (sNotificationDelayedMessageLock) {
-                                sNotificationDelayedMessagePending = false;
+                                sRefreshDebouncer.onRefresh();
                                 final Context context = (Context)message.obj;
                                 if (sRefreshAllNeeded) {
                                     sRefreshAllNeeded = false;
@@ -566,6 +576,7 @@ public class NotificationController {
                 = account.getAccountManagerAccount(serviceInfo.accountType);
 
         NotificationUtils.clearAccountNotifications(context, notifAccount);
+        forgetNotifiedMailboxes(account.mId);
 
         final NotificationManager notificationManager = getInstance(context).mNotificationManager;
 
@@ -574,26 +585,137 @@ public class NotificationController {
         notificationManager.cancel((int) (NOTIFICATION_ID_BASE_SECURITY_CHANGED + account.mId));
     }
 
+    /**
+     * The unread and unseen counts of a mailbox, and its newest message, as last notified; the
+     * newest message tells apart a new message arriving from another going, when the counts stay
+     * the same.
+     */
+    private static class NotifiedMailbox {
+        /** A mailbox which has no messages */
+        static final NotifiedMailbox EMPTY = new NotifiedMailbox(0, 0, 0);
+
+        final int mUnreadCount;
+        final int mUnseenCount;
+        final long mNewestMessageId;
+
+        NotifiedMailbox(final int unreadCount, final int unseenCount,
+                final long newestMessageId) {
+            mUnreadCount = unreadCount;
+            mUnseenCount = unseenCount;
+            mNewestMessageId = newestMessageId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof NotifiedMailbox)) {
+                return false;
+            }
+            final NotifiedMailbox other = (NotifiedMailbox) o;
+            return mUnreadCount == other.mUnreadCount && mUnseenCount == other.mUnseenCount
+                    && mNewestMessageId == other.mNewestMessageId;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * mUnreadCount + mUnseenCount) * 31
+                    + (int) (mNewestMessageId ^ (mNewestMessageId >>> 32));
+        }
+    }
+
+    /**
+     * Forget what was notified for an account's mailboxes, e.g. when it's deleted.
+     */
+    private static void forgetNotifiedMailboxes(final long accountId) {
+        synchronized (sNotificationDelayedMessageLock) {
+            sNotifiedCounts.remove(accountId);
+        }
+    }
+
+    /**
+     * Put off a refresh, if changes are coming in a burst, until the burst is over.
+     * NOTE: This must be called while holding sNotificationDelayedMessageLock.
+     * @return whether the refresh was put off; if not, it should be done now
+     */
+    private static boolean deferRefresh(final Context context) {
+        final long delay = sRefreshDebouncer.onChange();
+        if (delay == 0) {
+            return false;
+        }
+        ensureHandlerExists();
+        sNotificationHandler.removeMessages(NOTIFICATION_DELAYED_MESSAGE);
+        sNotificationHandler.sendMessageDelayed(
+                android.os.Message.obtain(sNotificationHandler,
+                        NOTIFICATION_DELAYED_MESSAGE, context), delay);
+        return true;
+    }
+
     private static void refreshNotificationsForAccount(final Context context,
             final long accountId) {
         synchronized (sNotificationDelayedMessageLock) {
-            if (sNotificationDelayedMessagePending) {
+            if (deferRefresh(context)) {
                 sRefreshAccountSet.add(accountId);
             } else {
-                ensureHandlerExists();
-                sNotificationHandler.sendMessageDelayed(
-                        android.os.Message.obtain(sNotificationHandler,
-                                NOTIFICATION_DELAYED_MESSAGE, context), NOTIFICATION_DELAY);
-                sNotificationDelayedMessagePending = true;
                 refreshNotificationsForAccountInternal(context, accountId);
             }
         }
     }
 
+    /**
+     * Update the notifications for the mailboxes in an account whose unread or unseen counts, or
+     * newest message, have changed since we last notified for them.
+     * NOTE: This must be called while holding sNotificationDelayedMessageLock.
+     */
     private static void refreshNotificationsForAccountInternal(final Context context,
             final long accountId) {
         final ContentResolver contentResolver = context.getContentResolver();
 
+        HashMap<Long, NotifiedMailbox> notified = sNotifiedCounts.get(accountId);
+        if (notified == null) {
+            notified = new HashMap<Long, NotifiedMailbox>();
+            sNotifiedCounts.put(accountId, notified);
+        }
+        // Mailboxes that have no messages left (or are gone) don't show up in the query
+        final HashSet<Long> emptiedMailboxes = new HashSet<Long>(notified.keySet());
+
+        // Find the mailboxes which have changed first; usually there are none, and then there's
+        // no need to look up the account or any folders
+        final ArrayList<Long> changedMailboxes = new ArrayList<Long>();
+        final ArrayList<NotifiedMailbox> changedCounts = new ArrayList<NotifiedMailbox>();
+        final Cursor mailboxCursor = contentResolver.query(
+                ContentUris.withAppendedId(EmailContent.MAILBOX_NOTIFICATION_URI, accountId),
+                null, null, null, null);
+        try {
+            while (mailboxCursor.moveToNext()) {
+                final long mailboxId =
+                        mailboxCursor.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN);
+                if (mailboxId == 0) continue;
+
+                final int unreadCount = mailboxCursor.getInt(
+                        EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN);
+                final int unseenCount = mailboxCursor.getInt(
+                        EmailContent.NOTIFICATION_MAILBOX_UNSEEN_COUNT_COLUMN);
+                final long newestMessageId = mailboxCursor.getLong(
+                        EmailContent.NOTIFICATION_MAILBOX_NEWEST_MESSAGE_ID_COLUMN);
+                final NotifiedMailbox counts =
+                        new NotifiedMailbox(unreadCount, unseenCount, newestMessageId);
+                emptiedMailboxes.remove(mailboxId);
+                if (!counts.equals(notified.get(mailboxId))) {
+                    changedMailboxes.add(mailboxId);
+                    changedCounts.add(counts);
+                }
+            }
+        } finally {
+            mailboxCursor.close();
+        }
+        for (final Long mailboxId : emptiedMailboxes) {
+            changedMailboxes.add(mailboxId);
+            changedCounts.add(NotifiedMailbox.EMPTY);
+        }
+
+        if (changedMailboxes.isEmpty()) {
+            return;
+        }
+
         final Cursor accountCursor = contentResolver.query(
                 EmailProvider.uiUri("uiaccount", accountId), UIProvider.ACCOUNTS_PROJECTION,
                 null, null, null);
@@ -615,74 +737,68 @@ public class NotificationController {
         if (account == null) {
             LogUtils.d(LOG_TAG, "Tried to create a notification for a missing account %d",
                     accountId);
+            sNotifiedCounts.remove(accountId);
             return;
         }
 
-        final Cursor mailboxCursor = contentResolver.query(
-                ContentUris.withAppendedId(EmailContent.MAILBOX_NOTIFICATION_URI, accountId),
-                null, null, null, null);
-        try {
-            while (mailboxCursor.moveToNext()) {
-                final long mailboxId =
-                        mailboxCursor.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN);
-                if (mailboxId == 0) continue;
+        for (int i = 0; i < changedMailboxes.size(); i++) {
+            final long mailboxId = changedMailboxes.get(i);
+            final NotifiedMailbox counts = changedCounts.get(i);
+            final int unreadCount = counts.mUnreadCount;
+            final int unseenCount = counts.mUnseenCount;
 
-                final int unreadCount = mailboxCursor.getInt(
-                        EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN);
-                final int unseenCount = mailboxCursor.getInt(
-                        EmailContent.NOTIFICATION_MAILBOX_UNSEEN_COUNT_COLUMN);
+            final Cursor folderCursor = contentResolver.query(
+                    EmailProvider.uiUri("uifolder", mailboxId),
+                    UIProvider.FOLDERS_PROJECTION, null, null, null);
 
-                final Cursor folderCursor = contentResolver.query(
-                        EmailProvider.uiUri("uifolder", mailboxId),
-                        UIProvider.FOLDERS_PROJECTION, null, null, null);
+            if (folderCursor == null) {
+                LogUtils.e(LOG_TAG, "Null folder cursor for account %d, mailbox %d",
+                        accountId, mailboxId);
+                continue;
+            }
 
-                if (folderCursor == null) {
-                    LogUtils.e(LOG_TAG, "Null folder cursor for account %d, mailbox %d",
+            Folder folder = null;
+            try {
+                if (folderCursor.moveToFirst()) {
+                    folder = new Folder(folderCursor);
+                } else {
+                    LogUtils.e(LOG_TAG, "Empty folder cursor for account %d, mailbox %d",
                             accountId, mailboxId);
+                    // The mailbox has been deleted
+                    notified.remove(mailboxId);
                     continue;
                 }
+            } finally {
+                folderCursor.close();
+            }
 
-                Folder folder = null;
-                try {
-                    if (folderCursor.moveToFirst()) {
-                        folder = new Folder(folderCursor);
-                    } else {
-                        LogUtils.e(LOG_TAG, "Empty folder cursor for account %d, mailbox %d",
-                                accountId, mailboxId);
-                        continue;
-                    }
-                } finally {
-                    folderCursor.close();
-                }
-
-                LogUtils.d(LOG_TAG, "Changes to account " + account.name + ", folder: "
-                        + folder.name + ", unreadCount: " + unreadCount + ", unseenCount: "
-                        + unseenCount);
+            LogUtils.d(LOG_TAG, "Changes to account " + account.name + ", folder: "
+                    + folder.name + ", unreadCount: " + unreadCount + ", unseenCount: "
+                    + unseenCount);
 
-                NotificationUtils.setNewEmailIndicator(context, unreadCount, unseenCount,
-                        account, folder, true);
+            NotificationUtils.setNewEmailIndicator(context, unreadCount, unseenCount,
+                    account, folder, true);
+            if (counts.equals(NotifiedMailbox.EMPTY)) {
+                notified.remove(mailboxId);
+            } else {
+                notified.put(mailboxId, counts);
             }
-        } finally {
-            mailboxCursor.close();
         }
     }
 
     private static void refreshAllNotifications(final Context context) {
         synchronized (sNotificationDelayedMessageLock) {
-            if (sNotificationDelayedMessagePending) {
+            if (deferRefresh(context)) {
                 sRefreshAllNeeded = true;
             } else {
-                ensureHandlerExists();
-                sNotificationHandler.sendMessageDelayed(
-                        android.os.Message.obtain(sNotificationHandler,
-                                NOTIFICATION_DELAYED_MESSAGE, context), NOTIFICATION_DELAY);
-                sNotificationDelayedMessagePending = true;
                 refreshAllNotificationsInternal(context);
             }
         }
     }
 
     private static void refreshAllNotificationsInternal(final Context context) {
+        // Accounts or their settings have changed, so every mailbox needs notifying afresh
+        sNotifiedCounts.clear();
         NotificationUtils.resendNotifications(context, false, null, null);
     }
 
@@ -753,6 +869,7 @@ public class NotificationController {
             // An account was removed from the notification list
             for (final long accountId : removedAccountList) {
                 sInstance.unregisterMessageNotification(accountId);
+                forgetNotifiedMailboxes(accountId);
             }
 
             refreshAllNotifications(mContext);
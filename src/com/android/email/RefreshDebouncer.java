@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.mail.utils.Clock;
+
+/**
+ * Decides when to act on a change, given when the changes before it came: a change after a quiet
+ * spell is acted on at once, while a burst of them (e.g. during a sync) is acted on once, when
+ * the burst is over.
+ *
+ * A burst is taken to be over once no change has come for a while; that while starts short, and
+ * doubles each time a change comes within it, so the faster changes come, the longer the wait
+ * for the end of them. No change waits longer than the maximum delay, however long the burst.
+ */
+/*package*/ class RefreshDebouncer {
+    private final Clock mClock;
+    private final long mMinDelay;
+    private final long mMaxDelay;
+
+    /** How long without a change before the burst is taken to be over */
+    private long mQuietDelay;
+    /** When the last change came, or 0 if none has */
+    private long mLastChange;
+    /** When the first change that's still waiting came, or 0 if none is */
+    private long mFirstWaiting;
+
+    public RefreshDebouncer(Clock clock, long minDelay, long maxDelay) {
+        mClock = clock;
+        mMinDelay = minDelay;
+        mMaxDelay = maxDelay;
+        mQuietDelay = minDelay;
+    }
+
+    /**
+     * Note a change.
+     *
+     * @return how long to wait before acting on the change (and any others waiting), which
+     *     replaces any wait already under way; 0 to act on it at once
+     */
+    public synchronized long onChange() {
+        final long now = mClock.getTime();
+        final long sinceLastChange = now - mLastChange;
+        final boolean quiet = (mLastChange == 0) || (sinceLastChange > mMaxDelay);
+        mLastChange = now;
+        if (quiet) {
+            mQuietDelay = mMinDelay;
+            if (mFirstWaiting == 0) {
+                return 0;
+            }
+        } else if (sinceLastChange < mQuietDelay) {
+            // Changes are coming faster than we're waiting for them to stop
+            mQuietDelay = Math.min(mQuietDelay * 2, mMaxDelay);
+        }
+        if (mFirstWaiting == 0) {
+            mFirstWaiting = now;
+        }
+        return Math.max(0, Math.min(now + mQuietDelay, mFirstWaiting + mMaxDelay) - now);
+    }
+
+    /**
+     * Note that the changes that were waiting have been acted on.
+     */
+    public synchronized void onRefresh() {
+        mFirstWaiting = 0;
+    }
+
+    /*package*/ synchronized long getQuietDelayForTest() {
+        return mQuietDelay;
+    }
+}
@@ -23,12 +23,15 @@ import com.android.email.R;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.mail.utils.LogUtils;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.util.List;
 
 public abstract class Sender {
     protected static final int SOCKET_CONNECT_TIMEOUT = 10000;
@@ -130,5 +133,14 @@ public abstract class Sender {
 
     public abstract void sendMessage(long messageId) throws MessagingException;
 
+    /**
+     * Send a message the caller has already read, with its attachments, so that the sender
+     * needn't read them again. By default, the sender reads them again anyway.
+     */
+    public void sendMessage(Message message, List<Attachment> attachments)
+            throws MessagingException {
+        sendMessage(message.mId);
+    }
+
     public abstract void close() throws MessagingException;
 }
@@ -23,6 +23,8 @@ import android.util.Base64DataException;
 
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
+import com.android.email.mail.store.ParallelRangeFetcher.RangeSink;
+import com.android.email.mail.store.ParallelRangeFetcher.RangeSource;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
@@ -48,10 +50,15 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.CountingOutputStream;
 import com.android.emailcommon.utility.EOLConvertingOutputStream;
+import com.android.emailcommon.utility.PartialDownload;
+import com.android.emailcommon.utility.ProgressThrottle;
 import com.android.emailcommon.utility.Utility;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -69,6 +76,15 @@ class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
+    /**
+     * Size of each partial fetch of a part that can be resumed; if the connection drops, at most
+     * this much has to be fetched again.
+     */
+    private static final int FETCH_CHUNK_SIZE = 256 * 1024;
+    /** Parts with at least this much left to fetch are fetched over several connections */
+    private static final int PARALLEL_FETCH_THRESHOLD = 2 * 1024 * 1024;
+    /** Most connections to fetch one part over, besides the folder's own */
+    private static final int PARALLEL_FETCH_CONNECTIONS = 3;
 
     private final ImapStore mStore;
     private final String mName;
@@ -633,6 +649,7 @@ class ImapFolder extends Folder {
          * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
          * BODY      - UID FETCH (BODY.PEEK[])
          * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
+         * Resumable - UID FETCH (BODY.PEEK[ID]<offset.N>), repeated; see fetchPartInChunks()
          */
 
         final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
@@ -659,17 +676,38 @@ class ImapFolder extends Folder {
 
         // TODO Why are we only fetching the first part given?
         final Part fetchPart = fp.getFirstPart();
+        String resumablePartId = null;
+        File partialFile = null;
         if (fetchPart != null) {
             final String[] partIds =
                     fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            final String[] partialFiles =
+                    fetchPart.getHeader(PartialDownload.HEADER_PARTIAL_DOWNLOAD);
             // TODO Why can a single part have more than one Id? And why should we only fetch
             // the first id if there are more than one?
-            if (partIds != null) {
+            if (partIds != null && partialFiles != null && messages.length == 1
+                    && PartialDownload.isResumable(getContentTransferEncoding(fetchPart))) {
+                // Fetched separately, a chunk at a time
+                resumablePartId = partIds[0];
+                partialFile = new File(partialFiles[0]);
+            } else if (partIds != null) {
                 fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
                         + "[" + partIds[0] + "]");
             }
         }
 
+        if (partialFile != null) {
+            fetchPartInChunks((ImapMessage) messages[0], fetchPart, resumablePartId, partialFile,
+                    listener);
+            // If only the part was asked for, there's nothing else to fetch
+            if (fetchFields.size() == 1) {
+                if (listener != null) {
+                    listener.messageRetrieved(messages[0]);
+                }
+                return;
+            }
+        }
+
         try {
             mConnection.sendCommand(String.format(Locale.US,
                     ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
@@ -743,20 +781,11 @@ class ImapFolder extends Folder {
                         InputStream bodyStream = body.getAsStream();
                         message.parse(bodyStream);
                     }
-                    if (fetchPart != null) {
+                    if (fetchPart != null && partialFile == null) {
                         InputStream bodyStream =
                                 fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
+                        final String contentTransferEncoding =
+                                getContentTransferEncoding(fetchPart);
 
                         try {
                             // TODO Don't create 2 temp files.
@@ -786,16 +815,236 @@ class ImapFolder extends Folder {
         }
     }
 
+    private static String getContentTransferEncoding(Part part) throws MessagingException {
+        final String encodings[] = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (encodings != null && encodings.length > 0) {
+            return encodings[0];
+        }
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        return "7bit";
+    }
+
+    /**
+     * Fetch a part with partial fetches (BODY.PEEK[id]<offset.length>), a chunk at a time,
+     * decoding each into the {@link PartialDownload} file as it arrives. If the connection drops,
+     * what's been decoded is kept in the file, and the next fetch of the part picks up from there
+     * rather than from the start.
+     *
+     * A large part is fetched over several connections at once, if the account has them to
+     * spare, since one connection is often limited by latency rather than by the network.
+     */
+    private void fetchPartInChunks(ImapMessage message, final Part part, String partId,
+            File partialFile, final MessageRetrievalListener listener)
+            throws MessagingException {
+        final int size = part.getSize();
+        final ProgressThrottle progress = (listener == null) ? null : new ProgressThrottle(100) {
+            @Override
+            protected void report(long value) {
+                listener.loadAttachmentProgress((int) value);
+            }
+        };
+        final PartialDownload download;
+        try {
+            download = PartialDownload.open(partialFile, getContentTransferEncoding(part));
+        } catch (IOException ioe) {
+            throw new MessagingException("Unable to open partial download", ioe);
+        }
+        final RangeSink sink = new RangeSink() {
+            @Override
+            public void write(byte[] data) throws IOException {
+                download.append(data, 0, data.length);
+                if (progress != null) {
+                    progress.update(size > 0 ? Math.min(100, download.getLength() * 100 / size)
+                            : 0);
+                }
+            }
+        };
+        try {
+            if (download.getLength() > 0) {
+                LogUtils.d(Logging.LOG_TAG, "Resuming part %s of %s at %d of %d bytes",
+                        partId, message.getUid(), download.getLength(), size);
+            }
+            if (size - download.getLength() < PARALLEL_FETCH_THRESHOLD
+                    || !fetchRangesInParallel(message.getUid(), partId,
+                            download.getRawLength(), sink)) {
+                byte[] data;
+                do {
+                    data = fetchRange(mConnection, message.getUid(), partId,
+                            download.getRawLength(), FETCH_CHUNK_SIZE);
+                    sink.write(data);
+                    // A short chunk is the last
+                } while (data.length == FETCH_CHUNK_SIZE);
+            }
+            download.finish();
+            if (progress != null) {
+                progress.update(100);
+                progress.finish();
+            }
+            // The partial file is deleted once the part's been saved, so the body is a copy
+            part.setBody(decodeBody(download.getInputStream(), "binary", size, null));
+        } catch (IOException ioe) {
+            LogUtils.d(Logging.LOG_TAG, "Part %s of %s stopped at %d bytes; kept to resume",
+                    partId, message.getUid(), download.getLength());
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            download.close();
+        }
+    }
+
+    /**
+     * Fetch a range of the raw data of a part.
+     *
+     * @return the data, which is shorter than the length asked for at the end of the part
+     */
+    private static byte[] fetchRange(ImapConnection connection, String uid, String partId,
+            long offset, int length) throws IOException, MessagingException {
+        connection.sendCommand(String.format(Locale.US,
+                ImapConstants.UID_FETCH + " %s (" + ImapConstants.UID + " "
+                + ImapConstants.FETCH_FIELD_BODY_PEEK_BARE + "[%s]<%d.%d>)",
+                uid, partId, offset, length), false);
+        byte[] data = null;
+        String failure = null;
+        ImapResponse response;
+        do {
+            response = connection.readResponse();
+            try {
+                if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    if (uid.equals(fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString())) {
+                        final InputStream in =
+                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+                        try {
+                            data = IOUtils.toByteArray(in);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } else if (response.isTagged() && !response.isOk()) {
+                    failure = response.toString();
+                }
+            } finally {
+                connection.destroyResponses();
+            }
+        } while (!response.isTagged());
+        if (failure != null) {
+            throw new MessagingException("Unable to fetch part: " + failure);
+        }
+        return (data != null) ? data : new byte[0];
+    }
+
+    /**
+     * Fetch the rest of a part over the folder's connection and others of its own, if the
+     * account has any to spare. If the others can't be used (e.g. the server won't allow that
+     * many connections), the ranges are fetched by what's left, down to the folder's connection.
+     *
+     * @return whether the part was fetched; if not, it's up to the caller to fetch it
+     */
+    private boolean fetchRangesInParallel(String uid, String partId, long offset, RangeSink sink)
+            throws IOException, MessagingException {
+        final int count = mStore.acquireParallelFetchConnections(PARALLEL_FETCH_CONNECTIONS);
+        if (count < 1) {
+            mStore.releaseParallelFetchConnections(count);
+            return false;
+        }
+        final ArrayList<ConnectionRangeSource> sources =
+                new ArrayList<ConnectionRangeSource>(count + 1);
+        try {
+            // The folder's connection comes first, as the one to fall back on
+            sources.add(new ConnectionRangeSource(mConnection, uid, partId, true));
+            for (int i = 0; i < count; i++) {
+                sources.add(new ConnectionRangeSource(mStore.getConnection(), uid, partId, false));
+            }
+            final long bytes = new ParallelRangeFetcher(sources, FETCH_CHUNK_SIZE)
+                    .fetch(offset, sink);
+            LogUtils.d(Logging.LOG_TAG, "Fetched %d bytes of part %s of %s over %d connections",
+                    bytes, partId, uid, count + 1);
+        } finally {
+            for (ConnectionRangeSource source : sources) {
+                source.release();
+            }
+            mStore.releaseParallelFetchConnections(count);
+        }
+        return true;
+    }
+
+    /**
+     * Fetches ranges of a part over a connection: either the folder's, or one of its own, which
+     * has to open the folder too.
+     */
+    private class ConnectionRangeSource implements RangeSource {
+        private final ImapConnection mRangeConnection;
+        private final String mUid;
+        private final String mPartId;
+        /** Whether this is the folder's connection, whose failures are the folder's to handle */
+        private final boolean mFolderConnection;
+        private boolean mExamined;
+        private boolean mFailed;
+
+        ConnectionRangeSource(ImapConnection connection, String uid, String partId,
+                boolean folderConnection) {
+            mRangeConnection = connection;
+            mUid = uid;
+            mPartId = partId;
+            mFolderConnection = folderConnection;
+            mExamined = folderConnection;
+        }
+
+        @Override
+        public byte[] fetch(long offset, int length) throws IOException, MessagingException {
+            if (mFolderConnection) {
+                return fetchRange(mRangeConnection, mUid, mPartId, offset, length);
+            }
+            try {
+                if (!mExamined) {
+                    // It's only read from, so EXAMINE rather than SELECT
+                    mRangeConnection.executeSimpleCommand(String.format(Locale.US,
+                            ImapConstants.EXAMINE + " \"%s\"",
+                            ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+                    mRangeConnection.destroyResponses();
+                    mExamined = true;
+                }
+                return fetchRange(mRangeConnection, mUid, mPartId, offset, length);
+            } catch (IOException ioe) {
+                mFailed = true;
+                // Only this connection is lost, not the folder's
+                throw new MessagingException(MessagingException.IOERROR, ioe.toString());
+            } catch (MessagingException me) {
+                mFailed = true;
+                throw me;
+            }
+        }
+
+        void release() {
+            if (mFolderConnection) {
+                return;
+            }
+            if (mFailed) {
+                mRangeConnection.close();
+            } else {
+                mStore.poolConnection(mRangeConnection);
+            }
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
      */
     private static Body decodeBody(InputStream in, String contentTransferEncoding, int size,
-            MessageRetrievalListener listener) throws IOException {
+            final MessageRetrievalListener listener) throws IOException {
         // Get a properly wrapped input stream
         in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
+        // Progress is reported per buffer read, but only passed on as it's worth showing
+        final ProgressThrottle progress = (listener == null) ? null : new ProgressThrottle(100) {
+            @Override
+            protected void report(long value) {
+                listener.loadAttachmentProgress((int) value);
+            }
+        };
         try {
             byte[] buffer = new byte[COPY_BUFFER_SIZE];
             int n = 0;
@@ -803,12 +1052,12 @@ class ImapFolder extends Folder {
             while (-1 != (n = in.read(buffer))) {
                 out.write(buffer, 0, n);
                 count += n;
-                if (listener != null) {
+                if (progress != null) {
                     if (size == 0) {
                         // We don't know how big the file is, so just fake it.
-                        listener.loadAttachmentProgress((int)Math.ceil(100 * (1-1.0/count)));
+                        progress.update((int)Math.ceil(100 * (1-1.0/count)));
                     } else {
-                        listener.loadAttachmentProgress(count * 100 / size);
+                        progress.update(count * 100L / size);
                     }
                 }
             }
@@ -817,6 +1066,9 @@ class ImapFolder extends Folder {
             out.write(warning.getBytes());
         } finally {
             out.close();
+            if (progress != null) {
+                progress.finish();
+            }
         }
         return tempBody;
     }
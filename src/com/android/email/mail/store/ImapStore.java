@@ -58,6 +58,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 
@@ -89,6 +90,14 @@ public class ImapStore extends Store {
     private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
             new ConcurrentLinkedQueue<ImapConnection>();
 
+    /**
+     * Most connections the account may open, over and above those of its folders, to fetch large
+     * parts in parallel. Servers often limit the connections per user (e.g. to 15 or 20).
+     */
+    private static final int MAX_PARALLEL_FETCH_CONNECTIONS = 4;
+    private final Semaphore mParallelFetchConnections =
+            new Semaphore(MAX_PARALLEL_FETCH_CONNECTIONS);
+
     /**
      * Static named constructor.
      */
@@ -108,7 +117,8 @@ public class ImapStore extends Store {
         if (recvAuth == null) {
             throw new MessagingException("No HostAuth in ImapStore?");
         }
-        mTransport = new MailTransport(context, "IMAP", recvAuth);
+        mTransport = new MailTransport(context, "IMAP", recvAuth,
+                MailTransport.IMAP_OPTIONS);
 
         String[] userInfo = recvAuth.getLogin();
         if (userInfo != null) {
@@ -517,6 +527,25 @@ public class ImapStore extends Store {
         return connection;
     }
 
+    /**
+     * Reserve connections with which to fetch a part in parallel, as many as are free up to the
+     * number wanted. Those reserved must be given back with
+     * {@link #releaseParallelFetchConnections}.
+     *
+     * @return the number of connections reserved
+     */
+    int acquireParallelFetchConnections(int wanted) {
+        int count = 0;
+        while (count < wanted && mParallelFetchConnections.tryAcquire()) {
+            count++;
+        }
+        return count;
+    }
+
+    void releaseParallelFetchConnections(int count) {
+        mParallelFetchConnections.release(count);
+    }
+
     /**
      * Save a {@link ImapConnection} in the pool for reuse. Any responses associated with the
      * connection are destroyed before adding the connection to the pool.
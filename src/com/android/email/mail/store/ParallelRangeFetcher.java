@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.net.TrafficStats;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fetches data a range at a time from several sources at once (i.e. over several connections),
+ * and hands the ranges on in order. Each source has a thread of its own, which takes the next
+ * range to fetch until a range comes back short, which marks the end of the data.
+ *
+ * Sources can only get so far ahead of the range that's next to be handed on, so that no more
+ * than a few ranges are ever held in memory.
+ *
+ * The first source is the one to fall back on (i.e. the folder's own connection): if any other
+ * source fails (e.g. the server won't allow another connection), it drops out, and its range is
+ * fetched by those that are left. A failure of the first source, or of the last one left, ends
+ * the fetch.
+ */
+/*package*/ class ParallelRangeFetcher {
+    /** A source of ranges; each is only used by one thread at a time. */
+    public interface RangeSource {
+        /**
+         * @return the data in the range, which is shorter than asked for only at the end
+         */
+        byte[] fetch(long offset, int length) throws IOException, MessagingException;
+    }
+
+    /** Takes the ranges in order. */
+    public interface RangeSink {
+        void write(byte[] data) throws IOException;
+    }
+
+    private final List<? extends RangeSource> mSources;
+    private final int mRangeSize;
+    /** How many ranges the sources may get ahead of the one that's next to hand on */
+    private final int mWindow;
+
+    private long mOffset;
+    /** Ranges fetched, but not handed on yet, by index */
+    private final HashMap<Long, byte[]> mRanges = new HashMap<Long, byte[]>();
+    /** Ranges taken by sources that dropped out, to be fetched again */
+    private final ArrayDeque<Long> mRetryRanges = new ArrayDeque<Long>();
+    private long mNextRange;
+    private long mNextToWrite;
+    private long mLastRange;
+    /** Sources that haven't dropped out */
+    private int mLiveSources;
+    /** Sources fetching a range right now */
+    private int mFetching;
+    private Exception mFailure;
+    private long mFailedRange;
+    private boolean mStopped;
+
+    public ParallelRangeFetcher(List<? extends RangeSource> sources, int rangeSize) {
+        mSources = sources;
+        mRangeSize = rangeSize;
+        mWindow = sources.size() * 2;
+    }
+
+    /**
+     * Fetch the data from the offset to its end, passing it to the sink in order. If the fetch
+     * fails, everything up to the range that failed has been passed on when its exception is
+     * thrown.
+     *
+     * @return the number of bytes fetched
+     */
+    public long fetch(long offset, RangeSink sink) throws IOException, MessagingException {
+        synchronized (this) {
+            mOffset = offset;
+            mRanges.clear();
+            mRetryRanges.clear();
+            mNextRange = 0;
+            mNextToWrite = 0;
+            mLastRange = Long.MAX_VALUE;
+            mLiveSources = mSources.size();
+            mFetching = 0;
+            mFailure = null;
+            mFailedRange = Long.MAX_VALUE;
+            mStopped = false;
+        }
+        // The sources' traffic is the caller's, e.g. an attachment download
+        final int tag = TrafficStats.getThreadStatsTag();
+        final Thread[] threads = new Thread[mSources.size()];
+        for (int i = 0; i < threads.length; i++) {
+            final RangeSource source = mSources.get(i);
+            final boolean fallback = (i == 0);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    TrafficStats.setThreadStatsTag(tag);
+                    fetchRanges(source, fallback);
+                }
+            }, "ParallelRangeFetcher");
+            threads[i].start();
+        }
+        long count = 0;
+        try {
+            while (true) {
+                final byte[] data;
+                synchronized (this) {
+                    // Ranges before one that failed were already taken, so will still arrive
+                    while (!mRanges.containsKey(mNextToWrite)
+                            && (mFailure == null || mFailedRange > mNextToWrite)) {
+                        wait();
+                    }
+                    data = mRanges.remove(mNextToWrite);
+                    if (data == null) {
+                        throwFailure();
+                    }
+                    mNextToWrite++;
+                    notifyAll();
+                }
+                sink.write(data);
+                count += data.length;
+                if (data.length < mRangeSize) {
+                    return count;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new MessagingException(MessagingException.IOERROR, e.toString());
+        } finally {
+            synchronized (this) {
+                mStopped = true;
+                mRanges.clear();
+                notifyAll();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    // The source will see mStopped once it's done with its range
+                }
+            }
+        }
+    }
+
+    private void throwFailure() throws IOException, MessagingException {
+        if (mFailure instanceof IOException) {
+            throw (IOException) mFailure;
+        } else if (mFailure instanceof MessagingException) {
+            throw (MessagingException) mFailure;
+        }
+        throw new RuntimeException(mFailure);
+    }
+
+    /**
+     * Note that a source has failed: it drops out, leaving its range (if it had one) to the
+     * others, unless it's the one to fall back on or the last one left, in which case the fetch
+     * fails. Called with the lock held.
+     *
+     * @param range the range it was fetching, or -1 if none
+     */
+    private void onSourceFailed(boolean fallback, long range, Exception e) {
+        mLiveSources--;
+        if (range >= 0) {
+            mRetryRanges.add(range);
+        }
+        if ((fallback || mLiveSources == 0) && mFailure == null) {
+            mFailure = e;
+        }
+        if (mFailure != null) {
+            // Once the fetch has failed, nothing fetches ranges waiting to be retried, so it
+            // fails at the first of them, if that's before the range that failed
+            long failedRange = (range >= 0) ? range : mNextToWrite;
+            for (long retryRange : mRetryRanges) {
+                failedRange = Math.min(failedRange, retryRange);
+            }
+            if (failedRange < mFailedRange) {
+                mFailedRange = failedRange;
+            }
+        }
+        notifyAll();
+    }
+
+    private void fetchRanges(RangeSource source, boolean fallback) {
+        while (true) {
+            long range = -1;
+            synchronized (this) {
+                try {
+                    while (true) {
+                        if (mStopped || mFailure != null) {
+                            return;
+                        }
+                        // Ranges past the end needn't be fetched again
+                        while (!mRetryRanges.isEmpty() && mRetryRanges.peek() > mLastRange) {
+                            mRetryRanges.poll();
+                        }
+                        if (!mRetryRanges.isEmpty()) {
+                            range = mRetryRanges.poll();
+                            break;
+                        }
+                        if (mNextRange <= mLastRange && mNextRange < mNextToWrite + mWindow) {
+                            range = mNextRange++;
+                            break;
+                        }
+                        if (mNextRange > mLastRange && mFetching == 0) {
+                            // Every range is fetched, and none can come back to be retried
+                            return;
+                        }
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    onSourceFailed(fallback, -1,
+                            new MessagingException(MessagingException.IOERROR, e.toString()));
+                    return;
+                }
+                mFetching++;
+            }
+            try {
+                final byte[] data = source.fetch(mOffset + range * mRangeSize, mRangeSize);
+                synchronized (this) {
+                    mFetching--;
+                    if (!mStopped) {
+                        mRanges.put(range, data);
+                    }
+                    if (data.length < mRangeSize) {
+                        mLastRange = Math.min(mLastRange, range);
+                    }
+                    notifyAll();
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    mFetching--;
+                    onSourceFailed(fallback, range, e);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -43,10 +43,14 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.james.mime4j.EOLConvertingInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 
 public class Pop3Store extends Store {
@@ -56,6 +60,19 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
+    /**
+     * Most commands sent ahead of their responses when the server allows pipelining; enough to
+     * cover the round trip, few enough that a failure doesn't leave much to unwind.
+     */
+    @VisibleForTesting
+    static final int PIPELINE_WINDOW = 8;
+    /** Prefix of the file holding an account's UIDL snapshot, in the cache directory */
+    private static final String UIDL_SNAPSHOT_PREFIX = "pop3_uidl_";
+    /**
+     * Most new messages looked up one by one after a good snapshot; past this, a single bulk
+     * UIDL is cheaper.
+     */
+    private static final int MAX_UIDL_TAIL = 200;
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
@@ -76,7 +93,8 @@ public class Pop3Store extends Store {
         mAccount = account;
 
         HostAuth recvAuth = account.getOrCreateHostAuthRecv(context);
-        mTransport = new MailTransport(context, "POP3", recvAuth);
+        mTransport = new MailTransport(context, "POP3", recvAuth,
+                MailTransport.POP3_OPTIONS);
         String[] userInfoParts = recvAuth.getLogin();
         if (userInfoParts != null) {
             mUsername = userInfoParts[0];
@@ -141,12 +159,23 @@ public class Pop3Store extends Store {
         return bundle;
     }
 
+    private static File getSnapshotFile(Context context, long accountId) {
+        return new File(context.getCacheDir(), UIDL_SNAPSHOT_PREFIX + accountId);
+    }
+
+    /**
+     * Delete the snapshot of an account's unique ids, e.g. when the account is deleted.
+     */
+    public static void deleteUidSnapshot(Context context, long accountId) {
+        getSnapshotFile(context, accountId).delete();
+    }
+
     public class Pop3Folder extends Folder {
+        /** The messages created so far; only those asked for, not the whole maildrop */
         private final HashMap<String, Pop3Message> mUidToMsgMap
                 = new HashMap<String, Pop3Message>();
-        private final HashMap<Integer, Pop3Message> mMsgNumToMsgMap
-                = new HashMap<Integer, Pop3Message>();
-        private final HashMap<String, Integer> mUidToMsgNumMap = new HashMap<String, Integer>();
+        /** The unique ids of the maildrop, once they've been looked up */
+        private Pop3UidIndex mIndex;
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
@@ -262,8 +291,7 @@ public class Pop3Store extends Store {
                 throw new MessagingException("POP3 STAT", statException);
             }
             mUidToMsgMap.clear();
-            mMsgNumToMsgMap.clear();
-            mUidToMsgNumMap.clear();
+            mIndex = null;
         }
 
         @Override
@@ -322,19 +350,28 @@ public class Pop3Store extends Store {
 
         @Override
         public Message getMessage(String uid) throws MessagingException {
-            if (mUidToMsgNumMap.size() == 0) {
-                try {
-                    indexMsgNums(1, mMessageCount);
-                } catch (IOException ioe) {
-                    mTransport.close();
-                    if (MailActivityEmail.DEBUG) {
-                        LogUtils.d(Logging.LOG_TAG, "Unable to index during getMessage " + ioe);
-                    }
-                    throw new MessagingException("getMessages", ioe);
-                }
+            if (!hasMessage(uid)) {
+                return null;
             }
-            Pop3Message message = mUidToMsgMap.get(uid);
-            return message;
+            return getOrCreateMessage(uid);
+        }
+
+        /**
+         * Returns whether the maildrop has a message, without creating the message.
+         */
+        public boolean hasMessage(String uid) throws MessagingException {
+            indexMsgNums();
+            return uid != null && mIndex.getMsgNum(uid) >= 0;
+        }
+
+        /**
+         * Returns the unique id of a message, looking up those of the maildrop if need be.
+         *
+         * @return the unique id, or null if there's no such message (e.g. it's been deleted)
+         */
+        public String getUid(int msgNum) throws MessagingException {
+            indexMsgNums();
+            return mIndex.getUid(msgNum);
         }
 
         @Override
@@ -351,76 +388,154 @@ public class Pop3Store extends Store {
 
         public Pop3Message[] getMessages(int end, final int limit)
                 throws MessagingException {
+            indexMsgNums();
+            ArrayList<Message> messages = new ArrayList<Message>();
+            for (int msgNum = end; msgNum > 0 && (messages.size() < limit); msgNum--) {
+                final String uid = mIndex.getUid(msgNum);
+                if (uid != null) {
+                    messages.add(getOrCreateMessage(uid));
+                }
+            }
+            return messages.toArray(new Pop3Message[messages.size()]);
+        }
+
+        private Pop3Message getOrCreateMessage(String uid) {
+            Pop3Message message = mUidToMsgMap.get(uid);
+            if (message == null) {
+                message = new Pop3Message(uid, this);
+                mUidToMsgMap.put(uid, message);
+            }
+            return message;
+        }
+
+        /**
+         * Returns the number of a message, which must be in the index.
+         */
+        private int getMsgNum(Message message) {
+            return mIndex.getMsgNum(message.getUid());
+        }
+
+        /**
+         * Ensures that the unique ids of the maildrop have been looked up. When the snapshot
+         * saved by the last sync is still good, only the messages that arrived since need to be.
+         */
+        private void indexMsgNums() throws MessagingException {
+            if (mIndex != null) {
+                return;
+            }
             try {
-                indexMsgNums(1, end);
+                final File snapshotFile = getSnapshotFile();
+                Pop3UidIndex index = null;
+                if (snapshotFile != null && !DEBUG_FORCE_SINGLE_LINE_UIDL) {
+                    index = extendSnapshot(Pop3UidIndex.load(snapshotFile));
+                }
+                if (index == null) {
+                    index = new Pop3UidIndex(mMessageCount);
+                    if (DEBUG_FORCE_SINGLE_LINE_UIDL) {
+                        indexSingly(index, 1);
+                    } else {
+                        indexAll(index);
+                    }
+                }
+                mIndex = index;
+                if (snapshotFile != null) {
+                    index.save(snapshotFile);
+                }
             } catch (IOException ioe) {
                 mTransport.close();
                 if (MailActivityEmail.DEBUG) {
-                    LogUtils.d(Logging.LOG_TAG, ioe.toString());
+                    LogUtils.d(Logging.LOG_TAG, "Unable to index messages " + ioe);
                 }
                 throw new MessagingException("getMessages", ioe);
             }
-            ArrayList<Message> messages = new ArrayList<Message>();
-            for (int msgNum = end; msgNum > 0 && (messages.size() < limit); msgNum--) {
-                Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                if (message != null) {
-                    messages.add(message);
-                }
+        }
+
+        /**
+         * @return where the unique ids are saved between syncs, or null if they aren't (e.g. for
+         * an account that's still being set up)
+         */
+        private File getSnapshotFile() {
+            if (mAccount == null || mAccount.mId <= 0) {
+                return null;
             }
-            return messages.toArray(new Pop3Message[messages.size()]);
+            return getSnapshotFile(mContext, mAccount.mId);
         }
 
         /**
-         * Ensures that the given message set (from start to end inclusive)
-         * has been queried so that uids are available in the local cache.
-         * @param start
-         * @param end
-         * @throws MessagingException
-         * @throws IOException
+         * Bring a snapshot of the maildrop's unique ids up to date, if it's still good: i.e. its
+         * last message is still at the same number, and not too much has arrived since.
+         *
+         * @return the updated index, or null if the snapshot can't be used
          */
-        private void indexMsgNums(int start, int end)
+        private Pop3UidIndex extendSnapshot(Pop3UidIndex snapshot)
                 throws MessagingException, IOException {
-            if (!mMsgNumToMsgMap.isEmpty()) {
-                return;
+            if (snapshot == null) {
+                return null;
             }
-            UidlParser parser = new UidlParser();
-            if (DEBUG_FORCE_SINGLE_LINE_UIDL || (mMessageCount > 5000)) {
-                /*
-                 * In extreme cases we'll do a UIDL command per message instead of a bulk
-                 * download.
-                 */
-                for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand("UIDL " + msgNum);
-                        if (!parser.parseSingleLine(response)) {
-                            throw new IOException();
-                        }
-                        message = new Pop3Message(parser.mUniqueId, this);
-                        indexMessage(msgNum, message);
-                    }
+            final int last = snapshot.getMessageCount();
+            if (last == 0 || last > mMessageCount || mMessageCount - last > MAX_UIDL_TAIL) {
+                return null;
+            }
+            final UidlParser parser = new UidlParser();
+            try {
+                if (!parser.parseSingleLine(executeSimpleCommand("UIDL " + last))) {
+                    return null;
                 }
-            } else {
-                String response = executeSimpleCommand("UIDL");
-                while ((response = mTransport.readLine(false)) != null) {
-                    if (!parser.parseMultiLine(response)) {
+            } catch (MessagingException me) {
+                // -ERR; the message is gone
+                return null;
+            }
+            if (parser.mMessageNumber != last || !parser.mUniqueId.equals(snapshot.getUid(last))) {
+                return null;
+            }
+            indexSingly(snapshot, last + 1);
+            return snapshot;
+        }
+
+        /**
+         * Index the messages from a number to the end of the maildrop, with a "UIDL n" for each;
+         * pipelined, if the server allows it.
+         */
+        private void indexSingly(Pop3UidIndex index, int start)
+                throws MessagingException, IOException {
+            final UidlParser parser = new UidlParser();
+            final int window = (mCapabilities != null && mCapabilities.pipelining)
+                    ? PIPELINE_WINDOW : 1;
+            open(OpenMode.READ_WRITE);
+            for (int first = start; first <= mMessageCount; first += window) {
+                final int last = Math.min(mMessageCount, first + window - 1);
+                for (int msgNum = first; msgNum <= last; msgNum++) {
+                    mTransport.writeLine("UIDL " + msgNum, null, msgNum == last);
+                }
+                for (int msgNum = first; msgNum <= last; msgNum++) {
+                    if (!parser.parseSingleLine(mTransport.readLine(true))) {
                         throw new IOException();
                     }
-                    if (parser.mEndOfMessage) {
-                        break;
-                    }
-                    int msgNum = parser.mMessageNumber;
-                    if (msgNum >= start && msgNum <= end) {
-                        Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                        if (message == null) {
-                            message = new Pop3Message(parser.mUniqueId, this);
-                            indexMessage(msgNum, message);
-                        }
+                    // A message that's been deleted in this session has no unique id
+                    if (!parser.mErr) {
+                        index.put(msgNum, parser.mUniqueId);
                     }
                 }
             }
         }
 
+        /**
+         * Index the whole maildrop with a single UIDL, reading the listing as it streams in.
+         */
+        private void indexAll(Pop3UidIndex index) throws MessagingException, IOException {
+            final UidlParser parser = new UidlParser();
+            String response = executeSimpleCommand("UIDL");
+            while ((response = mTransport.readLine(false)) != null) {
+                if (!parser.parseMultiLine(response)) {
+                    throw new IOException();
+                }
+                if (parser.mEndOfMessage) {
+                    break;
+                }
+                index.put(parser.mMessageNumber, parser.mUniqueId);
+            }
+        }
+
         /**
          * Simple parser class for UIDL messages.
          *
@@ -447,6 +562,8 @@ public class Pop3Store extends Store {
              */
             public boolean mErr;
 
+            private final String[] mFields = new String[3];
+
             /**
              * Construct & Initialize
              */
@@ -469,14 +586,14 @@ public class Pop3Store extends Store {
                 }
                 char first = response.charAt(0);
                 if (first == '+') {
-                    String[] uidParts = response.split(" +");
-                    if (uidParts.length >= 3) {
+                    // "+OK msg-num unique-id"
+                    if (splitFields(response, 3) == 3) {
                         try {
-                            mMessageNumber = Integer.parseInt(uidParts[1]);
+                            mMessageNumber = Integer.parseInt(mFields[1]);
                         } catch (NumberFormatException nfe) {
                             return false;
                         }
-                        mUniqueId = uidParts[2];
+                        mUniqueId = mFields[2];
                         mEndOfMessage = true;
                         return true;
                     }
@@ -504,26 +621,46 @@ public class Pop3Store extends Store {
                     mEndOfMessage = true;
                     return true;
                 } else {
-                    String[] uidParts = response.split(" +");
-                    if (uidParts.length >= 2) {
+                    if (splitFields(response, 2) == 2) {
                         try {
-                            mMessageNumber = Integer.parseInt(uidParts[0]);
+                            mMessageNumber = Integer.parseInt(mFields[0]);
                         } catch (NumberFormatException nfe) {
                             return false;
                         }
-                        mUniqueId = uidParts[1];
+                        mUniqueId = mFields[1];
                         mEndOfMessage = false;
                         return true;
                     }
                 }
                 return false;
             }
-        }
 
-        private void indexMessage(int msgNum, Pop3Message message) {
-            mMsgNumToMsgMap.put(msgNum, message);
-            mUidToMsgMap.put(message.getUid(), message);
-            mUidToMsgNumMap.put(message.getUid(), msgNum);
+            /**
+             * Split a response into its fields, separated by spaces, without the regular
+             * expression that String.split() would compile for each of thousands of lines.
+             *
+             * @return the number of fields found, up to max
+             */
+            private int splitFields(String response, int max) {
+                final int length = response.length();
+                int count = 0;
+                int start = 0;
+                while (count < max) {
+                    int end = response.indexOf(' ', start);
+                    if (end < 0) {
+                        end = length;
+                    }
+                    mFields[count++] = response.substring(start, end);
+                    start = end;
+                    while (start < length && response.charAt(start) == ' ') {
+                        start++;
+                    }
+                    if (start >= length) {
+                        break;
+                    }
+                }
+                return count;
+            }
         }
 
         @Override
@@ -560,7 +697,7 @@ public class Pop3Store extends Store {
         public void fetchBody(Pop3Message message, int lines,
                 EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
             String response = null;
-            int messageId = mUidToMsgNumMap.get(message.getUid());
+            int messageId = getMsgNum(message);
             if (lines == -1) {
                 // Fetch entire message
                 response = executeSimpleCommand(String.format(Locale.US, "RETR %d", messageId));
@@ -579,45 +716,122 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    int ok = response.indexOf("OK");
-                    if (ok > 0) {
-                        try {
-                            int start = ok + 3;
-                            if (start > response.length()) {
-                                // No length was supplied, this is a protocol error.
-                                LogUtils.e(Logging.LOG_TAG, "No body length supplied");
-                                message.setSize(0);
+                readBody(message, response, lines, callback);
+            }
+        }
+
+        /**
+         * Fetches the bodies of several messages, as {@link #fetchBody} does for one, reporting
+         * each to the listener as it arrives. If the server allows pipelining (RFC 2449 6.6), a
+         * window of TOP/RETR commands is kept in flight, so that the messages come one after
+         * another rather than a round trip apart; the responses are read in the order the
+         * commands were sent.
+         *
+         * @param messages the messages to fetch
+         * @param lines the number of lines to fetch, or -1 for all of each message
+         * @param listener told of each message once its body has been read
+         */
+        public void fetchBodies(List<Pop3Message> messages, int lines,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            if (mCapabilities == null || !mCapabilities.pipelining) {
+                for (Pop3Message message : messages) {
+                    fetchBody(message, lines, null);
+                    listener.messageRetrieved(message);
+                }
+                return;
+            }
+            open(OpenMode.READ_WRITE);
+            // Without TOP, every message is fetched whole, as after a failed TOP
+            final boolean useTop = (lines != -1) && mCapabilities.top;
+            final ArrayDeque<Pop3Message> inFlight = new ArrayDeque<Pop3Message>();
+            // The messages whose TOP failed, now fetched with RETR
+            final HashSet<Pop3Message> retried = new HashSet<Pop3Message>();
+            int next = 0;
+            try {
+                while (next < messages.size() || !inFlight.isEmpty()) {
+                    boolean sent = false;
+                    while (next < messages.size() && inFlight.size() < PIPELINE_WINDOW) {
+                        final Pop3Message message = messages.get(next++);
+                        final int msgNum = getMsgNum(message);
+                        mTransport.writeLine(useTop
+                                ? String.format(Locale.US, "TOP %d %d", msgNum, lines)
+                                : String.format(Locale.US, "RETR %d", msgNum), null, false);
+                        inFlight.add(message);
+                        sent = true;
+                    }
+                    if (sent) {
+                        mTransport.getOutputStream().flush();
+                    }
+
+                    final Pop3Message message = inFlight.remove();
+                    final String response = mTransport.readLine(true);
+                    if (response.length() > 1 && response.charAt(0) == '-') {
+                        if (useTop && retried.add(message)) {
+                            // Fall back to RETR; its response comes after those in flight
+                            mTransport.writeLine(String.format(Locale.US, "RETR %d",
+                                    getMsgNum(message)), null, true);
+                            inFlight.add(message);
+                        } else {
+                            LogUtils.w(Logging.LOG_TAG, "Can't read message " + message.getUid());
+                        }
+                        continue;
+                    }
+                    readBody(message, response, lines, null);
+                    listener.messageRetrieved(message);
+                }
+            } catch (IOException ioe) {
+                // The responses still in flight can't be matched up with anything now
+                mTransport.close();
+                throw ioe;
+            } catch (MessagingException me) {
+                mTransport.close();
+                throw me;
+            }
+        }
+
+        /**
+         * Reads the body of a message following the positive response to its TOP or RETR.
+         */
+        private void readBody(Pop3Message message, String response, int lines,
+                EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
+            try {
+                int ok = response.indexOf("OK");
+                if (ok > 0) {
+                    try {
+                        int start = ok + 3;
+                        if (start > response.length()) {
+                            // No length was supplied, this is a protocol error.
+                            LogUtils.e(Logging.LOG_TAG, "No body length supplied");
+                            message.setSize(0);
+                        } else {
+                            int end = response.indexOf(" ", start);
+                            final String intString;
+                            if (end > 0) {
+                                intString = response.substring(start, end);
                             } else {
-                                int end = response.indexOf(" ", start);
-                                final String intString;
-                                if (end > 0) {
-                                    intString = response.substring(start, end);
-                                } else {
-                                    intString = response.substring(start);
-                                }
-                                message.setSize(Integer.parseInt(intString));
+                                intString = response.substring(start);
                             }
-                        } catch (NumberFormatException e) {
-                            // We tried
+                            message.setSize(Integer.parseInt(intString));
                         }
+                    } catch (NumberFormatException e) {
+                        // We tried
                     }
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && MailActivityEmail.DEBUG) {
-                        in = new LoggingInputStream(in);
-                    }
-                    message.parse(new Pop3ResponseInputStream(in), callback);
-                }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
-                    if (lines == -1) {
-                        throw me;
-                    }
+                }
+                InputStream in = mTransport.getInputStream();
+                if (DEBUG_LOG_RAW_STREAM && MailActivityEmail.DEBUG) {
+                    in = new LoggingInputStream(in);
+                }
+                message.parse(new Pop3ResponseInputStream(in), callback);
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
                 }
             }
         }
@@ -645,6 +859,13 @@ public class Pop3Store extends Store {
             setFlags(mOneMessage, PERMANENT_FLAGS, true);
         }
 
+        /**
+         * Delete several messages at once, pipelining the DELEs if the server allows it.
+         */
+        public void deleteMessages(Message[] messages) throws MessagingException {
+            setFlags(messages, PERMANENT_FLAGS, true);
+        }
+
         @Override
         public void setFlags(Message[] messages, Flag[] flags, boolean value)
                 throws MessagingException {
@@ -655,14 +876,18 @@ public class Pop3Store extends Store {
                 return;
             }
             try {
+                if (mCapabilities != null && mCapabilities.pipelining && messages.length > 1) {
+                    deleteMessagesPipelined(messages);
+                    return;
+                }
                 for (Message message : messages) {
                     try {
                         String uid = message.getUid();
-                        int msgNum = mUidToMsgNumMap.get(uid);
+                        int msgNum = getMsgNum(message);
                         executeSimpleCommand(String.format(Locale.US, "DELE %s", msgNum));
-                        // Remove from the maps
-                        mMsgNumToMsgMap.remove(msgNum);
-                        mUidToMsgNumMap.remove(uid);
+                        // Remove from the index
+                        mIndex.remove(msgNum);
+                        mUidToMsgMap.remove(uid);
                     } catch (MessagingException e) {
                         // A failed deletion isn't a problem
                     }
@@ -677,6 +902,32 @@ public class Pop3Store extends Store {
             }
         }
 
+        /**
+         * Send the DELEs for several messages a window at a time, then read their responses.
+         */
+        private void deleteMessagesPipelined(Message[] messages)
+                throws IOException, MessagingException {
+            open(OpenMode.READ_WRITE);
+            for (int start = 0; start < messages.length; start += PIPELINE_WINDOW) {
+                final int end = Math.min(messages.length, start + PIPELINE_WINDOW);
+                for (int i = start; i < end; i++) {
+                    final int msgNum = getMsgNum(messages[i]);
+                    mTransport.writeLine(String.format(Locale.US, "DELE %s", msgNum), null,
+                            i == end - 1);
+                }
+                for (int i = start; i < end; i++) {
+                    final String response = mTransport.readLine(true);
+                    // A failed deletion isn't a problem
+                    if (response.length() > 1 && response.charAt(0) == '-') {
+                        continue;
+                    }
+                    // Remove from the index
+                    mIndex.remove(getMsgNum(messages[i]));
+                    mUidToMsgMap.remove(messages[i].getUid());
+                }
+            }
+        }
+
         @Override
         public void copyMessages(Message[] msgs, Folder folder, MessageUpdateCallbacks callbacks) {
             throw new UnsupportedOperationException("copyMessages is not supported in POP3");
@@ -691,6 +942,10 @@ public class Pop3Store extends Store {
                         break;
                     } else if (response.equalsIgnoreCase("STLS")){
                         capabilities.stls = true;
+                    } else if (response.equalsIgnoreCase("PIPELINING")) {
+                        capabilities.pipelining = true;
+                    } else if (response.equalsIgnoreCase("TOP")) {
+                        capabilities.top = true;
                     }
                 }
             }
@@ -795,41 +1050,133 @@ public class Pop3Store extends Store {
     class Pop3Capabilities {
         /** The STLS (start TLS) command is supported */
         public boolean stls;
+        /** Commands may be sent without waiting for the responses to those before them */
+        public boolean pipelining;
+        /** The TOP command is supported */
+        public boolean top;
 
         @Override
         public String toString() {
-            return String.format("STLS %b", stls);
+            return String.format("STLS %b PIPELINING %b TOP %b", stls, pipelining, top);
         }
     }
 
-    // TODO figure out what is special about this and merge it into MailTransport
-    class Pop3ResponseInputStream extends InputStream {
+    /**
+     * The body of a multi-line POP3 response (RFC 1939 3): ends at the line holding a single ".",
+     * and has a "." removed from the start of any other line that starts with one.
+     *
+     * It works a block at a time when it can, reading as much as it's asked for from the
+     * transport and removing the dots in place. So that nothing after the terminating line is
+     * taken from the transport (it belongs to the next response), each block is read with a
+     * mark, and when the terminating line is found the transport is reset to just after it.
+     * A stream without mark support is read a byte at a time.
+     */
+    @VisibleForTesting
+    static class Pop3ResponseInputStream extends InputStream {
+        /** At the start of a line */
+        private static final int STATE_LINE_START = 0;
+        /** Within a line */
+        private static final int STATE_IN_LINE = 1;
+        /** After a "." starting a line */
+        private static final int STATE_DOT = 2;
+        /** After ".\r" starting a line; the next byte ends the response */
+        private static final int STATE_DOT_CR = 3;
+
+        /** Largest block read at once, so that the transport's buffer can hold the mark */
+        @VisibleForTesting
+        static final int MAX_BLOCK_SIZE = MailTransport.INPUT_BUFFER_SIZE;
+
         private final InputStream mIn;
-        private boolean mStartOfLine = true;
+        private final boolean mBlocks;
+        private final byte[] mOneByte = new byte[1];
+        private int mState = STATE_LINE_START;
         private boolean mFinished;
 
         public Pop3ResponseInputStream(InputStream in) {
             mIn = in;
+            mBlocks = in.markSupported();
         }
 
         @Override
         public int read() throws IOException {
-            if (mFinished) {
-                return -1;
+            return (read(mOneByte, 0, 1) == -1) ? -1 : (mOneByte[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
             }
-            int d = mIn.read();
-            if (mStartOfLine && d == '.') {
-                d = mIn.read();
-                if (d == '\r') {
+            final int blockSize = mBlocks ? Math.min(length, MAX_BLOCK_SIZE) : 1;
+            // A block may hold nothing but a dot to be removed; keep going until there's data
+            while (!mFinished) {
+                if (mBlocks) {
+                    mIn.mark(blockSize);
+                }
+                final int count = mIn.read(buffer, offset, blockSize);
+                if (count == -1) {
                     mFinished = true;
-                    mIn.read();
-                    return -1;
+                    break;
+                }
+                final int produced = unstuff(buffer, offset, count);
+                if (produced > 0) {
+                    return produced;
                 }
             }
+            return -1;
+        }
 
-            mStartOfLine = (d == '\n');
+        /**
+         * Remove the dots from a block just read, in place, watching for the terminating line.
+         *
+         * @return the number of bytes of data left in the block
+         */
+        private int unstuff(byte[] buffer, int offset, int count) throws IOException {
+            final int end = offset + count;
+            int out = offset;
+            for (int i = offset; i < end; i++) {
+                final byte b = buffer[i];
+                switch (mState) {
+                    case STATE_DOT_CR:
+                        // The LF ending the terminating line
+                        finish(i + 1 - offset, count);
+                        return out - offset;
+                    case STATE_DOT:
+                        if (b == '\r') {
+                            mState = STATE_DOT_CR;
+                            continue;
+                        }
+                        break;
+                    case STATE_LINE_START:
+                        if (b == '.') {
+                            mState = STATE_DOT;
+                            continue;
+                        }
+                        break;
+                }
+                buffer[out++] = b;
+                mState = (b == '\n') ? STATE_LINE_START : STATE_IN_LINE;
+            }
+            return out - offset;
+        }
 
-            return d;
+        /**
+         * The response has ended, after the first {@code consumed} bytes of the last block read;
+         * give back the rest of the block, which belongs to whatever follows.
+         */
+        private void finish(int consumed, int count) throws IOException {
+            mFinished = true;
+            if (consumed < count) {
+                mIn.reset();
+                long skip = consumed;
+                while (skip > 0) {
+                    final long skipped = mIn.skip(skip);
+                    if (skipped <= 0) {
+                        break;
+                    }
+                    skip -= skipped;
+                }
+            }
         }
     }
 }
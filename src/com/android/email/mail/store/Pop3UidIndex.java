@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The unique ids of the messages in a POP3 maildrop, by message number, with a lookup from unique
+ * id back to message number. It's kept in arrays rather than maps of boxed numbers, so that it
+ * stays small for maildrops of tens of thousands of messages.
+ *
+ * An index can be saved as a snapshot and loaded on the next sync. Messages are only ever added
+ * to the end of a maildrop, and unique ids aren't reused, so if the last message in a snapshot is
+ * still found at its number, nothing before it has changed and only the messages after it need
+ * to be looked up.
+ */
+/*package*/ class Pop3UidIndex {
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /** The unique ids, by message number; [0] is unused, and deleted messages are null. */
+    private String[] mUids;
+    /** The highest message number indexed */
+    private int mMessageCount;
+    /**
+     * Open addressed hash table of message numbers, by their unique id's hash; 0 is an empty
+     * slot. The size is a power of two, at least twice the number of messages.
+     */
+    private int[] mTable;
+
+    public Pop3UidIndex(int expectedCount) {
+        mUids = new String[Math.max(expectedCount, 1) + 1];
+        mTable = new int[tableSizeFor(mUids.length)];
+    }
+
+    private static int tableSizeFor(int count) {
+        int size = 16;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * @return the highest message number indexed
+     */
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return the unique id of a message, or null if there's no such message
+     */
+    public String getUid(int msgNum) {
+        return (msgNum > 0 && msgNum <= mMessageCount) ? mUids[msgNum] : null;
+    }
+
+    /**
+     * @return the number of the message with a unique id, or -1 if there's no such message
+     */
+    public int getMsgNum(String uid) {
+        final int mask = mTable.length - 1;
+        for (int slot = uid.hashCode() & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+            // A deleted message leaves its slot, so that the ones after it can still be found
+            if (uid.equals(mUids[mTable[slot]])) {
+                return mTable[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a message to the index.
+     */
+    public void put(int msgNum, String uid) {
+        if (msgNum <= 0) {
+            return;
+        }
+        if (msgNum >= mUids.length) {
+            final String[] uids = new String[Math.max(msgNum + 1, mUids.length * 2)];
+            System.arraycopy(mUids, 0, uids, 0, mMessageCount + 1);
+            mUids = uids;
+        }
+        if (mUids[msgNum] == null) {
+            if (mTable.length < msgNum * 2) {
+                rehash(tableSizeFor(mUids.length));
+            }
+            insert(mTable, msgNum, uid);
+        }
+        mUids[msgNum] = uid;
+        mMessageCount = Math.max(mMessageCount, msgNum);
+    }
+
+    /**
+     * Remove a message (e.g. once it's deleted) from the index.
+     */
+    public void remove(int msgNum) {
+        if (msgNum > 0 && msgNum <= mMessageCount) {
+            mUids[msgNum] = null;
+        }
+    }
+
+    private static void insert(int[] table, int msgNum, String uid) {
+        final int mask = table.length - 1;
+        int slot = uid.hashCode() & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = msgNum;
+    }
+
+    private void rehash(int size) {
+        final int[] table = new int[size];
+        for (int msgNum = 1; msgNum <= mMessageCount; msgNum++) {
+            if (mUids[msgNum] != null) {
+                insert(table, msgNum, mUids[msgNum]);
+            }
+        }
+        mTable = table;
+    }
+
+    /**
+     * Save the index as a snapshot, for {@link #load} on the next sync. Only an index with no
+     * messages removed should be saved, since the snapshot is taken as a run of messages 1..n.
+     */
+    public void save(File file) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(mMessageCount);
+            for (int msgNum = 1; msgNum <= mMessageCount; msgNum++) {
+                out.writeUTF(mUids[msgNum] != null ? mUids[msgNum] : "");
+            }
+        } catch (IOException e) {
+            LogUtils.w(Logging.LOG_TAG, "Unable to save POP3 UIDL snapshot: %s", e.toString());
+            file.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a snapshot saved by {@link #save}.
+     *
+     * @return the index, or null if there's no usable snapshot
+     */
+    public static Pop3UidIndex load(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            final int count = in.readInt();
+            final Pop3UidIndex index = new Pop3UidIndex(count);
+            for (int msgNum = 1; msgNum <= count; msgNum++) {
+                index.put(msgNum, in.readUTF());
+            }
+            return index;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtils.w(Logging.LOG_TAG, "Unable to load POP3 UIDL snapshot: %s", e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+}
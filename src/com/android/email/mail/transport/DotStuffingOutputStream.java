@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Doubles a '.' at the start of a line, as required for the text following an SMTP DATA command
+ * (RFC 5321 4.5.2), so that no line of the message can be taken for the terminating ".".
+ * The data is expected to have CRLF line endings already.
+ */
+public class DotStuffingOutputStream extends FilterOutputStream {
+    private boolean mAtLineStart = true;
+
+    public DotStuffingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mAtLineStart && oneByte == '.') {
+            out.write('.');
+        }
+        out.write(oneByte);
+        mAtLineStart = (oneByte == '\n');
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // Pass through runs without a line start in one write, rather than a byte at a time
+        int start = offset;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final byte b = buffer[i];
+            if (mAtLineStart && b == '.') {
+                out.write(buffer, start, i - start);
+                out.write('.');
+                start = i;
+            }
+            mAtLineStart = (b == '\n');
+        }
+        out.write(buffer, start, end - start);
+    }
+}
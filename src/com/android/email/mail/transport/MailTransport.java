@@ -17,17 +17,23 @@
 package com.android.email.mail.transport;
 
 import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.TrafficStats;
 
 import com.android.email2.ui.MailActivityEmail;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.utility.SSLUtils;
+import com.android.emailcommon.utility.Utility;
 import com.android.mail.utils.LogUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -50,22 +56,95 @@ public class MailTransport {
     /*protected*/ public static final int SOCKET_CONNECT_TIMEOUT = 10000;
     /*protected*/ public static final int SOCKET_READ_TIMEOUT = 60000;
 
+    /**
+     * Size of the buffer on the socket's input. Large enough for message bodies to be read a
+     * block at a time (see Pop3Store.Pop3ResponseInputStream), which marks and resets within it.
+     */
+    public static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Buffering and socket options for a connection, chosen for the way a protocol uses it.
+     */
+    public static class Options {
+        public final int inputBufferSize;
+        public final int outputBufferSize;
+        /** Size to ask for the socket's receive buffer, or 0 to leave the system default */
+        public final int receiveBufferSize;
+        /** Size to ask for the socket's send buffer, or 0 to leave the system default */
+        public final int sendBufferSize;
+        /**
+         * Whether to turn off Nagle's algorithm. Commands are written whole and flushed once, so
+         * there's nothing to gain by holding back a short one until the last is acknowledged.
+         */
+        public final boolean tcpNoDelay;
+        public final boolean keepAlive;
+
+        public Options(int inputBufferSize, int outputBufferSize, int receiveBufferSize,
+                int sendBufferSize, boolean tcpNoDelay, boolean keepAlive) {
+            this.inputBufferSize = inputBufferSize;
+            this.outputBufferSize = outputBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.sendBufferSize = sendBufferSize;
+            this.tcpNoDelay = tcpNoDelay;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /** As transports have always been set up */
+    public static final Options DEFAULT_OPTIONS =
+            new Options(INPUT_BUFFER_SIZE, 512, 0, 0, false, false);
+    /**
+     * IMAP mostly downloads, in bulk when fetching bodies and attachments; connections are held
+     * open (e.g. in the connection pool) between commands, so keep them alive too.
+     */
+    public static final Options IMAP_OPTIONS =
+            new Options(INPUT_BUFFER_SIZE, 4 * 1024, 64 * 1024, 0, true, true);
+    /**
+     * POP3 downloads whole messages. The input buffer mustn't be smaller than
+     * INPUT_BUFFER_SIZE, since the response stream reads blocks of that size within it.
+     */
+    public static final Options POP3_OPTIONS =
+            new Options(INPUT_BUFFER_SIZE, 1024, 64 * 1024, 0, true, false);
+    /** SMTP mostly uploads; responses are short, but message data is written in bulk. */
+    public static final Options SMTP_OPTIONS =
+            new Options(4 * 1024, 16 * 1024, 0, 64 * 1024, true, false);
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
     private final String mDebugLabel;
     private final Context mContext;
     private final HostAuth mHostAuth;
+    private final Options mOptions;
 
     private Socket mSocket;
     private InputStream mIn;
     private OutputStream mOut;
+    /** Reused by readLine(); lines are short, so this needn't be the size of the buffer */
+    private final byte[] mLineBuffer = new byte[256];
+    /** Reused by writeLine() for the encoded command; grows to fit the longest one */
+    private byte[] mCommandBuffer = new byte[256];
+
+    /**
+     * Bytes read from and written to the connection since it was opened. These are counted above
+     * any TLS layer, so they're the protocol's bytes rather than exactly those on the wire.
+     */
+    private long mBytesRead;
+    private long mBytesWritten;
 
     public MailTransport(Context context, String debugLabel, HostAuth hostAuth) {
+        this(context, debugLabel, hostAuth, DEFAULT_OPTIONS);
+    }
+
+    public MailTransport(Context context, String debugLabel, HostAuth hostAuth,
+            Options options) {
         super();
         mContext = context;
         mDebugLabel = debugLabel;
         mHostAuth = hostAuth;
+        mOptions = options;
     }
 
    /**
@@ -75,7 +154,7 @@ public class MailTransport {
      */
     @Override
     public MailTransport clone() {
-        return new MailTransport(mContext, mDebugLabel, mHostAuth);
+        return new MailTransport(mContext, mDebugLabel, mHostAuth, mOptions);
     }
 
     public String getHost() {
@@ -111,18 +190,27 @@ public class MailTransport {
         try {
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
             if (canTrySslSecurity()) {
-                mSocket = SSLUtils.getSSLSocketFactory(
-                        mContext, mHostAuth, canTrustAllCertificates()).createSocket();
+                final SSLCertificateSocketFactory factory = SSLUtils.getSSLSocketFactory(
+                        mContext, mHostAuth, canTrustAllCertificates());
+                mSocket = factory.createSocket();
+                SSLUtils.enableSessionResumption(factory, mSocket, getHost());
             } else {
                 mSocket = new Socket();
             }
+            // The receive buffer has to be sized before connecting, for the window it advertises
+            setSocketOptions(mSocket);
+            mBytesRead = 0;
+            mBytesWritten = 0;
             mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-            // After the socket connects to an SSL server, confirm that the hostname is as expected
-            if (canTrySslSecurity() && !canTrustAllCertificates()) {
-                verifyHostname(mSocket, getHost());
+            if (canTrySslSecurity()) {
+                final SSLSession session = SSLUtils.startHandshake((SSLSocket) mSocket);
+                // After the socket connects to an SSL server, confirm that the hostname is as
+                // expected
+                if (!canTrustAllCertificates()) {
+                    verifyHostname(session, getHost());
+                }
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            openStreams();
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
         } catch (SSLException e) {
             if (MailActivityEmail.DEBUG) {
@@ -152,11 +240,13 @@ public class MailTransport {
      */
     public void reopenTls() throws MessagingException {
         try {
-            mSocket = SSLUtils.getSSLSocketFactory(mContext, mHostAuth, canTrustAllCertificates())
-                    .createSocket(mSocket, getHost(), getPort(), true);
+            final SSLCertificateSocketFactory factory = SSLUtils.getSSLSocketFactory(
+                    mContext, mHostAuth, canTrustAllCertificates());
+            mSocket = factory.createSocket(mSocket, getHost(), getPort(), true);
+            SSLUtils.enableSessionResumption(factory, mSocket, getHost());
+            SSLUtils.startHandshake((SSLSocket) mSocket);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            openStreams();
 
         } catch (SSLException e) {
             if (MailActivityEmail.DEBUG) {
@@ -171,31 +261,53 @@ public class MailTransport {
         }
     }
 
+    private void setSocketOptions(Socket socket) throws SocketException {
+        if (mOptions.receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mOptions.receiveBufferSize);
+        }
+        if (mOptions.sendBufferSize > 0) {
+            socket.setSendBufferSize(mOptions.sendBufferSize);
+        }
+        socket.setTcpNoDelay(mOptions.tcpNoDelay);
+        socket.setKeepAlive(mOptions.keepAlive);
+    }
+
+    /**
+     * Buffer the socket's streams, counting the bytes that go through them. The counting is done
+     * beneath the buffers, so that it's once per block rather than once per byte.
+     */
+    private void openStreams() throws IOException {
+        openStreams(mSocket.getInputStream(), mSocket.getOutputStream());
+    }
+
+    /**
+     * Buffer the given streams, as if they were the socket's; for tests, which use streams in
+     * memory.
+     */
+    /*package*/ void openStreams(InputStream in, OutputStream out) {
+        mIn = new BufferedInputStream(new CountingInputStream(in), mOptions.inputBufferSize);
+        mOut = new BufferedOutputStream(new CountingOutputStream(out), mOptions.outputBufferSize);
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
      *
      * Verify the hostname of the certificate used by the other end of a
-     * connected socket.  You MUST call this if you did not supply a hostname
-     * to SSLCertificateSocketFactory.createSocket().  It is harmless to call this method
+     * connected socket, once it has handshaken.  You MUST call this if you did not supply a
+     * hostname to SSLCertificateSocketFactory.createSocket().  It is harmless to call this method
      * redundantly if the hostname has already been verified.
      *
      * <p>Wildcard certificates are allowed to verify any matching hostname,
      * so "foo.bar.example.com" is verified if the peer has a certificate
      * for "*.example.com".
      *
-     * @param socket An SSL socket which has been connected to a server
+     * @param session The session of an SSL socket which has handshaken with a server
      * @param hostname The expected hostname of the remote server
-     * @throws IOException if something goes wrong handshaking with the server
+     * @throws IOException if there's no session to verify
      * @throws SSLPeerUnverifiedException if the server cannot prove its identity
       */
-    private static void verifyHostname(Socket socket, String hostname) throws IOException {
-        // The code at the start of OpenSSLSocketImpl.startHandshake()
-        // ensures that the call is idempotent, so we can safely call it.
-        SSLSocket ssl = (SSLSocket) socket;
-        ssl.startHandshake();
-
-        SSLSession session = ssl.getSession();
+    private static void verifyHostname(SSLSession session, String hostname) throws IOException {
         if (session == null) {
             throw new SSLException("Cannot verify SSL socket without session");
         }
@@ -227,6 +339,9 @@ public class MailTransport {
      * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
      */
     public void close() {
+        if (mIn != null) {
+            recordTraffic();
+        }
         try {
             mIn.close();
         } catch (Exception e) {
@@ -247,6 +362,34 @@ public class MailTransport {
         mSocket = null;
     }
 
+    /**
+     * @return the number of bytes read from the socket since the connection was opened
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * @return the number of bytes written to the socket since the connection was opened
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Add the connection's traffic to the statistics for the thread's traffic stats tag (i.e.
+     * the account, and the reason for the connection).
+     */
+    private void recordTraffic() {
+        final int flags = TrafficStats.getThreadStatsTag();
+        TrafficFlags.recordTransfer(flags, mBytesRead, mBytesWritten);
+        if (MailActivityEmail.DEBUG) {
+            LogUtils.d(Logging.LOG_TAG, "*** " + mDebugLabel + " close, " + mBytesRead +
+                    " bytes in, " + mBytesWritten + " bytes out (" +
+                    TrafficFlags.toString(flags) + ")");
+        }
+    }
+
     public InputStream getInputStream() {
         return mIn;
     }
@@ -259,6 +402,15 @@ public class MailTransport {
      * Writes a single line to the server using \r\n termination.
      */
     public void writeLine(String s, String sensitiveReplacement) throws IOException {
+        writeLine(s, sensitiveReplacement, true);
+    }
+
+    /**
+     * Writes a single line to the server using \r\n termination, optionally leaving it in the
+     * output buffer, e.g. so that several pipelined commands go out together.
+     */
+    public void writeLine(String s, String sensitiveReplacement, boolean flush)
+            throws IOException {
         if (MailActivityEmail.DEBUG) {
             if (sensitiveReplacement != null && !Logging.DEBUG_SENSITIVE) {
                 LogUtils.d(Logging.LOG_TAG, ">>> " + sensitiveReplacement);
@@ -268,10 +420,41 @@ public class MailTransport {
         }
 
         OutputStream out = getOutputStream();
-        out.write(s.getBytes());
-        out.write('\r');
-        out.write('\n');
-        out.flush();
+        final int length = encodeLine(s);
+        if (length >= 0) {
+            out.write(mCommandBuffer, 0, length);
+        } else {
+            out.write(s.getBytes(Utility.UTF_8));
+            out.write(CRLF);
+        }
+        if (flush) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Encode a line, and the CRLF which ends it, into the command buffer, which saves making a
+     * new array for every command.
+     *
+     * @return the number of bytes encoded, or -1 if the line isn't all ASCII
+     */
+    private int encodeLine(String s) {
+        final int length = s.length();
+        byte[] buffer = mCommandBuffer;
+        if (buffer.length < length + 2) {
+            buffer = new byte[Math.max(length + 2, buffer.length * 2)];
+            mCommandBuffer = buffer;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            buffer[i] = (byte) c;
+        }
+        buffer[length] = '\r';
+        buffer[length + 1] = '\n';
+        return length + 2;
     }
 
     /**
@@ -279,16 +462,40 @@ public class MailTransport {
      * delimiter char(s) are not included in the result.
      */
     public String readLine(boolean loggable) throws IOException {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
+        int d = -1;
+        if (in.markSupported()) {
+            // Look for the end of the line a buffer at a time, then give back what follows it
+            final byte[] buffer = mLineBuffer;
+            boolean endOfLine = false;
+            while (!endOfLine) {
+                in.mark(buffer.length);
+                final int count = in.read(buffer);
+                if (count == -1) {
+                    break;
+                }
+                int end = 0;
+                while (end < count && buffer[end] != '\n') {
+                    end++;
+                }
+                if (end < count) {
+                    endOfLine = true;
+                    d = '\n';
+                    in.reset();
+                    skipFully(in, end + 1);
+                }
+                appendLatin1(sb, buffer, end);
+            }
+        } else {
+            while ((d = in.read()) != -1) {
+                if (((char)d) == '\r') {
+                    continue;
+                } else if (((char)d) == '\n') {
+                    break;
+                } else {
+                    sb.append((char)d);
+                }
             }
         }
         if (d == -1 && MailActivityEmail.DEBUG) {
@@ -301,6 +508,80 @@ public class MailTransport {
         return ret;
     }
 
+    /**
+     * Append bytes to a line as chars, one for one, leaving out CRs.
+     */
+    private static void appendLatin1(StringBuilder sb, byte[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            final byte b = buffer[i];
+            if (b != '\r') {
+                sb.append((char) (b & 0xff));
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unable to skip to the end of the line");
+            }
+            count -= skipped;
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                mBytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                mBytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = in.skip(count);
+            if (skipped > 0) {
+                mBytesRead += skipped;
+            }
+            return skipped;
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            mBytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            // FilterOutputStream would write these a byte at a time
+            out.write(buffer, offset, count);
+            mBytesWritten += count;
+        }
+    }
+
     public InetAddress getLocalAddress() {
         if (isOpen()) {
             return mSocket.getLocalAddress();
@@ -17,6 +17,8 @@
 package com.android.email.mail.transport;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.util.Base64;
 
 import com.android.email.mail.Sender;
@@ -28,27 +30,74 @@ import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
-import com.android.emailcommon.utility.EOLConvertingOutputStream;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import javax.net.ssl.SSLException;
 
 /**
  * This class handles all of the protocol-level aspects of sending messages via SMTP.
+ *
+ * The authenticated session is kept open between calls to {@link #sendMessage}, so that draining
+ * an outbox pays for the connection, TLS handshake and authentication only once; each further
+ * message starts with a RSET. The session is reopened if it has been idle for too long or the
+ * server doesn't answer the RSET, and dropped if a message fails part way through its data.
+ * Callers must {@link #close} the sender when they are done with it.
+ *
+ * When the server's EHLO reply offers them, the envelope commands are pipelined (RFC 2920), so
+ * that a message costs a round trip for its envelope however many recipients it has; the message
+ * is sent in BDAT chunks (RFC 3030) rather than dot-stuffed after DATA; and body text is sent
+ * without transfer encoding if it can be (RFC 6152).
  */
 public class SmtpSender extends Sender {
 
+    /**
+     * A session idle for longer than this is not reused. Servers must wait at least five minutes
+     * for the next command (RFC 5321 4.5.3.2.7), but many don't.
+     */
+    private static final long SESSION_IDLE_TIMEOUT_MS = 60 * DateUtils.SECOND_IN_MILLIS;
+
+    @VisibleForTesting
+    static final String CAPABILITY_PIPELINING = "PIPELINING";
+    @VisibleForTesting
+    static final String CAPABILITY_CHUNKING = "CHUNKING";
+    @VisibleForTesting
+    static final String CAPABILITY_8BITMIME = "8BITMIME";
+    @VisibleForTesting
+    static final String CAPABILITY_SIZE = "SIZE";
+
+    /** Size of the BDAT chunks the message is sent in. */
+    @VisibleForTesting
+    static final int BDAT_CHUNK_SIZE = 64 * 1024;
+    /** When pipelining, the most BDAT chunks sent before reading their replies. */
+    private static final int MAX_UNACKNOWLEDGED_CHUNKS = 8;
+
     private final Context mContext;
     private MailTransport mTransport;
     private String mUsername;
     private String mPassword;
 
+    /** The extensions (upper case EHLO keywords) offered by the server in this session. */
+    private Set<String> mCapabilities = new HashSet<String>();
+    /** Whether the transport holds a session that open() has completed. */
+    private boolean mSessionOpen;
+    /** Whether a mail transaction has been started in the current session. */
+    private boolean mSessionUsed;
+    private long mLastActivityTime;
+
     /**
      * Static named constructor.
      */
@@ -62,7 +111,8 @@ public class SmtpSender extends Sender {
     public SmtpSender(Context context, Account account) {
         mContext = context;
         HostAuth sendAuth = account.getOrCreateHostAuthSend(context);
-        mTransport = new MailTransport(context, "SMTP", sendAuth);
+        mTransport = new MailTransport(context, "SMTP", sendAuth,
+                MailTransport.SMTP_OPTIONS);
         String[] userInfoParts = sendAuth.getLogin();
         if (userInfoParts != null) {
             mUsername = userInfoParts[0];
@@ -101,7 +151,7 @@ public class SmtpSender extends Sender {
                 sb.append(']');
                 localHost = sb.toString();
             }
-            String result = executeSimpleCommand("EHLO " + localHost);
+            String result = executeEhlo(localHost);
 
             /*
              * TODO may need to add code to fall back to HELO I switched it from
@@ -119,7 +169,7 @@ public class SmtpSender extends Sender {
                      * Now resend the EHLO. Required by RFC2487 Sec. 5.2, and more specifically,
                      * Exim.
                      */
-                    result = executeSimpleCommand("EHLO " + localHost);
+                    result = executeEhlo(localHost);
                 } else {
                     if (MailActivityEmail.DEBUG) {
                         LogUtils.d(Logging.LOG_TAG, "TLS not supported but required");
@@ -149,6 +199,9 @@ public class SmtpSender extends Sender {
                     throw new MessagingException(MessagingException.AUTH_REQUIRED);
                 }
             }
+            mSessionOpen = true;
+            mSessionUsed = false;
+            mLastActivityTime = SystemClock.elapsedRealtime();
         } catch (SSLException e) {
             if (MailActivityEmail.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e.toString());
@@ -162,42 +215,163 @@ public class SmtpSender extends Sender {
         }
     }
 
-    @Override
-    public void sendMessage(long messageId) throws MessagingException {
+    /**
+     * Make sure there's a session ready for a new mail transaction: reuse the current one if
+     * it's recent and still answers, otherwise open a new one.
+     */
+    private void resumeSession() throws MessagingException {
+        if (mSessionOpen && mTransport.isOpen()
+                && SystemClock.elapsedRealtime() - mLastActivityTime < SESSION_IDLE_TIMEOUT_MS) {
+            if (!mSessionUsed) {
+                return;
+            }
+            try {
+                executeSimpleCommand("RSET");
+                mLastActivityTime = SystemClock.elapsedRealtime();
+                return;
+            } catch (IOException ioe) {
+                LogUtils.d(Logging.LOG_TAG, "SMTP session lost, reconnecting: " + ioe);
+            } catch (MessagingException me) {
+                LogUtils.d(Logging.LOG_TAG, "SMTP session refused RSET, reconnecting: " + me);
+            }
+        }
         close();
         open();
+    }
+
+    @Override
+    public void sendMessage(long messageId) throws MessagingException {
+        resumeSession();
 
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
             throw new MessagingException("Trying to send non-existent message id="
                     + Long.toString(messageId));
         }
+        sendOnSession(message, null);
+    }
+
+    @Override
+    public void sendMessage(Message message, List<Attachment> attachments)
+            throws MessagingException {
+        resumeSession();
+        sendOnSession(message, attachments);
+    }
+
+    /**
+     * Send a message over the session, once it's been resumed.
+     * @param attachments the message's attachments, or null to read them from the message
+     */
+    private void sendOnSession(Message message, List<Attachment> attachments)
+            throws MessagingException {
         Address from = Address.unpackFirst(message.mFrom);
         Address[] to = Address.unpack(message.mTo);
         Address[] cc = Address.unpack(message.mCc);
         Address[] bcc = Address.unpack(message.mBcc);
 
+        final boolean pipelining = mCapabilities.contains(CAPABILITY_PIPELINING);
+        final boolean chunking = mCapabilities.contains(CAPABILITY_CHUNKING);
+        final boolean allow8bit = mCapabilities.contains(CAPABILITY_8BITMIME);
+        final Rfc822Output output = Rfc822Output.prepare(mContext, message,
+                false /* do not use smart reply */,
+                false /* do not send BCC */,
+                attachments,
+                allow8bit);
+
+        final StringBuilder mailFrom = new StringBuilder("MAIL FROM:<")
+                .append(from.getAddress()).append('>');
+        if (allow8bit) {
+            mailFrom.append(" BODY=8BITMIME");
+        }
+        if (mCapabilities.contains(CAPABILITY_SIZE)) {
+            // Lets the server refuse a message that's too big before it's sent (RFC 1870)
+            mailFrom.append(" SIZE=").append(output.getLength());
+        }
+        final List<String> envelope = new ArrayList<String>();
+        envelope.add(mailFrom.toString());
+        for (Address address : to) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : cc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : bcc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        if (!chunking) {
+            envelope.add("DATA");
+        }
+
+        boolean sendingData = false;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
-            for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
-            }
-            for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            // From here on, the next message must reset the transaction
+            mSessionUsed = true;
+            if (pipelining) {
+                executePipelinedCommands(envelope);
+            } else {
+                for (String command : envelope) {
+                    executeSimpleCommand(command);
+                }
             }
-            for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            sendingData = true;
+            if (chunking) {
+                // The output already has CRLF line endings
+                final BdatOutputStream out = new BdatOutputStream(pipelining);
+                output.writeTo(out);
+                out.finish();
+            } else {
+                output.writeTo(new DotStuffingOutputStream(mTransport.getOutputStream()));
+                executeSimpleCommand("\r\n.");
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, message,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
-                    false /* do not use smart reply */,
-                    false /* do not send BCC */,
-                    null  /* attachments are in the message itself */);
-            executeSimpleCommand("\r\n.");
+            sendingData = false;
+            mLastActivityTime = SystemClock.elapsedRealtime();
         } catch (IOException ioe) {
+            // We can't tell what state the server is in
+            close();
             throw new MessagingException("Unable to send message", ioe);
+        } catch (MessagingException me) {
+            // A refused sender or recipient leaves the session usable, but not a failure during
+            // the data, which can't be cleanly ended
+            if (sendingData) {
+                close();
+            }
+            throw me;
+        }
+    }
+
+    /**
+     * Send a group of commands without waiting for their replies, then read the replies (RFC 2920
+     * 3.1). All replies are read, so that the session stays in step with the server.
+     *
+     * @param commands the commands; only the last may be one (such as DATA) that changes state
+     * @throws MessagingException with the first reply that refused a command
+     */
+    private void executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        for (String command : commands) {
+            mTransport.writeLine(command, null, false);
+        }
+        mTransport.getOutputStream().flush();
+
+        MessagingException firstError = null;
+        boolean lastAccepted = false;
+        for (int i = 0; i < commands.size(); i++) {
+            try {
+                readResponse(null);
+                lastAccepted = true;
+            } catch (MessagingException me) {
+                if (firstError == null) {
+                    firstError = me;
+                }
+                lastAccepted = false;
+            }
+        }
+        if (firstError != null) {
+            if (lastAccepted && "DATA".equals(commands.get(commands.size() - 1))) {
+                // The server is now waiting for the message, which can't be cancelled
+                close();
+            }
+            throw firstError;
         }
     }
 
@@ -208,6 +382,8 @@ public class SmtpSender extends Sender {
      */
     @Override
     public void close() {
+        mSessionOpen = false;
+        mSessionUsed = false;
         mTransport.close();
     }
 
@@ -237,13 +413,64 @@ public class SmtpSender extends Sender {
         if (command != null) {
             mTransport.writeLine(command, sensitiveReplacement);
         }
+        return readResponse(null);
+    }
 
+    /**
+     * Send EHLO, and remember the extensions the server offers.
+     *
+     * @return the response, as from {@link #executeSimpleCommand}
+     */
+    private String executeEhlo(String localHost) throws IOException, MessagingException {
+        mTransport.writeLine("EHLO " + localHost, null);
+        final List<String> lines = new ArrayList<String>();
+        final String result = readResponse(lines);
+        mCapabilities = parseCapabilities(lines);
+        return result;
+    }
+
+    /**
+     * Parse the lines of an EHLO reply into the set of extensions (the upper case keywords of
+     * the lines after the first) offered by the server.
+     */
+    @VisibleForTesting
+    static Set<String> parseCapabilities(List<String> lines) {
+        final Set<String> capabilities = new HashSet<String>();
+        for (int i = 1; i < lines.size(); i++) {
+            final String line = lines.get(i);
+            if (line.length() <= 4) {
+                continue;
+            }
+            String keyword = line.substring(4).trim();
+            final int space = keyword.indexOf(' ');
+            if (space > 0) {
+                keyword = keyword.substring(0, space);
+            }
+            capabilities.add(keyword.toUpperCase(Locale.US));
+        }
+        return capabilities;
+    }
+
+    /**
+     * Read a single response, which may continue onto multiple lines.  Throws MessagingException
+     * if response code is 4xx or 5xx.
+     *
+     * @param lines if not null, the lines of the response are added to it
+     * @return Returns the response string from the server.
+     */
+    private String readResponse(List<String> lines) throws IOException, MessagingException {
         String line = mTransport.readLine(true);
+        if (lines != null) {
+            lines.add(line);
+        }
 
         String result = line;
 
         while (line.length() >= 4 && line.charAt(3) == '-') {
             line = mTransport.readLine(true);
+            if (lines != null) {
+                lines.add(line);
+            }
             result += line.substring(3);
         }
 
@@ -308,4 +535,86 @@ public class SmtpSender extends Sender {
             throw me;
         }
     }
+
+    /**
+     * Sends what's written to it in BDAT chunks, as is: unlike after DATA, there's no need for
+     * dot-stuffing or a terminating line. The last chunk is sent by {@link #finish}. When
+     * pipelining, chunks are sent without waiting for their replies, which are read in batches.
+     * If the server refuses a chunk, the rest of the data is dropped and finish() reports it.
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] mChunk = new byte[BDAT_CHUNK_SIZE];
+        private final boolean mPipelining;
+        private int mLength;
+        private int mUnacknowledged;
+        private MessagingException mError;
+
+        BdatOutputStream(boolean pipelining) {
+            mPipelining = pipelining;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mLength == mChunk.length) {
+                sendChunk(false);
+            }
+            mChunk[mLength++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (mLength == mChunk.length) {
+                    sendChunk(false);
+                }
+                final int n = Math.min(count, mChunk.length - mLength);
+                System.arraycopy(buffer, offset, mChunk, mLength, n);
+                mLength += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Chunks are only sent when they're full, or by finish()
+        }
+
+        /**
+         * Send the last chunk and wait for the replies to all of them.
+         */
+        void finish() throws IOException, MessagingException {
+            sendChunk(true);
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            if (mError == null) {
+                mTransport.writeLine("BDAT " + mLength + (last ? " LAST" : ""), null, false);
+                final OutputStream out = mTransport.getOutputStream();
+                out.write(mChunk, 0, mLength);
+                out.flush();
+                mUnacknowledged++;
+                if (!mPipelining || last || mUnacknowledged >= MAX_UNACKNOWLEDGED_CHUNKS) {
+                    readReplies();
+                }
+            }
+            mLength = 0;
+        }
+
+        private void readReplies() throws IOException {
+            while (mUnacknowledged > 0) {
+                mUnacknowledged--;
+                try {
+                    readResponse(null);
+                } catch (MessagingException me) {
+                    if (mError == null) {
+                        mError = me;
+                    }
+                }
+            }
+        }
+    }
 }
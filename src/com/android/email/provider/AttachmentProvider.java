@@ -28,6 +28,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeUtility;
@@ -38,12 +39,15 @@ import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.emailcommon.utility.AttachmentUtilities.Columns;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.List;
 
 /*
@@ -55,14 +59,17 @@ import java.util.List;
  * And for access to thumbnails:
  *   content://com.android.mail.attachmentprovider/acct#/attach#/THUMBNAIL/width#/height#
  *
+ * Deleting acct#/attach#/THUMBNAIL, or just acct#, drops the cached thumbnails of the attachment
+ * or of the whole account.
+ *
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
- * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
+ * Thumbnails are stored at:   <cache-path>/thumbnails/account#_item#_width#xheight#
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
  *      /data/data/com.android.email/databases/10.db_att/20
- *      /data/data/com.android.email/cache/thmb_10_20
+ *      /data/data/com.android.email/cache/thumbnails/10_20_62x62
  */
 public class AttachmentProvider extends ContentProvider {
 
@@ -74,6 +81,11 @@ public class AttachmentProvider extends ContentProvider {
     private static final String[] PROJECTION_QUERY = new String[] { AttachmentColumns.FILENAME,
             AttachmentColumns.SIZE, AttachmentColumns.CONTENT_URI };
 
+    /** Most space the thumbnail cache may take */
+    private static final long THUMBNAIL_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private ThumbnailCache mThumbnailCache;
+
     @Override
     public boolean onCreate() {
         /*
@@ -85,6 +97,7 @@ public class AttachmentProvider extends ContentProvider {
         if (files != null) {
             for (File file : files) {
                 final String filename = file.getName();
+                // Thumbnails used to be kept here, one per attachment
                 if (filename.endsWith(".tmp") || filename.startsWith("thmb_")) {
                     file.delete();
                 }
@@ -133,7 +146,8 @@ public class AttachmentProvider extends ContentProvider {
      * Open an attachment file.  There are two "formats" - "raw", which returns an actual file,
      * and "thumbnail", which attempts to generate a thumbnail image.
      *
-     * Thumbnails are cached for easy space recovery and cleanup.
+     * Thumbnails are cached by attachment and size, so one that's asked for again is served
+     * without decoding the image again.
      *
      * TODO:  The thumbnail format returns null for its failure cases, instead of throwing
      * FileNotFoundException, and should be fixed for consistency.
@@ -170,51 +184,17 @@ public class AttachmentProvider extends ContentProvider {
             String id = segments.get(1);
             String format = segments.get(2);
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
-                int width = Integer.parseInt(segments.get(3));
-                int height = Integer.parseInt(segments.get(4));
-                String filename = "thmb_" + accountId + "_" + id;
-                File dir = getContext().getCacheDir();
-                File file = new File(dir, filename);
-                if (!file.exists()) {
-                    Uri attachmentUri = AttachmentUtilities.
-                        getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
-                    Cursor c = query(attachmentUri,
-                            new String[] { Columns.DATA }, null, null, null);
-                    if (c != null) {
-                        try {
-                            if (c.moveToFirst()) {
-                                attachmentUri = Uri.parse(c.getString(0));
-                            } else {
-                                return null;
-                            }
-                        } finally {
-                            c.close();
-                        }
-                    }
-                    String type = getContext().getContentResolver().getType(attachmentUri);
-                    try {
-                        InputStream in =
-                            getContext().getContentResolver().openInputStream(attachmentUri);
-                        Bitmap thumbnail = createThumbnail(type, in);
-                        if (thumbnail == null) {
-                            return null;
-                        }
-                        thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                        FileOutputStream out = new FileOutputStream(file);
-                        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                        out.close();
-                        in.close();
-                    } catch (IOException ioe) {
-                        LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                ioe.getMessage());
-                        return null;
-                    } catch (OutOfMemoryError oome) {
-                        LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                oome.getMessage());
-                        return null;
-                    }
+                final int width = Integer.parseInt(segments.get(3));
+                final int height = Integer.parseInt(segments.get(4));
+                final ThumbnailCache cache = getThumbnailCache();
+                final String key = ThumbnailCache.getKey(Long.parseLong(accountId),
+                        Long.parseLong(id), width, height);
+                final ParcelFileDescriptor fd = cache.open(key);
+                if (fd != null) {
+                    return fd;
                 }
-                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+                return createThumbnail(cache, key, Long.parseLong(accountId),
+                        Long.parseLong(id), width, height);
             }
             else {
                 return ParcelFileDescriptor.open(
@@ -226,8 +206,28 @@ public class AttachmentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Drop cached thumbnails, when their attachment or account is deleted; the attachment files
+     * themselves are deleted by {@link AttachmentUtilities}.
+     */
     @Override
     public int delete(Uri uri, String arg1, String[] arg2) {
+        // The caller must have the EmailProvider permission, as for writes
+        if (getContext().checkCallingOrSelfPermission(EmailContent.PROVIDER_PERMISSION)
+                != PackageManager.PERMISSION_GRANTED) {
+            return 0;
+        }
+        final List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        final long accountId = Long.parseLong(segments.get(0));
+        if (segments.size() == 1) {
+            return getThumbnailCache().removeAccount(accountId);
+        } else if (segments.size() == 3
+                && AttachmentUtilities.FORMAT_THUMBNAIL.equals(segments.get(2))) {
+            return getThumbnailCache().removeAttachment(accountId, Long.parseLong(segments.get(1)));
+        }
         return 0;
     }
 
@@ -308,24 +308,127 @@ public class AttachmentProvider extends ContentProvider {
         return 0;
     }
 
-    private static Bitmap createThumbnail(String type, InputStream data) {
-        if(MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (mThumbnailCache == null) {
+            mThumbnailCache = new ThumbnailCache(new File(getContext().getCacheDir(),
+                    "thumbnails"), THUMBNAIL_CACHE_SIZE);
         }
-        return null;
+        return mThumbnailCache;
     }
 
-    private static Bitmap createImageThumbnail(InputStream data) {
+    /**
+     * Make a thumbnail of an image attachment, and add it to the cache.
+     *
+     * @return the thumbnail, opened for reading, or null if the attachment isn't an image or
+     *     can't be read
+     */
+    private ParcelFileDescriptor createThumbnail(ThumbnailCache cache, String key,
+            long accountId, long id, int width, int height) {
+        final long startTime = SystemClock.elapsedRealtime();
+        Uri attachmentUri = AttachmentUtilities.getAttachmentUri(accountId, id);
+        final Cursor c = query(attachmentUri, new String[] { Columns.DATA }, null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst()) {
+                    attachmentUri = Uri.parse(c.getString(0));
+                } else {
+                    return null;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        final String type = getContext().getContentResolver().getType(attachmentUri);
+        if (!MimeUtility.mimeTypeMatches(type, "image/*")) {
+            return null;
+        }
+        Bitmap image = null;
+        Bitmap thumbnail = null;
         try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
+            image = decodeSampledImage(attachmentUri, width, height);
+            if (image == null) {
+                return null;
+            }
+            final long decodedBytes = image.getRowBytes() * image.getHeight();
+            thumbnail = Bitmap.createScaledBitmap(image, width, height, true);
+            final File tempFile = cache.createTempFile(key);
+            final FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            final long millis = SystemClock.elapsedRealtime() - startTime;
+            cache.recordDecode(millis, decodedBytes);
+            if (Logging.LOGD) {
+                LogUtils.v(Logging.LOG_TAG, "Thumbnail %s decoded at %dx%d (%dKB) in %dms",
+                        key, image.getWidth(), image.getHeight(), decodedBytes / 1024, millis);
+            }
+            return cache.put(key, tempFile);
+        } catch (IOException ioe) {
+            LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " + ioe.getMessage());
+            return null;
         } catch (OutOfMemoryError oome) {
-            LogUtils.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
+            LogUtils.d(Logging.LOG_TAG, "openFile/thumbnail failed with " + oome.getMessage());
             return null;
-        } catch (Exception e) {
-            LogUtils.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
+        } finally {
+            // Don't wait for the GC to free what may be megabytes of pixels
+            if (thumbnail != null && thumbnail != image) {
+                thumbnail.recycle();
+            }
+            if (image != null) {
+                image.recycle();
+            }
+        }
+    }
+
+    /**
+     * Decode an image no larger than it needs to be for a thumbnail. Its size is read first, and
+     * then it's decoded at the largest reduction that's still at least as big as the thumbnail,
+     * which takes a fraction of the memory and time of decoding it at full size.
+     *
+     * @return the image, or null if it can't be decoded
+     */
+    private Bitmap decodeSampledImage(Uri uri, int width, int height) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = getContext().getContentResolver().openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
             return null;
         }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, width, height);
+        in = getContext().getContentResolver().openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the largest power of two by which an image can be reduced, and still be at least as
+     * big as a thumbnail
+     */
+    @VisibleForTesting
+    static int getSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (sampleSize * 2) >= width
+                && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Thumbnails:");
+        getThumbnailCache().dump(writer);
     }
 
     /**
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Transparent compression of large Body rows.
+ *
+ * Bodies whose html or text content is at least {@link #COMPRESSION_THRESHOLD} characters long
+ * are stored as a deflated UTF-8 BLOB in the matching "compressed" column, with the plain TEXT
+ * column left NULL and {@link BodyColumns#COMPRESSION_CODEC} recording how the BLOB was encoded.
+ * Small bodies are stored exactly as before, so rows written by older versions remain readable.
+ *
+ * Writers never need to know about this: {@link EmailProvider} runs every Body insert/update
+ * through {@link #compressValues}, and wraps Body (and message view) cursors with a
+ * {@link StoredContentCursor} so that readers see the original strings. The same cursor also
+ * reads bodies that {@link BodyFileStore} moved out of the database entirely.
+ */
+public class BodyCompression {
+    private static final String TAG = "BodyCompression";
+
+    /** Bodies at least this many characters long are compressed. */
+    @VisibleForTesting
+    static final int COMPRESSION_THRESHOLD = 16 * 1024;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Plain content columns, and the compressed column holding their data when large. */
+    private static final String[] PLAIN_COLUMNS = {
+        BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT
+    };
+    private static final String[] COMPRESSED_COLUMNS = {
+        BodyColumns.HTML_CONTENT_COMPRESSED, BodyColumns.TEXT_CONTENT_COMPRESSED
+    };
+    private static final String[] FILE_COLUMNS = {
+        BodyColumns.HTML_CONTENT_FILE, BodyColumns.TEXT_CONTENT_FILE
+    };
+    /** What a query without a projection returns; the columns above are internal. */
+    private static final String[] PUBLIC_COLUMNS = {
+        BodyColumns.ID, BodyColumns.MESSAGE_KEY, BodyColumns.HTML_CONTENT,
+        BodyColumns.TEXT_CONTENT, BodyColumns.HTML_REPLY, BodyColumns.TEXT_REPLY,
+        BodyColumns.SOURCE_MESSAGE_KEY, BodyColumns.INTRO_TEXT, BodyColumns.QUOTED_TEXT_START_POS,
+        BodyColumns.EMBEDS_EXTERNAL_RESOURCES
+    };
+
+    /**
+     * Rewrite Body ContentValues in place so that large html/text content is stored compressed.
+     * Values that don't contain any content columns are left untouched.
+     */
+    static void compressValues(final ContentValues values) {
+        if (values == null) {
+            return;
+        }
+        boolean compressed = false;
+        for (int i = 0; i < PLAIN_COLUMNS.length; i++) {
+            final String plainColumn = PLAIN_COLUMNS[i];
+            if (!values.containsKey(plainColumn)) {
+                continue;
+            }
+            final String content = values.getAsString(plainColumn);
+            if (content == null && values.getAsString(FILE_COLUMNS[i]) != null) {
+                // BodyFileStore has already moved this content into a file
+                values.putNull(COMPRESSED_COLUMNS[i]);
+            } else if (content != null && content.length() >= COMPRESSION_THRESHOLD) {
+                values.putNull(plainColumn);
+                values.put(COMPRESSED_COLUMNS[i], compress(content));
+                compressed = true;
+            } else {
+                // Make sure a stale compressed copy doesn't shadow the new value
+                values.putNull(COMPRESSED_COLUMNS[i]);
+            }
+        }
+        if (compressed) {
+            values.put(BodyColumns.COMPRESSION_CODEC, Body.CODEC_DEFLATE);
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] compress(final String content) {
+        final Deflater deflater = new Deflater();
+        try {
+            final byte[] input = Utility.toUtf8(content);
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @VisibleForTesting
+    static String decompress(final byte[] data, final int codec) {
+        if (data == null) {
+            return null;
+        }
+        if (codec != Body.CODEC_DEFLATE) {
+            LogUtils.w(TAG, "Unknown body codec %d", codec);
+            return null;
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    LogUtils.w(TAG, "Truncated compressed body");
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+            return Utility.fromUtf8(out.toByteArray());
+        } catch (DataFormatException e) {
+            LogUtils.w(TAG, e, "Corrupt compressed body");
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Given a projection for a Body query, return the projection that must actually be run
+     * against the database: any requested content column is followed (at the end) by its
+     * compressed and file columns, plus the codec. A null projection stands for the public
+     * columns.
+     */
+    static String[] expandBodyProjection(String[] projection) {
+        if (projection == null) {
+            projection = PUBLIC_COLUMNS;
+        }
+        final ArrayList<String> expanded = new ArrayList<String>(projection.length + 5);
+        for (final String column : projection) {
+            expanded.add(column);
+        }
+        boolean needCodec = false;
+        for (int i = 0; i < PLAIN_COLUMNS.length; i++) {
+            if (expanded.contains(PLAIN_COLUMNS[i])) {
+                expanded.add(COMPRESSED_COLUMNS[i]);
+                if (!expanded.contains(FILE_COLUMNS[i])) {
+                    expanded.add(FILE_COLUMNS[i]);
+                }
+                needCodec = true;
+            }
+        }
+        if (!needCodec) {
+            return projection;
+        }
+        expanded.add(BodyColumns.COMPRESSION_CODEC);
+        return expanded.toArray(new String[expanded.size()]);
+    }
+
+    /**
+     * Wrap a cursor from a Body table query made with {@link #expandBodyProjection} so that the
+     * content columns return their stored data and the extra columns are hidden. If the caller
+     * asked for a file column explicitly, it is expected to read that file itself, and the
+     * matching content column is returned as stored (i.e. NULL).
+     * @param cursor the raw query result
+     * @param projection the projection the caller asked for (may be null, for the public columns)
+     */
+    static Cursor wrapBodyCursor(final Cursor cursor, String[] projection) {
+        if (cursor == null) {
+            return null;
+        }
+        if (projection == null) {
+            projection = PUBLIC_COLUMNS;
+        }
+        final int visibleColumns = projection.length;
+        final boolean[] readFiles = new boolean[PLAIN_COLUMNS.length];
+        for (int i = 0; i < PLAIN_COLUMNS.length; i++) {
+            readFiles[i] = !Arrays.asList(projection).contains(FILE_COLUMNS[i]);
+        }
+        return wrapCursor(cursor, visibleColumns, PLAIN_COLUMNS, readFiles);
+    }
+
+    /**
+     * Append the compressed and file content columns and the codec to a SELECT list that joins
+     * the Body table, for use with {@link #wrapCursor}.
+     */
+    static void appendStorageColumns(final StringBuilder sb) {
+        for (final String column : COMPRESSED_COLUMNS) {
+            sb.append(',').append(Body.TABLE_NAME).append('.').append(column);
+        }
+        for (final String column : FILE_COLUMNS) {
+            sb.append(',').append(Body.TABLE_NAME).append('.').append(column);
+        }
+        sb.append(',').append(Body.TABLE_NAME).append('.').append(BodyColumns.COMPRESSION_CODEC);
+    }
+
+    /**
+     * Wrap a cursor whose trailing columns were added by {@link #appendStorageColumns}.
+     * @param cursor the raw query result
+     * @param visibleColumns the number of leading columns the caller asked for
+     * @param contentColumns the result column names holding html and text content, in that
+     *        order; either may be null if it wasn't selected
+     * @param readFiles whether to read the body file for each content column
+     */
+    static Cursor wrapCursor(final Cursor cursor, final int visibleColumns,
+            final String[] contentColumns, final boolean[] readFiles) {
+        final int codecColumn = cursor.getColumnIndex(BodyColumns.COMPRESSION_CODEC);
+        if (codecColumn < 0) {
+            return cursor;
+        }
+        final int[] plain = new int[contentColumns.length];
+        final int[] compressed = new int[contentColumns.length];
+        final int[] file = new int[contentColumns.length];
+        for (int i = 0; i < contentColumns.length; i++) {
+            plain[i] = contentColumns[i] == null ? -1 : cursor.getColumnIndex(contentColumns[i]);
+            compressed[i] = cursor.getColumnIndex(COMPRESSED_COLUMNS[i]);
+            file[i] = readFiles[i] ? cursor.getColumnIndex(FILE_COLUMNS[i]) : -1;
+        }
+        return new StoredContentCursor(cursor, visibleColumns, plain, compressed, file,
+                codecColumn);
+    }
+
+    /**
+     * Compress the content of existing large Body rows, used when upgrading the body database.
+     */
+    static void compressExistingBodies(final SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("select " + EmailContent.RECORD_ID + ","
+                + BodyColumns.HTML_CONTENT + "," + BodyColumns.TEXT_CONTENT
+                + " from " + Body.TABLE_NAME
+                + " where length(" + BodyColumns.HTML_CONTENT + ")>=" + COMPRESSION_THRESHOLD
+                + " or length(" + BodyColumns.TEXT_CONTENT + ")>=" + COMPRESSION_THRESHOLD, null);
+        if (c == null) {
+            return;
+        }
+        int count = 0;
+        try {
+            final String[] bindArgs = new String[1];
+            while (c.moveToNext()) {
+                final ContentValues values = new ContentValues(5);
+                values.put(BodyColumns.HTML_CONTENT, c.getString(1));
+                values.put(BodyColumns.TEXT_CONTENT, c.getString(2));
+                compressValues(values);
+                bindArgs[0] = c.getString(0);
+                db.update(Body.TABLE_NAME, values, EmailContent.RECORD_ID + "=?", bindArgs);
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        LogUtils.d(TAG, "Compressed %d existing bodies", count);
+    }
+
+    /**
+     * Cursor that, whenever the plain value of a content column is NULL, returns the content
+     * from its compressed BLOB or its body file instead; trailing helper columns are not visible
+     * to callers.
+     */
+    static class StoredContentCursor extends CursorWrapper {
+        private final int mVisibleColumns;
+        private final int[] mPlainColumns;
+        private final int[] mCompressedColumns;
+        private final int[] mFileColumns;
+        private final int mCodecColumn;
+
+        // Cache of the last restored value, since callers may read a column more than once
+        private int mCachedPosition = -1;
+        private int mCachedColumn = -1;
+        private String mCachedValue;
+
+        StoredContentCursor(final Cursor cursor, final int visibleColumns,
+                final int[] plainColumns, final int[] compressedColumns, final int[] fileColumns,
+                final int codecColumn) {
+            super(cursor);
+            mVisibleColumns = visibleColumns;
+            mPlainColumns = plainColumns;
+            mCompressedColumns = compressedColumns;
+            mFileColumns = fileColumns;
+            mCodecColumn = codecColumn;
+        }
+
+        /** @return the index into our column arrays for a content column, or -1 */
+        private int slotFor(final int column) {
+            if (column >= 0) {
+                for (int i = 0; i < mPlainColumns.length; i++) {
+                    if (mPlainColumns[i] == column) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private boolean hasValue(final int column) {
+            return column >= 0 && !super.isNull(column);
+        }
+
+        /** @return whether the content for this column is stored somewhere other than itself */
+        private boolean isStored(final int column) {
+            final int slot = slotFor(column);
+            return slot >= 0 && super.isNull(column)
+                    && (hasValue(mCompressedColumns[slot]) || hasValue(mFileColumns[slot]));
+        }
+
+        @Override
+        public int getColumnCount() {
+            return mVisibleColumns;
+        }
+
+        @Override
+        public int getColumnIndex(final String columnName) {
+            final int column = super.getColumnIndex(columnName);
+            return column < mVisibleColumns ? column : -1;
+        }
+
+        @Override
+        public int getColumnIndexOrThrow(final String columnName) {
+            final int column = getColumnIndex(columnName);
+            if (column < 0) {
+                throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+            }
+            return column;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            final String[] names = super.getColumnNames();
+            if (names.length == mVisibleColumns) {
+                return names;
+            }
+            final String[] visible = new String[mVisibleColumns];
+            System.arraycopy(names, 0, visible, 0, mVisibleColumns);
+            return visible;
+        }
+
+        @Override
+        public String getString(final int column) {
+            if (!isStored(column)) {
+                return super.getString(column);
+            }
+            final int position = getPosition();
+            if (position != mCachedPosition || column != mCachedColumn) {
+                final int slot = slotFor(column);
+                if (hasValue(mCompressedColumns[slot])) {
+                    mCachedValue = decompress(super.getBlob(mCompressedColumns[slot]),
+                            super.getInt(mCodecColumn));
+                } else {
+                    mCachedValue = BodyFileStore.readContent(
+                            super.getString(mFileColumns[slot]));
+                }
+                mCachedPosition = position;
+                mCachedColumn = column;
+            }
+            return mCachedValue;
+        }
+
+        @Override
+        public boolean isNull(final int column) {
+            if (isStored(column)) {
+                return false;
+            }
+            return super.isNull(column);
+        }
+
+        @Override
+        public int getType(final int column) {
+            if (isStored(column)) {
+                return Cursor.FIELD_TYPE_STRING;
+            }
+            return super.getType(column);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Storage tier for oversized message bodies.
+ *
+ * Html or text content of at least {@link #FILE_THRESHOLD} characters is written as UTF-8 to a
+ * per-account file next to the databases (in the same way attachments are stored), and the Body
+ * row holds only the file's path in {@link BodyColumns#HTML_CONTENT_FILE} or
+ * {@link BodyColumns#TEXT_CONTENT_FILE}. This keeps multi-megabyte bodies out of SQLite and its
+ * cursor windows: in-process readers get the content straight from the (memory-mapped) file via
+ * {@link BodyCompression}'s cursor wrapper, and other processes can open it with
+ * {@link Body#HTML_FILE_URI}/{@link Body#TEXT_FILE_URI}.
+ *
+ * Files go with the database: each write makes a new file, and the file it replaces is deleted
+ * only once the write (and the transaction it's part of) has committed; if it doesn't commit,
+ * the new file is deleted instead. Callers report how each write and transaction ended with
+ * {@link #finishChanges} and {@link #endTransaction}.
+ */
+public class BodyFileStore {
+    private static final String TAG = "BodyFileStore";
+
+    /** Bodies at least this many characters long are stored in a file. */
+    @VisibleForTesting
+    static final int FILE_THRESHOLD = 512 * 1024;
+
+    private static final String[] CONTENT_COLUMNS = {
+        BodyColumns.HTML_CONTENT, BodyColumns.TEXT_CONTENT
+    };
+    private static final String[] FILE_COLUMNS = {
+        BodyColumns.HTML_CONTENT_FILE, BodyColumns.TEXT_CONTENT_FILE
+    };
+    private static final String[] FILE_SUFFIXES = { ".html", ".txt" };
+
+    private static final String[] FILE_PROJECTION = FILE_COLUMNS;
+
+    private static final String ACCOUNT_KEY_FOR_MESSAGE = "select " + MessageColumns.ACCOUNT_KEY
+            + " from " + Message.TABLE_NAME + " where " + EmailContent.RECORD_ID + "=?";
+    private static final String MESSAGE_KEY_FOR_BODY = "select " + BodyColumns.MESSAGE_KEY
+            + " from " + Body.TABLE_NAME + " where " + EmailContent.RECORD_ID + "=?";
+
+    /**
+     * The files written, and the files replaced or deleted, by a write to the Body table.
+     */
+    static class FileChanges {
+        private final ArrayList<File> mWritten = new ArrayList<File>();
+        private final ArrayList<File> mReplaced = new ArrayList<File>();
+
+        private void deleteAll(ArrayList<File> files) {
+            for (File file : files) {
+                if (!file.delete() && file.exists()) {
+                    LogUtils.w(TAG, "Unable to delete body file %s", file);
+                }
+            }
+            files.clear();
+        }
+
+        private void commit() {
+            deleteAll(mReplaced);
+            mWritten.clear();
+        }
+
+        private void rollBack() {
+            deleteAll(mWritten);
+            mReplaced.clear();
+        }
+    }
+
+    /** Changes made in the transaction under way on this thread, to be settled when it ends */
+    private static final ThreadLocal<ArrayList<FileChanges>> sTransactionChanges =
+            new ThreadLocal<ArrayList<FileChanges>>() {
+                @Override
+                protected ArrayList<FileChanges> initialValue() {
+                    return new ArrayList<FileChanges>();
+                }
+            };
+
+    /**
+     * Directory for an account's body files; like attachments, this sits next to the databases.
+     */
+    public static File getBodyDirectory(Context context, long accountId) {
+        return context.getDatabasePath(accountId + ".db_body");
+    }
+
+    /**
+     * Delete all of an account's body files, e.g. when the account is deleted.
+     */
+    public static void deleteAccountBodyFiles(Context context, long accountId) {
+        final File[] files = getBodyDirectory(context, accountId).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                LogUtils.w(TAG, "Unable to delete body file %s", file);
+            }
+        }
+    }
+
+    /**
+     * Look up the message key of a Body row.
+     * @return the message key, or -1 if there is no such body
+     */
+    static long getMessageKeyForBody(SQLiteDatabase db, String bodyId) {
+        try {
+            return DatabaseUtils.longForQuery(db, MESSAGE_KEY_FOR_BODY, new String[] {bodyId});
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Rewrite Body ContentValues in place, moving oversized content into files. Must be called
+     * before {@link BodyCompression#compressValues}, which then leaves the moved columns alone.
+     * @param messageKey the message the body belongs to, or -1 if unknown (in which case the
+     *        values are left untouched)
+     * @return the files written and replaced, to be passed to {@link #finishChanges} once the
+     *        values have been written; null if there are none
+     */
+    static FileChanges storeLargeContent(Context context, SQLiteDatabase db,
+            ContentValues values, long messageKey) {
+        if (values == null || messageKey < 0) {
+            return null;
+        }
+        long accountId = -1;
+        String[] oldPaths = null;
+        FileChanges changes = null;
+        for (int i = 0; i < CONTENT_COLUMNS.length; i++) {
+            if (!values.containsKey(CONTENT_COLUMNS[i])) {
+                continue;
+            }
+            if (accountId < 0) {
+                try {
+                    accountId = DatabaseUtils.longForQuery(db, ACCOUNT_KEY_FOR_MESSAGE,
+                            new String[] {Long.toString(messageKey)});
+                } catch (SQLiteDoneException e) {
+                    // The message is gone; nothing sensible to store against
+                    return changes;
+                }
+                oldPaths = getFilePaths(db, messageKey);
+                changes = new FileChanges();
+            }
+            final String content = values.getAsString(CONTENT_COLUMNS[i]);
+            values.putNull(FILE_COLUMNS[i]);
+            if (content != null && content.length() >= FILE_THRESHOLD) {
+                try {
+                    final File file = writeContent(getBodyDirectory(context, accountId),
+                            messageKey, FILE_SUFFIXES[i], content);
+                    changes.mWritten.add(file);
+                    values.putNull(CONTENT_COLUMNS[i]);
+                    values.put(FILE_COLUMNS[i], file.getAbsolutePath());
+                } catch (IOException e) {
+                    // Fall back to storing the content in the database
+                    LogUtils.w(TAG, e, "Unable to write body file for message %d", messageKey);
+                }
+            }
+            if (oldPaths[i] != null) {
+                changes.mReplaced.add(new File(oldPaths[i]));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return the paths of a message's current body files, by column (each may be null)
+     */
+    private static String[] getFilePaths(SQLiteDatabase db, long messageKey) {
+        final String[] paths = new String[FILE_COLUMNS.length];
+        final Cursor c = db.query(Body.TABLE_NAME, FILE_PROJECTION, Body.SELECTION_BY_MESSAGE_KEY,
+                new String[] {Long.toString(messageKey)}, null, null, null);
+        if (c == null) {
+            return paths;
+        }
+        try {
+            if (c.moveToFirst()) {
+                for (int i = 0; i < FILE_COLUMNS.length; i++) {
+                    paths[i] = c.getString(i);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return paths;
+    }
+
+    /**
+     * Write the content into a new file of its own, which nothing refers to until the write to
+     * the database that does so commits.
+     */
+    private static File writeContent(File dir, long messageKey, String suffix, String content)
+            throws IOException {
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        final File file = File.createTempFile(messageKey + "-", suffix, dir);
+        boolean written = false;
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(Utility.toUtf8(content));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Settle the files changed by a write to the Body table, once the write is done: if it
+     * failed, the files it wrote are deleted; if it succeeded, the files it replaced are deleted,
+     * or, inside a transaction, will be when the transaction commits.
+     * @param changes the changes, from {@link #storeLargeContent} or {@link #deleteBodyFiles};
+     *        may be null
+     */
+    static void finishChanges(SQLiteDatabase db, FileChanges changes, boolean success) {
+        if (changes == null) {
+            return;
+        }
+        if (!success) {
+            changes.rollBack();
+        } else if (db.inTransaction()) {
+            sTransactionChanges.get().add(changes);
+        } else {
+            changes.commit();
+        }
+    }
+
+    /**
+     * Settle the files changed in a transaction; call this just after ending it.
+     * @param success whether the transaction was marked successful
+     */
+    static void endTransaction(SQLiteDatabase db, boolean success) {
+        if (success && db.inTransaction()) {
+            // Nested; it's up to the outer transaction whether all of this commits
+            return;
+        }
+        final ArrayList<FileChanges> pending = sTransactionChanges.get();
+        for (FileChanges changes : pending) {
+            if (success) {
+                changes.commit();
+            } else {
+                changes.rollBack();
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Read the content of a body file, memory-mapped.
+     * @return the content, or null if the file can't be read
+     */
+    static String readContent(String path) {
+        try {
+            final FileInputStream in = new FileInputStream(path);
+            try {
+                return Utility.readUtf8File(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Unable to read body file %s", path);
+            return null;
+        }
+    }
+
+    /**
+     * Find the files of the Body rows matching a selection; call this before deleting the rows.
+     * @return the files, to be passed to {@link #finishChanges} once the rows are deleted (which
+     *        deletes them); null if there are none
+     */
+    static FileChanges deleteBodyFiles(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        final String fileSelection = "(" + BodyColumns.HTML_CONTENT_FILE + " not null or "
+                + BodyColumns.TEXT_CONTENT_FILE + " not null)";
+        final Cursor c = db.query(Body.TABLE_NAME, FILE_PROJECTION,
+                selection == null ? fileSelection : "(" + selection + ") and " + fileSelection,
+                selectionArgs, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        FileChanges changes = null;
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < FILE_PROJECTION.length; i++) {
+                    final String path = c.getString(i);
+                    if (path != null) {
+                        if (changes == null) {
+                            changes = new FileChanges();
+                        }
+                        changes.mReplaced.add(new File(path));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return changes;
+    }
+}
@@ -163,7 +163,14 @@ public final class DBHelper {
     // Version 122: Need to update Message_Updates and Message_Deletes to match previous.
     // Version 123: Changed the duplicateMesage deletion trigger to ignore accounts that aren't
     //              exchange accounts.
-    public static final int DATABASE_VERSION = 123;
+    // Version 124: Add senderKeys and attachmentSummary to Message (and Message_Updates and
+    //              Message_Deletes), precomputed for the message view.
+    // Version 125: Add mailboxType to Message, maintained by triggers and indexed with timeStamp,
+    //              for the combined views.
+    // Version 126: Add a (mailboxKey, timeStamp) index on Message for the paged message list.
+    // Version 127: Add storedSize and storedTime to Attachment, indexed with accountKey, as a
+    //              ledger of attachment storage.
+    public static final int DATABASE_VERSION = 127;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -173,7 +180,12 @@ public final class DBHelper {
     // Version 6: Adding Body.mIntroText column
     // Version 7/8: Adding quoted text start pos
     // Version 8 is last Email1 version
-    public static final int BODY_DATABASE_VERSION = 100;
+    // Version 100 is first Email2 version
+    // Version 101: Add compressed html/text content columns and the compression codec; compress
+    //              existing large bodies and clear the deprecated reply/intro columns
+    // Version 102: Add html/text content file columns for bodies stored outside the database
+    // Version 103: Add embedsExternalResources, precomputed for the message view
+    public static final int BODY_DATABASE_VERSION = 103;
 
     /*
      * Internal helper method for index creation.
@@ -216,6 +228,51 @@ public final class DBHelper {
                 "; end");
     }
 
+    /**
+     * The combined views select messages by mailbox type and order them by time.
+     */
+    static void createMessageMailboxTypeIndex(final SQLiteDatabase db) {
+        db.execSQL("create index message_" + MessageColumns.MAILBOX_TYPE + "_"
+                + MessageColumns.TIMESTAMP + " on " + Message.TABLE_NAME + " ("
+                + MessageColumns.MAILBOX_TYPE + ", " + MessageColumns.TIMESTAMP + ");");
+    }
+
+    /**
+     * The message list reads a mailbox's messages a page at a time, in time order.
+     */
+    static void createMessageMailboxTimestampIndex(final SQLiteDatabase db) {
+        db.execSQL("create index message_" + MessageColumns.MAILBOX_KEY + "_"
+                + MessageColumns.TIMESTAMP + " on " + Message.TABLE_NAME + " ("
+                + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.TIMESTAMP + ");");
+    }
+
+    /**
+     * Add triggers to keep Message.mailboxType equal to the type of the message's mailbox.
+     */
+    static void createMessageMailboxTypeTriggers(final SQLiteDatabase db) {
+        final String setMailboxType = " begin update " + Message.TABLE_NAME + " set "
+                + MessageColumns.MAILBOX_TYPE + "=(select " + MailboxColumns.TYPE + " from "
+                + Mailbox.TABLE_NAME + " where " + MailboxColumns.ID + "=NEW."
+                + MessageColumns.MAILBOX_KEY + ") where " + EmailContent.RECORD_ID + "=NEW."
+                + EmailContent.RECORD_ID + "; end";
+
+        // Insert a message.
+        db.execSQL("create trigger message_mailbox_type_insert after insert on "
+                + Message.TABLE_NAME + setMailboxType);
+
+        // Change a message's mailbox.
+        db.execSQL("create trigger message_mailbox_type_move after update of "
+                + MessageColumns.MAILBOX_KEY + " on " + Message.TABLE_NAME + setMailboxType);
+
+        // Change a mailbox's type.
+        db.execSQL("create trigger message_mailbox_type_change after update of "
+                + MailboxColumns.TYPE + " on " + Mailbox.TABLE_NAME
+                + " when OLD." + MailboxColumns.TYPE + "!=NEW." + MailboxColumns.TYPE
+                + " begin update " + Message.TABLE_NAME + " set " + MessageColumns.MAILBOX_TYPE
+                + "=NEW." + MailboxColumns.TYPE + " where " + MessageColumns.MAILBOX_KEY
+                + "=NEW." + MailboxColumns.ID + "; end");
+    }
+
     static void dropDeleteDuplicateMessagesTrigger(final SQLiteDatabase db) {
         db.execSQL("drop trigger message_delete_duplicates_on_insert");
     }
@@ -285,7 +342,10 @@ public final class DBHelper {
             + MessageColumns.THREAD_TOPIC + " text, "
             + MessageColumns.SYNC_DATA + " text, "
             + MessageColumns.FLAG_SEEN + " integer, "
-            + MessageColumns.MAIN_MAILBOX_KEY + " integer"
+            + MessageColumns.MAIN_MAILBOX_KEY + " integer, "
+            + MessageColumns.SENDER_KEYS + " text, "
+            + MessageColumns.ATTACHMENT_SUMMARY + " text, "
+            + MessageColumns.MAILBOX_TYPE + " integer"
             + ");";
 
         // This String and the following String MUST have the same columns, except for the type
@@ -319,6 +379,8 @@ public final class DBHelper {
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageMailboxTypeIndex(db);
+        createMessageMailboxTimestampIndex(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -374,6 +436,7 @@ public final class DBHelper {
         // Add triggers to maintain message_count.
         createMessageCountTriggers(db);
         createDeleteDuplicateMessagesTrigger(context, db);
+        createMessageMailboxTypeTriggers(db);
     }
 
     static void resetMessageTable(Context context, SQLiteDatabase db,
@@ -610,10 +673,23 @@ public final class DBHelper {
             + AttachmentColumns.UI_STATE + " integer, "
             + AttachmentColumns.UI_DESTINATION + " integer, "
             + AttachmentColumns.UI_DOWNLOADED_SIZE + " integer, "
-            + AttachmentColumns.CACHED_FILE + " text"
+            + AttachmentColumns.CACHED_FILE + " text, "
+            + AttachmentColumns.STORED_SIZE + " integer default 0, "
+            + AttachmentColumns.STORED_TIME + " integer default 0"
             + ");";
         db.execSQL("create table " + Attachment.TABLE_NAME + s);
         db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.MESSAGE_KEY));
+        createAttachmentStorageIndex(db);
+    }
+
+    /**
+     * An account's attachment storage is the sum of its stored attachments, and they're freed
+     * oldest first; both are a range of this index.
+     */
+    static void createAttachmentStorageIndex(final SQLiteDatabase db) {
+        db.execSQL("create index attachment_" + AttachmentColumns.ACCOUNT_KEY + "_"
+                + AttachmentColumns.STORED_TIME + " on " + Attachment.TABLE_NAME + " ("
+                + AttachmentColumns.ACCOUNT_KEY + ", " + AttachmentColumns.STORED_TIME + ");");
     }
 
     static void resetAttachmentTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -641,7 +717,13 @@ public final class DBHelper {
             + BodyColumns.TEXT_REPLY + " text, "
             + BodyColumns.SOURCE_MESSAGE_KEY + " text, "
             + BodyColumns.INTRO_TEXT + " text, "
-            + BodyColumns.QUOTED_TEXT_START_POS + " integer"
+            + BodyColumns.QUOTED_TEXT_START_POS + " integer, "
+            + BodyColumns.HTML_CONTENT_COMPRESSED + " blob, "
+            + BodyColumns.TEXT_CONTENT_COMPRESSED + " blob, "
+            + BodyColumns.COMPRESSION_CODEC + " integer default " + Body.CODEC_NONE + ", "
+            + BodyColumns.HTML_CONTENT_FILE + " text, "
+            + BodyColumns.TEXT_CONTENT_FILE + " text, "
+            + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " integer default 0"
             + ");";
         db.execSQL("create table " + Body.TABLE_NAME + s);
         db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
@@ -680,6 +762,49 @@ public final class DBHelper {
             // Move to Email2 version
             oldVersion = 100;
         }
+        if (oldVersion == 100) {
+            try {
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.HTML_CONTENT_COMPRESSED + " blob");
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.TEXT_CONTENT_COMPRESSED + " blob");
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.COMPRESSION_CODEC + " integer default "
+                        + Body.CODEC_NONE);
+                // The deprecated columns are no longer written or read; reclaim their space
+                db.execSQL("update " + Body.TABLE_NAME + " set " + BodyColumns.HTML_REPLY
+                        + "=null," + BodyColumns.TEXT_REPLY + "=null," + BodyColumns.INTRO_TEXT
+                        + "=null");
+                BodyCompression.compressExistingBodies(db);
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                LogUtils.w(TAG, "Exception upgrading EmailProviderBody.db from v100 to v101", e);
+            }
+            oldVersion = 101;
+        }
+        if (oldVersion == 101) {
+            try {
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.HTML_CONTENT_FILE + " text");
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.TEXT_CONTENT_FILE + " text");
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                LogUtils.w(TAG, "Exception upgrading EmailProviderBody.db from v101 to v102", e);
+            }
+            oldVersion = 102;
+        }
+        if (oldVersion == 102) {
+            try {
+                db.execSQL("alter table " + Body.TABLE_NAME
+                        + " add " + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " integer default 0");
+                MessageViewMetadata.computeExistingEmbedsExternalResources(db);
+            } catch (SQLException e) {
+                // Shouldn't be needed unless we're debugging and interrupt the process
+                LogUtils.w(TAG, "Exception upgrading EmailProviderBody.db from v102 to v103", e);
+            }
+            oldVersion = 103;
+        }
     }
 
     protected static class BodyDatabaseHelper extends SQLiteOpenHelper {
@@ -1317,6 +1442,52 @@ public final class DBHelper {
                 }
                 createDeleteDuplicateMessagesTrigger(mContext, db);
             }
+
+            if (oldVersion <= 123) {
+                // The three message tables must keep the same schema.
+                // senderKeys is left null for existing messages; readers fall back to fromList.
+                for (final String tableName : new String[] {Message.TABLE_NAME,
+                        Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME}) {
+                    db.execSQL("alter table " + tableName
+                            + " add " + MessageColumns.SENDER_KEYS + " text");
+                    db.execSQL("alter table " + tableName
+                            + " add " + MessageColumns.ATTACHMENT_SUMMARY + " text");
+                }
+                MessageViewMetadata.updateAllAttachmentSummaries(db);
+            }
+
+            if (oldVersion <= 124) {
+                for (final String tableName : new String[] {Message.TABLE_NAME,
+                        Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME}) {
+                    db.execSQL("alter table " + tableName
+                            + " add " + MessageColumns.MAILBOX_TYPE + " integer");
+                }
+                db.execSQL("update " + Message.TABLE_NAME + " set " + MessageColumns.MAILBOX_TYPE
+                        + "=(select " + MailboxColumns.TYPE + " from " + Mailbox.TABLE_NAME
+                        + " where " + Mailbox.TABLE_NAME + "." + MailboxColumns.ID + "="
+                        + Message.TABLE_NAME + "." + MessageColumns.MAILBOX_KEY + ")");
+                createMessageMailboxTypeIndex(db);
+                createMessageMailboxTypeTriggers(db);
+            }
+
+            if (oldVersion <= 125) {
+                createMessageMailboxTimestampIndex(db);
+            }
+
+            if (oldVersion <= 126) {
+                db.execSQL("alter table " + Attachment.TABLE_NAME
+                        + " add " + AttachmentColumns.STORED_SIZE + " integer default 0");
+                db.execSQL("alter table " + Attachment.TABLE_NAME
+                        + " add " + AttachmentColumns.STORED_TIME + " integer default 0");
+                // Attachments already saved to the cache go in the ledger; we don't know when
+                // they were stored, but their ids are in that order, and older than any time
+                db.execSQL("update " + Attachment.TABLE_NAME + " set "
+                        + AttachmentColumns.STORED_SIZE + "=" + AttachmentColumns.SIZE + ", "
+                        + AttachmentColumns.STORED_TIME + "=" + AttachmentColumns.ID
+                        + " where " + AttachmentColumns.CONTENT_URI + " like '"
+                        + Attachment.ATTACHMENT_PROVIDER_URI_PREFIX + "/%'");
+                createAttachmentStorageIndex(db);
+            }
         }
 
         @Override
@@ -40,6 +40,7 @@ import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -65,11 +66,13 @@ import com.android.common.content.ProjectionMap;
 import com.android.email.Preferences;
 import com.android.email.R;
 import com.android.email.SecurityPolicy;
+import com.android.email.mail.store.Pop3Store;
 import com.android.email.service.AttachmentDownloadService;
 import com.android.email.service.EmailServiceUtils;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
 import com.android.email2.ui.MailActivityEmail;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
@@ -97,6 +100,7 @@ import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailService;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.SSLUtils;
 import com.android.emailcommon.utility.Utility;
 import com.android.ex.photo.provider.PhotoContract;
 import com.android.mail.preferences.MailPrefs;
@@ -134,7 +138,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 /**
  * @author mblank
@@ -259,6 +262,8 @@ public class EmailProvider extends ContentProvider {
     private static final int BODY_BASE = 0xA000;
     private static final int BODY = BODY_BASE;
     private static final int BODY_ID = BODY_BASE + 1;
+    private static final int BODY_HTML_FILE = BODY_BASE + 2;
+    private static final int BODY_TEXT_FILE = BODY_BASE + 3;
 
     private static final int BASE_SHIFT = 12;  // 12 bits to the base type: 0, 0x1000, 0x2000, etc.
 
@@ -303,14 +308,20 @@ public class EmailProvider extends ContentProvider {
         Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
         EmailContent.RECORD_ID + '=';
 
+    private static final String ORPHAN_BODIES_SELECTION = BodyColumns.MESSAGE_KEY + " in " +
+        "(select " + BodyColumns.MESSAGE_KEY + " from " + Body.TABLE_NAME + " except select " +
+        EmailContent.RECORD_ID + " from " + Message.TABLE_NAME + ')';
+
     private static final String DELETE_ORPHAN_BODIES = "delete from " + Body.TABLE_NAME +
-        " where " + BodyColumns.MESSAGE_KEY + " in " + "(select " + BodyColumns.MESSAGE_KEY +
-        " from " + Body.TABLE_NAME + " except select " + EmailContent.RECORD_ID + " from " +
-        Message.TABLE_NAME + ')';
+        " where " + ORPHAN_BODIES_SELECTION;
 
     private static final String DELETE_BODY = "delete from " + Body.TABLE_NAME +
         " where " + BodyColumns.MESSAGE_KEY + '=';
 
+    // Messages whose mailbox type isn't known (e.g. a mailbox that's gone) aren't in the trash
+    private static final String NOT_IN_TRASH_SELECTION = "(" + MessageColumns.MAILBOX_TYPE +
+        " IS NULL OR " + MessageColumns.MAILBOX_TYPE + "!=" + Mailbox.TYPE_TRASH + ")";
+
     private static ContentValues CONTENT_VALUES_RESET_NEW_MESSAGE_COUNT;
     private static final ContentValues EMPTY_CONTENT_VALUES = new ContentValues();
 
@@ -583,6 +594,8 @@ public class EmailProvider extends ContentProvider {
 
         String tableName = TABLE_NAMES.valueAt(table);
         int result = -1;
+        BodyFileStore.FileChanges bodyFiles = null;
+        boolean committed = false;
 
         try {
             if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
@@ -659,10 +672,25 @@ public class EmailProvider extends ContentProvider {
                     } else {
                         accountId = Account.NO_ACCOUNT;
                     }
+                    final Set<Long> summaryMessageKeys;
+                    if (match == ATTACHMENT_ID) {
+                        summaryMessageKeys = MessageViewMetadata.getAttachmentMessageKeys(db,
+                                whereWithId(id, selection), selectionArgs);
+                    } else {
+                        summaryMessageKeys = null;
+                    }
+                    if (match == BODY_ID) {
+                        bodyFiles = BodyFileStore.deleteBodyFiles(db, whereWithId(id, selection),
+                                selectionArgs);
+                    }
 
                     result = db.delete(tableName, whereWithId(id, selection), selectionArgs);
+                    if (summaryMessageKeys != null) {
+                        MessageViewMetadata.updateAttachmentSummaries(db, summaryMessageKeys);
+                    }
 
                     if (match == ACCOUNT_ID) {
+                        Pop3Store.deleteUidSnapshot(context, Long.parseLong(id));
                         notifyUI(UIPROVIDER_ACCOUNT_NOTIFIER, id);
                         resolver.notifyChange(UIPROVIDER_ALL_ACCOUNTS_NOTIFIER, null);
                     } else if (match == MAILBOX_ID) {
@@ -676,17 +704,26 @@ public class EmailProvider extends ContentProvider {
                     id = uri.getPathSegments().get(2);
                     result = db.delete(tableName,
                             whereWith(Attachment.MESSAGE_KEY + "=" + id, selection), selectionArgs);
+                    MessageViewMetadata.updateAttachmentSummary(db, Long.parseLong(id));
                     break;
 
+                case ATTACHMENT:
+                    final Set<Long> messageKeys = MessageViewMetadata.getAttachmentMessageKeys(db,
+                            selection, selectionArgs);
+                    result = db.delete(tableName, selection, selectionArgs);
+                    MessageViewMetadata.updateAttachmentSummaries(db, messageKeys);
+                    break;
                 case BODY:
                 case MESSAGE:
                 case DELETED_MESSAGE:
                 case UPDATED_MESSAGE:
-                case ATTACHMENT:
                 case MAILBOX:
                 case ACCOUNT:
                 case HOSTAUTH:
                 case POLICY:
+                    if (match == BODY) {
+                        bodyFiles = BodyFileStore.deleteBodyFiles(db, selection, selectionArgs);
+                    }
                     result = db.delete(tableName, selection, selectionArgs);
                     break;
                 case MESSAGE_MOVE:
@@ -701,12 +738,20 @@ public class EmailProvider extends ContentProvider {
             if (messageDeletion) {
                 if (match == MESSAGE_ID) {
                     // Delete the Body record associated with the deleted message
+                    bodyFiles = BodyFileStore.deleteBodyFiles(db,
+                            BodyColumns.MESSAGE_KEY + "=" + id, null);
                     db.execSQL(DELETE_BODY + id);
                 } else {
                     // Delete any orphaned Body records
+                    bodyFiles = BodyFileStore.deleteBodyFiles(db, ORPHAN_BODIES_SELECTION, null);
                     db.execSQL(DELETE_ORPHAN_BODIES);
                 }
+            }
+            // The files go once the rows are gone for good
+            BodyFileStore.finishChanges(db, bodyFiles, true);
+            if (messageDeletion) {
                 db.setTransactionSuccessful();
+                committed = true;
             }
         } catch (SQLiteException e) {
             checkDatabases();
@@ -714,6 +759,7 @@ public class EmailProvider extends ContentProvider {
         } finally {
             if (messageDeletion) {
                 db.endTransaction();
+                BodyFileStore.endTransaction(db, committed);
             }
         }
 
@@ -823,7 +869,23 @@ public class EmailProvider extends ContentProvider {
                 case HOSTAUTH:
                 case POLICY:
                 case QUICK_RESPONSE:
-                    longId = db.insert(TABLE_NAMES.valueAt(table), "foo", values);
+                    BodyFileStore.FileChanges bodyFiles = null;
+                    if (match == MESSAGE) {
+                        values = MessageViewMetadata.withSenderKeys(values);
+                    } else if (match == BODY) {
+                        values = new ContentValues(values);
+                        MessageViewMetadata.putEmbedsExternalResources(values);
+                        final Long messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+                        bodyFiles = BodyFileStore.storeLargeContent(context, db, values,
+                                messageKey != null ? messageKey : -1);
+                        BodyCompression.compressValues(values);
+                    }
+                    longId = -1;
+                    try {
+                        longId = db.insert(TABLE_NAMES.valueAt(table), "foo", values);
+                    } finally {
+                        BodyFileStore.finishChanges(db, bodyFiles, longId >= 0);
+                    }
                     resultUri = ContentUris.withAppendedId(uri, longId);
                     switch(match) {
                         case MESSAGE:
@@ -867,6 +929,12 @@ public class EmailProvider extends ContentProvider {
                                 LogUtils.w(TAG, new Throwable(), "attachment with blank location");
                             }
                             mAttachmentService.attachmentChanged(getContext(), longId, flags);
+                            final Long attachmentMessageKey =
+                                    values.getAsLong(AttachmentColumns.MESSAGE_KEY);
+                            if (attachmentMessageKey != null) {
+                                MessageViewMetadata.updateAttachmentSummary(db,
+                                        attachmentMessageKey);
+                            }
                             break;
                     }
                     break;
@@ -895,6 +963,8 @@ public class EmailProvider extends ContentProvider {
                 case ATTACHMENTS_MESSAGE_ID:
                     longId = db.insert(TABLE_NAMES.valueAt(table), "foo", values);
                     resultUri = ContentUris.withAppendedId(Attachment.CONTENT_URI, longId);
+                    MessageViewMetadata.updateAttachmentSummary(db,
+                            Long.parseLong(uri.getPathSegments().get(2)));
                     break;
                 default:
                     throw new IllegalArgumentException("Unknown URL " + uri);
@@ -1034,6 +1104,9 @@ public class EmailProvider extends ContentProvider {
             sURIMatcher.addURI(EmailContent.AUTHORITY, "body", BODY);
             // A specific mail body
             sURIMatcher.addURI(EmailContent.AUTHORITY, "body/#", BODY_ID);
+            // The file holding a large body's html or text content (by message id; openFile only)
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "bodyHtmlFile/#", BODY_HTML_FILE);
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "bodyTextFile/#", BODY_TEXT_FILE);
 
             // All hostauth records
             sURIMatcher.addURI(EmailContent.AUTHORITY, "hostauth", HOSTAUTH);
@@ -1236,6 +1309,17 @@ public class EmailProvider extends ContentProvider {
                     return db.query(MessageStateChange.TABLE_NAME, projection, selection,
                             selectionArgs, null, null, sortOrder, limit);
                 case BODY:
+                    c = BodyCompression.wrapBodyCursor(db.query(tableName,
+                            BodyCompression.expandBodyProjection(projection), selection,
+                            selectionArgs, null, null, sortOrder, limit), projection);
+                    break;
+                case BODY_ID:
+                    id = uri.getPathSegments().get(1);
+                    c = BodyCompression.wrapBodyCursor(db.query(tableName,
+                            BodyCompression.expandBodyProjection(projection),
+                            whereWithId(id, selection), selectionArgs, null, null, sortOrder,
+                            limit), projection);
+                    break;
                 case MESSAGE:
                 case UPDATED_MESSAGE:
                 case DELETED_MESSAGE:
@@ -1250,7 +1334,6 @@ public class EmailProvider extends ContentProvider {
                 case QUICK_RESPONSE:
                     c = uiQuickResponse(projection);
                     break;
-                case BODY_ID:
                 case MESSAGE_ID:
                 case DELETED_MESSAGE_ID:
                 case UPDATED_MESSAGE_ID:
@@ -1748,6 +1831,23 @@ public class EmailProvider extends ContentProvider {
                 case QUICK_RESPONSE_ID:
                 case POLICY_ID:
                     id = uri.getPathSegments().get(1);
+                    Set<Long> summaryMessageKeys = null;
+                    BodyFileStore.FileChanges bodyFiles = null;
+                    if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID
+                            || match == UPDATED_MESSAGE_ID) {
+                        values = MessageViewMetadata.withSenderKeys(values);
+                    } else if (match == ATTACHMENT_ID) {
+                        if (MessageViewMetadata.affectsAttachmentSummary(values)) {
+                            summaryMessageKeys = MessageViewMetadata.getAttachmentMessageKeys(db,
+                                    whereWithId(id, selection), selectionArgs);
+                        }
+                    } else if (match == BODY_ID) {
+                        values = new ContentValues(values);
+                        MessageViewMetadata.putEmbedsExternalResources(values);
+                        bodyFiles = BodyFileStore.storeLargeContent(context, db, values,
+                                BodyFileStore.getMessageKeyForBody(db, id));
+                        BodyCompression.compressValues(values);
+                    }
                     if (match == SYNCED_MESSAGE_ID) {
                         // TODO: Migrate IMAP to use MessageMove/MessageStateChange as well.
                         boolean isEas = false;
@@ -1826,11 +1926,24 @@ public class EmailProvider extends ContentProvider {
                     } else if (match == MESSAGE_ID) {
                         db.execSQL(UPDATED_MESSAGE_DELETE + id);
                     }
-                    result = db.update(tableName, values, whereWithId(id, selection),
-                            selectionArgs);
+                    result = 0;
+                    try {
+                        result = db.update(tableName, values, whereWithId(id, selection),
+                                selectionArgs);
+                    } finally {
+                        BodyFileStore.finishChanges(db, bodyFiles, result > 0);
+                    }
                     if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
                         handleMessageUpdateNotifications(uri, id, values);
                     } else if (match == ATTACHMENT_ID) {
+                        if (summaryMessageKeys != null) {
+                            final Long newMessageKey =
+                                    values.getAsLong(AttachmentColumns.MESSAGE_KEY);
+                            if (newMessageKey != null) {
+                                summaryMessageKeys.add(newMessageKey);
+                            }
+                            MessageViewMetadata.updateAttachmentSummaries(db, summaryMessageKeys);
+                        }
                         long attId = Integer.parseInt(id);
                         if (values.containsKey(Attachment.FLAGS)) {
                             int flags = values.getAsInteger(Attachment.FLAGS);
@@ -1861,7 +1974,21 @@ public class EmailProvider extends ContentProvider {
                     }
                     break;
                 case BODY:
-                    result = db.update(tableName, values, selection, selectionArgs);
+                    final ContentValues bodyValues = new ContentValues(values);
+                    MessageViewMetadata.putEmbedsExternalResources(bodyValues);
+                    BodyFileStore.FileChanges bodyValueFiles = null;
+                    if (Body.SELECTION_BY_MESSAGE_KEY.equals(selection)) {
+                        bodyValueFiles = BodyFileStore.storeLargeContent(context, db, bodyValues,
+                                Long.parseLong(selectionArgs[0]));
+                    }
+                    BodyCompression.compressValues(bodyValues);
+                    result = 0;
+                    try {
+                        result = db.update(tableName, bodyValues, selection, selectionArgs);
+                    } finally {
+                        // With no row to update, the insert below writes its own files
+                        BodyFileStore.finishChanges(db, bodyValueFiles, result > 0);
+                    }
                     if (result == 0 && selection.equals(Body.SELECTION_BY_MESSAGE_KEY)) {
                         // TODO: This is a hack. Notably, the selection equality test above
                         // is hokey at best.
@@ -1878,13 +2005,27 @@ public class EmailProvider extends ContentProvider {
                 case ACCOUNT:
                 case HOSTAUTH:
                 case POLICY:
+                    Set<Long> messageKeys = null;
                     if (match == ATTACHMENT) {
                         if (values.containsKey(AttachmentColumns.LOCATION) &&
                                 TextUtils.isEmpty(values.getAsString(AttachmentColumns.LOCATION))) {
                             LogUtils.w(TAG, new Throwable(), "attachment with blank location");
                         }
+                        if (MessageViewMetadata.affectsAttachmentSummary(values)) {
+                            messageKeys = MessageViewMetadata.getAttachmentMessageKeys(db,
+                                    selection, selectionArgs);
+                        }
+                    } else if (match == MESSAGE || match == UPDATED_MESSAGE) {
+                        values = MessageViewMetadata.withSenderKeys(values);
                     }
                     result = db.update(tableName, values, selection, selectionArgs);
+                    if (messageKeys != null) {
+                        final Long newMessageKey = values.getAsLong(AttachmentColumns.MESSAGE_KEY);
+                        if (newMessageKey != null) {
+                            messageKeys.add(newMessageKey);
+                        }
+                        MessageViewMetadata.updateAttachmentSummaries(db, messageKeys);
+                    }
                     break;
 
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -2027,6 +2168,22 @@ public class EmailProvider extends ContentProvider {
                     }
                 }
                 break;
+            case BODY_HTML_FILE:
+            case BODY_TEXT_FILE:
+                final String column = match == BODY_HTML_FILE ?
+                        BodyColumns.HTML_CONTENT_FILE : BodyColumns.TEXT_CONTENT_FILE;
+                final String bodyFilePath;
+                try {
+                    bodyFilePath = DatabaseUtils.stringForQuery(getDatabase(getContext()),
+                            "select " + column + " from " + Body.TABLE_NAME + " where "
+                            + BodyColumns.MESSAGE_KEY + "=? and " + column + " not null",
+                            new String[] {uri.getLastPathSegment()});
+                } catch (SQLiteDoneException e) {
+                    // This body isn't stored in a file
+                    break;
+                }
+                return ParcelFileDescriptor.open(
+                        new File(bodyFilePath), ParcelFileDescriptor.MODE_READ_ONLY);
         }
 
         throw new FileNotFoundException("unable to open file");
@@ -2050,6 +2207,10 @@ public class EmailProvider extends ContentProvider {
             case ACCOUNT_ID:
                 baseUri = Account.NOTIFIER_URI;
                 break;
+            case MAILBOX:
+            case MAILBOX_ID:
+                baseUri = Mailbox.NOTIFIER_URI;
+                break;
         }
         return baseUri;
     }
@@ -2109,12 +2270,15 @@ public class EmailProvider extends ContentProvider {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
         db.beginTransaction();
+        boolean committed = false;
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
             db.setTransactionSuccessful();
+            committed = true;
             return results;
         } finally {
             db.endTransaction();
+            BodyFileStore.endTransaction(db, committed);
         }
     }
 
@@ -2144,7 +2308,8 @@ public class EmailProvider extends ContentProvider {
         sqlBuilder.append("SUM(CASE ")
                 .append(MessageColumns.FLAG_READ).append(" WHEN 0 THEN 1 ELSE 0 END), ");
         sqlBuilder.append("SUM(CASE ")
-                .append(MessageColumns.FLAG_SEEN).append(" WHEN 0 THEN 1 ELSE 0 END)\n");
+                .append(MessageColumns.FLAG_SEEN).append(" WHEN 0 THEN 1 ELSE 0 END), ");
+        sqlBuilder.append("MAX(").append(MessageColumns.ID).append(")\n");
         sqlBuilder.append("FROM ");
         sqlBuilder.append(Message.TABLE_NAME).append('\n');
         sqlBuilder.append("WHERE ");
@@ -2320,6 +2485,10 @@ public class EmailProvider extends ContentProvider {
                 .add(UIProvider.MessageColumns.SPAM_WARNING_LINK_TYPE,
                         Integer.toString(UIProvider.SpamWarningLinkType.NO_LINK))
                 .add(UIProvider.MessageColumns.VIA_DOMAIN, null)
+                .add(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES,
+                        Body.TABLE_NAME + "." + BodyColumns.EMBEDS_EXTERNAL_RESOURCES)
+                .add(UIProvider.MessageColumns.ATTACHMENTS,
+                        Message.TABLE_NAME + "." + MessageColumns.ATTACHMENT_SUMMARY)
                 .build();
         }
         return sMessageViewMap;
@@ -2602,115 +2771,87 @@ public class EmailProvider extends ContentProvider {
         return "'content://" + EmailContent.AUTHORITY + "/" + type + "/' || " + tableName + "._id";
     }
 
-    // Regex that matches start of img tag. '<(?i)img\s+'.
-    private static final Pattern IMG_TAG_START_REGEX = Pattern.compile("<(?i)img\\s+");
-
-    /**
-     * Class that holds the sqlite query and the attachment (JSON) value (which might be null)
-     */
-    private static class MessageQuery {
-        final String query;
-        final String attachmentJson;
+    /** The message view columns holding html and text body content, in that order. */
+    private static final String[] MESSAGE_VIEW_BODY_COLUMNS = {
+        UIProvider.MessageColumns.BODY_HTML, UIProvider.MessageColumns.BODY_TEXT
+    };
+    private static final boolean[] MESSAGE_VIEW_READ_BODY_FILES = { true, true };
 
-        MessageQuery(String _query, String _attachmentJson) {
-            query = _query;
-            attachmentJson = _attachmentJson;
-        }
-    }
+    private static final String[] MESSAGE_VIEW_PROJECTION = {
+        MessageColumns.FLAGS, MessageColumns.DRAFT_INFO, MessageColumns.FLAG_LOADED,
+        MessageColumns.SENDER_KEYS, MessageColumns.FROM_LIST
+    };
+    private static final int MESSAGE_VIEW_FLAGS_COLUMN = 0;
+    private static final int MESSAGE_VIEW_DRAFT_INFO_COLUMN = 1;
+    private static final int MESSAGE_VIEW_FLAG_LOADED_COLUMN = 2;
+    private static final int MESSAGE_VIEW_SENDER_KEYS_COLUMN = 3;
+    private static final int MESSAGE_VIEW_FROM_LIST_COLUMN = 4;
 
     /**
      * Generate the "view message" SQLite query, given a projection from UnifiedEmail
      *
+     * Whether the body embeds images and the attachment list are precomputed when the body and
+     * attachments are written (see {@link MessageViewMetadata}), so this only needs a few message
+     * columns for the values that depend on preferences or need Java formatting.
+     *
+     * @param db the EmailProvider database
      * @param uiProjection as passed from UnifiedEmail
      * @return the SQLite query to be executed on the EmailProvider database
      */
-    private MessageQuery genQueryViewMessage(String[] uiProjection, String id) {
-        Context context = getContext();
-        long messageId = Long.parseLong(id);
-        Message msg = Message.restoreMessageWithId(context, messageId);
-        ContentValues values = new ContentValues();
-        String attachmentJson = null;
-        if (msg != null) {
-            Body body = Body.restoreBodyWithMessageId(context, messageId);
-            if (body != null) {
-                if (body.mHtmlContent != null) {
-                    if (IMG_TAG_START_REGEX.matcher(body.mHtmlContent).find()) {
-                        values.put(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
+    private String genQueryViewMessage(SQLiteDatabase db, String[] uiProjection, String id) {
+        final Context context = getContext();
+        final long messageId = Long.parseLong(id);
+        final ContentValues values = new ContentValues();
+        final Cursor c = db.query(Message.TABLE_NAME, MESSAGE_VIEW_PROJECTION,
+                EmailContent.RECORD_ID + "=?", new String[] {id}, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                int autoShowImages = 0;
+                final MailPrefs mailPrefs = MailPrefs.get(context);
+                for (final String email : MessageViewMetadata.splitSenderKeys(
+                        c.getString(MESSAGE_VIEW_SENDER_KEYS_COLUMN),
+                        c.getString(MESSAGE_VIEW_FROM_LIST_COLUMN))) {
+                    if (mailPrefs.getDisplayImagesFromSender(email)) {
+                        autoShowImages = 1;
+                        break;
                     }
                 }
-            }
-            Address[] fromList = Address.unpack(msg.mFrom);
-            int autoShowImages = 0;
-            final MailPrefs mailPrefs = MailPrefs.get(context);
-            for (Address sender : fromList) {
-                final String email = sender.getAddress();
-                if (mailPrefs.getDisplayImagesFromSender(email)) {
-                    autoShowImages = 1;
-                    break;
+                values.put(UIProvider.MessageColumns.ALWAYS_SHOW_IMAGES, autoShowImages);
+                final int draftInfo = c.getInt(MESSAGE_VIEW_DRAFT_INFO_COLUMN);
+                if (draftInfo != 0) {
+                    values.put(UIProvider.MessageColumns.APPEND_REF_MESSAGE_CONTENT,
+                            (draftInfo & Message.DRAFT_INFO_APPEND_REF_MESSAGE) != 0 ? 1 : 0);
+                    values.put(UIProvider.MessageColumns.QUOTE_START_POS,
+                            draftInfo & Message.DRAFT_INFO_QUOTE_POS_MASK);
                 }
-            }
-            values.put(UIProvider.MessageColumns.ALWAYS_SHOW_IMAGES, autoShowImages);
-            // Add attachments...
-            Attachment[] atts = Attachment.restoreAttachmentsWithMessageId(context, messageId);
-            if (atts.length > 0) {
-                ArrayList<com.android.mail.providers.Attachment> uiAtts =
-                        new ArrayList<com.android.mail.providers.Attachment>();
-                for (Attachment att : atts) {
-                    // TODO: This code is intended to strip out any inlined attachments (which
-                    // would have a non-null contentId) so that they will not display at the bottom
-                    // along with the non-inlined attachments.
-                    // The problem is that the UI_ATTACHMENTS query does not behave the same way,
-                    // which causes crazy formatting.
-                    // There is an open question here, should attachments that are inlined
-                    // ALSO appear in the list of attachments at the bottom with the non-inlined
-                    // attachments?
-                    // Either way, the two queries need to behave the same way.
-                    // As of now, they will. If we decide to stop this, then we need to enable
-                    // the code below, and then also make the UI_ATTACHMENTS query behave
-                    // the same way.
-//
-//                    if (att.mContentId != null && att.getContentUri() != null) {
-//                        continue;
-//                    }
-                    com.android.mail.providers.Attachment uiAtt =
-                            new com.android.mail.providers.Attachment();
-                    uiAtt.setName(att.mFileName);
-                    uiAtt.setContentType(att.mMimeType);
-                    uiAtt.size = (int) att.mSize;
-                    uiAtt.uri = uiUri("uiattachment", att.mId);
-                    uiAtt.flags = att.mFlags;
-                    uiAtts.add(uiAtt);
+                if ((c.getInt(MESSAGE_VIEW_FLAGS_COLUMN)
+                        & Message.FLAG_INCOMING_MEETING_INVITE) != 0) {
+                    values.put(UIProvider.MessageColumns.EVENT_INTENT_URI,
+                            "content://ui.email2.android.com/event/" + messageId);
                 }
-                values.put(UIProvider.MessageColumns.ATTACHMENTS, "@?"); // @ for literal
-                attachmentJson = com.android.mail.providers.Attachment.toJSONArray(uiAtts);
-            }
-            if (msg.mDraftInfo != 0) {
-                values.put(UIProvider.MessageColumns.APPEND_REF_MESSAGE_CONTENT,
-                        (msg.mDraftInfo & Message.DRAFT_INFO_APPEND_REF_MESSAGE) != 0 ? 1 : 0);
-                values.put(UIProvider.MessageColumns.QUOTE_START_POS,
-                        msg.mDraftInfo & Message.DRAFT_INFO_QUOTE_POS_MASK);
-            }
-            if ((msg.mFlags & Message.FLAG_INCOMING_MEETING_INVITE) != 0) {
-                values.put(UIProvider.MessageColumns.EVENT_INTENT_URI,
-                        "content://ui.email2.android.com/event/" + msg.mId);
+                /**
+                 * HACK: override the attachment uri to contain a query parameter
+                 * This forces the message footer to reload the attachment display when the message
+                 * is fully loaded.
+                 */
+                final Uri attachmentListUri = uiUri("uiattachments", messageId).buildUpon()
+                        .appendQueryParameter("MessageLoaded",
+                                c.getInt(MESSAGE_VIEW_FLAG_LOADED_COLUMN) ==
+                                        Message.FLAG_LOADED_COMPLETE ? "true" : "false")
+                        .build();
+                values.put(UIProvider.MessageColumns.ATTACHMENT_LIST_URI,
+                        attachmentListUri.toString());
             }
-            /**
-             * HACK: override the attachment uri to contain a query parameter
-             * This forces the message footer to reload the attachment display when the message is
-             * fully loaded.
-             */
-            final Uri attachmentListUri = uiUri("uiattachments", messageId).buildUpon()
-                    .appendQueryParameter("MessageLoaded",
-                            msg.mFlagLoaded == Message.FLAG_LOADED_COMPLETE ? "true" : "false")
-                    .build();
-            values.put(UIProvider.MessageColumns.ATTACHMENT_LIST_URI, attachmentListUri.toString());
+        } finally {
+            c.close();
         }
         StringBuilder sb = genSelect(getMessageViewMap(), uiProjection, values);
+        // Large bodies are stored compressed; the cursor is wrapped to decompress them
+        BodyCompression.appendStorageColumns(sb);
         sb.append(" FROM " + Message.TABLE_NAME + " LEFT JOIN " + Body.TABLE_NAME + " ON " +
                 Body.MESSAGE_KEY + "=" + Message.TABLE_NAME + "." + Message.RECORD_ID + " WHERE " +
                 Message.TABLE_NAME + "." + Message.RECORD_ID + "=?");
-        String sql = sb.toString();
-        return new MessageQuery(sql, attachmentJson);
+        return sb.toString();
     }
 
     private static void appendConversationInfoColumns(final StringBuilder stringBuilder) {
@@ -2722,34 +2863,40 @@ public class EmailProvider extends ContentProvider {
     }
 
     /**
-     * Generate the "message list" SQLite query, given a projection from UnifiedEmail
+     * Get the "message list" cursor, given a projection from UnifiedEmail. The rows are read a
+     * page at a time as the UI scrolls, see {@link PagedMessageCursor}.
      *
+     * @param db the EmailProvider database
      * @param uiProjection as passed from UnifiedEmail
+     * @param mailboxId the id of the mailbox
      * @param unseenOnly <code>true</code> to only return unseen messages
-     * @return the SQLite query to be executed on the EmailProvider database
+     * @return the cursor of messages in the mailbox
      */
-    private static String genQueryMailboxMessages(String[] uiProjection, final boolean unseenOnly) {
+    private static Cursor getMailboxMessagesCursor(SQLiteDatabase db, String[] uiProjection,
+            String mailboxId, final boolean unseenOnly) {
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         appendConversationInfoColumns(sb);
-        sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
-                Message.FLAG_LOADED_SELECTION + " AND " +
+        final StringBuilder where = new StringBuilder(Message.FLAG_LOADED_SELECTION + " AND " +
                 Message.MAILBOX_KEY + "=? ");
         if (unseenOnly) {
-            sb.append("AND ").append(MessageColumns.FLAG_SEEN).append(" = 0 ");
-            sb.append("AND ").append(MessageColumns.FLAG_READ).append(" = 0 ");
+            where.append("AND ").append(MessageColumns.FLAG_SEEN).append(" = 0 ");
+            where.append("AND ").append(MessageColumns.FLAG_READ).append(" = 0 ");
         }
-        sb.append("ORDER BY " + MessageColumns.TIMESTAMP + " DESC ");
-        sb.append("LIMIT " + UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMT);
-        return sb.toString();
+        return new PagedMessageCursor(db, sb.toString(), where.toString(),
+                new String[] {mailboxId});
     }
 
     /**
-     * Generate various virtual mailbox SQLite queries, given a projection from UnifiedEmail
+     * Get the various virtual mailbox cursors, given a projection from UnifiedEmail
+     *
+     * Like the regular mailbox cursor, this is read a page at a time. Membership is decided by
+     * the message's own (trigger maintained) mailboxType, so that the combined inbox can walk the
+     * (mailboxType, timeStamp) index rather than joining against the mailboxes.
      *
      * @param uiProjection as passed from UnifiedEmail
      * @param mailboxId the id of the virtual mailbox
      * @param unseenOnly <code>true</code> to only return unseen messages
-     * @return the SQLite query to be executed on the EmailProvider database
+     * @return the cursor of messages in the virtual mailbox
      */
     private static Cursor getVirtualMailboxMessagesCursor(SQLiteDatabase db, String[] uiProjection,
             long mailboxId, final boolean unseenOnly) {
@@ -2759,40 +2906,34 @@ public class EmailProvider extends ContentProvider {
         final String[] selectionArgs;
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection, values);
         appendConversationInfoColumns(sb);
-        sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
-                Message.FLAG_LOADED_SELECTION + " AND ");
+        final StringBuilder where = new StringBuilder(Message.FLAG_LOADED_SELECTION + " AND ");
         if (isCombinedMailbox(mailboxId)) {
             if (unseenOnly) {
-                sb.append(MessageColumns.FLAG_SEEN).append("=0 AND ");
-                sb.append(MessageColumns.FLAG_READ).append("=0 AND ");
+                where.append(MessageColumns.FLAG_SEEN).append("=0 AND ");
+                where.append(MessageColumns.FLAG_READ).append("=0 AND ");
             }
             selectionArgs = null;
         } else {
             if (virtualMailboxId == Mailbox.TYPE_INBOX) {
                 throw new IllegalArgumentException("No virtual mailbox for: " + mailboxId);
             }
-            sb.append(MessageColumns.ACCOUNT_KEY).append("=? AND ");
+            where.append(MessageColumns.ACCOUNT_KEY).append("=? AND ");
             selectionArgs = new String[]{getVirtualMailboxAccountIdString(mailboxId)};
         }
         switch (getVirtualMailboxType(mailboxId)) {
             case Mailbox.TYPE_INBOX:
-                sb.append(MessageColumns.MAILBOX_KEY + " IN (SELECT " + MailboxColumns.ID +
-                        " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE +
-                        "=" + Mailbox.TYPE_INBOX + ")");
+                where.append(MessageColumns.MAILBOX_TYPE + "=" + Mailbox.TYPE_INBOX);
                 break;
             case Mailbox.TYPE_STARRED:
-                sb.append(MessageColumns.FLAG_FAVORITE + "=1");
+                where.append(MessageColumns.FLAG_FAVORITE + "=1");
                 break;
             case Mailbox.TYPE_UNREAD:
-                sb.append(MessageColumns.FLAG_READ + "=0 AND " + MessageColumns.MAILBOX_KEY +
-                        " NOT IN (SELECT " + MailboxColumns.ID + " FROM " + Mailbox.TABLE_NAME +
-                        " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_TRASH + ")");
+                where.append(MessageColumns.FLAG_READ + "=0 AND " + NOT_IN_TRASH_SELECTION);
                 break;
             default:
                 throw new IllegalArgumentException("No virtual mailbox for: " + mailboxId);
         }
-        sb.append(" ORDER BY " + MessageColumns.TIMESTAMP + " DESC");
-        return db.rawQuery(sb.toString(), selectionArgs);
+        return new PagedMessageCursor(db, sb.toString(), where.toString(), selectionArgs);
     }
 
     /**
@@ -3416,12 +3557,11 @@ public class EmailProvider extends ContentProvider {
         switch (mailboxType) {
             case Mailbox.TYPE_INBOX:
                 if (accountId == COMBINED_ACCOUNT_ID) {
-                    // Add the unread count
-                    final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            MessageColumns.MAILBOX_KEY + " IN (SELECT " + MailboxColumns.ID
-                            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE
-                            + "=" + Mailbox.TYPE_INBOX + ") AND " + MessageColumns.FLAG_READ + "=0",
-                            null);
+                    // Add the unread count; the inboxes' unread counts are maintained by triggers
+                    final int unreadCount = (int) DatabaseUtils.longForQuery(
+                            getDatabase(getContext()), "SELECT TOTAL("
+                            + MailboxColumns.UNREAD_COUNT + ") FROM " + Mailbox.TABLE_NAME
+                            + " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX, null);
                     values[UIProvider.FOLDER_UNREAD_COUNT_COLUMN] = unreadCount;
                 }
                 // Add the icon
@@ -3440,9 +3580,7 @@ public class EmailProvider extends ContentProvider {
                 }
                 final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
                         accountKeyClause + MessageColumns.FLAG_READ + "=0 AND "
-                        + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MailboxColumns.ID
-                        + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "="
-                        + Mailbox.TYPE_TRASH + ")", whereArgs);
+                        + NOT_IN_TRASH_SELECTION, whereArgs);
                 values[UIProvider.FOLDER_UNREAD_COUNT_COLUMN] = unreadCount;
                 // Add the icon
                 values[UIProvider.FOLDER_ICON_RES_ID_COLUMN] = R.drawable.ic_folder_unread;
@@ -4261,22 +4399,15 @@ public class EmailProvider extends ContentProvider {
                 if (isVirtualMailbox(mailboxId)) {
                     c = getVirtualMailboxMessagesCursor(db, uiProjection, mailboxId, unseenOnly);
                 } else {
-                    c = db.rawQuery(
-                            genQueryMailboxMessages(uiProjection, unseenOnly), new String[] {id});
+                    c = getMailboxMessagesCursor(db, uiProjection, id, unseenOnly);
                 }
                 notifyUri = UIPROVIDER_CONVERSATION_NOTIFIER.buildUpon().appendPath(id).build();
                 c = new EmailConversationCursor(context, c, folder, mailboxId);
                 break;
             case UI_MESSAGE:
-                MessageQuery qq = genQueryViewMessage(uiProjection, id);
-                String sql = qq.query;
-                String attJson = qq.attachmentJson;
-                // With attachments, we have another argument to bind
-                if (attJson != null) {
-                    c = db.rawQuery(sql, new String[] {attJson, id});
-                } else {
-                    c = db.rawQuery(sql, new String[] {id});
-                }
+                c = db.rawQuery(genQueryViewMessage(db, uiProjection, id), new String[] {id});
+                c = BodyCompression.wrapCursor(c, uiProjection.length, MESSAGE_VIEW_BODY_COLUMNS,
+                        MESSAGE_VIEW_READ_BODY_FILES);
                 notifyUri = UIPROVIDER_MESSAGE_NOTIFIER.buildUpon().appendPath(id).build();
                 break;
             case UI_ATTACHMENTS:
@@ -4609,6 +4740,8 @@ public class EmailProvider extends ContentProvider {
         final Uri messageUri = uiSaveMessage(msg, mailbox, extras);
         // Kick observers
         context.getContentResolver().notifyChange(Mailbox.CONTENT_URI, null);
+        sendNotifierChange(Mailbox.NOTIFIER_URI, NOTIFICATION_OP_UPDATE,
+                Long.toString(mailbox.mId));
         return messageUri;
     }
 
@@ -5529,6 +5662,8 @@ public class EmailProvider extends ContentProvider {
 
         // Delete synced attachments
         AttachmentUtilities.deleteAllAccountAttachmentFiles(context, accountId);
+        // And any bodies the mailbox deletions below leave behind
+        BodyFileStore.deleteAccountBodyFiles(context, accountId);
 
         // Delete all mailboxes.
         ContentResolver resolver = context.getContentResolver();
@@ -5645,6 +5780,12 @@ public class EmailProvider extends ContentProvider {
         } finally {
             cursor.close();
         }
+        writer.println();
+        writer.println("Mail traffic:");
+        TrafficFlags.dumpTransfers(writer);
+        writer.println();
+        writer.println("TLS handshakes:");
+        SSLUtils.getHandshakeStats().dump(writer);
     }
 
     synchronized public Handler getDelayedSyncHandler() {
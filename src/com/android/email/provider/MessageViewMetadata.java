@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the data the message view needs beyond the message and body columns, at the time the
+ * message, body or attachments are written rather than every time a message is opened:
+ * <ul>
+ * <li>{@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES}, whether the html body has img tags;</li>
+ * <li>{@link MessageColumns#SENDER_KEYS}, the sender addresses used for the "always show
+ * images" preference;</li>
+ * <li>{@link MessageColumns#ATTACHMENT_SUMMARY}, the UI attachment list as JSON.</li>
+ * </ul>
+ */
+public class MessageViewMetadata {
+    // Regex that matches start of img tag. '<(?i)img\s+'.
+    private static final Pattern IMG_TAG_START_REGEX = Pattern.compile("<(?i)img\\s+");
+
+    /** Separates the addresses in {@link MessageColumns#SENDER_KEYS}. */
+    private static final String SENDER_KEY_SEPARATOR = "\n";
+
+    /** The attachment columns that appear in the attachment summary. */
+    private static final String[] SUMMARY_COLUMNS = {
+        AttachmentColumns.FILENAME, AttachmentColumns.MIME_TYPE, AttachmentColumns.SIZE,
+        AttachmentColumns.FLAGS, AttachmentColumns.MESSAGE_KEY
+    };
+
+    private static final String[] SUMMARY_PROJECTION = {
+        AttachmentColumns.ID, AttachmentColumns.FILENAME, AttachmentColumns.MIME_TYPE,
+        AttachmentColumns.SIZE, AttachmentColumns.FLAGS
+    };
+    private static final int SUMMARY_ID_COLUMN = 0;
+    private static final int SUMMARY_FILENAME_COLUMN = 1;
+    private static final int SUMMARY_MIME_TYPE_COLUMN = 2;
+    private static final int SUMMARY_SIZE_COLUMN = 3;
+    private static final int SUMMARY_FLAGS_COLUMN = 4;
+
+    private static final String[] MESSAGE_KEY_PROJECTION = { AttachmentColumns.MESSAGE_KEY };
+
+    @VisibleForTesting
+    static boolean embedsExternalResources(String html) {
+        return html != null && IMG_TAG_START_REGEX.matcher(html).find();
+    }
+
+    /**
+     * Set {@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES} in Body ContentValues that set the html
+     * content. Must be called while the content is still a string, i.e. before the values are
+     * handed to {@link BodyFileStore} or {@link BodyCompression}.
+     */
+    static void putEmbedsExternalResources(ContentValues values) {
+        if (values.containsKey(BodyColumns.HTML_CONTENT)) {
+            values.put(BodyColumns.EMBEDS_EXTERNAL_RESOURCES,
+                    embedsExternalResources(values.getAsString(BodyColumns.HTML_CONTENT)) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Add {@link MessageColumns#SENDER_KEYS} to Message ContentValues that set the from list.
+     * @return a copy of the values with the sender keys added, or the values themselves if they
+     *     don't set the from list; the caller's values are never modified
+     */
+    static ContentValues withSenderKeys(ContentValues values) {
+        if (!values.containsKey(MessageColumns.FROM_LIST)) {
+            return values;
+        }
+        final ContentValues result = new ContentValues(values);
+        result.put(MessageColumns.SENDER_KEYS,
+                getSenderKeys(values.getAsString(MessageColumns.FROM_LIST)));
+        return result;
+    }
+
+    @VisibleForTesting
+    static String getSenderKeys(String packedFromList) {
+        final Address[] senders = Address.unpack(packedFromList);
+        if (senders.length == 0) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Address sender : senders) {
+            if (sb.length() > 0) {
+                sb.append(SENDER_KEY_SEPARATOR);
+            }
+            sb.append(sender.getAddress());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split a {@link MessageColumns#SENDER_KEYS} value; for messages written before the column
+     * existed, fall back to unpacking the from list.
+     */
+    static String[] splitSenderKeys(String senderKeys, String packedFromList) {
+        if (senderKeys == null) {
+            senderKeys = getSenderKeys(packedFromList);
+            if (senderKeys == null) {
+                return new String[0];
+            }
+        }
+        return TextUtils.split(senderKeys, SENDER_KEY_SEPARATOR);
+    }
+
+    /**
+     * @return whether an update to Attachment rows with these values can change the attachment
+     *         summary of the messages involved
+     */
+    static boolean affectsAttachmentSummary(ContentValues values) {
+        for (final String column : SUMMARY_COLUMNS) {
+            if (values.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the keys of the messages owning the attachments that match the selection
+     */
+    static Set<Long> getAttachmentMessageKeys(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        final Set<Long> messageKeys = new HashSet<Long>();
+        final Cursor c = db.query(true, Attachment.TABLE_NAME, MESSAGE_KEY_PROJECTION, selection,
+                selectionArgs, null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    messageKeys.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return messageKeys;
+    }
+
+    /**
+     * Recompute and store the attachment summary of a message, from its Attachment rows.
+     */
+    static void updateAttachmentSummary(SQLiteDatabase db, long messageKey) {
+        final ArrayList<com.android.mail.providers.Attachment> uiAtts =
+                new ArrayList<com.android.mail.providers.Attachment>();
+        final Cursor c = db.query(Attachment.TABLE_NAME, SUMMARY_PROJECTION,
+                AttachmentColumns.MESSAGE_KEY + "=?", new String[] {Long.toString(messageKey)},
+                null, null, AttachmentColumns.ID);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                // Inlined attachments are included, as they are in the UI_ATTACHMENTS query;
+                // the two must behave the same way.
+                final com.android.mail.providers.Attachment uiAtt =
+                        new com.android.mail.providers.Attachment();
+                uiAtt.setName(c.getString(SUMMARY_FILENAME_COLUMN));
+                uiAtt.setContentType(c.getString(SUMMARY_MIME_TYPE_COLUMN));
+                uiAtt.size = (int) c.getLong(SUMMARY_SIZE_COLUMN);
+                uiAtt.uri = EmailProvider.uiUri("uiattachment", c.getLong(SUMMARY_ID_COLUMN));
+                uiAtt.flags = c.getInt(SUMMARY_FLAGS_COLUMN);
+                uiAtts.add(uiAtt);
+            }
+        } finally {
+            c.close();
+        }
+        final ContentValues cv = new ContentValues(1);
+        if (uiAtts.isEmpty()) {
+            cv.putNull(MessageColumns.ATTACHMENT_SUMMARY);
+        } else {
+            cv.put(MessageColumns.ATTACHMENT_SUMMARY,
+                    com.android.mail.providers.Attachment.toJSONArray(uiAtts));
+        }
+        db.update(Message.TABLE_NAME, cv, EmailContent.RECORD_ID + "=?",
+                new String[] {Long.toString(messageKey)});
+    }
+
+    static void updateAttachmentSummaries(SQLiteDatabase db, Set<Long> messageKeys) {
+        for (final long messageKey : messageKeys) {
+            updateAttachmentSummary(db, messageKey);
+        }
+    }
+
+    /**
+     * Compute the attachment summaries of all messages with attachments; used when upgrading.
+     */
+    static void updateAllAttachmentSummaries(SQLiteDatabase db) {
+        updateAttachmentSummaries(db, getAttachmentMessageKeys(db, null, null));
+    }
+
+    /**
+     * Compute {@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES} for all existing html bodies, in
+     * whichever form they are stored; used when upgrading.
+     */
+    static void computeExistingEmbedsExternalResources(SQLiteDatabase db) {
+        final Cursor c = db.query(Body.TABLE_NAME, new String[] {BodyColumns.ID,
+                BodyColumns.HTML_CONTENT, BodyColumns.HTML_CONTENT_COMPRESSED,
+                BodyColumns.COMPRESSION_CODEC, BodyColumns.HTML_CONTENT_FILE},
+                BodyColumns.HTML_CONTENT + " not null or "
+                + BodyColumns.HTML_CONTENT_COMPRESSED + " not null or "
+                + BodyColumns.HTML_CONTENT_FILE + " not null", null, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            final ContentValues cv = new ContentValues(1);
+            final String[] args = new String[1];
+            while (c.moveToNext()) {
+                String html = c.getString(1);
+                if (html == null && !c.isNull(2)) {
+                    html = BodyCompression.decompress(c.getBlob(2), c.getInt(3));
+                }
+                if (html == null && !c.isNull(4)) {
+                    html = BodyFileStore.readContent(c.getString(4));
+                }
+                if (embedsExternalResources(html)) {
+                    cv.put(BodyColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
+                    args[0] = Long.toString(c.getLong(0));
+                    db.update(Body.TABLE_NAME, cv, BodyColumns.ID + "=?", args);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
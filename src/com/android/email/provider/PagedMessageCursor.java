@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A message list cursor that reads its rows a page at a time, as the UI moves through it, instead
+ * of materializing the whole (or a capped) result up front.
+ *
+ * Pages are fetched in (timeStamp, _id) descending order, with any rows that have no timeStamp
+ * last. A page that follows one we have already read is found by keyset, i.e. by starting after
+ * the last row of the previous page, which walks the (mailboxKey, timeStamp) or
+ * (mailboxType, timeStamp) index and costs the same wherever it is in the folder; only a jump to
+ * an unvisited page falls back to OFFSET. When the cursor gets near the end of a page the next
+ * one is read in the background, and only the most recently used pages are kept.
+ *
+ * The count is taken the first time it's asked for (unless the first page holds every row), so a
+ * cursor that's only looked at from the top doesn't pay for a COUNT(*) when it's created.
+ *
+ * Unlike most cursors this is NOT a snapshot: pages are read (and evicted pages read again) as
+ * they're needed, so they see changes made after the cursor was created. A page read by keyset
+ * carries on from where the previous one ended, but one read by OFFSET may repeat or miss rows
+ * if rows before it were added or removed; and if rows were removed since the count was taken,
+ * the positions past the last of them can't be moved to. The UI requeries when it's notified of
+ * changes, which puts all of this right.
+ */
+public class PagedMessageCursor extends AbstractCursor {
+    private static final String TAG = "PagedMessageCursor";
+
+    @VisibleForTesting
+    static final int PAGE_SIZE = 100;
+    /** How close to the end of a page the cursor gets before the next page is prefetched. */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+    /** Pages kept in memory. */
+    private static final int MAX_CACHED_PAGES = 5;
+
+    /** Trailing columns, not visible to callers, holding the keyset of each row. */
+    private static final String KEYSET_COLUMNS = "," + MessageColumns.TIMESTAMP
+            + " AS pagingTimestamp," + Message.TABLE_NAME + "." + EmailContent.RECORD_ID
+            + " AS pagingId";
+    private static final int KEYSET_COLUMN_COUNT = 2;
+
+    private static final String ORDER_BY = " ORDER BY " + MessageColumns.TIMESTAMP + " DESC, "
+            + Message.TABLE_NAME + "." + EmailContent.RECORD_ID + " DESC LIMIT " + PAGE_SIZE;
+    /** Rows after a page ending with a timeStamp; those without one sort after all the rest. */
+    private static final String AFTER_KEYSET = " AND (" + MessageColumns.TIMESTAMP + "<? OR ("
+            + MessageColumns.TIMESTAMP + "=? AND " + Message.TABLE_NAME + "."
+            + EmailContent.RECORD_ID + "<?) OR " + MessageColumns.TIMESTAMP + " IS NULL)";
+    /** Rows after a page ending without a timeStamp. */
+    private static final String AFTER_NULL_KEYSET = " AND " + MessageColumns.TIMESTAMP
+            + " IS NULL AND " + Message.TABLE_NAME + "." + EmailContent.RECORD_ID + "<?";
+
+    private final SQLiteDatabase mDb;
+    private final String mSelect;
+    private final String mWhere;
+    private final String[] mWhereArgs;
+    /** The number of rows, or -1 until it's been counted; guarded by mLock */
+    private int mCount = -1;
+    private final String[] mColumnNames;
+
+    private final Object mLock = new Object();
+    /** Rows of the recently used pages, by page number. */
+    private final LruCache<Integer, Object[][]> mPages =
+            new LruCache<Integer, Object[][]>(MAX_CACHED_PAGES);
+    /** The last row of each page read so far, by page number. */
+    private final SparseArray<PageEnd> mPageEnds = new SparseArray<PageEnd>();
+    private int mPrefetchingPage = -1;
+
+    private Object[] mRow;
+
+    /** The keyset of the last row of a page. */
+    private static class PageEnd {
+        /** The row's timeStamp, or null if it has none */
+        final Long mTimeStamp;
+        final long mId;
+
+        PageEnd(Long timeStamp, long id) {
+            mTimeStamp = timeStamp;
+            mId = id;
+        }
+    }
+
+    /**
+     * @param db the EmailProvider database
+     * @param select the SELECT clause (without FROM) producing the visible columns
+     * @param where the selection on the Message table
+     * @param whereArgs arguments for the selection
+     */
+    public PagedMessageCursor(SQLiteDatabase db, String select, String where, String[] whereArgs) {
+        mDb = db;
+        mSelect = select + KEYSET_COLUMNS + " FROM " + Message.TABLE_NAME + " WHERE (" + where
+                + ")";
+        mWhere = where;
+        mWhereArgs = whereArgs != null ? whereArgs : new String[0];
+
+        // Read the first page right away; it gives us the column names
+        final Cursor c = mDb.rawQuery(mSelect + ORDER_BY, mWhereArgs);
+        try {
+            final String[] allColumns = c.getColumnNames();
+            mColumnNames = new String[allColumns.length - KEYSET_COLUMN_COUNT];
+            System.arraycopy(allColumns, 0, mColumnNames, 0, mColumnNames.length);
+            storePage(0, c);
+        } finally {
+            c.close();
+        }
+        final Object[][] firstPage = mPages.get(0);
+        if (firstPage.length < PAGE_SIZE) {
+            mCount = firstPage.length;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        synchronized (mLock) {
+            if (mCount < 0) {
+                mCount = (int) DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                        + Message.TABLE_NAME + " WHERE " + mWhere, mWhereArgs);
+            }
+            return mCount;
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        final int pageNumber = newPosition / PAGE_SIZE;
+        final Object[][] page = getPage(pageNumber);
+        final int index = newPosition % PAGE_SIZE;
+        if (index >= page.length) {
+            // Rows have been deleted since we were counted, so there's no longer a row here
+            LogUtils.d(TAG, "No row at %d of %d; rows have been deleted", newPosition,
+                    getCount());
+            mRow = null;
+            return false;
+        }
+        mRow = page[index];
+        if (index >= PAGE_SIZE - PREFETCH_DISTANCE) {
+            prefetch(pageNumber + 1);
+        }
+        return true;
+    }
+
+    private Object[][] getPage(int pageNumber) {
+        synchronized (mLock) {
+            Object[][] page = mPages.get(pageNumber);
+            if (page == null) {
+                page = loadPage(pageNumber);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Read a page, keyed by the end of the previous page if we know it. Called with mLock held.
+     */
+    private Object[][] loadPage(int pageNumber) {
+        final PageEnd previousEnd = mPageEnds.get(pageNumber - 1);
+        final Cursor c;
+        if (pageNumber == 0) {
+            c = mDb.rawQuery(mSelect + ORDER_BY, mWhereArgs);
+        } else if (previousEnd != null && previousEnd.mTimeStamp != null) {
+            final String[] args = new String[mWhereArgs.length + 3];
+            System.arraycopy(mWhereArgs, 0, args, 0, mWhereArgs.length);
+            args[mWhereArgs.length] = previousEnd.mTimeStamp.toString();
+            args[mWhereArgs.length + 1] = previousEnd.mTimeStamp.toString();
+            args[mWhereArgs.length + 2] = Long.toString(previousEnd.mId);
+            c = mDb.rawQuery(mSelect + AFTER_KEYSET + ORDER_BY, args);
+        } else if (previousEnd != null) {
+            final String[] args = new String[mWhereArgs.length + 1];
+            System.arraycopy(mWhereArgs, 0, args, 0, mWhereArgs.length);
+            args[mWhereArgs.length] = Long.toString(previousEnd.mId);
+            c = mDb.rawQuery(mSelect + AFTER_NULL_KEYSET + ORDER_BY, args);
+        } else {
+            c = mDb.rawQuery(mSelect + ORDER_BY + " OFFSET " + (pageNumber * PAGE_SIZE),
+                    mWhereArgs);
+        }
+        try {
+            storePage(pageNumber, c);
+        } finally {
+            c.close();
+        }
+        return mPages.get(pageNumber);
+    }
+
+    /**
+     * Copy the rows of a page out of its cursor, so that the cursor (and its window) can be
+     * closed, and remember where the page ends.
+     */
+    private void storePage(int pageNumber, Cursor c) {
+        final int columns = mColumnNames.length;
+        final Object[][] rows = new Object[c.getCount()][];
+        int row = 0;
+        while (c.moveToNext()) {
+            final Object[] values = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = c.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i] = c.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[i] = c.getBlob(i);
+                        break;
+                    default:
+                        values[i] = c.getString(i);
+                        break;
+                }
+            }
+            rows[row++] = values;
+            if (c.isLast()) {
+                mPageEnds.put(pageNumber, new PageEnd(
+                        c.isNull(columns) ? null : c.getLong(columns), c.getLong(columns + 1)));
+            }
+        }
+        mPages.put(pageNumber, rows);
+    }
+
+    private void prefetch(final int pageNumber) {
+        if (pageNumber * PAGE_SIZE >= getCount()) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mPrefetchingPage == pageNumber || mPages.get(pageNumber) != null) {
+                return;
+            }
+            mPrefetchingPage = pageNumber;
+        }
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    try {
+                        if (!isClosed() && mPages.get(pageNumber) == null) {
+                            loadPage(pageNumber);
+                        }
+                    } catch (SQLiteException e) {
+                        // We'll try again (in the foreground) when the page is needed
+                        LogUtils.w(TAG, e, "Unable to prefetch page %d", pageNumber);
+                    } finally {
+                        mPrefetchingPage = -1;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mLock) {
+            mPages.evictAll();
+        }
+        mRow = null;
+    }
+
+    private Object getValue(int column) {
+        checkPosition();
+        if (mRow == null) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+        return mRow[column];
+    }
+
+    @Override
+    public int getType(int column) {
+        final Object value = getValue(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        final Object value = getValue(column);
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        final Object value = getValue(column);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        final Object value = getValue(column);
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        final Object value = getValue(column);
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getValue(column) == null;
+    }
+}
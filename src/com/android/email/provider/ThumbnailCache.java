@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded thumbnails of attachments, kept on disk by attachment and size, so that showing one
+ * again (e.g. scrolling back through a grid of them) doesn't mean decoding the image again.
+ * The thumbnails used least recently are deleted once the cache is over its size.
+ *
+ * The cache outlives the process; the order in which thumbnails were used is picked up again
+ * from the times their files were last modified.
+ *
+ * Thumbnails are only handed out already open, since a file could otherwise be evicted (or
+ * removed along with its attachment) between being found and being opened.
+ */
+/*package*/ class ThumbnailCache {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxSize;
+    /** Sizes of the thumbnails, by file name, least recently used first; null until loaded */
+    private LinkedHashMap<String, Long> mFiles;
+    private long mSize;
+
+    private int mHits;
+    private int mMisses;
+    private int mDecodes;
+    private long mDecodeMillis;
+    private long mMaxDecodedBytes;
+
+    public ThumbnailCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the name of the thumbnail of an attachment at a size
+     */
+    public static String getKey(long accountId, long attachmentId, int width, int height) {
+        return accountId + "_" + attachmentId + "_" + width + "x" + height;
+    }
+
+    private void load() {
+        if (mFiles != null) {
+            return;
+        }
+        mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mSize = 0;
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long lhsTime = lhs.lastModified();
+                final long rhsTime = rhs.lastModified();
+                return (lhsTime < rhsTime) ? -1 : ((lhsTime == rhsTime) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left by a thumbnail that was never finished
+                file.delete();
+            } else {
+                mFiles.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+    }
+
+    /**
+     * @return the cached thumbnail, opened for reading, or null if there isn't one
+     */
+    public synchronized ParcelFileDescriptor open(String key) {
+        load();
+        if (mFiles.get(key) != null) {
+            final File file = new File(mDir, key);
+            try {
+                final ParcelFileDescriptor fd =
+                        ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+                mHits++;
+                file.setLastModified(System.currentTimeMillis());
+                return fd;
+            } catch (FileNotFoundException e) {
+                // Deleted behind our back (e.g. the system clearing the cache dir)
+                mSize -= mFiles.remove(key);
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * @return a file in which to write a thumbnail before it's {@link #put} in the cache
+     */
+    public synchronized File createTempFile(String key) throws IOException {
+        // Loading clears away temp files, so it mustn't happen once this one's been made
+        load();
+        mDir.mkdirs();
+        return File.createTempFile("thumbnail_" + key, TEMP_SUFFIX, mDir);
+    }
+
+    /**
+     * Add a thumbnail to the cache, making room for it if need be.
+     *
+     * @param tempFile the thumbnail, written to a file from {@link #createTempFile}
+     * @return the cached thumbnail, opened for reading, or null if it couldn't be added
+     */
+    public synchronized ParcelFileDescriptor put(String key, File tempFile) {
+        load();
+        final File file = new File(mDir, key);
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return null;
+        }
+        final ParcelFileDescriptor fd;
+        try {
+            fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        final Long oldSize = mFiles.put(key, file.length());
+        mSize += file.length() - (oldSize != null ? oldSize : 0);
+        final Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            new File(mDir, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+        return fd;
+    }
+
+    /**
+     * Delete the thumbnails of an account's attachments, e.g. when the account is deleted.
+     *
+     * @return how many were deleted
+     */
+    public int removeAccount(long accountId) {
+        return remove(accountId + "_");
+    }
+
+    /**
+     * Delete the thumbnails of an attachment, at every size, e.g. when it's deleted.
+     *
+     * @return how many were deleted
+     */
+    public int removeAttachment(long accountId, long attachmentId) {
+        return remove(accountId + "_" + attachmentId + "_");
+    }
+
+    private synchronized int remove(String keyPrefix) {
+        load();
+        int count = 0;
+        final Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().startsWith(keyPrefix)) {
+                new File(mDir, entry.getKey()).delete();
+                mSize -= entry.getValue();
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the space the thumbnails take on disk
+     */
+    public synchronized long getSize() {
+        load();
+        return mSize;
+    }
+
+    /**
+     * Note a thumbnail being made.
+     *
+     * @param millis how long it took to decode, scale, and encode
+     * @param decodedBytes the memory the decoded image took
+     */
+    public synchronized void recordDecode(long millis, long decodedBytes) {
+        mDecodes++;
+        mDecodeMillis += millis;
+        mMaxDecodedBytes = Math.max(mMaxDecodedBytes, decodedBytes);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        load();
+        pw.println("  " + mFiles.size() + " thumbnails, " + (mSize / 1024) + "KB of " +
+                (mMaxSize / 1024) + "KB");
+        pw.println("  " + mHits + " hits, " + mMisses + " misses");
+        if (mDecodes > 0) {
+            pw.println("  " + mDecodes + " made, average " + (mDecodeMillis / mDecodes) +
+                    "ms, largest decode " + (mMaxDecodedBytes / 1024) + "KB");
+        }
+    }
+}
@@ -52,9 +52,12 @@ import com.android.mail.utils.LogUtils;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -75,9 +78,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // How long we'll wait for a callback before canceling a download and retrying
     private static final int CALLBACK_TIMEOUT = 30 * ((int)DateUtils.SECOND_IN_MILLIS);
     // Try to download an attachment in the background this many times before giving up
-    private static final int MAX_DOWNLOAD_RETRIES = 5;
+    /*package*/ static final int MAX_DOWNLOAD_RETRIES = 5;
     private static final int PRIORITY_NONE = -1;
-    @SuppressWarnings("unused")
     // Low priority will be used for opportunistic downloads
     private static final int PRIORITY_BACKGROUND = 0;
     // Normal priority is for forwarded downloads in outgoing mail
@@ -90,11 +92,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
-    // Limit on the number of simultaneous downloads per account
-    // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
+    // How long we'll use accounts we've looked up before looking them up again
+    /*package*/ static final long ACCOUNT_CACHE_MILLIS = DateUtils.MINUTE_IN_MILLIS;
     // Limit on the number of attachments we'll check for background download
     private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
 
@@ -109,19 +108,19 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ EmailConnectivityManager mConnectivityManager;
 
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
+    /*package*/ final DownloadScheduler mScheduler = new DownloadScheduler();
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
-    // A map of attachment storage used per account
-    // NOTE: This map is not kept current in terms of deletions (i.e. it stores the last calculated
-    // amount plus the size of any new attachments laoded).  If and when we reach the per-account
-    // limit, we recalculate the actual usage
-    /*package*/ final HashMap<Long, Long> mAttachmentStorageMap = new HashMap<Long, Long>();
     // A map of attachment ids to the number of failed attempts to download the attachment
     // NOTE: We do not want to persist this. This allows us to retry background downloading
     // if any transient network errors are fixed & and the app is restarted
     /* package */ final HashMap<Long, Integer> mAttachmentFailureMap = new HashMap<Long, Integer>();
     private final ServiceCallback mServiceCallback = new ServiceCallback();
 
+    // Accounts looked up for prefetching, which are forgotten after ACCOUNT_CACHE_MILLIS
+    private final HashMap<Long, Account> mAccountCache = new HashMap<Long, Account>();
+    /*package*/ long mAccountCacheTime;
+
     private final Object mLock = new Object();
     private volatile boolean mStop = false;
 
@@ -178,6 +177,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
         final long attachmentId;
         final long messageId;
         final long accountId;
+        final long size;
         boolean inProgress = false;
         int lastStatusCode;
         int lastProgress;
@@ -185,15 +185,24 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long startTime;
         long retryCount;
         long retryStartTime;
+        /** Progress made when the download last failed for want of a connection */
+        int failedProgress;
 
-        private DownloadRequest(Context context, Attachment attachment) {
+        /*package*/ DownloadRequest(Context context, Attachment attachment) {
             attachmentId = attachment.mId;
-            Message msg = Message.restoreMessageWithId(context, attachment.mMessageKey);
-            if (msg != null) {
-                accountId = msg.mAccountKey;
-                messageId = msg.mId;
+            size = attachment.mSize;
+            if (attachment.mAccountKey > 0) {
+                // The attachment knows its account, which saves looking up its message
+                accountId = attachment.mAccountKey;
+                messageId = attachment.mMessageKey;
             } else {
-                accountId = messageId = -1;
+                Message msg = Message.restoreMessageWithId(context, attachment.mMessageKey);
+                if (msg != null) {
+                    accountId = msg.mAccountKey;
+                    messageId = msg.mId;
+                } else {
+                    accountId = messageId = -1;
+                }
             }
             priority = getPriority(attachment);
             time = SystemClock.elapsedRealtime();
@@ -204,6 +213,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
             attachmentId = orig.attachmentId;
             messageId = orig.messageId;
             accountId = orig.accountId;
+            size = orig.size;
             time = newTime;
             inProgress = orig.inProgress;
             lastStatusCode = orig.lastStatusCode;
@@ -212,6 +222,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
             startTime = orig.startTime;
             retryCount = orig.retryCount;
             retryStartTime = orig.retryStartTime;
+            failedProgress = orig.failedProgress;
         }
 
 
@@ -252,12 +263,62 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
     }
 
+    /**
+     * The queued requests of one priority class, by account. Each account's requests are kept in
+     * the order they were made, and the accounts take turns, so that one account with many
+     * attachments queued doesn't hold up the others.
+     */
+    private static class AccountQueues {
+        private final HashMap<Long, LinkedHashSet<DownloadRequest>> mQueues =
+                new HashMap<Long, LinkedHashSet<DownloadRequest>>();
+        /** The accounts with requests queued, in the order they take their turns */
+        private final ArrayDeque<Long> mTurns = new ArrayDeque<Long>();
+
+        void add(DownloadRequest req) {
+            LinkedHashSet<DownloadRequest> queue = mQueues.get(req.accountId);
+            if (queue == null) {
+                queue = new LinkedHashSet<DownloadRequest>();
+                mQueues.put(req.accountId, queue);
+                mTurns.add(req.accountId);
+            }
+            queue.add(req);
+        }
+
+        void remove(DownloadRequest req) {
+            final LinkedHashSet<DownloadRequest> queue = mQueues.get(req.accountId);
+            if (queue != null && queue.remove(req) && queue.isEmpty()) {
+                mQueues.remove(req.accountId);
+                mTurns.remove(req.accountId);
+            }
+        }
+
+        int getAccountCount() {
+            return mTurns.size();
+        }
+
+        /**
+         * @return the account whose turn it is; it goes to the back of the line
+         */
+        long nextTurn() {
+            final Long accountId = mTurns.poll();
+            mTurns.add(accountId);
+            return accountId;
+        }
+
+        Iterable<DownloadRequest> getQueue(long accountId) {
+            return mQueues.get(accountId);
+        }
+    }
+
     /**
      * The DownloadSet is a TreeSet sorted by priority class (e.g. low, high, etc.) and the
      * time of the request.  Higher priority requests
      * are always processed first; among equals, the oldest request is processed first.  The
      * priority key represents this ordering.  Note: All methods that change the attachment map are
      * synchronized on the map itself
+     *
+     * Alongside the set, requests are kept by attachment id, for lookup, and in AccountQueues for
+     * each priority class, from which processQueue picks the downloads to start.
      */
     /*package*/ class DownloadSet extends TreeSet<DownloadRequest> {
         private static final long serialVersionUID = 1L;
@@ -273,6 +334,40 @@ public class AttachmentDownloadService extends Service implements Runnable {
         /*package*/ final ConcurrentHashMap<Long, DownloadRequest> mDownloadsInProgress =
             new ConcurrentHashMap<Long, DownloadRequest>();
 
+        /** Queued requests by attachment id */
+        private final HashMap<Long, DownloadRequest> mRequests =
+                new HashMap<Long, DownloadRequest>();
+        /** Queued requests by priority class */
+        private final AccountQueues[] mQueues = new AccountQueues[PRIORITY_FOREGROUND + 1];
+
+        @Override
+        public synchronized boolean add(DownloadRequest req) {
+            if (!super.add(req)) {
+                return false;
+            }
+            mRequests.put(req.attachmentId, req);
+            if (req.priority >= 0) {
+                if (mQueues[req.priority] == null) {
+                    mQueues[req.priority] = new AccountQueues();
+                }
+                mQueues[req.priority].add(req);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean remove(Object object) {
+            if (!super.remove(object)) {
+                return false;
+            }
+            final DownloadRequest req = (DownloadRequest) object;
+            mRequests.remove(req.attachmentId);
+            if (req.priority >= 0 && mQueues[req.priority] != null) {
+                mQueues[req.priority].remove(req);
+            }
+            return true;
+        }
+
         /**
          * onChange is called by the AttachmentReceiver upon receipt of a valid notification from
          * EmailProvider that an attachment has been inserted or modified.  It's not strictly
@@ -320,14 +415,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
          * @return the DownloadRequest for that attachment (or null, if none)
          */
         /*package*/ synchronized DownloadRequest findDownloadRequest(long id) {
-            Iterator<DownloadRequest> iterator = iterator();
-            while(iterator.hasNext()) {
-                DownloadRequest req = iterator.next();
-                if (req.attachmentId == id) {
-                    return req;
-                }
-            }
-            return null;
+            return mRequests.get(id);
         }
 
         @Override
@@ -336,8 +424,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
 
         /**
-         * Run through the AttachmentMap and find DownloadRequests that can be executed, enforcing
-         * the limit on maximum downloads
+         * Find DownloadRequests that can be executed, within the scheduler's budgets; higher
+         * priority classes go first, and within a class the accounts take turns
          */
         /*package*/ synchronized void processQueue() {
             if (LogUtils.isLoggable(TAG, LogUtils.DEBUG)) {
@@ -345,57 +433,38 @@ public class AttachmentDownloadService extends Service implements Runnable {
                         + " entries");
             }
 
-            Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
+            EmailConnectivityManager ecm = mConnectivityManager;
+            if (ecm != null) {
+                mScheduler.setNetworkType(ecm.getActiveNetworkType());
+            }
             // First, start up any required downloads, in priority order
-            while (iterator.hasNext() &&
-                    (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
-                DownloadRequest req = iterator.next();
-                 // Enforce per-account limit here
-                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
-                    if (LogUtils.isLoggable(TAG, LogUtils.DEBUG)) {
-                        LogUtils.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
-                                req.accountId);
-                    }
-                    continue;
-                } else if (Attachment.restoreAttachmentWithId(mContext, req.attachmentId) == null) {
-                    continue;
-                }
-                if (!req.inProgress) {
-                    final long currentTime = SystemClock.elapsedRealtime();
-                    if (req.retryCount > 0 && req.retryStartTime > currentTime) {
-                        LogUtils.d(TAG, "== waiting to retry attachment %d", req.attachmentId);
-                        setWatchdogAlarm(CONNECTION_ERROR_RETRY_MILLIS);
-                        continue;
-                    }
-                    mDownloadSet.tryStartDownload(req);
+            for (int priority = PRIORITY_FOREGROUND; priority >= PRIORITY_BACKGROUND; priority--) {
+                if (mQueues[priority] != null) {
+                    startDownloads(mQueues[priority], isBackground(priority));
                 }
             }
 
             // Don't prefetch if background downloading is disallowed
-            EmailConnectivityManager ecm = mConnectivityManager;
             if (ecm == null) return;
             if (!ecm.isAutoSyncAllowed()) return;
             // Don't prefetch unless we're on a WiFi network
             if (ecm.getActiveNetworkType() != ConnectivityManager.TYPE_WIFI) {
                 return;
             }
-            // Then, try opportunistic download of appropriate attachments
-            int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
-            // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
+            // Then, try opportunistic download of appropriate attachments, if there's room
+            if (mScheduler.canStartBackground()) {
                 // We'll load up the newest 25 attachments that aren't loaded or queued
                 Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
                         MAX_ATTACHMENTS_TO_CHECK);
                 Cursor c = mContext.getContentResolver().query(lookupUri,
-                        Attachment.CONTENT_PROJECTION,
-                        EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
+                        Attachment.CONTENT_PROJECTION, getPrefetchSelection(),
                         null, Attachment.RECORD_ID + " DESC");
                 File cacheDir = mContext.getCacheDir();
                 try {
                     while (c.moveToNext()) {
                         Attachment att = new Attachment();
                         att.restore(c);
-                        Account account = Account.restoreAccountWithId(mContext, att.mAccountKey);
+                        Account account = getAccount(att.mAccountKey);
                         if (account == null) {
                             // Clean up this orphaned attachment; there's no point in keeping it
                             // around; then try to find another one
@@ -403,17 +472,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
                         } else {
                             // Check that the attachment meets system requirements for download
                             AttachmentInfo info = new AttachmentInfo(mContext, att);
-                            if (info.isEligibleForDownload()) {
+                            if (info.isEligibleForDownload()
+                                    && mScheduler.canStart(account.mId, true)) {
                                 // Either the account must be able to prefetch or this must be
                                 // an inline attachment
                                 if (att.mContentId != null ||
                                         (canPrefetchForAccount(account, cacheDir))) {
-                                    Integer tryCount;
-                                    tryCount = mAttachmentFailureMap.get(att.mId);
-                                    if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                        // move onto the next attachment
-                                        continue;
-                                    }
                                     // Start this download and we're done
                                     DownloadRequest req = new DownloadRequest(mContext, att);
                                     mDownloadSet.tryStartDownload(req);
@@ -429,18 +493,78 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
 
         /**
-         * Count the number of running downloads in progress for this account
-         * @param accountId the id of the account
-         * @return the count of running downloads
+         * The selection for prefetch candidates: attachments in an inbox that aren't loaded or
+         * queued (see PRECACHE_INBOX_SELECTION), leaving out those being downloaded and those
+         * which have failed too often, so that none of the rows fetched is wasted.
          */
-        /*package*/ synchronized int downloadsForAccount(long accountId) {
-            int count = 0;
-            for (DownloadRequest req: mDownloadsInProgress.values()) {
-                if (req.accountId == accountId) {
-                    count++;
+        /*package*/ String getPrefetchSelection() {
+            final StringBuilder sb = new StringBuilder(Attachment.PRECACHE_INBOX_SELECTION);
+            boolean first = true;
+            for (Long id : mDownloadsInProgress.keySet()) {
+                sb.append(first ? " AND " + Attachment.RECORD_ID + " NOT IN (" : ",").append(id);
+                first = false;
+            }
+            for (Map.Entry<Long, Integer> entry : mAttachmentFailureMap.entrySet()) {
+                if (entry.getValue() > MAX_DOWNLOAD_RETRIES) {
+                    sb.append(first ? " AND " + Attachment.RECORD_ID + " NOT IN (" : ",")
+                            .append(entry.getKey());
+                    first = false;
+                }
+            }
+            if (!first) {
+                sb.append(')');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Start as many of the queued downloads of a priority class as the budgets allow. In each
+         * pass, every account with room gets to start one download.
+         */
+        private void startDownloads(AccountQueues queues, boolean background) {
+            boolean started = true;
+            while (started) {
+                started = false;
+                for (int turns = queues.getAccountCount(); turns > 0; turns--) {
+                    final long accountId = queues.nextTurn();
+                    if (!mScheduler.canStart(accountId, background)) {
+                        if (LogUtils.isLoggable(TAG, LogUtils.DEBUG)) {
+                            LogUtils.d(TAG, "== Skip acct #" + accountId + "; maxed");
+                        }
+                        continue;
+                    }
+                    final DownloadRequest req = findStartableRequest(queues, accountId);
+                    if (req != null && tryStartDownload(req)) {
+                        started = true;
+                    }
                 }
             }
-            return count;
+        }
+
+        /**
+         * @return the oldest of an account's queued requests that isn't in progress or waiting to
+         * be retried, or null if there's none
+         */
+        private DownloadRequest findStartableRequest(AccountQueues queues, long accountId) {
+            final Iterable<DownloadRequest> queue = queues.getQueue(accountId);
+            if (queue == null) {
+                return null;
+            }
+            final long currentTime = SystemClock.elapsedRealtime();
+            for (DownloadRequest req : queue) {
+                if (req.inProgress) {
+                    continue;
+                }
+                if (req.retryCount > 0 && req.retryStartTime > currentTime) {
+                    LogUtils.d(TAG, "== waiting to retry attachment %d", req.attachmentId);
+                    setWatchdogAlarm(CONNECTION_ERROR_RETRY_MILLIS);
+                    continue;
+                }
+                // There's no need to check that the attachment still exists; if it doesn't, the
+                // service reports it as not found, and the request is dropped then
+                return req;
+            }
+            return null;
         }
 
         /**
@@ -537,6 +661,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
             req.startTime = System.currentTimeMillis();
             req.inProgress = true;
             mDownloadsInProgress.put(req.attachmentId, req);
+            mScheduler.onStart(req.accountId, isBackground(req.priority),
+                    SystemClock.elapsedRealtime() - req.time);
             service.loadAttachment(mServiceCallback, req.attachmentId,
                     req.priority != PRIORITY_FOREGROUND);
             setWatchdogAlarm();
@@ -545,7 +671,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
         private void cancelDownload(DownloadRequest req) {
             LogUtils.d(TAG, "cancelDownload #%d", req.attachmentId);
             req.inProgress = false;
-            mDownloadsInProgress.remove(req.attachmentId);
+            if (mDownloadsInProgress.remove(req.attachmentId) != null) {
+                mScheduler.onEnd(req.accountId, isBackground(req.priority));
+            }
             // Remove the download from our queue, and then decide whether or not to add it back.
             remove(req);
             req.retryCount++;
@@ -570,7 +698,10 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            final DownloadRequest inProgressReq = mDownloadsInProgress.remove(attachmentId);
+            if (inProgressReq != null) {
+                mScheduler.onEnd(inProgressReq.accountId, isBackground(inProgressReq.priority));
+            }
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -592,6 +723,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
             if (statusCode == EmailServiceStatus.CONNECTION_ERROR) {
                 // If this needs to be retried, just process the queue again
                 if (req != null) {
+                    // Downloads resume where they were cut off, so one that got further than
+                    // last time isn't stuck; only count the errors that made no progress
+                    if (req.lastProgress > req.failedProgress) {
+                        req.failedProgress = req.lastProgress;
+                        req.retryCount = 0;
+                        mAttachmentFailureMap.remove(attachmentId);
+                    }
                     req.retryCount++;
                     if (req.retryCount > CONNECTION_ERROR_MAX_RETRIES) {
                         LogUtils.d(TAG, "Connection Error #%d, giving up", attachmentId);
@@ -637,12 +775,10 @@ public class AttachmentDownloadService extends Service implements Runnable {
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
             if (attachment != null) {
                 long accountId = attachment.mAccountKey;
-                // Update our attachment storage for this account
-                Long currentStorage = mAttachmentStorageMap.get(accountId);
-                if (currentStorage == null) {
-                    currentStorage = 0L;
+                if (statusCode == EmailServiceStatus.SUCCESS && inProgressReq != null) {
+                    mScheduler.onFinished(accountId, inProgressReq.size,
+                            System.currentTimeMillis() - inProgressReq.startTime);
                 }
-                mAttachmentStorageMap.put(accountId, currentStorage + attachment.mSize);
                 boolean deleted = false;
                 if ((attachment.mFlags & Attachment.FLAG_DOWNLOAD_FORWARD) != 0) {
                     if (statusCode == EmailServiceStatus.ATTACHMENT_NOT_FOUND) {
@@ -692,7 +828,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
                     ContentValues cv = new ContentValues();
                     int flags =
                         Attachment.FLAG_DOWNLOAD_FORWARD | Attachment.FLAG_DOWNLOAD_USER_REQUEST;
-                    cv.put(Attachment.FLAGS, attachment.mFlags &= ~flags);
+                    attachment.mFlags &= ~flags;
+                    // A prefetched attachment may be freed again if storage runs short
+                    if (statusCode == EmailServiceStatus.SUCCESS && inProgressReq != null
+                            && isBackground(inProgressReq.priority)) {
+                        attachment.mFlags |= Attachment.FLAG_DOWNLOAD_PREFETCHED;
+                    }
+                    cv.put(Attachment.FLAGS, attachment.mFlags);
                     cv.put(Attachment.UI_STATE, AttachmentState.SAVED);
                     attachment.update(mContext, cv);
                 }
@@ -702,6 +844,27 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
     }
 
+    /**
+     * Look up an account, through a cache; the same few accounts come up for every prefetch
+     * candidate, and they seldom change.
+     * @return the account, or null if there's no such account
+     */
+    /*package*/ Account getAccount(long accountId) {
+        synchronized (mAccountCache) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mAccountCacheTime > ACCOUNT_CACHE_MILLIS) {
+                mAccountCache.clear();
+                mAccountCacheTime = now;
+            }
+            if (mAccountCache.containsKey(accountId)) {
+                return mAccountCache.get(accountId);
+            }
+            final Account account = Account.restoreAccountWithId(mContext, accountId);
+            mAccountCache.put(accountId, account);
+            return account;
+        }
+    }
+
     /**
      * Calculate the download priority of an Attachment.  A priority of zero means that the
      * attachment is not marked for download.
@@ -719,6 +882,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
         return priorityClass;
     }
 
+    /**
+     * @return whether downloads of a priority class are opportunistic, rather than needed
+     */
+    private static boolean isBackground(int priority) {
+        return priority < PRIORITY_SEND_MAIL;
+    }
+
     private void kick() {
         synchronized(mLock) {
             mLock.notify();
@@ -750,10 +920,14 @@ public class AttachmentDownloadService extends Service implements Runnable {
                         LogUtils.d(TAG, ">> Attachment progress %d: %d%%", attachmentId, progress);
                     }
                 }
+                // Only a change of progress is worth a read and a write of the attachment
+                final boolean progressChanged = (statusCode != req.lastStatusCode)
+                        || (progress != req.lastProgress);
                 req.lastStatusCode = statusCode;
                 req.lastProgress = progress;
                 req.lastCallbackTime = System.currentTimeMillis();
-                Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
+                Attachment attachment = progressChanged
+                        ? Attachment.restoreAttachmentWithId(mContext, attachmentId) : null;
                  if (attachment != null  && statusCode == EmailServiceStatus.IN_PROGRESS) {
                     ContentValues values = new ContentValues();
                     values.put(AttachmentColumns.UI_DOWNLOADED_SIZE,
@@ -883,8 +1057,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long usableStorage = dir.getUsableSpace();
         long minAvailable = (long)(totalStorage * PREFETCH_MINIMUM_STORAGE_AVAILABLE);
 
-        // If there's not enough overall storage available, stop now
+        // If there's not enough overall storage available, give back some of what we've
+        // prefetched, oldest first, and stop now. (We don't free prefetches just to prefetch
+        // others, which would only churn; an account at its limit simply stops prefetching.)
         if (usableStorage < minAvailable) {
+            AttachmentUtilities.evictPrefetchedAttachments(mContext, account.mId,
+                    minAvailable - usableStorage);
             return false;
         }
 
@@ -892,22 +1070,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long perAccountMaxStorage =
             (long)(totalStorage * PREFETCH_MAXIMUM_ATTACHMENT_STORAGE / numberOfAccounts);
 
-        // Retrieve our idea of currently used attachment storage; since we don't track deletions,
-        // this number is the "worst case".  If the number is greater than what's allowed per
-        // account, we walk the directory to determine the actual number
-        Long accountStorage = mAttachmentStorageMap.get(account.mId);
-        if (accountStorage == null || (accountStorage > perAccountMaxStorage)) {
-            // Calculate the exact figure for attachment storage for this account
-            accountStorage = 0L;
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    accountStorage += file.length();
-                }
-            }
-            // Cache the value
-            mAttachmentStorageMap.put(account.mId, accountStorage);
-        }
+        // The attachment table keeps a ledger of the storage used by each account
+        long accountStorage = AttachmentUtilities.getAccountStorageUsed(mContext, account.mId);
 
         // Return true if we're using less than the maximum per account
         if (accountStorage < perAccountMaxStorage) {
@@ -921,27 +1085,21 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
     }
 
-    @Override
-    public void run() {
-        // These fields are only used within the service thread
-        mContext = this;
-        mConnectivityManager = new EmailConnectivityManager(this, TAG);
-        mAccountManagerStub = new AccountManagerStub(this);
-
-        // Run through all attachments in the database that require download and add them to
-        // the queue
+    /**
+     * Run through all attachments in the database that require download and add them to the
+     * queue; the query reads whole rows, so that it needn't look up each one
+     */
+    /*package*/ void queueRequiredDownloads() {
         int mask = Attachment.FLAG_DOWNLOAD_FORWARD | Attachment.FLAG_DOWNLOAD_USER_REQUEST;
-        Cursor c = getContentResolver().query(Attachment.CONTENT_URI,
-                EmailContent.ID_PROJECTION, "(" + Attachment.FLAGS + " & ?) != 0",
+        Cursor c = mContext.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.CONTENT_PROJECTION, "(" + Attachment.FLAGS + " & ?) != 0",
                 new String[] {Integer.toString(mask)}, null);
         try {
             LogUtils.d(TAG, "Count: " + c.getCount());
             while (c.moveToNext()) {
-                Attachment attachment = Attachment.restoreAttachmentWithId(
-                        this, c.getLong(EmailContent.ID_PROJECTION_COLUMN));
-                if (attachment != null) {
-                    mDownloadSet.onChange(this, attachment);
-                }
+                Attachment attachment = new Attachment();
+                attachment.restore(c);
+                mDownloadSet.onChange(mContext, attachment);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -949,6 +1107,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
         finally {
             c.close();
         }
+    }
+
+    @Override
+    public void run() {
+        // These fields are only used within the service thread
+        mContext = this;
+        mConnectivityManager = new EmailConnectivityManager(this, TAG);
+        mAccountManagerStub = new AccountManagerStub(this);
+
+        queueRequiredDownloads();
 
         // Loop until stopped, with a 30 minute wait loop
         while (!mStop) {
@@ -1026,6 +1194,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("AttachmentDownloadService");
         long time = System.currentTimeMillis();
+        mScheduler.dump(pw);
         synchronized(mDownloadSet) {
             pw.println("  Queue, " + mDownloadSet.size() + " entries");
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.net.ConnectivityManager;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how many attachment downloads AttachmentDownloadService may run at once, overall and
+ * for each account, and keeps count of those running.
+ *
+ * The budgets depend on the network: more downloads on WiFi than on a mobile network. They're
+ * halved when recent downloads have been slow, since then they're only competing for the link.
+ * Background (prefetch) downloads always leave a slot free, and aren't counted against user
+ * requests, so a user never waits for a prefetch to finish.
+ */
+/*package*/ class DownloadScheduler {
+    /*package*/ static final int WIFI_MAX_DOWNLOADS = 4;
+    /*package*/ static final int WIFI_MAX_DOWNLOADS_PER_ACCOUNT = 2;
+    /*package*/ static final int MOBILE_MAX_DOWNLOADS = 2;
+    /*package*/ static final int MOBILE_MAX_DOWNLOADS_PER_ACCOUNT = 1;
+    /** Below this throughput, in bytes per second, downloads are held to half the budget */
+    /*package*/ static final long SLOW_THROUGHPUT = 16 * 1024;
+    /** Each download's throughput counts for this fraction (1/n) of the running average */
+    private static final int THROUGHPUT_WEIGHT = 4;
+
+    /** Counts of downloads in progress for an account, and totals of those finished */
+    private static class AccountState {
+        int foreground;
+        int background;
+        int starts;
+        int downloads;
+        long waitMillis;
+        long bytes;
+        long downloadMillis;
+    }
+
+    private int mNetworkType = ConnectivityManager.TYPE_MOBILE;
+    /** Running average of download throughput in bytes per second, or -1 until there is one */
+    private long mThroughput = -1;
+    private int mForeground;
+    private int mBackground;
+    private final HashMap<Long, AccountState> mAccounts = new HashMap<Long, AccountState>();
+
+    public synchronized void setNetworkType(int networkType) {
+        mNetworkType = networkType;
+    }
+
+    private boolean isSlow() {
+        return mThroughput >= 0 && mThroughput < SLOW_THROUGHPUT;
+    }
+
+    /**
+     * @return the number of downloads that may run at once
+     */
+    public synchronized int getMaxDownloads() {
+        final int max = (mNetworkType == ConnectivityManager.TYPE_WIFI)
+                ? WIFI_MAX_DOWNLOADS : MOBILE_MAX_DOWNLOADS;
+        return isSlow() ? Math.max(1, max / 2) : max;
+    }
+
+    /**
+     * @return the number of downloads that may run at once for one account
+     */
+    public synchronized int getMaxDownloadsPerAccount() {
+        final int max = (mNetworkType == ConnectivityManager.TYPE_WIFI)
+                ? WIFI_MAX_DOWNLOADS_PER_ACCOUNT : MOBILE_MAX_DOWNLOADS_PER_ACCOUNT;
+        return isSlow() ? Math.max(1, max / 2) : max;
+    }
+
+    private AccountState getAccountState(long accountId) {
+        AccountState state = mAccounts.get(accountId);
+        if (state == null) {
+            state = new AccountState();
+            mAccounts.put(accountId, state);
+        }
+        return state;
+    }
+
+    /**
+     * @param background whether the download is a prefetch, rather than one asked for
+     * @return whether there's room in the budgets for another download for the account
+     */
+    public synchronized boolean canStart(long accountId, boolean background) {
+        final AccountState state = mAccounts.get(accountId);
+        if (background) {
+            // Always leave a slot for a download the user asks for
+            final int accountCount = (state == null) ? 0 : state.foreground + state.background;
+            return (mForeground + mBackground < getMaxDownloads() - 1)
+                    && (accountCount < getMaxDownloadsPerAccount());
+        }
+        final int accountCount = (state == null) ? 0 : state.foreground;
+        return (mForeground < getMaxDownloads()) && (accountCount < getMaxDownloadsPerAccount());
+    }
+
+    /**
+     * @return whether there's room for a background download for any account
+     */
+    public synchronized boolean canStartBackground() {
+        return mForeground + mBackground < getMaxDownloads() - 1;
+    }
+
+    /**
+     * Note a download starting.
+     *
+     * @param waitMillis how long the request was queued for
+     */
+    public synchronized void onStart(long accountId, boolean background, long waitMillis) {
+        final AccountState state = getAccountState(accountId);
+        if (background) {
+            state.background++;
+            mBackground++;
+        } else {
+            state.foreground++;
+            mForeground++;
+        }
+        state.starts++;
+        state.waitMillis += waitMillis;
+    }
+
+    /**
+     * Note a download ending, whether or not it succeeded.
+     */
+    public synchronized void onEnd(long accountId, boolean background) {
+        final AccountState state = mAccounts.get(accountId);
+        if (state == null) {
+            return;
+        }
+        if (background) {
+            if (state.background > 0) {
+                state.background--;
+                mBackground--;
+            }
+        } else if (state.foreground > 0) {
+            state.foreground--;
+            mForeground--;
+        }
+    }
+
+    /**
+     * Note a download completing, to measure throughput.
+     *
+     * @param bytes the size of the download
+     * @param millis how long it took
+     */
+    public synchronized void onFinished(long accountId, long bytes, long millis) {
+        final AccountState state = getAccountState(accountId);
+        state.downloads++;
+        state.bytes += bytes;
+        state.downloadMillis += millis;
+        // Tiny downloads are over before they're up to speed, so don't let them slow us down
+        if (bytes < SLOW_THROUGHPUT || millis <= 0) {
+            return;
+        }
+        final long throughput = bytes * 1000 / millis;
+        if (mThroughput < 0) {
+            mThroughput = throughput;
+        } else {
+            mThroughput = (mThroughput * (THROUGHPUT_WEIGHT - 1) + throughput) / THROUGHPUT_WEIGHT;
+        }
+    }
+
+    /**
+     * @return the number of downloads in progress
+     */
+    public synchronized int getDownloadsInProgress() {
+        return mForeground + mBackground;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  Scheduler: " + mForeground + " downloads + " + mBackground +
+                " prefetches of " + getMaxDownloads() + " (" + getMaxDownloadsPerAccount() +
+                " per account), throughput " + (mThroughput < 0 ? "unknown" :
+                        (mThroughput / 1024) + "KB/s"));
+        for (Map.Entry<Long, AccountState> entry : mAccounts.entrySet()) {
+            final AccountState state = entry.getValue();
+            if (state.starts == 0) {
+                continue;
+            }
+            pw.println("    Account " + entry.getKey() + ": " + state.downloads +
+                    " downloads, average wait " + (state.waitMillis / state.starts) +
+                    "ms, " + (state.downloadMillis > 0 ?
+                            (state.bytes * 1000 / state.downloadMillis / 1024) : 0) + "KB/s");
+        }
+    }
+}
@@ -26,20 +26,16 @@ import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
-import com.android.email.NotificationController;
-import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
 import com.android.email.provider.AccountReconciler;
 import com.android.email.provider.Utilities;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
-import com.android.email2.ui.MailActivityEmail;
 import com.android.emailcommon.Api;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
-import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
@@ -53,7 +49,6 @@ import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
-import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
@@ -61,11 +56,13 @@ import com.android.emailcommon.service.IEmailService;
 import com.android.emailcommon.service.IEmailServiceCallback;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.PartialDownload;
 import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.providers.UIProvider.DraftType;
 import com.android.mail.utils.LogUtils;
 
+import java.io.File;
 import java.util.HashSet;
 
 /**
@@ -269,6 +266,14 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             // true encoding along the way
             storePart.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
 
+            // Keep what's downloaded as it arrives, so that if the connection drops, the
+            // retry picks up from there (for stores that can)
+            final File partialFile = AttachmentUtilities.getPartialDownloadFilename(mContext,
+                    account.mId, attachmentId);
+            partialFile.getParentFile().mkdirs();
+            storePart.setHeader(PartialDownload.HEADER_PARTIAL_DOWNLOAD,
+                    partialFile.getAbsolutePath());
+
             final MimeMultipart multipart = new MimeMultipart();
             multipart.setSubType("mixed");
             multipart.addBodyPart(storePart);
@@ -291,6 +296,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             // Save the attachment to wherever it's going
             AttachmentUtilities.saveAttachment(mContext, storePart.getBody().getInputStream(),
                     attachment);
+            partialFile.delete();
 
             // 6. Report success
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
@@ -487,98 +493,6 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
     }
 
     public static void sendMailImpl(Context context, long accountId) {
-        final Account account = Account.restoreAccountWithId(context, accountId);
-        TrafficStats.setThreadStatsTag(TrafficFlags.getSmtpFlags(context, account));
-        final NotificationController nc = NotificationController.getInstance(context);
-        // 1.  Loop through all messages in the account's outbox
-        final long outboxId = Mailbox.findMailboxOfType(context, account.mId, Mailbox.TYPE_OUTBOX);
-        if (outboxId == Mailbox.NO_MAILBOX) {
-            return;
-        }
-        final ContentResolver resolver = context.getContentResolver();
-        final Cursor c = resolver.query(EmailContent.Message.CONTENT_URI,
-                EmailContent.Message.ID_COLUMN_PROJECTION,
-                EmailContent.Message.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId) },
-                null);
-        try {
-            // 2.  exit early
-            if (c.getCount() <= 0) {
-                return;
-            }
-            final Sender sender = Sender.getInstance(context, account);
-            final Store remoteStore = Store.getInstance(account, context);
-            final ContentValues moveToSentValues;
-            if (remoteStore.requireCopyMessageToSentFolder()) {
-                Mailbox sentFolder =
-                    Mailbox.restoreMailboxOfType(context, accountId, Mailbox.TYPE_SENT);
-                moveToSentValues = new ContentValues();
-                moveToSentValues.put(MessageColumns.MAILBOX_KEY, sentFolder.mId);
-            } else {
-                moveToSentValues = null;
-            }
-
-            // 3.  loop through the available messages and send them
-            while (c.moveToNext()) {
-                final long messageId;
-                if (moveToSentValues != null) {
-                    moveToSentValues.remove(EmailContent.MessageColumns.FLAGS);
-                }
-                try {
-                    messageId = c.getLong(0);
-                    // Don't send messages with unloaded attachments
-                    if (Utility.hasUnloadedAttachments(context, messageId)) {
-                        if (MailActivityEmail.DEBUG) {
-                            LogUtils.d(Logging.LOG_TAG, "Can't send #" + messageId +
-                                    "; unloaded attachments");
-                        }
-                        continue;
-                    }
-                    sender.sendMessage(messageId);
-                } catch (MessagingException me) {
-                    // report error for this message, but keep trying others
-                    if (me instanceof AuthenticationFailedException) {
-                        nc.showLoginFailedNotification(account.mId);
-                    }
-                    continue;
-                }
-                // 4. move to sent, or delete
-                final Uri syncedUri =
-                    ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI, messageId);
-                // Delete all cached files
-                AttachmentUtilities.deleteAllCachedAttachmentFiles(context, account.mId, messageId);
-                if (moveToSentValues != null) {
-                    // If this is a forwarded message and it has attachments, delete them, as they
-                    // duplicate information found elsewhere (on the server).  This saves storage.
-                    final EmailContent.Message msg =
-                        EmailContent.Message.restoreMessageWithId(context, messageId);
-                    if ((msg.mFlags & EmailContent.Message.FLAG_TYPE_FORWARD) != 0) {
-                        AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
-                                messageId);
-                    }
-                    final int flags = msg.mFlags & ~(EmailContent.Message.FLAG_TYPE_REPLY |
-                            EmailContent.Message.FLAG_TYPE_FORWARD |
-                            EmailContent.Message.FLAG_TYPE_REPLY_ALL |
-                            EmailContent.Message.FLAG_TYPE_ORIGINAL);
-
-                    moveToSentValues.put(EmailContent.MessageColumns.FLAGS, flags);
-                    resolver.update(syncedUri, moveToSentValues, null, null);
-                } else {
-                    AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
-                            messageId);
-                    final Uri uri =
-                        ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, messageId);
-                    resolver.delete(uri, null, null);
-                    resolver.delete(syncedUri, null, null);
-                }
-            }
-            nc.cancelLoginFailedNotification(account.mId);
-        } catch (MessagingException me) {
-            if (me instanceof AuthenticationFailedException) {
-                nc.showLoginFailedNotification(account.mId);
-            }
-        } finally {
-            c.close();
-        }
-
+        OutboxSender.sendOutbox(context, accountId);
     }
 }
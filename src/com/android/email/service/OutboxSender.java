@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.TrafficStats;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.android.email.NotificationController;
+import com.android.email.R;
+import com.android.email.mail.Sender;
+import com.android.email.mail.Store;
+import com.android.email2.ui.MailActivityEmail;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sends the messages in an account's outbox, then moves them to the sent folder or deletes them.
+ *
+ * The outbox messages, their attachments and the messages they reply to or forward are read up
+ * front, in one query each, rather than a few queries per message, and handed to the sender as
+ * they are. The messages are then sent over a small pool of sessions (at most
+ * {@code R.integer.max_outbox_sessions}), this thread's and others from the parallel executor.
+ * Messages that reply to or forward the same message, or one another, are sent in order
+ * by a single session, so that they arrive in the order they were written; other messages may
+ * be sent in any order. The time taken to send each message is logged.
+ */
+public class OutboxSender {
+    private static final String TAG = Logging.LOG_TAG;
+
+    private static final String[] BODY_SOURCE_PROJECTION = {
+        BodyColumns.MESSAGE_KEY, BodyColumns.SOURCE_MESSAGE_KEY
+    };
+
+    /** An outbox message, with its attachments. */
+    @VisibleForTesting
+    static class OutboxMessage {
+        final Message mMessage;
+        final Attachment[] mAttachments;
+
+        OutboxMessage(Message message, Attachment[] attachments) {
+            mMessage = message;
+            mAttachments = attachments;
+        }
+    }
+
+    /** Makes the sender for each session; tests stand in senders of their own. */
+    @VisibleForTesting
+    interface SenderFactory {
+        Sender getSender() throws MessagingException;
+    }
+
+    private final Context mContext;
+    private final Account mAccount;
+    private final SenderFactory mSenderFactory;
+    private final NotificationController mNotificationController;
+    /** The folder sent messages are moved to, or NO_MAILBOX if they are deleted. */
+    private final long mSentFolderId;
+    /** Groups of messages that remain to be sent, each by one session, in order. */
+    private final LinkedList<List<OutboxMessage>> mGroups;
+    private volatile boolean mAuthenticationFailed;
+
+    private OutboxSender(Context context, Account account, SenderFactory senderFactory,
+            long sentFolderId, List<List<OutboxMessage>> groups) {
+        mContext = context;
+        mAccount = account;
+        mSenderFactory = senderFactory;
+        mNotificationController = NotificationController.getInstance(context);
+        mSentFolderId = sentFolderId;
+        mGroups = new LinkedList<List<OutboxMessage>>(groups);
+    }
+
+    /**
+     * Send the messages in an account's outbox. Failures are reported per message (and, for
+     * authentication failures, with a notification); the other messages are still sent.
+     */
+    public static void sendOutbox(final Context context, long accountId) {
+        final Account account = Account.restoreAccountWithId(context, accountId);
+        if (account == null) {
+            return;
+        }
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSmtpFlags(context, account));
+        final long outboxId = Mailbox.findMailboxOfType(context, account.mId, Mailbox.TYPE_OUTBOX);
+        if (outboxId == Mailbox.NO_MAILBOX) {
+            return;
+        }
+        final List<List<OutboxMessage>> groups = loadOutbox(context, outboxId);
+        if (groups.isEmpty()) {
+            return;
+        }
+        long sentFolderId = Mailbox.NO_MAILBOX;
+        try {
+            if (Store.getInstance(account, context).requireCopyMessageToSentFolder()) {
+                sentFolderId = Mailbox.findMailboxOfType(context, account.mId, Mailbox.TYPE_SENT);
+                if (sentFolderId == Mailbox.NO_MAILBOX) {
+                    // Keep sent mail, in a sent folder made for it as the folder list sync would
+                    final Mailbox sentFolder =
+                            Mailbox.newSystemMailbox(context, account.mId, Mailbox.TYPE_SENT);
+                    sentFolder.save(context);
+                    sentFolderId = sentFolder.mId;
+                }
+            }
+        } catch (MessagingException me) {
+            LogUtils.w(TAG, me, "Unable to send the outbox of account %d", account.mId);
+            return;
+        }
+        send(context, account, new SenderFactory() {
+            @Override
+            public Sender getSender() throws MessagingException {
+                return Sender.getInstance(context, account);
+            }
+        }, sentFolderId, groups);
+    }
+
+    /**
+     * Send groups of outbox messages (see {@link #loadOutbox}) over as many sessions as allowed.
+     *
+     * @param sentFolderId the folder to move sent messages to, or NO_MAILBOX to delete them
+     */
+    @VisibleForTesting
+    static void send(Context context, Account account, SenderFactory senderFactory,
+            long sentFolderId, List<List<OutboxMessage>> groups) {
+        new OutboxSender(context, account, senderFactory, sentFolderId, groups).sendAll();
+    }
+
+    /**
+     * Read the messages in the outbox, with their attachments, and group those that must be
+     * sent in order.
+     *
+     * @return the groups, in the order of their first message; each in the order written
+     */
+    @VisibleForTesting
+    static List<List<OutboxMessage>> loadOutbox(Context context, long outboxId) {
+        final ContentResolver resolver = context.getContentResolver();
+        final LinkedHashMap<Long, Message> messages = new LinkedHashMap<Long, Message>();
+        Cursor c = resolver.query(Message.CONTENT_URI, Message.CONTENT_PROJECTION,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] {Long.toString(outboxId)},
+                EmailContent.RECORD_ID);
+        if (c == null) {
+            return new ArrayList<List<OutboxMessage>>();
+        }
+        try {
+            while (c.moveToNext()) {
+                final Message message = new Message();
+                message.restore(c);
+                messages.put(message.mId, message);
+            }
+        } finally {
+            c.close();
+        }
+        if (messages.isEmpty()) {
+            return new ArrayList<List<OutboxMessage>>();
+        }
+        final String inMessages = " IN (" + TextUtils.join(",", messages.keySet()) + ")";
+
+        final Map<Long, List<Attachment>> attachments = new HashMap<Long, List<Attachment>>();
+        c = resolver.query(Attachment.CONTENT_URI, Attachment.CONTENT_PROJECTION,
+                AttachmentColumns.MESSAGE_KEY + inMessages, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    final Attachment attachment = new Attachment();
+                    attachment.restore(c);
+                    List<Attachment> list = attachments.get(attachment.mMessageKey);
+                    if (list == null) {
+                        list = new ArrayList<Attachment>();
+                        attachments.put(attachment.mMessageKey, list);
+                    }
+                    list.add(attachment);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        final Map<Long, Long> sourceKeys = new HashMap<Long, Long>();
+        c = resolver.query(Body.CONTENT_URI, BODY_SOURCE_PROJECTION,
+                BodyColumns.MESSAGE_KEY + inMessages, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    sourceKeys.put(c.getLong(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        // A message goes in the group of the message it replies to or forwards, whether that's
+        // in the outbox or not; the rest go in groups of their own
+        final LinkedHashMap<Long, List<OutboxMessage>> groups =
+                new LinkedHashMap<Long, List<OutboxMessage>>();
+        final Map<Long, Long> groupKeys = new HashMap<Long, Long>();
+        for (Message message : messages.values()) {
+            final Long sourceKey = sourceKeys.get(message.mId);
+            long groupKey = message.mId;
+            if (sourceKey != null && sourceKey > 0) {
+                final Long sourceGroupKey = groupKeys.get(sourceKey);
+                groupKey = sourceGroupKey != null ? sourceGroupKey : sourceKey;
+            }
+            groupKeys.put(message.mId, groupKey);
+            List<OutboxMessage> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<OutboxMessage>();
+                groups.put(groupKey, group);
+            }
+            final List<Attachment> messageAttachments = attachments.get(message.mId);
+            group.add(new OutboxMessage(message, messageAttachments == null
+                    ? new Attachment[0]
+                    : messageAttachments.toArray(new Attachment[messageAttachments.size()])));
+        }
+        return new ArrayList<List<OutboxMessage>>(groups.values());
+    }
+
+    /**
+     * Send all the groups, on this thread and as many others as the pool allows.
+     */
+    private void sendAll() {
+        final int sessions = Math.min(mGroups.size(),
+                Math.max(1, mContext.getResources().getInteger(R.integer.max_outbox_sessions)));
+        final int tag = TrafficFlags.getSmtpFlags(mContext, mAccount);
+        final CountDownLatch helpersDone = new CountDownLatch(sessions - 1);
+        for (int i = 0; i < sessions - 1; i++) {
+            EmailAsyncTask.runAsyncParallel(new Runnable() {
+                @Override
+                public void run() {
+                    TrafficStats.setThreadStatsTag(tag);
+                    try {
+                        sendGroups();
+                    } finally {
+                        TrafficStats.clearThreadStatsTag();
+                        helpersDone.countDown();
+                    }
+                }
+            });
+        }
+        sendGroups();
+        try {
+            helpersDone.await();
+        } catch (InterruptedException e) {
+            // The helpers finish on their own; we just won't know how it went
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!mAuthenticationFailed) {
+            mNotificationController.cancelLoginFailedNotification(mAccount.mId);
+        }
+    }
+
+    private List<OutboxMessage> nextGroup() {
+        synchronized (mGroups) {
+            return mGroups.poll();
+        }
+    }
+
+    /**
+     * Send groups of messages over one session, until there are none left.
+     */
+    private void sendGroups() {
+        Sender sender = null;
+        try {
+            List<OutboxMessage> group;
+            while (!mAuthenticationFailed && (group = nextGroup()) != null) {
+                if (sender == null) {
+                    sender = mSenderFactory.getSender();
+                }
+                for (OutboxMessage message : group) {
+                    // There's no point trying the rest with credentials that don't work
+                    if (mAuthenticationFailed) {
+                        break;
+                    }
+                    sendMessage(sender, message);
+                }
+            }
+        } catch (MessagingException me) {
+            LogUtils.w(TAG, me, "Unable to get a sender for account %d", mAccount.mId);
+        } finally {
+            if (sender != null) {
+                try {
+                    sender.close();
+                } catch (MessagingException me) {
+                    // Nothing more to send on it anyway
+                }
+            }
+        }
+    }
+
+    private void sendMessage(Sender sender, OutboxMessage outboxMessage) {
+        final Message message = outboxMessage.mMessage;
+        final long messageId = message.mId;
+        // Don't send messages with unloaded attachments
+        if (Utility.hasUnloadedAttachments(mContext, message, outboxMessage.mAttachments)) {
+            if (MailActivityEmail.DEBUG) {
+                LogUtils.d(TAG, "Can't send #" + messageId + "; unloaded attachments");
+            }
+            return;
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            sender.sendMessage(message, Arrays.asList(outboxMessage.mAttachments));
+        } catch (MessagingException me) {
+            // report error for this message, but keep trying others
+            LogUtils.w(TAG, "Sending #%d failed after %d ms: %s", messageId,
+                    SystemClock.elapsedRealtime() - startTime, me.toString());
+            if (me instanceof AuthenticationFailedException) {
+                mAuthenticationFailed = true;
+                mNotificationController.showLoginFailedNotification(mAccount.mId);
+            }
+            return;
+        }
+        LogUtils.d(TAG, "Sent #%d in %d ms", messageId,
+                SystemClock.elapsedRealtime() - startTime);
+
+        // Move to sent, or delete
+        final ContentResolver resolver = mContext.getContentResolver();
+        final Uri syncedUri = ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageId);
+        // Delete all cached files
+        AttachmentUtilities.deleteCachedAttachmentFiles(outboxMessage.mAttachments);
+        if (mSentFolderId != Mailbox.NO_MAILBOX) {
+            // If this is a forwarded message and it has attachments, delete them, as they
+            // duplicate information found elsewhere (on the server).  This saves storage.
+            if ((message.mFlags & Message.FLAG_TYPE_FORWARD) != 0) {
+                AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, messageId);
+            }
+            final int flags = message.mFlags & ~(Message.FLAG_TYPE_REPLY |
+                    Message.FLAG_TYPE_FORWARD |
+                    Message.FLAG_TYPE_REPLY_ALL |
+                    Message.FLAG_TYPE_ORIGINAL);
+            final ContentValues moveToSentValues = new ContentValues(2);
+            moveToSentValues.put(MessageColumns.MAILBOX_KEY, mSentFolderId);
+            moveToSentValues.put(MessageColumns.FLAGS, flags);
+            resolver.update(syncedUri, moveToSentValues, null, null);
+        } else {
+            AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, messageId);
+            final Uri uri = ContentUris.withAppendedId(Message.CONTENT_URI, messageId);
+            resolver.delete(uri, null, null);
+            resolver.delete(syncedUri, null, null);
+        }
+    }
+}
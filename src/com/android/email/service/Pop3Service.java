@@ -38,6 +38,7 @@ import com.android.email2.ui.MailActivityEmail;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
@@ -51,6 +52,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.ProgressThrottle;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.providers.UIProvider.AccountCapabilities;
 import com.android.mail.providers.UIProvider.AttachmentState;
@@ -183,47 +185,66 @@ public class Pop3Service extends Service {
         }
 
         try {
-            int cnt = unsyncedMessages.size();
-            // They are in most recent to least recent order, process them that way.
-            for (int i = 0; i < cnt; i++) {
-                final Pop3Message message = unsyncedMessages.get(i);
-                remoteFolder.fetchBody(message, Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76,
-                        null);
-                int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                if (!message.isComplete()) {
-                    // TODO: when the message is not complete, this should mark the message as
-                    // partial.  When that change is made, we need to make sure that:
-                    // 1) Partial messages are shown in the conversation list
-                    // 2) We are able to download the rest of the message/attachment when the
-                    //    user requests it.
-                     flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
-                }
-                if (MailActivityEmail.DEBUG) {
-                    LogUtils.d(TAG, "Message is " + (message.isComplete() ? "" : "NOT ")
-                            + "complete");
-                }
-                // If message is incomplete, create a "fake" attachment
-                Utilities.copyOneMessageToProvider(context, message, account, toMailbox, flag);
-            }
+            // They are in most recent to least recent order, process them that way.  With
+            // pipelining, each is saved while the next are still arriving.
+            remoteFolder.fetchBodies(unsyncedMessages,
+                    Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76,
+                    new MessageRetrievalListener() {
+                        @Override
+                        public void messageRetrieved(com.android.emailcommon.mail.Message message) {
+                            int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
+                            if (!message.isComplete()) {
+                                // TODO: when the message is not complete, this should mark the
+                                // message as partial.  When that change is made, we need to make
+                                // sure that:
+                                // 1) Partial messages are shown in the conversation list
+                                // 2) We are able to download the rest of the message/attachment
+                                //    when the user requests it.
+                                 flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
+                            }
+                            if (MailActivityEmail.DEBUG) {
+                                LogUtils.d(TAG, "Message is " + (message.isComplete() ? "" : "NOT ")
+                                        + "complete");
+                            }
+                            // If message is incomplete, create a "fake" attachment
+                            Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
+                                    flag);
+                        }
+
+                        @Override
+                        public void loadAttachmentProgress(int progress) {
+                        }
+                    });
         } catch (IOException e) {
             throw new MessagingException(MessagingException.IOERROR);
         }
     }
 
+    /**
+     * Records the progress of an attachment's download in its row, as often as it's worth
+     * showing; EOLConvertingInputStream reports every few kilobytes read.
+     */
     private static class FetchCallback implements EOLConvertingInputStream.Callback {
         private final ContentResolver mResolver;
         private final Uri mAttachmentUri;
         private final ContentValues mContentValues = new ContentValues();
+        private final ProgressThrottle mThrottle;
 
-        FetchCallback(ContentResolver resolver, Uri attachmentUri) {
+        FetchCallback(ContentResolver resolver, Uri attachmentUri, long size) {
             mResolver = resolver;
             mAttachmentUri = attachmentUri;
+            mThrottle = new ProgressThrottle(size) {
+                @Override
+                protected void report(long bytesRead) {
+                    mContentValues.put(AttachmentColumns.UI_DOWNLOADED_SIZE, bytesRead);
+                    mResolver.update(mAttachmentUri, mContentValues, null, null);
+                }
+            };
         }
 
         @Override
         public void report(int bytesRead) {
-            mContentValues.put(AttachmentColumns.UI_DOWNLOADED_SIZE, bytesRead);
-            mResolver.update(mAttachmentUri, mContentValues, null, null);
+            mThrottle.update(bytesRead);
         }
     }
 
@@ -288,10 +309,13 @@ public class Pop3Service extends Service {
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 null);
+        final ArrayList<Long> updateIds = new ArrayList<Long>();
+        final ArrayList<Pop3Message> deletedMessages = new ArrayList<Pop3Message>();
         try {
             // loop through messages marked as deleted
             while (updates.moveToNext()) {
                 long id = updates.getLong(Message.ID_COLUMNS_ID_COLUMN);
+                updateIds.add(id);
                 EmailContent.Message currentMsg =
                         EmailContent.Message.restoreMessageWithId(context, id);
                 if (currentMsg.mMailboxKey == trashMailboxId) {
@@ -299,16 +323,23 @@ public class Pop3Service extends Service {
                     Pop3Message popMessage =
                             (Pop3Message)remoteFolder.getMessage(currentMsg.mServerId);
                     if (popMessage != null) {
-                        remoteFolder.deleteMessage(popMessage);
+                        deletedMessages.add(popMessage);
                     }
                 }
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI, id);
-                context.getContentResolver().delete(uri, null, null);
             }
         } finally {
             updates.close();
         }
+        // Delete them on the server all at once, so the DELEs can be pipelined
+        if (!deletedMessages.isEmpty()) {
+            remoteFolder.deleteMessages(
+                    deletedMessages.toArray(new Pop3Message[deletedMessages.size()]));
+        }
+        // Finally, delete the updates
+        for (long id : updateIds) {
+            Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI, id);
+            context.getContentResolver().delete(uri, null, null);
+        }
 
         // Get the remote message count.
         final int remoteMessageCount = remoteFolder.getMessageCount();
@@ -317,16 +348,13 @@ public class Pop3Service extends Service {
         mailbox.updateMessageCount(context, remoteMessageCount);
 
         // Create a list of messages to download
-        Pop3Message[] remoteMessages = new Pop3Message[0];
         final ArrayList<Pop3Message> unsyncedMessages = new ArrayList<Pop3Message>();
-        HashMap<String, Pop3Message> remoteUidMap = new HashMap<String, Pop3Message>();
 
         if (remoteMessageCount > 0) {
             /*
-             * Get all messageIds in the mailbox.
-             * We don't necessarily need to sync all of them.
+             * The remote messages are looked at by number, newest first; only those we need to
+             * sync are made into messages. We don't necessarily need to sync all of them.
              */
-            remoteMessages = remoteFolder.getMessages(remoteMessageCount, remoteMessageCount);
             LogUtils.d(Logging.LOG_TAG, "remoteMessageCount " + remoteMessageCount);
 
             /*
@@ -338,10 +366,6 @@ public class Pop3Service extends Service {
              */
             int count = 0;
             int countNeeded = DEFAULT_SYNC_COUNT;
-            for (final Pop3Message message : remoteMessages) {
-                final String uid = message.getUid();
-                remoteUidMap.put(uid, message);
-            }
 
             /*
              * Figure out which messages we need to sync. Start at the most recent ones, and keep
@@ -359,8 +383,12 @@ public class Pop3Service extends Service {
              * 4. We examine all of the remote messages before running into any of our count
              * limitations.
              */
-            for (final Pop3Message message : remoteMessages) {
-                final String uid = message.getUid();
+            for (int msgNum = remoteMessageCount; msgNum > 0; msgNum--) {
+                final String uid = remoteFolder.getUid(msgNum);
+                if (uid == null) {
+                    // Deleted during this sync
+                    continue;
+                }
                 final LocalMessageInfo localMessage = localMessageMap.get(uid);
                 if (localMessage == null) {
                     count++;
@@ -379,7 +407,7 @@ public class Pop3Service extends Service {
                         (localMessage.mFlagLoaded != EmailContent.Message.FLAG_LOADED_COMPLETE &&
                                 localMessage.mFlagLoaded != Message.FLAG_LOADED_PARTIAL)) {
                     LogUtils.d(Logging.LOG_TAG, "need to sync " + uid);
-                    unsyncedMessages.add(message);
+                    unsyncedMessages.add((Pop3Message) remoteFolder.getMessage(uid));
                 } else {
                     LogUtils.d(Logging.LOG_TAG, "don't need to sync " + uid);
                 }
@@ -416,12 +444,12 @@ public class Pop3Service extends Service {
                     continue;
                 } else {
                     String uid = msg.mServerId;
-                    Pop3Message popMessage = remoteUidMap.get(uid);
+                    Pop3Message popMessage = (Pop3Message) remoteFolder.getMessage(uid);
                     if (popMessage != null) {
                         Uri attUri = ContentUris.withAppendedId(Attachment.CONTENT_URI, att.mId);
                         try {
                             remoteFolder.fetchBody(popMessage, -1,
-                                    new FetchCallback(resolver, attUri));
+                                    new FetchCallback(resolver, attUri, att.mSize));
                         } catch (IOException e) {
                             throw new MessagingException(MessagingException.IOERROR);
                         }
@@ -451,8 +479,12 @@ public class Pop3Service extends Service {
         }
 
         // Remove any messages that are in the local store but no longer on the remote store.
-        HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
-        localUidsToDelete.removeAll(remoteUidMap.keySet());
+        HashSet<String> localUidsToDelete = new HashSet<String>();
+        for (String uid : localMessageMap.keySet()) {
+            if (!remoteFolder.hasMessage(uid)) {
+                localUidsToDelete.add(uid);
+            }
+        }
         for (String uidToDelete : localUidsToDelete) {
             LogUtils.d(Logging.LOG_TAG, "need to delete " + uidToDelete);
             LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
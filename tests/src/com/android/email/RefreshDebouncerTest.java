@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of deciding when to act on bursts of changes.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.RefreshDebouncerTest email
+ */
+@SmallTest
+public class RefreshDebouncerTest extends AndroidTestCase {
+    private static final long MIN_DELAY = 1000;
+    private static final long MAX_DELAY = 15000;
+
+    private final MockClock mClock = new MockClock();
+    private final RefreshDebouncer mTarget = new RefreshDebouncer(mClock, MIN_DELAY, MAX_DELAY);
+
+    public void testQuietChangesAtOnce() {
+        assertEquals(0, mTarget.onChange());
+        mClock.advance(MAX_DELAY + 1);
+        assertEquals(0, mTarget.onChange());
+        mClock.advance(MAX_DELAY + 1);
+        assertEquals(0, mTarget.onChange());
+    }
+
+    public void testBurstWaitsLonger() {
+        assertEquals(0, mTarget.onChange());
+
+        // Changes coming faster than the wait make it longer
+        mClock.advance(100);
+        assertEquals(2 * MIN_DELAY, mTarget.onChange());
+        mClock.advance(100);
+        assertEquals(4 * MIN_DELAY, mTarget.onChange());
+        mClock.advance(100);
+        assertEquals(8 * MIN_DELAY, mTarget.onChange());
+
+        // Once the burst is over, the changes are acted on
+        mClock.advance(8 * MIN_DELAY);
+        mTarget.onRefresh();
+
+        // A change soon after the burst still waits, as long as the burst's last wait
+        mClock.advance(2 * MIN_DELAY);
+        assertEquals(8 * MIN_DELAY, mTarget.onChange());
+        mClock.advance(8 * MIN_DELAY);
+        mTarget.onRefresh();
+
+        // After a quiet spell, it's back to acting at once, then waiting the least
+        mClock.advance(MAX_DELAY + 1);
+        assertEquals(0, mTarget.onChange());
+        assertEquals(MIN_DELAY, mTarget.getQuietDelayForTest());
+    }
+
+    public void testNoLongerThanMaxDelay() {
+        assertEquals(0, mTarget.onChange());
+        // A change every half second for a minute; each wait replaces the one before
+        long deadline = 0;
+        long firstWaiting = 0;
+        for (int i = 0; i < 120; i++) {
+            mClock.advance(500);
+            final long now = mClock.getTime();
+            if (deadline != 0 && now >= deadline) {
+                // The wait ran out, and the changes were acted on
+                mTarget.onRefresh();
+                deadline = 0;
+            }
+            if (deadline == 0) {
+                firstWaiting = now;
+            }
+            deadline = now + mTarget.onChange();
+            assertTrue(deadline - firstWaiting <= MAX_DELAY);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.mail.store.ParallelRangeFetcher.RangeSink;
+import com.android.email.mail.store.ParallelRangeFetcher.RangeSource;
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of fetching ranges over several connections at once, with sources that stand in for
+ * connections to a server with some latency.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.ParallelRangeFetcherTests email
+ */
+@SmallTest
+public class ParallelRangeFetcherTests extends AndroidTestCase {
+    private static final int RANGE_SIZE = 1000;
+    private static final long LATENCY_MS = 20;
+
+    private final byte[] mData = new byte[RANGE_SIZE * 40 + 123];
+
+    /** Serves ranges of the data after a delay, and fails once asked for the failing offset */
+    private class SlowSource implements RangeSource {
+        private final long mFailAt;
+
+        SlowSource(long failAt) {
+            mFailAt = failAt;
+        }
+
+        @Override
+        public byte[] fetch(long offset, int length) throws IOException {
+            SystemClock.sleep(LATENCY_MS);
+            if (offset >= mFailAt) {
+                throw new IOException("Connection dropped");
+            }
+            final int start = (int) Math.min(offset, mData.length);
+            return Arrays.copyOfRange(mData, start, Math.min(mData.length, start + length));
+        }
+    }
+
+    private static class Sink implements RangeSink {
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        @Override
+        public void write(byte[] data) {
+            mOut.write(data, 0, data.length);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(1).nextBytes(mData);
+    }
+
+    private static ArrayList<RangeSource> getSources(RangeSource... sources) {
+        return new ArrayList<RangeSource>(Arrays.asList(sources));
+    }
+
+    public void testFetchInOrder() throws IOException, MessagingException {
+        final Sink sink = new Sink();
+        final ParallelRangeFetcher fetcher = new ParallelRangeFetcher(getSources(
+                new SlowSource(Long.MAX_VALUE), new SlowSource(Long.MAX_VALUE),
+                new SlowSource(Long.MAX_VALUE)), RANGE_SIZE);
+        assertEquals(mData.length, fetcher.fetch(0, sink));
+        assertTrue(Arrays.equals(mData, sink.mOut.toByteArray()));
+
+        // From part way through
+        final Sink rest = new Sink();
+        assertEquals(mData.length - 5000, fetcher.fetch(5000, rest));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(mData, 5000, mData.length),
+                rest.mOut.toByteArray()));
+    }
+
+    public void testFailedSourceDropsOut() throws IOException, MessagingException {
+        // One source fails part way, another at once (e.g. a connection the server refuses)
+        final Sink sink = new Sink();
+        final ParallelRangeFetcher fetcher = new ParallelRangeFetcher(getSources(
+                new SlowSource(Long.MAX_VALUE), new SlowSource(10 * RANGE_SIZE),
+                new SlowSource(0)), RANGE_SIZE);
+        assertEquals(mData.length, fetcher.fetch(0, sink));
+        assertTrue(Arrays.equals(mData, sink.mOut.toByteArray()));
+    }
+
+    public void testFailure() throws MessagingException {
+        // The source to fall back on fails, so the fetch does
+        final Sink sink = new Sink();
+        final ParallelRangeFetcher fetcher = new ParallelRangeFetcher(getSources(
+                new SlowSource(10 * RANGE_SIZE), new SlowSource(Long.MAX_VALUE),
+                new SlowSource(Long.MAX_VALUE)), RANGE_SIZE);
+        try {
+            fetcher.fetch(0, sink);
+            fail("Failure not thrown");
+        } catch (IOException e) {
+            // Everything before the failed range was passed on, in order
+            final byte[] fetched = sink.mOut.toByteArray();
+            assertTrue(fetched.length >= 10 * RANGE_SIZE);
+            assertTrue(fetched.length < mData.length);
+            assertTrue(Arrays.equals(Arrays.copyOf(mData, fetched.length), fetched));
+        }
+    }
+
+    public void testLastSourceFailure() throws MessagingException {
+        // Every source fails, the one to fall back on last
+        final ParallelRangeFetcher fetcher = new ParallelRangeFetcher(getSources(
+                new SlowSource(20 * RANGE_SIZE), new SlowSource(0), new SlowSource(0)),
+                RANGE_SIZE);
+        final Sink sink = new Sink();
+        try {
+            fetcher.fetch(0, sink);
+            fail("Failure not thrown");
+        } catch (IOException e) {
+            assertEquals(20 * RANGE_SIZE, sink.mOut.size());
+        }
+    }
+
+    /**
+     * An extra source fails, leaving its range to be fetched again, and then the source to fall
+     * back on fails on a later range before fetching it; the fetch fails at the earlier range
+     * rather than waiting for it forever.
+     */
+    public void testFallbackFailsAfterExtraSource() throws Exception {
+        final AtomicLong extraRange = new AtomicLong(-1);
+        final CountDownLatch extraStarted = new CountDownLatch(1);
+        final CountDownLatch fallbackFailing = new CountDownLatch(1);
+        final CountDownLatch extraFailed = new CountDownLatch(1);
+        final RangeSource fallback = new SlowSource(Long.MAX_VALUE) {
+            @Override
+            public byte[] fetch(long offset, int length) throws IOException {
+                try {
+                    extraStarted.await(10, TimeUnit.SECONDS);
+                    if (offset / RANGE_SIZE > extraRange.get()) {
+                        fallbackFailing.countDown();
+                        extraFailed.await(10, TimeUnit.SECONDS);
+                        // Let the extra source's failure be noted first
+                        SystemClock.sleep(LATENCY_MS * 5);
+                        throw new IOException("Connection dropped");
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return super.fetch(offset, length);
+            }
+        };
+        final RangeSource extra = new RangeSource() {
+            @Override
+            public byte[] fetch(long offset, int length) throws IOException {
+                extraRange.set(offset / RANGE_SIZE);
+                extraStarted.countDown();
+                try {
+                    fallbackFailing.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                extraFailed.countDown();
+                throw new IOException("Connection refused");
+            }
+        };
+        final ParallelRangeFetcher fetcher =
+                new ParallelRangeFetcher(getSources(fallback, extra), RANGE_SIZE);
+        final Sink sink = new Sink();
+        final AtomicReference<Exception> thrown = new AtomicReference<Exception>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    fetcher.fetch(0, sink);
+                } catch (Exception e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join(10000);
+        assertFalse("Fetch never finished", thread.isAlive());
+        assertTrue(thrown.get() instanceof IOException);
+        // Only what came before the extra source's range was passed on
+        assertEquals(extraRange.get() * RANGE_SIZE, sink.mOut.size());
+    }
+
+    /**
+     * The sources fetch at the same time: each one's first fetch waits until all of them are
+     * fetching, which never happens if they take turns.
+     */
+    public void testSourcesFetchAtOnce() throws IOException, MessagingException {
+        final int sources = 4;
+        final CountDownLatch allFetching = new CountDownLatch(sources);
+        final AtomicInteger timedOut = new AtomicInteger();
+        final ArrayList<RangeSource> list = new ArrayList<RangeSource>();
+        for (int i = 0; i < sources; i++) {
+            list.add(new SlowSource(Long.MAX_VALUE) {
+                private boolean mWaited;
+
+                @Override
+                public byte[] fetch(long offset, int length) throws IOException {
+                    if (!mWaited) {
+                        mWaited = true;
+                        allFetching.countDown();
+                        try {
+                            if (!allFetching.await(10, TimeUnit.SECONDS)) {
+                                timedOut.incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            throw new IOException(e.toString());
+                        }
+                    }
+                    return super.fetch(offset, length);
+                }
+            });
+        }
+        final Sink sink = new Sink();
+        assertEquals(mData.length, new ParallelRangeFetcher(list, RANGE_SIZE).fetch(0, sink));
+        assertEquals(0, timedOut.get());
+        assertTrue(Arrays.equals(mData, sink.mOut.toByteArray()));
+    }
+}
@@ -23,6 +23,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import com.android.email.Controller;
 import com.android.email.DBTestHelper;
 import com.android.email.mail.Transport;
+import com.android.email.mail.transport.MailTransport;
 import com.android.email.mail.transport.MockTransport;
 import com.android.email.provider.ProviderTestUtils;
 import com.android.emailcommon.TempDirectory;
@@ -32,12 +33,21 @@ import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Folder.FolderType;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.Message;
 import com.android.emailcommon.mail.Message.RecipientType;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
@@ -472,7 +482,8 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
      * further along in each case, to test various recovery points.
      *
      * This test confirms that Pop3Store needs to call close() in the IOExceptionHandler in
-     * Pop3Folder.getMessages(), due to non-numeric data in a single-line UIDL.
+     * Pop3Folder.getMessages(), due to non-numeric data in the UIDL of a large maildrop, which
+     * is indexed with a single bulk UIDL like any other.
      */
     public void testCatchClosed1c() throws MessagingException {
 
@@ -485,8 +496,9 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
 
         // index the message(s) - it should fail, because our stream is broken
         try {
-            // setupUidlSequence(mockTransport, 1);
-            mockTransport.expect("UIDL 1", "+OK " + "bad-data" + " " + "THE-UIDL");
+            mockTransport.expect("UIDL", "+OK sending UIDL list");
+            mockTransport.expect(null, "1" + " " + "THE-UIDL");
+            mockTransport.expect(null, "bad-data" + " " + "THE-UIDL");
 
             Message[] messages = mFolder.getMessages(1, 1, null);
             fail("Bad UIDL should cause getMessages() to throw.");
@@ -867,6 +879,70 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * With PIPELINING, the TOPs for several messages are all sent before their responses are
+     * read; a failed TOP is retried with RETR, whose response comes after the rest
+     */
+    public void testFetchBodiesPipelined() throws MessagingException, IOException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "PIPELINING,TOP,UIDL");
+        mFolder.open(OpenMode.READ_WRITE);
+        setupUidlSequence(mockTransport, 3);
+        // Newest first
+        Message[] messages = mFolder.getMessages(3, 3);
+        assertEquals(3, messages.length);
+        final ArrayList<Pop3Store.Pop3Message> toFetch = new ArrayList<Pop3Store.Pop3Message>();
+        for (Message message : messages) {
+            toFetch.add((Pop3Store.Pop3Message) message);
+        }
+
+        // The mock sends each whole response as soon as its command is written
+        mockTransport.expect("TOP 3 10", getMessageResponse());
+        mockTransport.expect("TOP 2 10", "-ERR unsupported command");
+        mockTransport.expect("TOP 1 10", getMessageResponse());
+        mockTransport.expect("RETR 2", getMessageResponse());
+
+        final ArrayList<String> fetched = new ArrayList<String>();
+        mFolder.fetchBodies(toFetch, 10, new MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+                fetched.add(message.getUid());
+            }
+
+            @Override
+            public void loadAttachmentProgress(int progress) {
+            }
+        });
+        assertEquals(3, fetched.size());
+        assertEquals(getSingleMessageUID(3), fetched.get(0));
+        assertEquals(getSingleMessageUID(1), fetched.get(1));
+        assertEquals(getSingleMessageUID(2), fetched.get(2));
+        for (Message message : messages) {
+            checkFetchedMessage(message, 0, false);
+        }
+
+        // And the DELEs go together too
+        mockTransport.expect("DELE 3", "+OK message deleted");
+        mockTransport.expect("DELE 2", "+OK message deleted");
+        mockTransport.expect("DELE 1", "+OK message deleted");
+        mFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+    }
+
+    /**
+     * A whole positive response to TOP or RETR, for the mock to send at once
+     */
+    private static String[] getMessageResponse() {
+        return new String[] {
+                "+OK message follows",
+                "Date: 26 Aug 76 1429 EDT",
+                "From: Jones@Registry.Org",
+                "To:   Smith@Registry.Org",
+                "CC:   Chris@Registry.Org",
+                "Reply-To: Roger@Registry.Org",
+                "",
+                "." };
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -1058,6 +1134,81 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         transport.expect(null, ".");
     }
 
+    /**
+     * Build a multi-line response body of roughly the given size, in which many lines start
+     * with a dot.
+     */
+    private static String buildResponseBody(int size) {
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < size; i++) {
+            if (i % 5 == 0) {
+                body.append('.');
+            }
+            body.append("Line ").append(i).append(" of the message\r\n");
+        }
+        return body.toString();
+    }
+
+    /**
+     * Read a response body from the wire, a block of the given size at a time, and check that
+     * it's the original body and that what follows the response is left unread.
+     */
+    private static void checkResponseStream(InputStream wire, String body, int blockSize)
+            throws IOException {
+        final InputStream in = new Pop3Store.Pop3ResponseInputStream(wire);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[blockSize];
+        int count;
+        while ((count = in.read(buffer, 0, blockSize)) != -1) {
+            assertTrue(count > 0);
+            out.write(buffer, 0, count);
+        }
+        assertEquals(-1, in.read());
+        assertEquals(body, out.toString("US-ASCII"));
+        assertEquals('+', wire.read());
+    }
+
+    /**
+     * Dot-unstuffing and the terminating line are found whatever the block boundaries, and
+     * whether or not the transport supports mark
+     */
+    public void testResponseInputStream() throws IOException {
+        final String body = buildResponseBody(64 * 1024);
+        final byte[] wire = (body.replaceAll("(?m)^\\.", "..") + ".\r\n+OK next\r\n")
+                .getBytes("US-ASCII");
+        for (int blockSize : new int[] { 1, 2, 3, 1000, 100000 }) {
+            checkResponseStream(new BufferedInputStream(new ByteArrayInputStream(wire),
+                    MailTransport.INPUT_BUFFER_SIZE), body, blockSize);
+            checkResponseStream(new NoMarkInputStream(wire), body, blockSize);
+        }
+    }
+
+    /**
+     * Time reading a 10 MB RETR response; the log shows how long it takes
+     */
+    public void testResponseInputStreamLarge() throws IOException {
+        final String body = buildResponseBody(10 * 1024 * 1024);
+        final byte[] wire = (body.replaceAll("(?m)^\\.", "..") + ".\r\n+OK next\r\n")
+                .getBytes("US-ASCII");
+        final long start = System.currentTimeMillis();
+        checkResponseStream(new BufferedInputStream(new ByteArrayInputStream(wire),
+                MailTransport.INPUT_BUFFER_SIZE), body, 4096);
+        LogUtils.d("Email", "10 MB RETR response read in %d ms",
+                System.currentTimeMillis() - start);
+    }
+
+    /** A stream that can't mark, so the response stream reads it a byte at a time */
+    private static class NoMarkInputStream extends ByteArrayInputStream {
+        NoMarkInputStream(byte[] buffer) {
+            super(buffer);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     /**
      * Generates a simple unique code for each message.  Repeatable.
      * @param msgNum The message number
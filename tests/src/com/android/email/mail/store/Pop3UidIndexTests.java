@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of the index of POP3 unique ids.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.Pop3UidIndexTests email
+ */
+@SmallTest
+public class Pop3UidIndexTests extends AndroidTestCase {
+    private static final int MESSAGE_COUNT = 20000;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "Pop3UidIndexTests");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testLookup() {
+        // Start small, so that it has to grow
+        final Pop3UidIndex index = new Pop3UidIndex(1);
+        for (int msgNum = 1; msgNum <= MESSAGE_COUNT; msgNum++) {
+            index.put(msgNum, "uid-" + msgNum);
+        }
+        assertEquals(MESSAGE_COUNT, index.getMessageCount());
+        for (int msgNum = 1; msgNum <= MESSAGE_COUNT; msgNum++) {
+            assertEquals("uid-" + msgNum, index.getUid(msgNum));
+            assertEquals(msgNum, index.getMsgNum("uid-" + msgNum));
+        }
+        assertEquals(-1, index.getMsgNum("uid-0"));
+        assertNull(index.getUid(0));
+        assertNull(index.getUid(MESSAGE_COUNT + 1));
+
+        // A removed message can't be found, but those around it still can
+        index.remove(100);
+        assertNull(index.getUid(100));
+        assertEquals(-1, index.getMsgNum("uid-100"));
+        assertEquals(99, index.getMsgNum("uid-99"));
+        assertEquals(101, index.getMsgNum("uid-101"));
+    }
+
+    public void testSnapshot() {
+        final Pop3UidIndex index = new Pop3UidIndex(MESSAGE_COUNT);
+        for (int msgNum = 1; msgNum <= MESSAGE_COUNT; msgNum++) {
+            index.put(msgNum, "uid-" + msgNum);
+        }
+        index.save(mFile);
+
+        final Pop3UidIndex loaded = Pop3UidIndex.load(mFile);
+        assertNotNull(loaded);
+        assertEquals(MESSAGE_COUNT, loaded.getMessageCount());
+        assertEquals(1234, loaded.getMsgNum("uid-1234"));
+
+        // New messages are added to the end
+        loaded.put(MESSAGE_COUNT + 1, "new");
+        assertEquals(MESSAGE_COUNT + 1, loaded.getMsgNum("new"));
+    }
+
+    public void testBadSnapshot() throws IOException {
+        assertNull(Pop3UidIndex.load(mFile));
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 5, 0 });
+        out.close();
+        assertNull(Pop3UidIndex.load(mFile));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A minimal SMTP server on a local socket, for tests that need to see what goes over the wire.
+ * It accepts any login and any message, and offers the given extensions in its EHLO reply.
+ *
+ * It counts round trips: the times it had replies to send and nothing more to read.  Like a real
+ * server, it only sends its replies then, so a client that pipelines its commands costs fewer
+ * round trips than one that waits for each reply.
+ */
+public class FakeSmtpServer implements Runnable {
+    /** How long to wait for more of a pipelined group before replying. */
+    private static final int PIPELINE_WAIT_MS = 50;
+
+    private final ServerSocket mServerSocket;
+    private final String[] mExtensions;
+    private final Thread mThread;
+
+    private final List<String> mCommands = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mMessages = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int mRoundTrips;
+
+    public FakeSmtpServer(String... extensions) throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mExtensions = extensions;
+        mThread = new Thread(this, "FakeSmtpServer");
+        mThread.start();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /** The number of times the server has sent replies so far. */
+    public int getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    /** The commands received so far, not including message data. */
+    public List<String> getCommands() {
+        synchronized (mCommands) {
+            return new ArrayList<String>(mCommands);
+        }
+    }
+
+    /** The messages received so far, as sent (after removing any dot-stuffing). */
+    public List<String> getMessages() {
+        synchronized (mMessages) {
+            return new ArrayList<String>(mMessages);
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        mThread.join();
+    }
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                try {
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Closed by shutdown(), or the client went away
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = socket.getOutputStream();
+        final StringBuilder replies = new StringBuilder();
+        final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+
+        reply(replies, "220 fake ESMTP ready");
+        flushReplies(in, out, replies);
+        String line;
+        while ((line = readLine(in)) != null) {
+            mCommands.add(line);
+            final String[] words = line.split(" ");
+            final String verb = words[0].toUpperCase(Locale.US);
+            if (verb.equals("EHLO")) {
+                reply(replies, "250-fake hello");
+                for (String extension : mExtensions) {
+                    reply(replies, "250-" + extension);
+                }
+                reply(replies, "250 AUTH PLAIN LOGIN");
+            } else if (verb.equals("AUTH")) {
+                reply(replies, "235 2.7.0 Authenticated");
+            } else if (verb.equals("MAIL") || verb.equals("RCPT") || verb.equals("RSET")
+                    || verb.equals("NOOP")) {
+                reply(replies, "250 2.0.0 OK");
+            } else if (verb.equals("DATA")) {
+                reply(replies, "354 Go ahead");
+                flushReplies(in, out, replies);
+                mMessages.add(readData(in));
+                reply(replies, "250 2.0.0 Accepted");
+            } else if (verb.equals("BDAT")) {
+                final byte[] chunk = new byte[Integer.parseInt(words[1])];
+                int read = 0;
+                while (read < chunk.length) {
+                    final int n = in.read(chunk, read, chunk.length - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                chunks.write(chunk);
+                if (words.length > 2 && words[2].equalsIgnoreCase("LAST")) {
+                    mMessages.add(new String(chunks.toByteArray(), "UTF-8"));
+                    chunks.reset();
+                }
+                reply(replies, "250 2.0.0 Chunk accepted");
+            } else if (verb.equals("QUIT")) {
+                reply(replies, "221 2.0.0 Bye");
+                flushReplies(in, out, replies);
+                return;
+            } else {
+                reply(replies, "500 5.5.1 Unrecognized command");
+            }
+            flushReplies(in, out, replies);
+        }
+    }
+
+    private static void reply(StringBuilder replies, String reply) {
+        replies.append(reply).append("\r\n");
+    }
+
+    /**
+     * Send the pending replies, unless the client has sent more; that's the rest of a pipelined
+     * group, and its replies will go with these.
+     */
+    private void flushReplies(InputStream in, OutputStream out, StringBuilder replies)
+            throws IOException {
+        if (replies.length() == 0 || in.available() > 0) {
+            return;
+        }
+        try {
+            Thread.sleep(PIPELINE_WAIT_MS);
+        } catch (InterruptedException e) {
+            // Just reply now
+        }
+        if (in.available() > 0) {
+            return;
+        }
+        mRoundTrips++;
+        out.write(replies.toString().getBytes("US-ASCII"));
+        out.flush();
+        replies.setLength(0);
+    }
+
+    /**
+     * Read the data following DATA, up to the line with a single ".", removing dot-stuffing.
+     */
+    private static String readData(InputStream in) throws IOException {
+        final StringBuilder message = new StringBuilder();
+        String line;
+        while ((line = readLine(in)) != null && !line.equals(".")) {
+            if (line.startsWith(".")) {
+                line = line.substring(1);
+            }
+            message.append(line).append("\r\n");
+        }
+        return message.toString();
+    }
+
+    /**
+     * Read a line ending in CRLF, without the CRLF, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), "UTF-8");
+    }
+}
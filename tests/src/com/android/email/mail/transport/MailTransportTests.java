@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.net.TrafficStats;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.TrafficFlags;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of MailTransport's reading, writing and counting, over streams in memory.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.transport.MailTransportTests email
+ */
+@SmallTest
+public class MailTransportTests extends TestCase {
+    /** Small enough that lines run across several fills of the buffer */
+    private static final MailTransport.Options SMALL_BUFFERS =
+            new MailTransport.Options(64, 64, 0, 0, false, false);
+
+    /** Accounts that the tests' traffic is recorded for; no real account has ids so high */
+    private static final int SYNC_ACCOUNT = 0xFF01;
+    private static final int ATTACHMENT_ACCOUNT = 0xFF02;
+
+    private static final Pattern TRANSFER_PATTERN =
+            Pattern.compile("(\\d+) bytes in, (\\d+) bytes out, (\\d+) connections");
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MailTransport openTransport(String label, MailTransport.Options options,
+            String input, ByteArrayOutputStream out) {
+        final MailTransport transport = new MailTransport(null, label, null, options);
+        transport.openStreams(new ByteArrayInputStream(getBytes(input)), out);
+        return transport;
+    }
+
+    private static String repeat(char c, int count) {
+        final StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    public void testReadLine() throws IOException {
+        final String longLine = repeat('x', 600);
+        final String input = "* OK ready\r\n" + longLine + "\r\nbare newline\n\r\nété\r\nlast";
+        final MailTransport transport = openTransport("IMAP", SMALL_BUFFERS, input,
+                new ByteArrayOutputStream());
+
+        // Each line is read up to its end, and what follows is given back for the next
+        assertEquals("* OK ready", transport.readLine(false));
+        assertEquals(longLine, transport.readLine(false));
+        assertEquals("bare newline", transport.readLine(false));
+        assertEquals("", transport.readLine(false));
+        assertEquals("été", transport.readLine(false));
+        assertEquals("last", transport.readLine(false));
+        assertEquals("", transport.readLine(false));
+
+        // Bytes are counted once, however often they were marked and reset within the buffer
+        assertEquals(input.length(), transport.getBytesRead());
+        assertEquals(0, transport.getBytesWritten());
+    }
+
+    public void testReadLineLeavesData() throws IOException {
+        final MailTransport transport = openTransport("POP3", MailTransport.POP3_OPTIONS,
+                "+OK 12 octets\r\nmessage data", new ByteArrayOutputStream());
+        assertEquals("+OK 12 octets", transport.readLine(false));
+
+        // The data after the line is there to be read from the stream in blocks
+        final InputStream in = transport.getInputStream();
+        final byte[] data = new byte[100];
+        assertEquals(12, in.read(data));
+        assertEquals("message data", new String(data, 0, 12, "ISO-8859-1"));
+        assertEquals(-1, in.read());
+    }
+
+    public void testCountingInput() throws IOException {
+        final String input = repeat('y', 200);
+        final MailTransport transport = openTransport("IMAP", SMALL_BUFFERS, input,
+                new ByteArrayOutputStream());
+        final InputStream in = transport.getInputStream();
+
+        // Skipped bytes count as read, as do those read a byte at a time and in blocks
+        assertEquals(50, in.skip(50));
+        assertEquals(50, transport.getBytesRead());
+        assertEquals('y', in.read());
+        assertEquals(50 + SMALL_BUFFERS.inputBufferSize, transport.getBytesRead());
+        final byte[] buffer = new byte[200];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            assertTrue(count <= buffer.length);
+        }
+        assertEquals(input.length(), transport.getBytesRead());
+    }
+
+    public void testWriteLine() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MailTransport transport = openTransport("SMTP", SMALL_BUFFERS, "", out);
+
+        transport.writeLine("EHLO localhost", null);
+        assertEquals("EHLO localhost\r\n", out.toString("ISO-8859-1"));
+
+        // A command longer than the command buffer grows it, and a shorter one after that
+        // doesn't pick up what was left from the longer
+        final String longCommand = "RCPT TO:<" + repeat('z', 400) + "@example.com>";
+        transport.writeLine(longCommand, null);
+        transport.writeLine("DATA", null);
+        assertEquals("EHLO localhost\r\n" + longCommand + "\r\nDATA\r\n",
+                out.toString("ISO-8859-1"));
+
+        // A command that isn't all ASCII is written as UTF-8
+        out.reset();
+        transport.writeLine("A1 SELECT été", null);
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write("A1 SELECT été".getBytes("UTF-8"));
+        expected.write('\r');
+        expected.write('\n');
+        assertEquals(expected.toString("ISO-8859-1"), out.toString("ISO-8859-1"));
+
+        assertEquals(("EHLO localhost\r\n" + longCommand + "\r\nDATA\r\n").length()
+                + expected.size(), transport.getBytesWritten());
+    }
+
+    public void testWriteLineWithoutFlush() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MailTransport transport = openTransport("IMAP", MailTransport.IMAP_OPTIONS, "",
+                out);
+
+        // Pipelined commands wait in the buffer, and go out together
+        transport.writeLine("A1 NOOP", null, false);
+        transport.writeLine("A2 NOOP", null, false);
+        assertEquals(0, out.size());
+        assertEquals(0, transport.getBytesWritten());
+        transport.writeLine("A3 NOOP", null);
+        assertEquals("A1 NOOP\r\nA2 NOOP\r\nA3 NOOP\r\n", out.toString("ISO-8859-1"));
+        assertEquals(out.size(), transport.getBytesWritten());
+    }
+
+    /**
+     * @return the bytes in, bytes out and connections recorded so far for the flags
+     */
+    private static long[] getTransfer(int flags) {
+        final StringWriter writer = new StringWriter();
+        TrafficFlags.dumpTransfers(new PrintWriter(writer));
+        final String prefix = "  " + TrafficFlags.toString(flags) + ": ";
+        for (String line : writer.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                final Matcher matcher = TRANSFER_PATTERN.matcher(line);
+                assertTrue(matcher.find());
+                return new long[] {Long.parseLong(matcher.group(1)),
+                        Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3))};
+            }
+        }
+        return new long[3];
+    }
+
+    private static void assertTransferred(long[] before, long[] after, long in, long out) {
+        assertEquals(in, after[0] - before[0]);
+        assertEquals(out, after[1] - before[1]);
+        assertEquals(1, after[2] - before[2]);
+    }
+
+    public void testTrafficRecordedByTag() throws IOException {
+        final int syncFlags = SYNC_ACCOUNT | TrafficFlags.REASON_SYNC;
+        final int attachmentFlags = ATTACHMENT_ACCOUNT | TrafficFlags.REASON_ATTACHMENT_USER;
+        final long[] syncBefore = getTransfer(syncFlags);
+        final long[] attachmentBefore = getTransfer(attachmentFlags);
+
+        // Each connection's traffic goes to the tag of the thread that closes it
+        final int oldTag = TrafficStats.getThreadStatsTag();
+        try {
+            TrafficStats.setThreadStatsTag(syncFlags);
+            final MailTransport imap = openTransport("IMAP", MailTransport.IMAP_OPTIONS,
+                    "* OK\r\n", new ByteArrayOutputStream());
+            imap.readLine(false);
+            imap.writeLine("A1 NOOP", null);
+            imap.close();
+
+            TrafficStats.setThreadStatsTag(attachmentFlags);
+            final MailTransport pop3 = openTransport("POP3", MailTransport.POP3_OPTIONS,
+                    "+OK POP3 ready\r\n", new ByteArrayOutputStream());
+            pop3.readLine(false);
+            pop3.writeLine("QUIT", null);
+            pop3.close();
+        } finally {
+            TrafficStats.setThreadStatsTag(oldTag);
+        }
+
+        assertTransferred(syncBefore, getTransfer(syncFlags), 6, 9);
+        assertTransferred(attachmentBefore, getTransfer(attachmentFlags), 16, 6);
+    }
+}
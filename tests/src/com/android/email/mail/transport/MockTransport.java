@@ -354,6 +354,14 @@ public class MockTransport implements Transport {
         }
     }
 
+    /**
+     * As {@link #writeLine(String, String)}; there's nothing to flush.
+     */
+    public void writeLine(String s, String sensitiveReplacement, boolean flush)
+            throws IOException {
+        writeLine(s, sensitiveReplacement);
+    }
+
     /**
      * This is an InputStream that satisfies the needs of getInputStream()
      */
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.DBTestHelper;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.HostAuth;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests of the SMTP extensions used by SmtpSender, against a local fake server that counts the
+ * round trips each message costs.
+ *
+ * These tests can be run with the following command:
+ *   runtest -c com.android.email.mail.transport.SmtpPipeliningTests email
+ */
+@LargeTest
+public class SmtpPipeliningTests extends AndroidTestCase {
+    private static final int RECIPIENT_COUNT = 40;
+    private static final String TEXT = "First line\n.starts with a dot\nété\n";
+
+    private Context mProviderContext;
+    private FakeSmtpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        super.tearDown();
+    }
+
+    private long saveMessage(int recipientCount, String text) {
+        final StringBuilder to = new StringBuilder();
+        for (int i = 0; i < recipientCount; i++) {
+            if (i > 0) {
+                to.append(", ");
+            }
+            to.append("recipient").append(i).append("@example.com");
+        }
+        final Message message = new Message();
+        message.mTimeStamp = System.currentTimeMillis();
+        message.mFrom = Address.parseAndPack("sender@example.com");
+        message.mTo = Address.parseAndPack(to.toString());
+        message.mMessageId = "1234567890";
+        message.save(mProviderContext);
+
+        final Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = text;
+        body.save(mProviderContext);
+        return message.mId;
+    }
+
+    /**
+     * Send a message to the fake server, after logging in.
+     *
+     * @return the number of round trips the message itself took
+     */
+    private int send(long messageId, String... extensions) throws Exception {
+        mServer = new FakeSmtpServer(extensions);
+        final HostAuth sendAuth = new HostAuth();
+        sendAuth.setLogin("user", "password");
+        sendAuth.setConnection("smtp", "127.0.0.1", mServer.getPort(), HostAuth.FLAG_NONE);
+        final Account account = new Account();
+        account.mHostAuthSend = sendAuth;
+
+        final SmtpSender sender = new SmtpSender(mProviderContext, account);
+        try {
+            sender.open();
+            final int before = mServer.getRoundTrips();
+            sender.sendMessage(messageId);
+            return mServer.getRoundTrips() - before;
+        } finally {
+            sender.close();
+        }
+    }
+
+    private int countCommands(String prefix) {
+        int count = 0;
+        for (String command : mServer.getCommands()) {
+            if (command.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void testParseCapabilities() {
+        final List<String> lines = Arrays.asList("250-mail.example.com Hello", "250-PIPELINING",
+                "250-size 1000000", "250-AUTH LOGIN PLAIN", "250 chunking");
+        final Set<String> capabilities = SmtpSender.parseCapabilities(lines);
+        assertEquals(4, capabilities.size());
+        assertTrue(capabilities.contains(SmtpSender.CAPABILITY_PIPELINING));
+        assertTrue(capabilities.contains(SmtpSender.CAPABILITY_CHUNKING));
+        assertTrue(capabilities.contains("SIZE"));
+        assertTrue(capabilities.contains("AUTH"));
+    }
+
+    /**
+     * Without extensions, every envelope command waits for its reply, and the text is base64
+     */
+    public void testNoExtensions() throws Exception {
+        final long messageId = saveMessage(RECIPIENT_COUNT, TEXT);
+        // MAIL, each RCPT, DATA, and the end of the data
+        assertEquals(RECIPIENT_COUNT + 3, send(messageId));
+        assertEquals(1, countCommands("MAIL FROM:<sender@example.com>"));
+        assertEquals(RECIPIENT_COUNT, countCommands("RCPT TO:"));
+        final String received = mServer.getMessages().get(0);
+        assertTrue(received.contains("Content-Transfer-Encoding: base64"));
+    }
+
+    /**
+     * With PIPELINING, the whole envelope costs one round trip
+     */
+    public void testPipelining() throws Exception {
+        final long messageId = saveMessage(RECIPIENT_COUNT, TEXT);
+        assertEquals(2, send(messageId, "PIPELINING"));
+        assertEquals(RECIPIENT_COUNT, countCommands("RCPT TO:"));
+        assertEquals(1, countCommands("DATA"));
+    }
+
+    /**
+     * With 8BITMIME, the text goes as is, and a line starting with a dot survives the DATA
+     */
+    public void test8BitMimeDotStuffing() throws Exception {
+        final long messageId = saveMessage(1, TEXT);
+        send(messageId, "8BITMIME");
+        assertEquals(1, countCommands("MAIL FROM:<sender@example.com> BODY=8BITMIME"));
+        final String received = mServer.getMessages().get(0);
+        assertTrue(received.contains("Content-Transfer-Encoding: 8bit"));
+        assertTrue(received.contains("\r\n.starts with a dot\r\nété\r\n"));
+    }
+
+    /**
+     * With PIPELINING and CHUNKING, the message goes in a single BDAT after the envelope
+     */
+    public void testPipeliningAndChunking() throws Exception {
+        final long messageId = saveMessage(RECIPIENT_COUNT, TEXT);
+        assertEquals(2, send(messageId, "PIPELINING", "CHUNKING", "8BITMIME"));
+        assertEquals(0, countCommands("DATA"));
+        assertEquals(1, countCommands("BDAT "));
+        final List<String> commands = mServer.getCommands();
+        assertTrue(commands.get(commands.size() - 1).matches("BDAT \\d+ LAST"));
+        final String received = mServer.getMessages().get(0);
+        assertTrue(received.contains("\r\n.starts with a dot\r\nété\r\n"));
+    }
+
+    /**
+     * With SIZE, MAIL FROM declares the exact size of the message
+     */
+    public void testSize() throws Exception {
+        final long messageId = saveMessage(1, TEXT);
+        send(messageId, "SIZE 10000000", "CHUNKING");
+        final int size = mServer.getMessages().get(0).getBytes("UTF-8").length;
+        assertEquals(1, countCommands("MAIL FROM:<sender@example.com> SIZE=" + size));
+    }
+
+    /**
+     * Without PIPELINING, each BDAT chunk waits for its reply
+     */
+    public void testChunkingLargeMessage() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < SmtpSender.BDAT_CHUNK_SIZE * 2) {
+            text.append("A line of text that will be repeated many times\n");
+        }
+        final long messageId = saveMessage(1, text.toString());
+        final int roundTrips = send(messageId, "CHUNKING");
+        final int chunks = countCommands("BDAT ");
+        assertTrue(chunks >= 3);
+        // MAIL, RCPT and each chunk
+        assertEquals(2 + chunks, roundTrips);
+        assertTrue(mServer.getMessages().get(0).length() > SmtpSender.BDAT_CHUNK_SIZE * 2);
+    }
+}
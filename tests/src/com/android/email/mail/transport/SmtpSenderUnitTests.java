@@ -119,9 +119,9 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         // TODO The test is a bit fragile, as we are order-dependent (and headers are not)
         expectSimpleMessage(mockTransport);
         mockTransport.expect("Content-Type: text/plain; charset=utf-8");
-        mockTransport.expect("Content-Transfer-Encoding: base64");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
         mockTransport.expect("");
-        mockTransport.expect(TEST_STRING_BASE64);
+        mockTransport.expect(TEST_STRING);
         mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
@@ -174,7 +174,8 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
      * Prepare to receive a simple message (see setupSimpleMessage)
      */
     private void expectSimpleMessage(MockTransport mockTransport) {
-        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+        // setupOpen() offers 8BITMIME and SIZE
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> BODY=8BITMIME SIZE=\\d+",
                 "250 2.1.0 <Jones@Registry.Org> sender ok");
         mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
                 "250 2.1.5 <Smith@Registry.Org> recipient ok");
@@ -219,6 +220,62 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         }
     }
 
+    /**
+     * Save a message with a plain text body, and stuff the mock with the traffic to send it
+     */
+    private long setupSimpleMessageWithBody(MockTransport mockTransport) {
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        expectSimpleMessage(mockTransport);
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        return message.mId;
+    }
+
+    /**
+     * Test:  Send two messages on one session; the second only resets the transaction
+     */
+    public void testSendMessagesReusesSession() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+        long firstId = setupSimpleMessageWithBody(mockTransport);
+        // No new greeting, EHLO or AUTH before the second message
+        mockTransport.expect("RSET", "250 2.0.0 Flushed");
+        long secondId = setupSimpleMessageWithBody(mockTransport);
+
+        mSender.sendMessage(firstId);
+        mSender.sendMessage(secondId);
+    }
+
+    /**
+     * Test:  Reconnect when the reused session has gone away
+     */
+    public void testSendMessageReconnectsLostSession() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+        long firstId = setupSimpleMessageWithBody(mockTransport);
+        mockTransport.expectIOException();
+        mockTransport.expectClose();
+        setupOpen(mockTransport, null);
+        long secondId = setupSimpleMessageWithBody(mockTransport);
+
+        mSender.sendMessage(firstId);
+        mSender.sendMessage(secondId);
+    }
+
     /**
      * Test:  Recover from a server closing early (or returning an empty string)
      */
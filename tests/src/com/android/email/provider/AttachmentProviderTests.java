@@ -454,6 +454,20 @@ public class AttachmentProviderTests extends ProviderTestCase2<AttachmentProvide
         afd.close();
     }
 
+    /**
+     * test getSampleSize() - images are decoded no smaller than the thumbnail
+     */
+    public void testGetSampleSize() {
+        // A 12 MP photo
+        assertEquals(32, AttachmentProvider.getSampleSize(4000, 3000, 62, 62));
+        assertEquals(8, AttachmentProvider.getSampleSize(4000, 3000, 320, 240));
+        // Only as far as the smaller side allows
+        assertEquals(2, AttachmentProvider.getSampleSize(4000, 300, 100, 100));
+        // Already small enough
+        assertEquals(1, AttachmentProvider.getSampleSize(100, 100, 62, 62));
+        assertEquals(1, AttachmentProvider.getSampleSize(40, 40, 62, 62));
+    }
+
     private Uri createAttachment(Account account, long messageId, String contentUriStr) {
         // Add an attachment entry.
         Attachment newAttachment = ProviderTestUtils.setupAttachment(messageId, "file", 100,
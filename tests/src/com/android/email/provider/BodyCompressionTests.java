@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+/**
+ * Tests of the transparent Body compression.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.BodyCompressionTests email
+ */
+@LargeTest
+public class BodyCompressionTests extends ProviderTestCase2<EmailProvider> {
+    private static final String TAG = "BodyCompressionTests";
+
+    private Context mMockContext;
+
+    public BodyCompressionTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    /** Something that looks (and compresses) roughly like a newsletter. */
+    private static String makeNewsletter(int length) {
+        final StringBuilder sb = new StringBuilder(length + 200);
+        sb.append("<html><body><table width=\"600\">");
+        int row = 0;
+        while (sb.length() < length) {
+            sb.append("<tr><td style=\"font-family: Arial; font-size: 12px; color: #333333\">")
+                    .append("<a href=\"http://example.com/track?id=").append(row++)
+                    .append("\">Article ").append(row).append("</a> &mdash; été")
+                    .append("</td></tr>");
+        }
+        sb.append("</table></body></html>");
+        return sb.toString();
+    }
+
+    public void testCompressRoundTrip() {
+        final String html = makeNewsletter(200 * 1024);
+        final byte[] compressed = BodyCompression.compress(html);
+        assertTrue(compressed.length < html.length());
+        assertEquals(html, BodyCompression.decompress(compressed, Body.CODEC_DEFLATE));
+        assertNull(BodyCompression.decompress(compressed, Body.CODEC_NONE));
+        assertNull(BodyCompression.decompress(null, Body.CODEC_DEFLATE));
+    }
+
+    public void testCompressValues() {
+        final String small = "small body";
+        final String large = makeNewsletter(BodyCompression.COMPRESSION_THRESHOLD);
+
+        ContentValues values = new ContentValues();
+        values.put(BodyColumns.TEXT_CONTENT, small);
+        BodyCompression.compressValues(values);
+        assertEquals(small, values.getAsString(BodyColumns.TEXT_CONTENT));
+        assertNull(values.getAsByteArray(BodyColumns.TEXT_CONTENT_COMPRESSED));
+        assertFalse(values.containsKey(BodyColumns.HTML_CONTENT_COMPRESSED));
+        assertFalse(values.containsKey(BodyColumns.COMPRESSION_CODEC));
+
+        values = new ContentValues();
+        values.put(BodyColumns.HTML_CONTENT, large);
+        values.put(BodyColumns.TEXT_CONTENT, small);
+        BodyCompression.compressValues(values);
+        assertNull(values.getAsString(BodyColumns.HTML_CONTENT));
+        assertNotNull(values.getAsByteArray(BodyColumns.HTML_CONTENT_COMPRESSED));
+        assertEquals(small, values.getAsString(BodyColumns.TEXT_CONTENT));
+        assertEquals(Body.CODEC_DEFLATE,
+                (int) values.getAsInteger(BodyColumns.COMPRESSION_CODEC));
+    }
+
+    public void testDecompressingCursor() {
+        final String large = makeNewsletter(BodyCompression.COMPRESSION_THRESHOLD * 2);
+        final MatrixCursor raw = new MatrixCursor(new String[] {
+                BodyColumns.ID, BodyColumns.HTML_CONTENT,
+                BodyColumns.HTML_CONTENT_COMPRESSED, BodyColumns.COMPRESSION_CODEC});
+        raw.addRow(new Object[] {1L, null, BodyCompression.compress(large), Body.CODEC_DEFLATE});
+        raw.addRow(new Object[] {2L, "plain", null, Body.CODEC_NONE});
+        raw.addRow(new Object[] {3L, null, null, Body.CODEC_NONE});
+
+        final Cursor c = BodyCompression.wrapBodyCursor(raw,
+                new String[] {BodyColumns.ID, BodyColumns.HTML_CONTENT});
+        try {
+            assertEquals(2, c.getColumnCount());
+            assertEquals(2, c.getColumnNames().length);
+            assertTrue(c.moveToNext());
+            assertEquals(Cursor.FIELD_TYPE_STRING, c.getType(1));
+            assertFalse(c.isNull(1));
+            assertEquals(large, c.getString(1));
+            assertTrue(c.moveToNext());
+            assertEquals("plain", c.getString(1));
+            assertTrue(c.moveToNext());
+            assertTrue(c.isNull(1));
+            assertNull(c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testNullProjectionHidesStorageColumns() {
+        final Account account = ProviderTestUtils.setupAccount("hide", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("msg", account.mId, box.mId,
+                false, true, mMockContext);
+        final String html = makeNewsletter(200 * 1024);
+        ProviderTestUtils.setupBody(message.mId, "text", html, true, mMockContext);
+
+        final Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI, null,
+                BodyColumns.MESSAGE_KEY + "=?", new String[] {Long.toString(message.mId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(-1, c.getColumnIndex(BodyColumns.HTML_CONTENT_COMPRESSED));
+            assertEquals(-1, c.getColumnIndex(BodyColumns.HTML_CONTENT_FILE));
+            assertEquals(-1, c.getColumnIndex(BodyColumns.COMPRESSION_CODEC));
+            assertEquals(html, c.getString(c.getColumnIndex(BodyColumns.HTML_CONTENT)));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testProviderRoundTrip() {
+        final Account account = ProviderTestUtils.setupAccount("compress", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("msg", account.mId, box.mId,
+                false, true, mMockContext);
+        final String html = makeNewsletter(200 * 1024);
+        final String text = "short text";
+        ProviderTestUtils.setupBody(message.mId, text, html, true, mMockContext);
+
+        final Body body = Body.restoreBodyWithMessageId(mMockContext, message.mId);
+        assertEquals(html, body.mHtmlContent);
+        assertEquals(text, body.mTextContent);
+        assertEquals(html, Body.restoreBodyHtmlWithMessageId(mMockContext, message.mId));
+
+        // Check that it was actually stored compressed
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Cursor c = db.query(Body.TABLE_NAME, new String[] {BodyColumns.HTML_CONTENT,
+                BodyColumns.HTML_CONTENT_COMPRESSED}, BodyColumns.MESSAGE_KEY + "=?",
+                new String[] {Long.toString(message.mId)}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.isNull(0));
+            assertTrue(c.getBlob(1).length < html.length() / 4);
+        } finally {
+            c.close();
+        }
+
+        // Updating with a small body replaces the compressed copy
+        final ContentValues values = new ContentValues();
+        values.put(BodyColumns.HTML_CONTENT, "<p>small</p>");
+        Body.updateBodyWithMessageId(mMockContext, message.mId, values);
+        assertEquals("<p>small</p>", Body.restoreBodyHtmlWithMessageId(mMockContext, message.mId));
+    }
+
+    /**
+     * Not a correctness test; logs the storage saving and decode cost for a 200 KB newsletter.
+     */
+    public void testCompressionBenchmark() {
+        final String html = makeNewsletter(200 * 1024);
+        final int iterations = 20;
+        byte[] compressed = null;
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < iterations; i++) {
+            compressed = BodyCompression.compress(html);
+        }
+        final long compressMs = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < iterations; i++) {
+            BodyCompression.decompress(compressed, Body.CODEC_DEFLATE);
+        }
+        final long decompressMs = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, "200KB body: " + html.length() + " chars -> " + compressed.length
+                + " bytes; compress " + (compressMs / iterations) + "ms, decompress "
+                + (decompressMs / iterations) + "ms");
+    }
+}
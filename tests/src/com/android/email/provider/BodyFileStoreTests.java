@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Tests of the file-backed storage of oversized bodies.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.BodyFileStoreTests email
+ */
+@LargeTest
+public class BodyFileStoreTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+
+    public BodyFileStoreTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    private static String makeBody(int length) {
+        final StringBuilder sb = new StringBuilder(length + 64);
+        int i = 0;
+        while (sb.length() < length) {
+            sb.append("<p>Paragraph ").append(i++).append(" été</p>\n");
+        }
+        return sb.toString();
+    }
+
+    private String getFilePath(long messageId, String fileColumn) {
+        final Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {fileColumn}, Body.SELECTION_BY_MESSAGE_KEY,
+                new String[] {Long.toString(messageId)}, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int countBodyFiles(long accountId) {
+        final File[] files = BodyFileStore.getBodyDirectory(mMockContext, accountId).listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    public void testLargeBodyStoredInFile() {
+        final Account account = ProviderTestUtils.setupAccount("bodyfile", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("msg", account.mId, box.mId,
+                false, true, mMockContext);
+        final String html = makeBody(BodyFileStore.FILE_THRESHOLD + 1000);
+        final String text = "small text";
+        ProviderTestUtils.setupBody(message.mId, text, html, true, mMockContext);
+
+        // The row holds only the reference
+        final Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {BodyColumns.HTML_CONTENT, BodyColumns.HTML_CONTENT_FILE},
+                Body.SELECTION_BY_MESSAGE_KEY, new String[] {Long.toString(message.mId)}, null);
+        final File file;
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.isNull(0));
+            file = new File(c.getString(1));
+        } finally {
+            c.close();
+        }
+        assertTrue(file.exists());
+
+        // Readers still see the content, through the cursor or the file descriptor
+        assertEquals(html, Body.restoreBodyHtmlWithMessageId(mMockContext, message.mId));
+        assertEquals(text, Body.restoreBodyTextWithMessageId(mMockContext, message.mId));
+        final Body body = Body.restoreBodyWithMessageId(mMockContext, message.mId);
+        assertEquals(html, body.mHtmlContent);
+
+        // Replacing it with another large body writes a new file, and removes the old one
+        final String html2 = makeBody(BodyFileStore.FILE_THRESHOLD + 2000);
+        ContentValues values = new ContentValues();
+        values.put(BodyColumns.HTML_CONTENT, html2);
+        Body.updateBodyWithMessageId(mMockContext, message.mId, values);
+        assertFalse(file.exists());
+        final File file2 = new File(getFilePath(message.mId, BodyColumns.HTML_CONTENT_FILE));
+        assertTrue(file2.exists());
+        assertEquals(html2, Body.restoreBodyHtmlWithMessageId(mMockContext, message.mId));
+
+        // Replacing it with a small body removes the file
+        values = new ContentValues();
+        values.put(BodyColumns.HTML_CONTENT, "<p>small</p>");
+        Body.updateBodyWithMessageId(mMockContext, message.mId, values);
+        assertFalse(file2.exists());
+        assertEquals(0, countBodyFiles(account.mId));
+        assertEquals("<p>small</p>", Body.restoreBodyHtmlWithMessageId(mMockContext, message.mId));
+    }
+
+    public void testFileDeletedWithMessage() {
+        final Account account = ProviderTestUtils.setupAccount("bodyfile2", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("msg", account.mId, box.mId,
+                false, true, mMockContext);
+        ProviderTestUtils.setupBody(message.mId, makeBody(BodyFileStore.FILE_THRESHOLD), null,
+                true, mMockContext);
+        final File file = new File(getFilePath(message.mId, BodyColumns.TEXT_CONTENT_FILE));
+        assertTrue(file.exists());
+
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), null, null);
+        assertFalse(file.exists());
+    }
+
+    public void testFilesDeletedWithMailbox() {
+        final Account account = ProviderTestUtils.setupAccount("bodyfile3", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        for (int i = 0; i < 2; i++) {
+            final Message message = ProviderTestUtils.setupMessage("msg" + i, account.mId,
+                    box.mId, false, true, mMockContext);
+            ProviderTestUtils.setupBody(message.mId, makeBody(BodyFileStore.FILE_THRESHOLD),
+                    null, true, mMockContext);
+        }
+        assertEquals(2, countBodyFiles(account.mId));
+
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Mailbox.CONTENT_URI, box.mId), null, null);
+        assertEquals(0, countBodyFiles(account.mId));
+    }
+
+    public void testFileDeletedWhenBatchFails() throws Exception {
+        final Account account = ProviderTestUtils.setupAccount("bodyfile4", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("msg", account.mId, box.mId,
+                false, true, mMockContext);
+
+        final ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(Body.CONTENT_URI)
+                .withValue(BodyColumns.MESSAGE_KEY, message.mId)
+                .withValue(BodyColumns.HTML_CONTENT, makeBody(BodyFileStore.FILE_THRESHOLD))
+                .build());
+        // Fails, rolling back the insert
+        ops.add(ContentProviderOperation.newAssertQuery(Body.CONTENT_URI)
+                .withSelection(Body.SELECTION_BY_MESSAGE_KEY,
+                        new String[] {Long.toString(message.mId)})
+                .withExpectedCount(2)
+                .build());
+        try {
+            getProvider().applyBatch(ops);
+            fail("Expected the batch to fail");
+        } catch (OperationApplicationException e) {
+            // Expected
+        }
+        assertNull(getFilePath(message.mId, BodyColumns.HTML_CONTENT_FILE));
+        assertEquals(0, countBodyFiles(account.mId));
+    }
+}
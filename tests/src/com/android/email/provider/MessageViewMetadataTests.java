@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Tests of the message view data precomputed by the provider.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageViewMetadataTests email
+ */
+@LargeTest
+public class MessageViewMetadataTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+
+    public MessageViewMetadataTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    private Message setupMessage(String name) {
+        final Account account = ProviderTestUtils.setupAccount(name, true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage(name, account.mId, box.mId,
+                false, false, mMockContext);
+        message.mFrom = Address.pack(new Address[] {
+                new Address("alice@example.com", "Alice"), new Address("bob@example.com", null)});
+        message.save(mMockContext);
+        return message;
+    }
+
+    private String getMessageColumn(long messageId, String column) {
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Cursor c = db.query(Message.TABLE_NAME, new String[] {column},
+                EmailContent.RECORD_ID + "=?", new String[] {Long.toString(messageId)},
+                null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testEmbedsExternalResources() {
+        assertTrue(MessageViewMetadata.embedsExternalResources("<p><IMG\tsrc=\"x\"></p>"));
+        assertFalse(MessageViewMetadata.embedsExternalResources("<p>imgur</p>"));
+        assertFalse(MessageViewMetadata.embedsExternalResources(null));
+
+        final Message message = setupMessage("embeds");
+        ProviderTestUtils.setupBody(message.mId, null, "<img src=\"http://x\">", true,
+                mMockContext);
+        final Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {BodyColumns.EMBEDS_EXTERNAL_RESOURCES},
+                Body.SELECTION_BY_MESSAGE_KEY, new String[] {Long.toString(message.mId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSenderKeys() {
+        final Message message = setupMessage("senders");
+        final String keys = getMessageColumn(message.mId, MessageColumns.SENDER_KEYS);
+        final String[] senders = MessageViewMetadata.splitSenderKeys(keys, null);
+        assertEquals(2, senders.length);
+        assertEquals("alice@example.com", senders[0]);
+        assertEquals("bob@example.com", senders[1]);
+
+        // Rows written before the column existed fall back to the from list
+        final String[] fallback = MessageViewMetadata.splitSenderKeys(null, message.mFrom);
+        assertEquals(2, fallback.length);
+        assertEquals("bob@example.com", fallback[1]);
+
+        // The caller's values are left as they were
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FROM_LIST, message.mFrom);
+        final ContentValues withKeys = MessageViewMetadata.withSenderKeys(values);
+        assertFalse(values.containsKey(MessageColumns.SENDER_KEYS));
+        assertEquals(keys, withKeys.getAsString(MessageColumns.SENDER_KEYS));
+        final ContentValues noFrom = new ContentValues();
+        assertSame(noFrom, MessageViewMetadata.withSenderKeys(noFrom));
+    }
+
+    public void testAttachmentSummary() throws JSONException {
+        final Message message = setupMessage("attachments");
+        assertNull(getMessageColumn(message.mId, MessageColumns.ATTACHMENT_SUMMARY));
+
+        final Attachment first = ProviderTestUtils.setupAttachment(message.mId, "first.jpg",
+                1000, true, mMockContext);
+        final Attachment second = ProviderTestUtils.setupAttachment(message.mId, "second.pdf",
+                2000, true, mMockContext);
+        JSONArray summary =
+                new JSONArray(getMessageColumn(message.mId, MessageColumns.ATTACHMENT_SUMMARY));
+        assertEquals(2, summary.length());
+
+        // Renaming an attachment updates the summary
+        final ContentValues cv = new ContentValues();
+        cv.put(Attachment.FILENAME, "renamed.pdf");
+        mMockContext.getContentResolver().update(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, second.mId), cv, null, null);
+        assertTrue(getMessageColumn(message.mId, MessageColumns.ATTACHMENT_SUMMARY)
+                .contains("renamed.pdf"));
+
+        // As does deleting them
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, first.mId), null, null);
+        summary = new JSONArray(getMessageColumn(message.mId, MessageColumns.ATTACHMENT_SUMMARY));
+        assertEquals(1, summary.length());
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, second.mId), null, null);
+        assertNull(getMessageColumn(message.mId, MessageColumns.ATTACHMENT_SUMMARY));
+    }
+}
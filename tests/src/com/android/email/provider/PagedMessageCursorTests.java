@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the paged message list cursor.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.PagedMessageCursorTests email
+ */
+@LargeTest
+public class PagedMessageCursorTests extends ProviderTestCase2<EmailProvider> {
+    private static final String SELECT = "SELECT " + EmailContent.RECORD_ID + ","
+            + MessageColumns.SUBJECT;
+    private static final String WHERE = MessageColumns.MAILBOX_KEY + "=?";
+
+    private Context mMockContext;
+
+    public PagedMessageCursorTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+    }
+
+    /**
+     * Set up a mailbox with enough messages for a few pages; the test messages' timestamps
+     * depend only on the length of their names, so there are many ties.
+     */
+    private long setupMailbox(int messageCount) {
+        final Account account = ProviderTestUtils.setupAccount("paged", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        for (int i = 0; i < messageCount; i++) {
+            ProviderTestUtils.setupMessage("m" + i, account.mId, box.mId, false, true,
+                    mMockContext);
+        }
+        return box.mId;
+    }
+
+    private ArrayList<Long> getExpectedIds(SQLiteDatabase db, long mailboxId) {
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final Cursor c = db.rawQuery(SELECT + " FROM " + Message.TABLE_NAME + " WHERE " + WHERE
+                + " ORDER BY " + MessageColumns.TIMESTAMP + " DESC, " + EmailContent.RECORD_ID
+                + " DESC", new String[] {Long.toString(mailboxId)});
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    public void testSequentialAndRandomAccess() {
+        final int messageCount = PagedMessageCursor.PAGE_SIZE * 2 + 37;
+        final long mailboxId = setupMailbox(messageCount);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final ArrayList<Long> expected = getExpectedIds(db, mailboxId);
+
+        final Cursor c = new PagedMessageCursor(db, SELECT, WHERE,
+                new String[] {Long.toString(mailboxId)});
+        try {
+            assertEquals(messageCount, c.getCount());
+            // The keyset columns are hidden
+            assertEquals(2, c.getColumnCount());
+            int position = 0;
+            while (c.moveToNext()) {
+                assertEquals((long) expected.get(position), c.getLong(0));
+                assertNotNull(c.getString(1));
+                position++;
+            }
+            assertEquals(messageCount, position);
+
+            // Jump backwards (to an evicted or cached page) and forwards again
+            assertTrue(c.moveToPosition(3));
+            assertEquals((long) expected.get(3), c.getLong(0));
+            assertTrue(c.moveToLast());
+            assertEquals((long) expected.get(messageCount - 1), c.getLong(0));
+        } finally {
+            c.close();
+        }
+
+        // A fresh cursor jumping straight to the last page uses an offset
+        final Cursor jump = new PagedMessageCursor(db, SELECT, WHERE,
+                new String[] {Long.toString(mailboxId)});
+        try {
+            assertTrue(jump.moveToPosition(messageCount - 2));
+            assertEquals((long) expected.get(messageCount - 2), jump.getLong(0));
+        } finally {
+            jump.close();
+        }
+    }
+
+    public void testNullTimestamps() {
+        final int messageCount = PagedMessageCursor.PAGE_SIZE * 2 + 10;
+        final long mailboxId = setupMailbox(messageCount);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        // Enough rows without a timestamp that they start on one page and run across the next
+        db.execSQL("UPDATE " + Message.TABLE_NAME + " SET " + MessageColumns.TIMESTAMP
+                + "=NULL WHERE " + EmailContent.RECORD_ID + " IN (SELECT "
+                + EmailContent.RECORD_ID + " FROM " + Message.TABLE_NAME + " WHERE " + WHERE
+                + " ORDER BY " + EmailContent.RECORD_ID + " LIMIT "
+                + (PagedMessageCursor.PAGE_SIZE + 50) + ")",
+                new Object[] {mailboxId});
+        final ArrayList<Long> expected = getExpectedIds(db, mailboxId);
+
+        final Cursor c = new PagedMessageCursor(db, SELECT, WHERE,
+                new String[] {Long.toString(mailboxId)});
+        try {
+            int position = 0;
+            while (c.moveToNext()) {
+                assertEquals((long) expected.get(position), c.getLong(0));
+                position++;
+            }
+            assertEquals(messageCount, position);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testDeletedRows() {
+        final int messageCount = PagedMessageCursor.PAGE_SIZE + 10;
+        final long mailboxId = setupMailbox(messageCount);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final ArrayList<Long> expected = getExpectedIds(db, mailboxId);
+
+        final Cursor c = new PagedMessageCursor(db, SELECT, WHERE,
+                new String[] {Long.toString(mailboxId)});
+        try {
+            assertEquals(messageCount, c.getCount());
+            // Delete the rows of the second page before it's read
+            for (int i = PagedMessageCursor.PAGE_SIZE; i < messageCount; i++) {
+                db.delete(Message.TABLE_NAME, EmailContent.RECORD_ID + "=?",
+                        new String[] {Long.toString(expected.get(i))});
+            }
+            // The missing rows aren't made up; the cursor just can't move to them
+            int position = 0;
+            while (c.moveToNext()) {
+                assertEquals((long) expected.get(position), c.getLong(0));
+                position++;
+            }
+            assertEquals(PagedMessageCursor.PAGE_SIZE, position);
+            assertFalse(c.moveToPosition(messageCount - 1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testSmallMailbox() {
+        final long mailboxId = setupMailbox(3);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final Cursor c = new PagedMessageCursor(db, SELECT, WHERE,
+                new String[] {Long.toString(mailboxId)});
+        try {
+            assertEquals(3, c.getCount());
+            assertFalse(c.moveToPosition(3));
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -1683,6 +1683,44 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(2, getUnreadCount(boxC.mId));
     }
 
+    private int getMailboxType(long messageId) {
+        final Cursor c = mMockContext.getContentResolver().query(
+                ContentUris.withAppendedId(Message.CONTENT_URI, messageId),
+                new String[] {MessageColumns.MAILBOX_TYPE}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testMailboxTypeTriggers() {
+        Account account = ProviderTestUtils.setupAccount("types", true, mMockContext);
+        Mailbox inbox = ProviderTestUtils.setupMailbox("inbox", account.mId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        Mailbox trash = ProviderTestUtils.setupMailbox("trash", account.mId, true, mMockContext,
+                Mailbox.TYPE_TRASH);
+
+        // A new message takes the type of its mailbox
+        Message message = ProviderTestUtils.setupMessage("message", account.mId, inbox.mId,
+                false, true, mMockContext);
+        assertEquals(Mailbox.TYPE_INBOX, getMailboxType(message.mId));
+
+        // Moving it changes the type
+        ContentResolver cr = mMockContext.getContentResolver();
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.MAILBOX_KEY, trash.mId);
+        cr.update(ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv, null, null);
+        assertEquals(Mailbox.TYPE_TRASH, getMailboxType(message.mId));
+
+        // As does changing the type of the mailbox
+        cv.clear();
+        cv.put(MailboxColumns.TYPE, Mailbox.TYPE_MAIL);
+        cr.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, trash.mId), cv, null, null);
+        assertEquals(Mailbox.TYPE_MAIL, getMailboxType(message.mId));
+    }
+
     /**
      * Test for EmailProvider.createIndex().
      * Check that it returns exacly the same string as the one used previously for index creation.
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of the cache of attachment thumbnails.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ThumbnailCacheTests email
+ */
+@SmallTest
+public class ThumbnailCacheTests extends AndroidTestCase {
+    private static final int THUMBNAIL_SIZE = 1000;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "ThumbnailCacheTests");
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    private void deleteDir() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static boolean close(ParcelFileDescriptor fd) throws IOException {
+        if (fd == null) {
+            return false;
+        }
+        fd.close();
+        return true;
+    }
+
+    private boolean put(ThumbnailCache cache, String key) throws IOException {
+        final File tempFile = cache.createTempFile(key);
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        out.write(new byte[THUMBNAIL_SIZE]);
+        out.close();
+        return close(cache.put(key, tempFile));
+    }
+
+    private static boolean has(ThumbnailCache cache, String key) throws IOException {
+        return close(cache.open(key));
+    }
+
+    public void testGetKey() {
+        // Each size of an attachment's thumbnail is cached apart
+        assertFalse(ThumbnailCache.getKey(1, 2, 62, 62).equals(
+                ThumbnailCache.getKey(1, 2, 124, 124)));
+        assertFalse(ThumbnailCache.getKey(1, 2, 62, 62).equals(
+                ThumbnailCache.getKey(1, 3, 62, 62)));
+    }
+
+    public void testOpenAndPut() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, 10 * THUMBNAIL_SIZE);
+        assertFalse(has(cache, "a"));
+        assertTrue(put(cache, "a"));
+        final ParcelFileDescriptor fd = cache.open("a");
+        assertNotNull(fd);
+        assertEquals(THUMBNAIL_SIZE, fd.getStatSize());
+        fd.close();
+        assertEquals(THUMBNAIL_SIZE, cache.getSize());
+        // No temp files left behind
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, 3 * THUMBNAIL_SIZE);
+        put(cache, "a");
+        put(cache, "b");
+        put(cache, "c");
+        // Use "a", so that "b" is the least recently used
+        assertTrue(has(cache, "a"));
+        put(cache, "d");
+        assertFalse(has(cache, "b"));
+        assertFalse(new File(mDir, "b").exists());
+        assertTrue(has(cache, "a"));
+        assertTrue(has(cache, "c"));
+        assertTrue(has(cache, "d"));
+        assertEquals(3 * THUMBNAIL_SIZE, cache.getSize());
+    }
+
+    public void testReload() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, 10 * THUMBNAIL_SIZE);
+        put(cache, "a");
+        put(cache, "b");
+        // An unfinished thumbnail is cleared away
+        cache.createTempFile("c");
+
+        final ThumbnailCache reloaded = new ThumbnailCache(mDir, 10 * THUMBNAIL_SIZE);
+        assertTrue(has(reloaded, "a"));
+        assertTrue(has(reloaded, "b"));
+        assertEquals(2 * THUMBNAIL_SIZE, reloaded.getSize());
+        assertEquals(2, mDir.listFiles().length);
+    }
+
+    public void testOpenedThumbnailOutlivesEviction() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, THUMBNAIL_SIZE);
+        put(cache, "a");
+        final ParcelFileDescriptor fd = cache.open("a");
+        // Evicts "a", which can still be read through what was opened
+        put(cache, "b");
+        assertFalse(new File(mDir, "a").exists());
+        assertEquals(THUMBNAIL_SIZE, fd.getStatSize());
+        fd.close();
+    }
+
+    public void testDeletedFileIsMiss() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, 10 * THUMBNAIL_SIZE);
+        put(cache, "a");
+        new File(mDir, "a").delete();
+        assertFalse(has(cache, "a"));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testRemove() throws IOException {
+        final ThumbnailCache cache = new ThumbnailCache(mDir, 10 * THUMBNAIL_SIZE);
+        put(cache, ThumbnailCache.getKey(1, 2, 62, 62));
+        put(cache, ThumbnailCache.getKey(1, 2, 124, 124));
+        put(cache, ThumbnailCache.getKey(1, 22, 62, 62));
+        put(cache, ThumbnailCache.getKey(11, 3, 62, 62));
+
+        // Every size of the attachment, and no other attachment
+        assertEquals(2, cache.removeAttachment(1, 2));
+        assertFalse(has(cache, ThumbnailCache.getKey(1, 2, 62, 62)));
+        assertTrue(has(cache, ThumbnailCache.getKey(1, 22, 62, 62)));
+        assertEquals(2 * THUMBNAIL_SIZE, cache.getSize());
+
+        // Every attachment of the account, and no other account
+        assertEquals(1, cache.removeAccount(1));
+        assertFalse(has(cache, ThumbnailCache.getKey(1, 22, 62, 62)));
+        assertTrue(has(cache, ThumbnailCache.getKey(11, 3, 62, 62)));
+        assertEquals(1, mDir.listFiles().length);
+    }
+}
@@ -16,8 +16,11 @@
 
 package com.android.email.service;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
 
 import com.android.email.AccountTestCase;
 import com.android.email.EmailConnectivityManager;
@@ -26,12 +29,18 @@ import com.android.email.service.AttachmentDownloadService.DownloadRequest;
 import com.android.email.service.AttachmentDownloadService.DownloadSet;
 import com.android.email.service.EmailServiceUtils.NullEmailService;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
+import com.android.emailcommon.utility.AttachmentUtilities;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.Iterator;
 
 /**
@@ -159,6 +168,107 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att4.mId));
     }
 
+    public void testQueueRequiredDownloads() {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment requested = ProviderTestUtils.setupAttachment(message.mId, "requested", 1000,
+                Attachment.FLAG_DOWNLOAD_USER_REQUEST, true, mMockContext);
+        Attachment forwarded = ProviderTestUtils.setupAttachment(message.mId, "forwarded", 2000,
+                Attachment.FLAG_DOWNLOAD_FORWARD, true, mMockContext);
+        Attachment other = ProviderTestUtils.setupAttachment(message.mId, "other", 3000, 0, true,
+                mMockContext);
+
+        // As at startup, the attachments that need downloading are found and queued
+        mService.queueRequiredDownloads();
+        assertEquals(2, mService.getSize());
+        assertTrue(mService.isQueued(requested.mId));
+        assertTrue(mService.isQueued(forwarded.mId));
+        assertFalse(mService.isQueued(other.mId));
+
+        // The requests are made from the rows read by that one query
+        DownloadRequest req = mDownloadSet.findDownloadRequest(forwarded.mId);
+        assertEquals(forwarded.mAccountKey, req.accountId);
+        assertEquals(message.mId, req.messageId);
+        assertEquals(2000, req.size);
+    }
+
+    public void testAccountCache() {
+        Account account = mService.getAccount(mAccountId);
+        assertEquals(mAccountId, account.mId);
+
+        // Within the minute, the account isn't looked up again, so its deletion goes unseen
+        EmailContent.delete(mMockContext, Account.CONTENT_URI, mAccountId);
+        assertSame(account, mService.getAccount(mAccountId));
+
+        // After that, it's looked up (and not found), as are others
+        mService.mAccountCacheTime -= AttachmentDownloadService.ACCOUNT_CACHE_MILLIS + 1;
+        assertNull(mService.getAccount(mAccountId));
+        Account other = ProviderTestUtils.setupAccount("other", true, mMockContext);
+        assertEquals(other.mId, mService.getAccount(other.mId).mId);
+    }
+
+    /** An attachment in the inbox that isn't loaded or queued, so could be prefetched */
+    private Attachment setupPrefetchCandidate(long messageId, String name) {
+        Attachment att = ProviderTestUtils.setupAttachment(messageId, name, 1000, 0, false,
+                mMockContext);
+        att.mContentUri = null;
+        att.save(mMockContext);
+        return att;
+    }
+
+    private HashSet<Long> getPrefetchCandidates() {
+        HashSet<Long> ids = new HashSet<Long>();
+        Cursor c = mMockContext.getContentResolver().query(Attachment.CONTENT_URI,
+                new String[] {Attachment.RECORD_ID}, mDownloadSet.getPrefetchSelection(), null,
+                null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    private static HashSet<Long> ids(Attachment... attachments) {
+        HashSet<Long> ids = new HashSet<Long>();
+        for (Attachment att : attachments) {
+            ids.add(att.mId);
+        }
+        return ids;
+    }
+
+    public void testPrefetchSelection() {
+        Mailbox inbox = ProviderTestUtils.setupMailbox("inbox", mAccountId, true, mMockContext,
+                Mailbox.TYPE_INBOX);
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, inbox.mId, false,
+                true, mMockContext);
+        Attachment downloading = setupPrefetchCandidate(message.mId, "downloading");
+        Attachment failed = setupPrefetchCandidate(message.mId, "failed");
+        Attachment retrying = setupPrefetchCandidate(message.mId, "retrying");
+        Attachment waiting = setupPrefetchCandidate(message.mId, "waiting");
+        // Not in an inbox, so never a candidate
+        Message elsewhere = ProviderTestUtils.setupMessage("elsewhere", mAccountId, mMailboxId,
+                false, true, mMockContext);
+        setupPrefetchCandidate(elsewhere.mId, "elsewhere");
+
+        // With nothing downloading or failed, the selection is the usual one
+        assertEquals(Attachment.PRECACHE_INBOX_SELECTION, mDownloadSet.getPrefetchSelection());
+        assertEquals(ids(downloading, failed, retrying, waiting), getPrefetchCandidates());
+
+        // Attachments being downloaded, and those that have failed too often, are left out
+        mDownloadSet.mDownloadsInProgress.put(downloading.mId,
+                new DownloadRequest(mMockContext, downloading));
+        mService.mAttachmentFailureMap.put(failed.mId,
+                AttachmentDownloadService.MAX_DOWNLOAD_RETRIES + 1);
+        mService.mAttachmentFailureMap.put(retrying.mId,
+                AttachmentDownloadService.MAX_DOWNLOAD_RETRIES);
+        String selection = mDownloadSet.getPrefetchSelection();
+        assertTrue(selection.startsWith(Attachment.PRECACHE_INBOX_SELECTION + " AND "));
+        assertEquals(ids(retrying, waiting), getPrefetchCandidates());
+    }
+
     /**
      * A mock file directory containing a single (Mock)File.  The total space, usable space, and
      * length of the single file can be set
@@ -232,6 +342,12 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         public boolean isAutoSyncAllowed() {
             return true;
         }
+
+        @Override
+        public int getActiveNetworkType() {
+            // A mobile network, on which downloads are limited to one per account
+            return ConnectivityManager.TYPE_MOBILE;
+        }
     }
 
     public void testCanPrefetchForAccount() {
@@ -248,19 +364,87 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         // With 24% available, we should NOT be ok to prefetch
         assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
 
-        // Now, test per-account storage
+        // Now, test per-account storage, which comes from the ledger in the attachment table
         // Mock storage @ 100 total and 50 available
         mMockDirectory.setTotalAndUsableSpace(100L, 50L);
-        // Mock a file of length 12, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(11);
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att = setupStoredAttachment(message.mId, 0, "contentId");
+        // Mock a stored attachment of length 11
+        setStoredSize(att, 11);
         // We can prefetch since 11 < 50/4
         assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
-        // Mock a file of length 13, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(13);
-        // We can't prefetch since 13 > 50/4
+        // Mock a stored attachment of length 13
+        setStoredSize(att, 13);
+        // We can't prefetch since 13 > 50/4, and the attachment wasn't prefetched, so it can't
+        // be freed
+        assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+    }
+
+    public void testEvictPrefetchedAttachments() {
+        mMockDirectory.setTotalAndUsableSpace(100L, 50L);
+        mAccountManagerStub.setNumberOfAccounts(2);
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        // An inline image, and two prefetched attachments, the older of which is freed first
+        Attachment inline = setupStoredAttachment(message.mId,
+                Attachment.FLAG_DOWNLOAD_PREFETCHED, "contentId");
+        setStoredSize(inline, 5);
+        Attachment older = setupStoredAttachment(message.mId,
+                Attachment.FLAG_DOWNLOAD_PREFETCHED, null);
+        setStoredSize(older, 5);
+        Attachment newer = setupStoredAttachment(message.mId,
+                Attachment.FLAG_DOWNLOAD_PREFETCHED, null);
+        setStoredSize(newer, 5);
+        assertEquals(15, AttachmentUtilities.getAccountStorageUsed(mMockContext, mAccountId));
+
+        // Over the limit of 12, so there's no more prefetching, but nothing is freed for it
         assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        assertEquals(15, AttachmentUtilities.getAccountStorageUsed(mMockContext, mAccountId));
+
+        // Short of storage, so the older prefetched attachment is freed
+        mMockDirectory.setTotalAndUsableSpace(100L, 24L);
+        assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        assertEquals(10, AttachmentUtilities.getAccountStorageUsed(mMockContext, mAccountId));
+        Attachment freed = Attachment.restoreAttachmentWithId(mMockContext, older.mId);
+        assertNull(freed.getContentUri());
+        assertEquals(Attachment.FLAG_PREFETCH_EVICTED, freed.mFlags);
+        assertNotNull(Attachment.restoreAttachmentWithId(mMockContext, newer.mId)
+                .getContentUri());
+    }
+
+    public void testPartialDownloadsCounted() throws IOException {
+        final File partial =
+                AttachmentUtilities.getPartialDownloadFilename(mMockContext, mAccountId, 1);
+        partial.getParentFile().mkdirs();
+        final FileOutputStream out = new FileOutputStream(partial);
+        try {
+            out.write(new byte[7]);
+        } finally {
+            out.close();
+        }
+        try {
+            assertEquals(7, AttachmentUtilities.getAccountStorageUsed(mMockContext, mAccountId));
+        } finally {
+            partial.delete();
+        }
+    }
+
+    private Attachment setupStoredAttachment(long messageId, int flags, String contentId) {
+        Attachment att = ProviderTestUtils.setupAttachment(messageId, "filename", 1000, flags,
+                false, mMockContext);
+        att.mAccountKey = mAccountId;
+        att.mContentId = contentId;
+        att.save(mMockContext);
+        return att;
+    }
+
+    private void setStoredSize(Attachment att, long size) {
+        ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.STORED_SIZE, size);
+        // Ids are in the order the attachments were set up
+        cv.put(AttachmentColumns.STORED_TIME, att.mId);
+        att.update(mMockContext, cv);
     }
 
     public void testCanPrefetchForAccountNoBackgroundDownload() {
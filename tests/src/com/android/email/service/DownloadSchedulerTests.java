@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.net.ConnectivityManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of the attachment download scheduler's budgets.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.DownloadSchedulerTests email
+ */
+@SmallTest
+public class DownloadSchedulerTests extends AndroidTestCase {
+    private static final long ACCOUNT_1 = 1;
+    private static final long ACCOUNT_2 = 2;
+
+    public void testBudgetsByNetwork() {
+        final DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setNetworkType(ConnectivityManager.TYPE_MOBILE);
+        assertEquals(DownloadScheduler.MOBILE_MAX_DOWNLOADS, scheduler.getMaxDownloads());
+        scheduler.setNetworkType(ConnectivityManager.TYPE_WIFI);
+        assertEquals(DownloadScheduler.WIFI_MAX_DOWNLOADS, scheduler.getMaxDownloads());
+
+        // Fill the account's budget; another account can still start
+        for (int i = 0; i < DownloadScheduler.WIFI_MAX_DOWNLOADS_PER_ACCOUNT; i++) {
+            assertTrue(scheduler.canStart(ACCOUNT_1, false));
+            scheduler.onStart(ACCOUNT_1, false, 0);
+        }
+        assertFalse(scheduler.canStart(ACCOUNT_1, false));
+        assertTrue(scheduler.canStart(ACCOUNT_2, false));
+        scheduler.onEnd(ACCOUNT_1, false);
+        assertTrue(scheduler.canStart(ACCOUNT_1, false));
+    }
+
+    public void testPrefetchDoesNotBlockUser() {
+        final DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setNetworkType(ConnectivityManager.TYPE_MOBILE);
+        // A prefetch takes the account's only slot, and leaves none for more prefetches...
+        assertTrue(scheduler.canStart(ACCOUNT_1, true));
+        scheduler.onStart(ACCOUNT_1, true, 0);
+        assertFalse(scheduler.canStartBackground());
+        assertFalse(scheduler.canStart(ACCOUNT_2, true));
+        // ...but a download the user asks for isn't held up by it
+        assertTrue(scheduler.canStart(ACCOUNT_1, false));
+        scheduler.onStart(ACCOUNT_1, false, 0);
+        assertEquals(2, scheduler.getDownloadsInProgress());
+    }
+
+    public void testSlowThroughput() {
+        final DownloadScheduler scheduler = new DownloadScheduler();
+        scheduler.setNetworkType(ConnectivityManager.TYPE_WIFI);
+        // Small downloads don't count
+        scheduler.onFinished(ACCOUNT_1, 1024, 10000);
+        assertEquals(DownloadScheduler.WIFI_MAX_DOWNLOADS, scheduler.getMaxDownloads());
+        // A megabyte in two minutes is slow
+        scheduler.onFinished(ACCOUNT_1, 1024 * 1024, 120000);
+        assertEquals(DownloadScheduler.WIFI_MAX_DOWNLOADS / 2, scheduler.getMaxDownloads());
+        // Fast downloads bring the average back up
+        for (int i = 0; i < 10; i++) {
+            scheduler.onFinished(ACCOUNT_1, 1024 * 1024, 1000);
+        }
+        assertEquals(DownloadScheduler.WIFI_MAX_DOWNLOADS, scheduler.getMaxDownloads());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.Context;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.NotificationController;
+import com.android.email.mail.Sender;
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.email.service.OutboxSender.OutboxMessage;
+import com.android.emailcommon.internet.Rfc822Output;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests of sending an account's outbox.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.OutboxSenderTests email
+ */
+@LargeTest
+public class OutboxSenderTests extends ProviderTestCase2<EmailProvider> {
+    private static final int MESSAGES = 12;
+    private static final Pattern DATE_PATTERN = Pattern.compile("^Date: (.*)$",
+            Pattern.MULTILINE);
+
+    private Context mMockContext;
+    private Account mAccount;
+    private Mailbox mOutbox;
+
+    /** What each message was sent as, by message id */
+    private final HashMap<Long, String> mSent = new HashMap<Long, String>();
+    /** The senders that sent something */
+    private final HashSet<Sender> mSessions = new HashSet<Sender>();
+    /** Counted down as sessions first send, so that they're sure to overlap */
+    private CountDownLatch mSessionsSending;
+
+    public OutboxSenderTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        // The sender posts notifications through the real context
+        NotificationController.getInstance(getContext());
+        mAccount = ProviderTestUtils.setupAccount("outbox", true, mMockContext);
+        mOutbox = ProviderTestUtils.setupMailbox("outbox", mAccount.mId, true, mMockContext,
+                Mailbox.TYPE_OUTBOX);
+    }
+
+    /** Writes each message out, as an SMTP session would, and notes what it wrote */
+    private class WritingSender extends Sender {
+        private boolean mSending;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void sendMessage(long messageId) throws MessagingException {
+            fail("Messages should be sent as they were read");
+        }
+
+        @Override
+        public void sendMessage(Message message, List<Attachment> attachments)
+                throws MessagingException {
+            if (!mSending) {
+                mSending = true;
+                mSessionsSending.countDown();
+                try {
+                    mSessionsSending.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new MessagingException(MessagingException.IOERROR, e.toString());
+                }
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                Rfc822Output.writeTo(mMockContext, message, out, false, false, attachments);
+            } catch (IOException e) {
+                throw new MessagingException(MessagingException.IOERROR, e.toString());
+            }
+            synchronized (mSent) {
+                assertNull(mSent.put(message.mId, out.toString()));
+                mSessions.add(this);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testSendOverSeveralSessions() throws ParseException {
+        final long baseTime = 1400000000000L;
+        for (int i = 0; i < MESSAGES; i++) {
+            final Message message = ProviderTestUtils.setupMessage("message " + i, mAccount.mId,
+                    mOutbox.mId, true, false, mMockContext);
+            message.mTimeStamp = baseTime + i * 1000;
+            message.save(mMockContext);
+        }
+        final List<List<OutboxMessage>> groups = OutboxSender.loadOutbox(mMockContext,
+                mOutbox.mId);
+        assertEquals(MESSAGES, groups.size());
+
+        mSessionsSending = new CountDownLatch(2);
+        OutboxSender.send(mMockContext, mAccount, new OutboxSender.SenderFactory() {
+            @Override
+            public Sender getSender() {
+                return new WritingSender();
+            }
+        }, Mailbox.NO_MAILBOX, groups);
+
+        // Every message went, over more than one session
+        assertEquals(MESSAGES, mSent.size());
+        assertTrue(mSessions.size() > 1);
+        assertEquals(0, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                Message.MAILBOX_KEY + "=?", new String[] { Long.toString(mOutbox.mId) }));
+
+        // Each with its own date, though the sessions wrote them at the same time
+        final SimpleDateFormat format =
+                new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+        for (List<OutboxMessage> group : groups) {
+            for (OutboxMessage outboxMessage : group) {
+                final Message message = outboxMessage.mMessage;
+                final Matcher matcher = DATE_PATTERN.matcher(mSent.get(message.mId));
+                assertTrue(matcher.find());
+                assertEquals(message.mTimeStamp,
+                        format.parse(matcher.group(1).trim()).getTime());
+            }
+        }
+    }
+}
@@ -31,14 +31,23 @@ import org.apache.james.mime4j.message.Entity;
 import org.apache.james.mime4j.message.Header;
 import org.apache.james.mime4j.message.Multipart;
 
+import com.android.emailcommon.utility.CountingOutputStream;
+import com.android.mail.utils.LogUtils;
+
 import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.test.ProviderTestCase2;
+import android.util.Base64;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 
 /**
@@ -433,6 +442,118 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         }
     }
 
+    public void testGetRawTransferEncoding() throws IOException {
+        assertEquals("7bit", Rfc822Output.getRawTransferEncoding("a\r\nb\n".getBytes("UTF-8")));
+        assertEquals("8bit", Rfc822Output.getRawTransferEncoding("\u00e9t\u00e9".getBytes("UTF-8")));
+        // Bare CRs and NULs can't be sent raw
+        assertNull(Rfc822Output.getRawTransferEncoding("a\rb".getBytes("UTF-8")));
+        assertNull(Rfc822Output.getRawTransferEncoding("a\u0000b".getBytes("UTF-8")));
+        // Nor can lines over 998 octets
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 998; i++) {
+            line.append('x');
+        }
+        assertEquals("7bit", Rfc822Output.getRawTransferEncoding(
+                (line + "\r\n").getBytes("UTF-8")));
+        assertNull(Rfc822Output.getRawTransferEncoding((line + "x").getBytes("UTF-8")));
+    }
+
+    public void testEncodeBase64() {
+        final Random random = new Random(1);
+        for (int length = 0; length < 300; length++) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final byte[] encoded = new byte[(int) Rfc822Output.getBase64Length(length)];
+            assertEquals(encoded.length, Rfc822Output.encodeBase64(data, length, encoded));
+            assertEquals(Base64.encodeToString(data, Base64.CRLF), new String(encoded));
+        }
+    }
+
+    private static Attachment createAttachment(String fileName, String contentUri) {
+        final Attachment att = new Attachment();
+        att.mMimeType = "application/octet-stream";
+        att.mFileName = fileName;
+        att.setContentUri(contentUri);
+        return att;
+    }
+
+    /**
+     * The length of a prepared message is exactly what's written, whether its attachments are
+     * in memory, in files, or missing
+     */
+    public void testGetLength() throws IOException, MessagingException {
+        final Message msg = createTestMessage(TEXT, true);
+        final File file = File.createTempFile("rfc822", ".bin", getContext().getCacheDir());
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[1000]);
+            out.close();
+
+            final List<Attachment> atts = new ArrayList<Attachment>();
+            final Attachment bytes = createAttachment("bytes.html", null);
+            bytes.mContentBytes = "<html>Hi</html>".getBytes("UTF-8");
+            atts.add(bytes);
+            atts.add(createAttachment("file.bin", Uri.fromFile(file).toString()));
+            atts.add(createAttachment("missing.bin",
+                    Uri.fromFile(new File(file.getPath() + ".missing")).toString()));
+
+            for (boolean allow8bit : new boolean[] { false, true }) {
+                final Rfc822Output output =
+                        Rfc822Output.prepare(mMockContext, msg, false, false, atts, allow8bit);
+                final CountingOutputStream counter = new CountingOutputStream();
+                output.writeTo(counter);
+                assertEquals(counter.getCount(), output.getLength());
+                // And it can be written again
+                final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                output.writeTo(byteStream);
+                assertEquals(output.getLength(), byteStream.size());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Time writing a message with 20 MB of attachments; the log shows how long it takes
+     */
+    public void testWriteLargeAttachments() throws IOException, MessagingException {
+        final Message msg = createTestMessage(TEXT, true);
+        final List<Attachment> atts = new ArrayList<Attachment>();
+        final List<File> files = new ArrayList<File>();
+        try {
+            final byte[] block = new byte[1024 * 1024];
+            new Random(1).nextBytes(block);
+            for (int i = 0; i < 4; i++) {
+                final File file = File.createTempFile("rfc822", ".bin",
+                        getContext().getCacheDir());
+                files.add(file);
+                final FileOutputStream out = new FileOutputStream(file);
+                for (int j = 0; j < 5; j++) {
+                    out.write(block);
+                }
+                out.close();
+                atts.add(createAttachment(file.getName(), Uri.fromFile(file).toString()));
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            final Rfc822Output output =
+                    Rfc822Output.prepare(mMockContext, msg, false, false, atts, false);
+            final long length = output.getLength();
+            final long sized = SystemClock.elapsedRealtime();
+            final CountingOutputStream counter = new CountingOutputStream();
+            output.writeTo(counter);
+            final long written = SystemClock.elapsedRealtime();
+            assertEquals(length, counter.getCount());
+            assertTrue(length > Rfc822Output.getBase64Length(20 * 1024 * 1024));
+            LogUtils.d("Email", "20 MB of attachments: sized in %d ms, written in %d ms",
+                    sized - start, written - sized);
+        } finally {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
     /**
      * Confirm that the constructed message includes "MIME-VERSION: 1.0"
      */
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of downloads that are resumed where they were cut off.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.utility.PartialDownloadTests email
+ */
+@SmallTest
+public class PartialDownloadTests extends AndroidTestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "PartialDownloadTests");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static byte[] getData(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(PartialDownload download) throws IOException {
+        final InputStream in = download.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Download raw data in chunks, dropping the download after some of them, as a connection
+     * might, and resuming from where it says.
+     */
+    private byte[] download(byte[] raw, String encoding) throws IOException {
+        final Random random = new Random(raw.length);
+        PartialDownload download = PartialDownload.open(mFile, encoding);
+        while (download.getRawLength() < raw.length) {
+            final int offset = (int) download.getRawLength();
+            download.append(raw, offset, Math.min(raw.length - offset, 1 + random.nextInt(500)));
+            if (random.nextInt(3) == 0) {
+                download.close();
+                download = PartialDownload.open(mFile, encoding);
+            }
+        }
+        download.finish();
+        final byte[] data = read(download);
+        download.close();
+        return data;
+    }
+
+    public void testResumeBase64() throws IOException {
+        // Sizes that end with each amount of padding
+        for (int size = 10000; size < 10003; size++) {
+            mFile.delete();
+            final byte[] data = getData(size);
+            final byte[] raw = Base64.encode(data, Base64.DEFAULT);
+            assertTrue(Arrays.equals(data, download(raw, "base64")));
+        }
+    }
+
+    public void testResumeBase64NoPadding() throws IOException {
+        final byte[] data = getData(10001);
+        final byte[] raw = Base64.encode(data, Base64.NO_PADDING | Base64.CRLF);
+        assertTrue(Arrays.equals(data, download(raw, "base64")));
+    }
+
+    public void testResumeBinary() throws IOException {
+        final byte[] data = getData(10000);
+        assertTrue(Arrays.equals(data, download(data, "binary")));
+    }
+
+    public void testResumeFromQuantum() throws IOException {
+        PartialDownload download = PartialDownload.open(mFile, "base64");
+        // Two whole quanta, a line break, and half of another
+        final byte[] raw = "QUJD\r\nREVG\r\nR0".getBytes("US-ASCII");
+        download.append(raw, 0, raw.length);
+        assertEquals(raw.length, download.getRawLength());
+        download.close();
+
+        // The half quantum is fetched again
+        download = PartialDownload.open(mFile, "base64");
+        assertEquals(12, download.getRawLength());
+        assertEquals(6, download.getLength());
+        final byte[] rest = "R0hJ\r\n".getBytes("US-ASCII");
+        download.append(rest, 0, rest.length);
+        download.finish();
+        assertEquals("ABCDEFGHI", new String(read(download), "US-ASCII"));
+        download.close();
+    }
+
+    public void testBadFile() throws IOException {
+        // Says there's more decoded data than there is
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 12, 0, 0, 0, 0, 0, 0, 0, 9, 1 });
+        out.close();
+        final PartialDownload download = PartialDownload.open(mFile, "base64");
+        assertEquals(0, download.getRawLength());
+        assertEquals(0, download.getLength());
+        download.close();
+    }
+
+    public void testIsResumable() {
+        assertTrue(PartialDownload.isResumable("BASE64"));
+        assertTrue(PartialDownload.isResumable("7bit"));
+        assertTrue(PartialDownload.isResumable(null));
+        assertFalse(PartialDownload.isResumable("quoted-printable"));
+    }
+}
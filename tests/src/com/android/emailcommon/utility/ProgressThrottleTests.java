@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class ProgressThrottleTests extends AndroidTestCase {
+    private static final long SIZE = 50L * 1024 * 1024;
+
+    /** A throttle with a clock the test moves on, which records what it reports */
+    private static class ProgressThrottleForTest extends ProgressThrottle {
+        final ArrayList<Long> mReports = new ArrayList<Long>();
+        long mNow;
+
+        ProgressThrottleForTest(long total) {
+            super(total);
+        }
+
+        @Override
+        protected void report(long value) {
+            mReports.add(value);
+        }
+
+        @Override
+        protected long now() {
+            return mNow;
+        }
+    }
+
+    public void testLimitedByTime() {
+        final ProgressThrottleForTest throttle = new ProgressThrottleForTest(SIZE);
+        // A 50 MB download, read 16 KB at a time over 10 seconds
+        final int chunks = (int) (SIZE / (16 * 1024));
+        for (int i = 1; i <= chunks; i++) {
+            throttle.mNow = i * 10000L / chunks;
+            throttle.update(i * 16L * 1024);
+        }
+        throttle.finish();
+        // One for the start, about two a second, and the last value
+        final long maxReports = 10000 / ProgressThrottle.DEFAULT_MIN_INTERVAL_MS + 2;
+        assertTrue(throttle.mReports.size() <= maxReports);
+        assertEquals(SIZE, (long) throttle.mReports.get(throttle.mReports.size() - 1));
+    }
+
+    public void testLimitedByPercent() {
+        final ProgressThrottleForTest throttle = new ProgressThrottleForTest(SIZE);
+        throttle.update(0);
+        // Plenty of time, but not enough progress
+        throttle.mNow = 10000;
+        throttle.update(SIZE / 200);
+        assertEquals(1, throttle.mReports.size());
+        throttle.update(SIZE / 50);
+        assertEquals(2, throttle.mReports.size());
+        assertEquals(SIZE / 50, (long) throttle.mReports.get(1));
+    }
+
+    public void testFinishCoalesces() {
+        final ProgressThrottleForTest throttle = new ProgressThrottleForTest(0);
+        throttle.update(10);
+        throttle.update(20);
+        throttle.update(30);
+        assertEquals(1, throttle.mReports.size());
+        throttle.finish();
+        assertEquals(2, throttle.mReports.size());
+        assertEquals(30, (long) throttle.mReports.get(1));
+        // Nothing new to report
+        throttle.finish();
+        assertEquals(2, throttle.mReports.size());
+    }
+}
@@ -85,5 +85,22 @@ public class SSLUtilsTest extends AndroidTestCase {
                     SSLUtils.escapeForSchemeName(s2));
         }
     }
-}
 
+    public void testHandshakeResumed() {
+        // A resumed session was made by an earlier handshake
+        assertTrue(SSLUtils.HandshakeStats.isResumed(1000, 5000));
+        assertFalse(SSLUtils.HandshakeStats.isResumed(5000, 5000));
+        assertFalse(SSLUtils.HandshakeStats.isResumed(5001, 5000));
+    }
+
+    public void testHandshakeStats() {
+        final SSLUtils.HandshakeStats stats = new SSLUtils.HandshakeStats();
+        assertEquals(0, stats.getResumptionRate());
+        stats.record(300, false);
+        stats.record(40, true);
+        stats.record(50, true);
+        stats.record(30, true);
+        assertEquals(4, stats.getHandshakeCount());
+        assertEquals(75, stats.getResumptionRate());
+    }
+}
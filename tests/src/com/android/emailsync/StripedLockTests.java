@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the locks SyncManager takes by mailbox.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailsync.StripedLockTests email
+ */
+@SmallTest
+public class StripedLockTests extends TestCase {
+    private static final int STRIPES = 4;
+
+    /**
+     * Start a thread that takes the lock for the id (and lets it go again)
+     *
+     * @return a latch counted down once the thread has the lock
+     */
+    private static CountDownLatch lockInThread(final StripedLock lock, final long id) {
+        final CountDownLatch locked = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                lock.lock(id);
+                try {
+                    locked.countDown();
+                } finally {
+                    lock.unlock(id);
+                }
+            }
+        }.start();
+        return locked;
+    }
+
+    public void testExcludesSameId() throws InterruptedException {
+        final StripedLock lock = new StripedLock(STRIPES);
+        final CountDownLatch locked;
+        lock.lock(1);
+        try {
+            locked = lockInThread(lock, 1);
+            assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            lock.unlock(1);
+        }
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testOtherStripesDontWait() throws InterruptedException {
+        final StripedLock lock = new StripedLock(STRIPES);
+        lock.lock(1);
+        try {
+            assertTrue(lockInThread(lock, 2).await(10, TimeUnit.SECONDS));
+            // Negative ids have stripes too
+            assertTrue(lockInThread(lock, -2).await(10, TimeUnit.SECONDS));
+        } finally {
+            lock.unlock(1);
+        }
+    }
+
+    public void testSharedStripeWaits() throws InterruptedException {
+        final StripedLock lock = new StripedLock(STRIPES);
+        final CountDownLatch locked;
+        lock.lock(1);
+        try {
+            locked = lockInThread(lock, 1 + STRIPES);
+            assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            lock.unlock(1);
+        }
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testReentrant() throws InterruptedException {
+        final StripedLock lock = new StripedLock(STRIPES);
+        final CountDownLatch locked;
+        lock.lock(1);
+        try {
+            // Taking it again (or another id on the same stripe) doesn't wait for ourselves
+            lock.lock(1);
+            lock.lock(1 + STRIPES);
+            lock.unlock(1 + STRIPES);
+            lock.unlock(1);
+            // And it's still held until the outermost unlock
+            locked = lockInThread(lock, 1);
+            assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            lock.unlock(1);
+        }
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testDump() {
+        final StripedLock lock = new StripedLock(STRIPES);
+        StringWriter writer = new StringWriter();
+        lock.dump(new PrintWriter(writer), "Test locks");
+        assertEquals("  Test locks: 0 taken", writer.toString().split("\n")[0]);
+
+        // Retaking a lock that's held doesn't count
+        lock.lock(1);
+        lock.lock(1);
+        lock.unlock(1);
+        lock.unlock(1);
+        lock.lock(2);
+        lock.unlock(2);
+        writer = new StringWriter();
+        lock.dump(new PrintWriter(writer), "Test locks");
+        assertTrue(writer.toString().startsWith("  Test locks: 2 taken, wait avg "));
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.service.IEmailServiceCallback.Stub;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of SyncManager.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailsync.SyncManagerTests email
+ */
+@SmallTest
+public class SyncManagerTests extends AndroidTestCase {
+    private static final int MAX_SYNC_THREADS = 4;
+
+    /**
+     * A manager that starts the services it's given, and is otherwise inert; it notes the sync
+     * statuses it sets rather than writing them, and finds no mailboxes in the provider
+     */
+    private static class TestSyncManager extends SyncManager {
+        /** The statuses set, in order */
+        final ArrayList<Integer> mStatuses = new ArrayList<Integer>();
+
+        TestSyncManager(Context context) {
+            final MockContentResolver resolver = new MockContentResolver();
+            resolver.addProvider(EmailContent.AUTHORITY, new MockContentProvider(context) {
+                @Override
+                public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+                    return new MatrixCursor(projection);
+                }
+            });
+            attachBaseContext(new ContextWrapper(context) {
+                @Override
+                public ContentResolver getContentResolver() {
+                    return resolver;
+                }
+            });
+        }
+
+        @Override
+        public void setMailboxSyncStatus(long id, int status) {
+            synchronized (mStatuses) {
+                mStatuses.add(status);
+            }
+        }
+
+        ArrayList<Integer> getStatuses() {
+            synchronized (mStatuses) {
+                return new ArrayList<Integer>(mStatuses);
+            }
+        }
+
+        @Override
+        public AccountObserver getAccountObserver(Handler handler) {
+            return null;
+        }
+
+        @Override
+        public void onStartup() {
+        }
+
+        @Override
+        public String getAccountsSelector() {
+            return null;
+        }
+
+        @Override
+        public AbstractSyncService getServiceForMailbox(Context context, Mailbox mailbox) {
+            return null;
+        }
+
+        @Override
+        public AccountList collectAccounts(Context context, AccountList accounts) {
+            return accounts;
+        }
+
+        @Override
+        public String getAccountManagerType() {
+            return null;
+        }
+
+        @Override
+        public Intent getServiceIntent() {
+            return null;
+        }
+
+        @Override
+        public Stub getCallbackProxy() {
+            return null;
+        }
+
+        @Override
+        public void onStartService(Mailbox mailbox) {
+        }
+
+        @Override
+        protected void runAccountReconcilerSync(Context context) {
+        }
+    }
+
+    /** A service that notes the thread it runs in, and runs until it's let go */
+    private static class TestSyncService extends AbstractSyncService {
+        private final CountDownLatch mStarted;
+        private final CountDownLatch mRelease;
+        private final AtomicInteger mRunning;
+        volatile Thread mRanIn;
+
+        TestSyncService(long mailboxId, int syncInterval, CountDownLatch started,
+                CountDownLatch release, AtomicInteger running) {
+            super("test");
+            mMailbox = new Mailbox();
+            mMailbox.mId = mailboxId;
+            mMailbox.mDisplayName = "box" + mailboxId;
+            mMailbox.mSyncInterval = syncInterval;
+            mMailboxId = mailboxId;
+            mAccount = new Account();
+            mAccount.mDisplayName = "account";
+            mStarted = started;
+            mRelease = release;
+            mRunning = running;
+        }
+
+        @Override
+        public void run() {
+            mRanIn = Thread.currentThread();
+            mRunning.incrementAndGet();
+            mStarted.countDown();
+            try {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Just finish
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void stop() {
+            mStop = true;
+        }
+
+        @Override
+        public boolean alarm() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public Bundle validateAccount(HostAuth hostAuth, Context context) {
+            return null;
+        }
+
+        @Override
+        public void resetCalendarSyncKey() {
+        }
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        EmailContent.init(getContext());
+        // SyncManager makes a Handler when it's created
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        SyncManager.INSTANCE = null;
+        super.tearDown();
+    }
+
+    /** A notification as EmailProvider sends it, of the operation on the mailbox */
+    private static Uri getNotification(String op, long mailboxId) {
+        final Uri uri = Mailbox.NOTIFIER_URI.buildUpon().appendEncodedPath(op).build();
+        return (mailboxId > 0) ? ContentUris.withAppendedId(uri, mailboxId) : uri;
+    }
+
+    public void testGetUpdatedMailboxId() {
+        assertEquals(42, SyncManager.getUpdatedMailboxId(getNotification("update", 42)));
+
+        // Anything that isn't a single mailbox's update needs all the mailboxes scanned
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(getNotification("insert", 42)));
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(getNotification("delete", 42)));
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(getNotification("update", -1)));
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(Mailbox.NOTIFIER_URI));
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(
+                Mailbox.NOTIFIER_URI.buildUpon().appendEncodedPath("update/x").build()));
+        // Before JB, the uri isn't given
+        assertEquals(-1, SyncManager.getUpdatedMailboxId(null));
+    }
+
+    public void testServicesShareSyncThreads() throws InterruptedException {
+        final SyncManager manager = new TestSyncManager(getContext());
+        final int serviceCount = MAX_SYNC_THREADS + 2;
+        final CountDownLatch started = new CountDownLatch(serviceCount);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final TestSyncService[] services = new TestSyncService[serviceCount];
+        try {
+            for (int i = 0; i < serviceCount; i++) {
+                services[i] = new TestSyncService(i + 1, Mailbox.CHECK_INTERVAL_NEVER, started,
+                        release, running);
+                manager.startServiceThread(services[i]);
+                assertSame(services[i], manager.mServiceMap.get(i + 1L));
+            }
+
+            // Only as many run at once as there are sync threads; the rest wait their turn
+            assertFalse(started.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(MAX_SYNC_THREADS, running.get());
+            assertEquals(2, started.getCount());
+        } finally {
+            release.countDown();
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // They all ran, in the pool's threads rather than threads of their own
+        final HashSet<Thread> threads = new HashSet<Thread>();
+        for (TestSyncService service : services) {
+            assertNotNull(service.mRanIn);
+            threads.add(service.mRanIn);
+        }
+        assertTrue(threads.size() <= MAX_SYNC_THREADS);
+    }
+
+    public void testPushServiceGetsOwnThread() throws InterruptedException {
+        final SyncManager manager = new TestSyncManager(getContext());
+        final CountDownLatch poolStarted = new CountDownLatch(MAX_SYNC_THREADS);
+        final CountDownLatch pushStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final HashSet<Thread> poolThreads = new HashSet<Thread>();
+        try {
+            // Keep every sync thread busy
+            final TestSyncService[] services = new TestSyncService[MAX_SYNC_THREADS];
+            for (int i = 0; i < MAX_SYNC_THREADS; i++) {
+                services[i] = new TestSyncService(i + 1, Mailbox.CHECK_INTERVAL_NEVER,
+                        poolStarted, release, running);
+                manager.startServiceThread(services[i]);
+            }
+            assertTrue(poolStarted.await(10, TimeUnit.SECONDS));
+            for (TestSyncService service : services) {
+                poolThreads.add(service.mRanIn);
+            }
+
+            // A pushed mailbox still starts, in a thread that isn't one of the pool's
+            final TestSyncService push = new TestSyncService(100, Mailbox.CHECK_INTERVAL_PUSH,
+                    pushStarted, release, running);
+            manager.startServiceThread(push);
+            assertTrue(pushStarted.await(10, TimeUnit.SECONDS));
+            assertEquals(MAX_SYNC_THREADS + 1, running.get());
+            assertFalse(poolThreads.contains(push.mRanIn));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testDoneLeavesNewerServiceStatus() {
+        final TestSyncManager manager = new TestSyncManager(getContext());
+        SyncManager.INSTANCE = manager;
+        final CountDownLatch latch = new CountDownLatch(0);
+        final AtomicInteger running = new AtomicInteger();
+        final TestSyncService oldService = new TestSyncService(1, Mailbox.CHECK_INTERVAL_NEVER,
+                latch, latch, running);
+        final TestSyncService newService = new TestSyncService(1, Mailbox.CHECK_INTERVAL_NEVER,
+                latch, latch, running);
+        oldService.mThread = Thread.currentThread();
+        newService.mThread = new Thread();
+        manager.mServiceMap.put(1L, newService);
+
+        // The old service finishing leaves the new one, and the status it's syncing with, alone
+        SyncManager.done(oldService);
+        assertSame(newService, manager.mServiceMap.get(1L));
+        assertTrue(manager.getStatuses().isEmpty());
+    }
+
+    public void testDoneWaitsForStatusBeingSet() throws InterruptedException {
+        final TestSyncManager manager = new TestSyncManager(getContext());
+        SyncManager.INSTANCE = manager;
+        final CountDownLatch latch = new CountDownLatch(0);
+        final AtomicInteger running = new AtomicInteger();
+        final TestSyncService service = new TestSyncService(1, Mailbox.CHECK_INTERVAL_NEVER,
+                latch, latch, running);
+        final Thread serviceThread = new Thread() {
+            @Override
+            public void run() {
+                SyncManager.done(service);
+            }
+        };
+        service.mThread = serviceThread;
+
+        // As requestSync() does, start the service and set its status under the mailbox's lock;
+        // a service that finishes at once mustn't clear the status before it's been set
+        SyncManager.sMailboxLocks.lock(1);
+        try {
+            manager.mServiceMap.put(1L, service);
+            serviceThread.start();
+            serviceThread.join(500);
+            assertTrue(serviceThread.isAlive());
+            assertTrue(manager.getStatuses().isEmpty());
+            manager.setMailboxSyncStatus(1, EmailContent.SYNC_STATUS_USER);
+        } finally {
+            SyncManager.sMailboxLocks.unlock(1);
+        }
+        serviceThread.join(10000);
+        assertFalse(serviceThread.isAlive());
+
+        // The status was cleared after it was set, rather than left set for a finished sync
+        final ArrayList<Integer> statuses = manager.getStatuses();
+        assertEquals(2, statuses.size());
+        assertEquals(EmailContent.SYNC_STATUS_USER, (int) statuses.get(0));
+        assertEquals(EmailContent.SYNC_STATUS_NONE, (int) statuses.get(1));
+        assertNull(manager.mServiceMap.get(1L));
+    }
+}
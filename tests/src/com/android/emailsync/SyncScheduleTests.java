@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailsync;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of SyncManager's schedule of when mailboxes next need attention.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailsync.SyncScheduleTests email
+ */
+@SmallTest
+public class SyncScheduleTests extends TestCase {
+    private static ArrayList<Long> ids(long... ids) {
+        final ArrayList<Long> list = new ArrayList<Long>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    public void testEmpty() {
+        final SyncSchedule schedule = new SyncSchedule();
+        assertEquals(0, schedule.size());
+        assertEquals(Long.MAX_VALUE, schedule.getNextTime());
+        assertNull(schedule.getNextReason());
+        assertTrue(schedule.takeDue(Long.MAX_VALUE).isEmpty());
+    }
+
+    public void testOrdering() {
+        final SyncSchedule schedule = new SyncSchedule();
+        schedule.set(1, 300, "third");
+        schedule.set(2, 100, "first");
+        schedule.set(3, 200, "second");
+        assertEquals(3, schedule.size());
+        assertEquals(100, schedule.getNextTime());
+        assertEquals("first", schedule.getNextReason());
+
+        // Nothing is due before its time, and what's due comes out in order of time
+        assertTrue(schedule.takeDue(99).isEmpty());
+        assertEquals(ids(2, 3), schedule.takeDue(250));
+        assertEquals(1, schedule.size());
+        assertEquals(300, schedule.getNextTime());
+        assertEquals("third", schedule.getNextReason());
+        assertEquals(ids(1), schedule.takeDue(300));
+        assertEquals(0, schedule.size());
+        assertEquals(Long.MAX_VALUE, schedule.getNextTime());
+    }
+
+    public void testReschedule() {
+        final SyncSchedule schedule = new SyncSchedule();
+        schedule.set(1, 100, "early");
+        schedule.set(2, 200, "other");
+        // Setting another time replaces the first, whether it's later or earlier
+        schedule.set(1, 300, "later");
+        assertEquals(2, schedule.size());
+        assertEquals(200, schedule.getNextTime());
+        assertEquals("other", schedule.getNextReason());
+        assertTrue(schedule.takeDue(150).isEmpty());
+        schedule.set(1, 50, "sooner");
+        assertEquals(50, schedule.getNextTime());
+        assertEquals("sooner", schedule.getNextReason());
+
+        // A mailbox comes out once, however many times it was set
+        assertEquals(ids(1, 2), schedule.takeDue(1000));
+        assertEquals(0, schedule.size());
+        assertTrue(schedule.takeDue(Long.MAX_VALUE).isEmpty());
+    }
+
+    public void testRemove() {
+        final SyncSchedule schedule = new SyncSchedule();
+        schedule.set(1, 100, "removed");
+        schedule.set(2, 200, "kept");
+        schedule.remove(1);
+        schedule.remove(3);
+        assertEquals(1, schedule.size());
+        assertEquals(200, schedule.getNextTime());
+        assertEquals(ids(2), schedule.takeDue(1000));
+
+        // A mailbox that's taken out can be set again
+        schedule.set(1, 400, "again");
+        assertEquals(ids(1), schedule.takeDue(1000));
+    }
+
+    public void testClear() {
+        final SyncSchedule schedule = new SyncSchedule();
+        schedule.set(1, 100, "one");
+        schedule.set(2, 200, "two");
+        schedule.clear();
+        assertEquals(0, schedule.size());
+        assertEquals(Long.MAX_VALUE, schedule.getNextTime());
+        assertTrue(schedule.takeDue(Long.MAX_VALUE).isEmpty());
+    }
+}